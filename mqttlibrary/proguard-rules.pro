@@ -33,6 +33,9 @@
 -keep public class android.aracy.support.mqtt.MQTTConstant {*;}
 
 -keep public class android.aracy.support.mqtt.MQTTManager {*;}
+-keep class android.aracy.support.mqtt.IMQTTService** {*;}
+-keep class android.aracy.support.mqtt.IMQTTCallback** {*;}
+-keep public class android.aracy.support.mqtt.MessageBatch {*;}
 
 -keep class *.R
 
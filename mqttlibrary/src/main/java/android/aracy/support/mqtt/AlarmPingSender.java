@@ -19,14 +19,14 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.os.PowerManager;
-import android.os.PowerManager.WakeLock;
 
 import org.eclipse.paho.client.mqttv3.IMqttActionListener;
 import org.eclipse.paho.client.mqttv3.IMqttToken;
 import org.eclipse.paho.client.mqttv3.MqttPingSender;
 import org.eclipse.paho.client.mqttv3.internal.ClientComms;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * Default ping sender implementation on Android. It is based on AlarmManager.
  * <p>
@@ -40,6 +40,9 @@ class AlarmPingSender implements MqttPingSender {
     // Identifier for Intents, LogUtil messages, etc..
     static final String TAG = "AlarmPingSender";
 
+    // Upper bound for holding the wake lock while waiting for PINGRESP.
+    private static final long PING_WAKE_TIMEOUT_MILLIS = 30000;
+
     // TODO: Add LogUtil.
     private ClientComms comms;
 
@@ -53,6 +56,20 @@ class AlarmPingSender implements MqttPingSender {
 
     private volatile boolean hasStarted = false;
 
+    // Receives the PINGRESP round-trip time, may be null.
+    private volatile RttListener rttListener;
+
+    /**
+     * PINGRESP往返时间的接收方
+     */
+    interface RttListener {
+
+        /**
+         * @param rttMillis 从发出PINGREQ到收到PINGRESP的时间
+         */
+        void onPingRtt(long rttMillis);
+    }
+
     public AlarmPingSender(Service service) {
         if (service == null) {
             throw new IllegalArgumentException("Neither service nor client can be null.");
@@ -61,6 +78,19 @@ class AlarmPingSender implements MqttPingSender {
         that = this;
     }
 
+    void setRttListener(RttListener listener) {
+        rttListener = listener;
+    }
+
+    /**
+     * Paho按顺序尝试多个服务器地址时，实际连上的地址在列表中的下标
+     *
+     * @return 地址下标，还没有初始化时为-1
+     */
+    int getConnectedServerIndex() {
+        return comms == null ? -1 : comms.getNetworkModuleIndex();
+    }
+
     @Override
     public void init(ClientComms comms) {
         this.comms = comms;
@@ -69,7 +99,9 @@ class AlarmPingSender implements MqttPingSender {
 
     @Override
     public void start() {
-        String action = "MqttService.PingSender." + comms.getClient().getClientId();
+        // 并行连接时同一个clientId有多个客户端，按实例区分闹钟，取消落选的连接不会影响胜出的连接
+        String action = "MqttService.PingSender." + comms.getClient().getClientId() + "."
+                + Integer.toHexString(System.identityHashCode(this));
         LogUtil.d(TAG, "Register alarmreceiver to MqttService" + action);
         service.registerReceiver(alarmReceiver, new IntentFilter(action));
 
@@ -82,8 +114,10 @@ class AlarmPingSender implements MqttPingSender {
     @Override
     public void stop() {
         // Cancel Alarm.
-        AlarmManager alarmManager = (AlarmManager) service.getSystemService(Service.ALARM_SERVICE);
-        alarmManager.cancel(pendingIntent);
+        if (pendingIntent != null) {
+            AlarmManager alarmManager = (AlarmManager) service.getSystemService(Service.ALARM_SERVICE);
+            alarmManager.cancel(pendingIntent);
+        }
 
         LogUtil.d(TAG, "Unregister alarmreceiver to MqttService" + comms.getClient().getClientId());
         if (hasStarted) {
@@ -107,9 +141,6 @@ class AlarmPingSender implements MqttPingSender {
      * This class sends PingReq packet to MQTT broker
      */
     class AlarmReceiver extends BroadcastReceiver {
-        private WakeLock wakelock;
-
-        private String wakeLockTag = "MqttService.client." + that.comms.getClient().getClientId();
 
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -131,30 +162,28 @@ class AlarmPingSender implements MqttPingSender {
 
             // Assign new callback to token to execute code after PingResq
             // arrives. Get another wakelock even receiver already has one,
-            // release it until ping response returns.
-            if (wakelock == null) {
-                PowerManager pm = (PowerManager) service.getSystemService(Service.POWER_SERVICE);
-                wakelock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, wakeLockTag);
-            }
-            wakelock.acquire();
+            // release it until ping response returns or the timeout expires.
+            final WakeLockTracker.Hold hold = MQTTManager.getInstance(service).getWakeLockTracker()
+                    .acquire(WakeCause.PING, PING_WAKE_TIMEOUT_MILLIS);
+            final long sentNanos = System.nanoTime();
             token.setActionCallback(new IMqttActionListener() {
 
                 @Override
                 public void onSuccess(IMqttToken asyncActionToken) {
-                    LogUtil.d(TAG, "Success. Release lock(" + wakeLockTag + "):" + System.currentTimeMillis());
-                    // Release wakelock when it is done.
-                    if (wakelock != null && wakelock.isHeld()) {
-                        wakelock.release();
+                    LogUtil.d(TAG, "Success. Release lock:" + System.currentTimeMillis());
+                    RttListener listener = rttListener;
+                    if (listener != null) {
+                        listener.onPingRtt(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sentNanos));
                     }
+                    // Release wakelock when it is done.
+                    hold.release();
                 }
 
                 @Override
                 public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
-                    LogUtil.d(TAG, "Failure. Release lock(" + wakeLockTag + "):" + System.currentTimeMillis());
+                    LogUtil.d(TAG, "Failure. Release lock:" + System.currentTimeMillis());
                     // Release wakelock when it is done.
-                    if (wakelock != null && wakelock.isHeld()) {
-                        wakelock.release();
-                    }
+                    hold.release();
                 }
             });
         }
@@ -5,7 +5,6 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.net.ConnectivityManager;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
@@ -24,8 +23,14 @@ import org.eclipse.paho.client.mqttv3.MqttMessage;
 
 import java.lang.ref.WeakReference;
 import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Message Service
@@ -38,14 +43,29 @@ public class AsyncMQTTService extends Service implements MqttCallback {
     public static final String TAG = "AsyncMQTTService";
 
     private static final int MQTT_CONNECT = 1002;
+
+    /**
+     * 连接时持有唤醒锁的最长时间，连接超时为15秒
+     */
+    private static final long CONNECT_WAKE_TIMEOUT_MILLIS = 30000;
+
+    /**
+     * 内存紧张时线程池空闲线程的存活时间
+     */
+    private static final long IDLE_THREAD_KEEP_ALIVE_SECONDS = 1;
+
+    /**
+     * 处理消息时持有唤醒锁的最长时间
+     */
+    private static final long DISPATCH_WAKE_TIMEOUT_MILLIS = 60000;
     /**
      * 是否有网络连接
      */
     private volatile boolean mNetConnected;
     /**
-     * 网络状态改变的消息接收者
+     * 网络状态监听器
      */
-    private NetWorkManagerReceiver mManagerReceiver;
+    private NetworkMonitor mNetworkMonitor;
 
     /**
      * 内部广播管理器
@@ -60,17 +80,21 @@ public class AsyncMQTTService extends Service implements MqttCallback {
      */
     private int mMQTTConnectCount;
     /**
-     * MQTT连接
+     * MQTT连接，在启动线程中创建
      */
-    private MQTTConnection mConnection;
+    private volatile MQTTConnection mConnection;
     /**
      * 重连的消息处理者
      */
-    private ReConnectHandler connectHandler;
+    private volatile ReConnectHandler connectHandler;
     /**
-     * 线程池
+     * 线程池，第一次需要处理消息时创建
      */
     private ExecutorService mPool;
+    /**
+     * 内存紧张时线程池的空闲线程是否尽快退出
+     */
+    private boolean mIdleThreadsTrimmed;
     /**
      * 订阅主题
      */
@@ -95,25 +119,187 @@ public class AsyncMQTTService extends Service implements MqttCallback {
      * 订阅主题的消息质量
      */
     private int[] qoses;
+    /**
+     * 处理消息的Runnable的Class名称和构造方法，只在MQTT回调线程使用
+     */
+    private String mRunnableClassName;
+
+    private Constructor<?> mRunnableConstructor;
+    /**
+     * 唤醒锁管理
+     */
+    private WakeLockTracker mWakeLockTracker;
+    /**
+     * 收到消息的预写日志，没有开启时为空
+     */
+    private volatile InboundJournal mInboundJournal;
+    /**
+     * 批量处理线程，没有设置批量处理时为空
+     */
+    private volatile BatchDispatcher mBatchDispatcher;
+    /**
+     * 线程池中还没有处理完的消息数和对应的唤醒锁
+     */
+    private final Object mDispatchLock = new Object();
+
+    private int mDispatchPending;
+
+    private WakeLockTracker.Hold mDispatchHold;
+    /**
+     * 主题规范化表
+     */
+    private TopicTable mTopicTable;
+    /**
+     * 消息监听器注册表
+     */
+    private MessageListenerRegistry mListenerRegistry;
+    /**
+     * 发布消息的调度器
+     */
+    private OutboundScheduler mOutboundScheduler;
+    /**
+     * 主题最新值缓存
+     */
+    private LastValueCache mLastValueCache;
+    /**
+     * 批量广播器，未开启批量广播时为空
+     */
+    private BroadcastBatcher mBroadcastBatcher;
+    /**
+     * 运行统计
+     */
+    private MQTTMetrics mMetrics;
+    /**
+     * 消息跟踪
+     */
+    private MessageTracer mTracer;
+    /**
+     * 内存管理
+     */
+    private MemoryGovernor mMemoryGovernor;
+    /**
+     * 差量编码和解码
+     */
+    private DeltaEncoder mDeltaEncoder;
+    private DeltaDecoder mDeltaDecoder;
+    /**
+     * 服务器延迟排名
+     */
+    private BrokerRanking mBrokerRanking;
+    /**
+     * 跨进程接口，第一次绑定时创建
+     */
+    private MQTTBinder mBinder;
+    /**
+     * 向其他进程分批发送消息，第一次绑定时创建
+     */
+    private volatile RemoteMessageDispatcher mRemoteDispatcher;
+    /**
+     * 修改订阅主题的锁
+     */
+    private final Object mSubscriptionLock = new Object();
+    /**
+     * 启动线程是否已经完成初始化
+     */
+    private volatile boolean mInitialized;
+    /**
+     * Service是否已经销毁
+     */
+    private volatile boolean mDestroyed;
+    /**
+     * onCreate的时间，用于统计启动耗时
+     */
+    private long mCreateNanos;
+    /**
+     * 是否已经收到启动后的第一条消息
+     */
+    private volatile boolean mFirstMessageArrived;
 
     @Override
     public void onCreate() {
         super.onCreate();
-        initData();
+        mCreateNanos = System.nanoTime();
+        mMQTTConnectCount = 0;
+        connectHandler = new ReConnectHandler(this);
         registerBroadcastReceiver();
+        // 读取配置、创建连接都在启动线程中进行，主线程不等待
+        Thread startupThread = new Thread(new StartupTask(), "mqtt-startup");
+        startupThread.start();
     }
 
     /**
-     * 初始化数据
+     * 启动任务，尽早发出第一次连接
+     *
+     * @author aracy
+     * @version [1.0, 2017-04-26]
+     */
+    private class StartupTask implements Runnable {
+
+        @Override
+        public void run() {
+            MQTTManager manager = MQTTManager.getInstance(AsyncMQTTService.this);
+            mMetrics = manager.getMetrics();
+            mMetrics.resetStartup();
+            mTopicTable = manager.getTopicTable();
+            mWakeLockTracker = manager.getWakeLockTracker();
+            mListenerRegistry = manager.getListenerRegistry();
+            mOutboundScheduler = manager.getOutboundScheduler();
+            mLastValueCache = manager.getLastValueCache();
+            mTracer = manager.getTracer();
+            mMemoryGovernor = manager.getMemoryGovernor();
+            mDeltaEncoder = manager.getDeltaEncoder();
+            mDeltaDecoder = manager.getDeltaDecoder();
+            mBrokerRanking = manager.getBrokerRanking();
+            if (mDestroyed) {
+                return;
+            }
+            // 回调注册在单例上，onDestroy可能与这里同时执行，注册之后再检查一次，已经销毁时自己清除
+            mMemoryGovernor.setHost(new MemoryHost());
+            mDeltaDecoder.setResyncRequester(new ResyncRequester());
+            mBrokerRanking.setMigrationCallback(new BrokerMigration());
+            if (mDestroyed) {
+                clearManagerCallbacks();
+                return;
+            }
+            if (!MqttUtil.getAutoStart(AsyncMQTTService.this)) {
+                stopSelf();
+                return;
+            }
+            initData();
+            mMetrics.startupConfigNanos = System.nanoTime() - mCreateNanos;
+            if (mConnection == null) {
+                return;
+            }
+            replayInboundJournal();
+            mMetrics.startupClientNanos = System.nanoTime() - mCreateNanos;
+            mInitialized = true;
+            if (mDestroyed) {
+                mConnection.close();
+                return;
+            }
+            connectWithWakeLock();
+            mMetrics.startupConnectSentNanos = System.nanoTime() - mCreateNanos;
+            // onDestroy会把connectHandler置空，先取到局部变量
+            Handler handler = connectHandler;
+            if (mDestroyed || handler == null) {
+                return;
+            }
+            // 网络监听在连接发出之后再开始，避免重复连接
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    startNetworkMonitor();
+                }
+            });
+        }
+    }
+
+    /**
+     * 初始化数据，在启动线程中调用
      *
      * @see [类、类#方法、类#成员]
      */
     private void initData() {
-        mMQTTConnectCount = 0;
-        connectHandler = new ReConnectHandler(this);
-        // 初始化线程池
-        int threadCount = Runtime.getRuntime().availableProcessors() * 3;
-        mPool = Executors.newFixedThreadPool(threadCount);
         // 初始化MQTT
         getMQTTParameterFromLocal();
         if (TextUtils.isEmpty(mClientId)) {
@@ -122,17 +308,82 @@ public class AsyncMQTTService extends Service implements MqttCallback {
             return;
         }
         try {
-            mConnection = new MQTTConnection(mServerUri, mClientId, this, this);
-            mConnection.setUserName(mUserName);
-            mConnection.setPassWord(mPassWord);
-            mConnection.setCleanSession(false);
+            MQTTConnection connection = new MQTTConnection(mServerUri, mClientId, this, this);
+            connection.setUserName(mUserName);
+            connection.setPassWord(mPassWord);
+            connection.setCleanSession(false);
             String[] serverURIs = MqttUtil.getServerURIs(this);
-            mConnection.setServerURIs(serverURIs);
+            connection.setServerURIs(serverURIs);
+            connection.setConnectRace(MqttUtil.getConnectRaceStagger(this), mMetrics);
+            connection.setBrokerRanking(mBrokerRanking);
+            if (hasSecureURI(mServerUri, serverURIs)) {
+                TlsSocketFactory factory = MQTTManager.getInstance(this).getTlsSocketFactory();
+                if (factory != null && !connection.setSSLSocketFactory(factory)) {
+                    LogUtil.e(TAG, "服务器地址同时有tcp://和ssl://，不共用TLS会话缓存");
+                }
+            }
+            mConnection = connection;
         } catch (MqttException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * 是否有ssl://服务器地址
+     *
+     * @param serverURI  服务器地址
+     * @param serverURIs 集群服务器地址，没有时为空
+     * @return 是否有ssl://地址
+     */
+    private static boolean hasSecureURI(String serverURI, String[] serverURIs) {
+        if (serverURIs == null || serverURIs.length == 0) {
+            return serverURI != null && serverURI.startsWith("ssl://");
+        }
+        for (String uri : serverURIs) {
+            if (uri.startsWith("ssl://")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 获取处理消息的线程池，第一次使用时创建
+     *
+     * @return 线程池
+     */
+    private synchronized ExecutorService getPool() {
+        if (mPool == null) {
+            int processors = Runtime.getRuntime().availableProcessors();
+            if (MqttUtil.getDispatchMode(this) == DispatchMode.WORK_STEALING && ForkJoinSupport.isSupported()) {
+                // 工作线程空闲一段时间后自动退出，不需要处理内存紧张
+                mPool = ForkJoinSupport.newPool(processors);
+            } else {
+                ThreadPoolExecutor pool = new ThreadPoolExecutor(processors * 3, processors * 3,
+                        IDLE_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+                pool.allowCoreThreadTimeOut(mIdleThreadsTrimmed);
+                mPool = pool;
+            }
+        }
+        return mPool;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (mMemoryGovernor != null) {
+            mMemoryGovernor.onTrimMemory(level);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        if (mMemoryGovernor != null) {
+            mMemoryGovernor.shed(MemoryPressure.CRITICAL);
+        }
+    }
+
     /**
      * 注册广播接收者
      *
@@ -146,12 +397,17 @@ public class AsyncMQTTService extends Service implements MqttCallback {
         IntentFilter messageFilter = new IntentFilter(MQTTConstant.ACTION_MESSAGE_PUBLISH);
         messageFilter.addAction("stop");
         mBroadcastManager.registerReceiver(mMessageReceiver, messageFilter);
+    }
 
-        // 注册网络状态改变的广播接收者
-        mManagerReceiver = new NetWorkManagerReceiver();
-        IntentFilter netWorkFilter = new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION);
-        registerReceiver(mManagerReceiver, netWorkFilter);
-
+    /**
+     * 开始监听网络状态，在主线程调用
+     */
+    private void startNetworkMonitor() {
+        if (mDestroyed || mNetworkMonitor != null) {
+            return;
+        }
+        mNetworkMonitor = new NetworkMonitor(this, connectHandler, mMetrics, new NetworkCallback());
+        mNetworkMonitor.start();
     }
 
     /***
@@ -161,7 +417,17 @@ public class AsyncMQTTService extends Service implements MqttCallback {
         if (mConnection == null || mConnection.isConnected()) {
             return;
         }
-        mConnection.connect(new MqttConnectListener());
+        connectWithWakeLock();
+    }
+
+    /**
+     * 发出连接，连接完成之前持有唤醒锁
+     */
+    private void connectWithWakeLock() {
+        MqttConnectListener listener = new MqttConnectListener();
+        if (!mConnection.connect(listener)) {
+            listener.releaseWakeLock();
+        }
     }
 
     /**
@@ -180,24 +446,119 @@ public class AsyncMQTTService extends Service implements MqttCallback {
 
         topics = MqttUtil.getTopics(this);
         qoses = MqttUtil.getQoses(this);
+
+        createBatchDispatcher();
+
+        long batchInterval = MqttUtil.getBroadcastBatchInterval(this);
+        if (batchInterval > 0) {
+            mBroadcastBatcher = new BroadcastBatcher(this, mMetrics, batchInterval,
+                    MqttUtil.isBroadcastBatchConflate(this), MqttUtil.getBroadcastBatchMaxRate(this));
+        }
     }
 
     @Nullable
     @Override
-    public IBinder onBind(Intent intent) {
-        return null;
+    public synchronized IBinder onBind(Intent intent) {
+        if (mBinder == null) {
+            MQTTManager manager = MQTTManager.getInstance(this);
+            mRemoteDispatcher = new RemoteMessageDispatcher(manager.getMetrics());
+            mBinder = new MQTTBinder(this, manager, mRemoteDispatcher);
+        }
+        return mBinder;
+    }
+
+    /**
+     * 增加订阅主题，保存到配置中，已经连接时只订阅新增的主题
+     *
+     * @param addTopics 主题
+     * @param addQoses  主题质量，为空或长度不一致时全部使用0
+     */
+    void addSubscriptions(String[] addTopics, int[] addQoses) {
+        int[] qosArray = new int[addTopics.length];
+        synchronized (mSubscriptionLock) {
+            LinkedHashMap<String, Integer> subscriptions = loadSubscriptions();
+            for (int i = 0; i < addTopics.length; i++) {
+                qosArray[i] = addQoses != null && addQoses.length == addTopics.length ? addQoses[i] : 0;
+                subscriptions.put(addTopics[i], qosArray[i]);
+            }
+            saveSubscriptions(subscriptions);
+        }
+        MQTTConnection connection = mConnection;
+        if (mInitialized && connection != null && connection.isConnected()) {
+            // 已有的订阅不变，内存紧张时暂停的主题等内存恢复之后再订阅
+            List<String> paused = Arrays.asList(mMemoryGovernor.getPausedTopics());
+            List<String> subscribeTopics = new ArrayList<>();
+            List<Integer> subscribeQoses = new ArrayList<>();
+            for (int i = 0; i < addTopics.length; i++) {
+                if (!paused.contains(addTopics[i])) {
+                    subscribeTopics.add(addTopics[i]);
+                    subscribeQoses.add(qosArray[i]);
+                }
+            }
+            int[] subscribeQosArray = new int[subscribeQoses.size()];
+            for (int i = 0; i < subscribeQosArray.length; i++) {
+                subscribeQosArray[i] = subscribeQoses.get(i);
+            }
+            connection.subscribe(subscribeTopics.toArray(new String[subscribeTopics.size()]), subscribeQosArray);
+        }
+    }
+
+    /**
+     * 取消订阅主题，从配置中删除
+     *
+     * @param removeTopics 主题
+     */
+    void removeSubscriptions(String[] removeTopics) {
+        synchronized (mSubscriptionLock) {
+            LinkedHashMap<String, Integer> subscriptions = loadSubscriptions();
+            for (String topic : removeTopics) {
+                subscriptions.remove(topic);
+            }
+            saveSubscriptions(subscriptions);
+        }
+        MQTTConnection connection = mConnection;
+        if (connection != null) {
+            connection.unSubscribe(removeTopics);
+        }
+    }
+
+    private LinkedHashMap<String, Integer> loadSubscriptions() {
+        LinkedHashMap<String, Integer> subscriptions = new LinkedHashMap<>();
+        String[] savedTopics = MqttUtil.getTopics(this);
+        int[] savedQoses = MqttUtil.getQoses(this);
+        if (savedTopics != null) {
+            for (int i = 0; i < savedTopics.length; i++) {
+                subscriptions.put(savedTopics[i], savedQoses != null ? savedQoses[i] : 0);
+            }
+        }
+        return subscriptions;
+    }
+
+    private void saveSubscriptions(LinkedHashMap<String, Integer> subscriptions) {
+        String[] newTopics = subscriptions.keySet().toArray(new String[subscriptions.size()]);
+        int[] newQoses = new int[newTopics.length];
+        for (int i = 0; i < newTopics.length; i++) {
+            newQoses[i] = subscriptions.get(newTopics[i]);
+        }
+        MqttUtil.setTopics(this, newTopics, newQoses);
+        qoses = newQoses;
+        topics = newTopics;
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log.i(TAG, " AsyncMQTTService onStartCommand");
+        if (!mInitialized) {
+            // 启动线程会检查是否自动启动并发出连接
+            return START_STICKY;
+        }
         boolean autoStart = MqttUtil.getAutoStart(this);
         if (!autoStart) {
             stopSelf();
             return START_NOT_STICKY;
         }
         if (mConnection != null) {
-            mConnection.connect(new MqttConnectListener());
+            connectWithWakeLock();
         }
         return START_STICKY;
     }
@@ -205,23 +566,54 @@ public class AsyncMQTTService extends Service implements MqttCallback {
     @Override
     public void connectionLost(Throwable cause) {
         LogUtil.e(TAG, "MQTT断开连接...");
+        if (mOutboundScheduler != null) {
+            mOutboundScheduler.detach();
+        }
         afterConnectFailed();
     }
 
     @Override
     public void messageArrived(String topic, MqttMessage message) throws Exception {
-        String msg = new String(message.getPayload(), "UTF-8");
-        LogUtil.i(TAG, "topic:" + topic + " message:" + new String(message.getPayload(), "UTF-8"));
-        Class<?> runnableClass = MqttUtil.getRunnableClass(this);
-        if (runnableClass != null) {
-            Constructor<?> constructor = runnableClass.getConstructor(Context.class, String.class, String.class);
-            BaseRunnable runnable = (BaseRunnable) constructor.newInstance(this, topic, msg);
-            mPool.execute(runnable);
+        Topic canonical = mTopicTable.intern(topic);
+        topic = canonical.getName();
+        if (topic.startsWith(DeltaCodec.RESYNC_PREFIX)) {
+            // 接收方缺少差量帧的基准，下一条消息改发关键帧
+            mDeltaEncoder.requestKeyframe(topic.substring(DeltaCodec.RESYNC_PREFIX.length()));
+            return;
+        }
+        byte[] payload = message.getPayload();
+        byte[] decoded = mDeltaDecoder.decode(canonical, payload);
+        if (decoded == null) {
+            // 缺少基准的差量帧无法还原，已经请求重新同步
+            return;
+        }
+        MQTTMessage mqttMessage = decoded == payload ? new MQTTMessage(topic, message)
+                : new MQTTMessage(topic, decoded, message.getQos(), message.isRetained(), message.isDuplicate());
+        mqttMessage.traceId = mTracer.newTraceId();
+        mTracer.record(mqttMessage.traceId, TracePoint.ARRIVE, topic);
+        if (!mFirstMessageArrived) {
+            mFirstMessageArrived = true;
+            mMetrics.startupFirstMessageNanos = System.nanoTime() - mCreateNanos;
+            LogUtil.i(TAG, mMetrics.getStartupBreakdown());
+        }
+        if (LogUtil.sDebug) {
+            LogUtil.i(TAG, "topic:" + topic + " message:" + mqttMessage.getText());
+        }
+        mLastValueCache.onMessage(canonical, mqttMessage);
+        mListenerRegistry.dispatch(canonical, mqttMessage);
+        dispatchToHandlers(mqttMessage, 0);
+        RemoteMessageDispatcher remoteDispatcher = mRemoteDispatcher;
+        if (remoteDispatcher != null) {
+            remoteDispatcher.offer(mqttMessage);
         }
         if (MqttUtil.isBroadCast(this)) {
+            if (mBroadcastBatcher != null) {
+                mBroadcastBatcher.offer(topic, mqttMessage.getText());
+                return;
+            }
             Intent intent = new Intent(MQTTConstant.ACTION_MESSAGE_RECEIVE);
             intent.putExtra(MQTTConstant.BROADCAST_RECEIVER_TOPIC, topic);
-            intent.putExtra(MQTTConstant.BROADCAST_RECEIVER_MESSAGE, msg);
+            intent.putExtra(MQTTConstant.BROADCAST_RECEIVER_MESSAGE, mqttMessage.getText());
             LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
         }
 
@@ -229,22 +621,206 @@ public class AsyncMQTTService extends Service implements MqttCallback {
 
     @Override
     public void deliveryComplete(IMqttDeliveryToken token) {
+        // 每条消息的发布结果和延迟由OutboundScheduler跟踪，这里只记录调试日志
         boolean complete = token.isComplete();
-        LogUtil.i(TAG, complete ? "推送完成" : "推送失败");
+        LogUtil.d(TAG, complete ? "推送完成" : "推送失败");
+    }
+
+    /**
+     * 交给BaseRunnable和批量处理者
+     * <p>
+     * 开启预写日志时先写入日志，QoS1/2消息写入文件之后才返回，所有处理者完成之后标记完成
+     *
+     * @param message   消息
+     * @param replaySeq 重新分发时为日志中的序号，新消息为0
+     * @throws Exception 创建BaseRunnable失败
+     */
+    private void dispatchToHandlers(MQTTMessage message, long replaySeq) throws Exception {
+        BatchDispatcher batchDispatcher = mBatchDispatcher;
+        Constructor<?> constructor = getRunnableConstructor();
+        int handlers = (batchDispatcher != null ? 1 : 0) + (constructor != null ? 1 : 0);
+        if (handlers == 0) {
+            return;
+        }
+        InboundJournal journal = mInboundJournal;
+        if (journal != null) {
+            long seq = replaySeq > 0 ? replaySeq : journal.append(message, message.getQos() > 0);
+            if (seq > 0) {
+                message.ticket = new InboxTicket(journal, seq, handlers);
+            }
+        }
+        if (batchDispatcher != null) {
+            beginDispatch();
+            if (!batchDispatcher.offer(message)) {
+                // 没有处理的消息不标记完成，下次启动时重新分发
+                endDispatch();
+            }
+        }
+        if (constructor != null) {
+            final BaseRunnable runnable = (BaseRunnable) constructor.newInstance(this, message.getTopic(),
+                    message.getText());
+            final InboxTicket ticket = message.ticket;
+            final long traceId = message.traceId;
+            final String topic = message.getTopic();
+            beginDispatch();
+            mTracer.record(traceId, TracePoint.ENQUEUE, topic);
+            getPool().execute(new Runnable() {
+                @Override
+                public void run() {
+                    mTracer.record(traceId, TracePoint.DEQUEUE, topic);
+                    try {
+                        mTracer.record(traceId, TracePoint.HANDLER_START, topic);
+                        runnable.run();
+                    } finally {
+                        mTracer.record(traceId, TracePoint.HANDLER_END, topic);
+                        // 处理者抛出异常也标记完成，避免每次启动都重新分发同一条消息
+                        if (ticket != null) {
+                            ticket.done();
+                        }
+                        endDispatch();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * 打开预写日志，重新分发上次没有处理完成的消息，在启动线程中连接之前调用
+     */
+    private void replayInboundJournal() {
+        if (!MqttUtil.isInboundJournal(this)) {
+            return;
+        }
+        InboundJournal journal = new InboundJournal(getFilesDir());
+        List<InboundJournal.Entry> entries = journal.open();
+        mInboundJournal = journal;
+        for (InboundJournal.Entry entry : entries) {
+            try {
+                entry.message.traceId = mTracer.newTraceId();
+                dispatchToHandlers(entry.message, entry.seq);
+            } catch (Exception e) {
+                LogUtil.e(TAG, "重新分发消息失败:" + entry.message.getTopic(), e);
+            }
+        }
+    }
+
+    /**
+     * 设置了批量处理消息的Class时创建批量处理线程
+     */
+    private void createBatchDispatcher() {
+        String className = MqttUtil.getBatchHandlerClassName(this);
+        if (TextUtils.isEmpty(className)) {
+            return;
+        }
+        BaseBatchHandler handler;
+        try {
+            Class<?> handlerClass = Class.forName(className);
+            handler = (BaseBatchHandler) handlerClass.getConstructor(Context.class).newInstance(this);
+        } catch (Exception e) {
+            LogUtil.e(TAG, "创建批量处理者失败:" + className, e);
+            return;
+        }
+        mBatchDispatcher = new BatchDispatcher(handler, MqttUtil.getBatchMaxSize(this),
+                MqttUtil.getBatchMaxDelay(this), new BatchDispatcher.Callback() {
+            @Override
+            public void onBatchProcessed(List<MQTTMessage> messages) {
+                for (MQTTMessage message : messages) {
+                    endDispatch();
+                    if (message.ticket != null) {
+                        message.ticket.done();
+                    }
+                }
+            }
+        }, mTracer);
+        mBatchDispatcher.start();
+    }
+
+    /**
+     * 线程池开始处理一条消息，第一条消息时持有唤醒锁
+     */
+    private void beginDispatch() {
+        synchronized (mDispatchLock) {
+            if (mDispatchPending++ == 0) {
+                mDispatchHold = mWakeLockTracker.acquire(WakeCause.DISPATCH, DISPATCH_WAKE_TIMEOUT_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * 线程池处理完一条消息，全部处理完时释放唤醒锁
+     */
+    private void endDispatch() {
+        synchronized (mDispatchLock) {
+            if (--mDispatchPending == 0 && mDispatchHold != null) {
+                mDispatchHold.release();
+                mDispatchHold = null;
+            }
+        }
+    }
+
+    /**
+     * 获取处理消息的Runnable的构造方法，Class名称没有变化时使用缓存
+     *
+     * @return 构造方法，没有设置处理消息的Class时返回null
+     * @throws Exception Class不存在或没有对应的构造方法
+     */
+    private Constructor<?> getRunnableConstructor() throws Exception {
+        String className = MqttUtil.getRunnableClassName(this);
+        if (TextUtils.isEmpty(className)) {
+            return null;
+        }
+        if (!className.equals(mRunnableClassName)) {
+            Class<?> runnableClass = Class.forName(className);
+            mRunnableConstructor = runnableClass.getConstructor(Context.class, String.class, String.class);
+            mRunnableClassName = className;
+        }
+        return mRunnableConstructor;
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
         LogUtil.i(TAG, "onDestroy");
+        mDestroyed = true;
+        clearManagerCallbacks();
         // 释放
         releaseMQTTConnection();
         // 关闭线程池
-        if (mPool != null && !mPool.isShutdown()) {
-            mPool.shutdown();
+        synchronized (this) {
+            if (mPool != null && !mPool.isShutdown()) {
+                mPool.shutdown();
+            }
         }
         // 清空Handler的消息队列
         clearHandlerMessage();
+        // 保存最新值缓存
+        if (mLastValueCache != null) {
+            mLastValueCache.flush();
+        }
+        // 停止批量处理
+        if (mBatchDispatcher != null) {
+            mBatchDispatcher.stop();
+            mBatchDispatcher = null;
+        }
+        if (mInboundJournal != null) {
+            mInboundJournal.close();
+            mInboundJournal = null;
+        }
+        synchronized (mDispatchLock) {
+            if (mDispatchHold != null) {
+                mDispatchHold.release();
+                mDispatchHold = null;
+            }
+        }
+        // 停止跨进程发送
+        if (mRemoteDispatcher != null) {
+            mRemoteDispatcher.stop();
+        }
+        // 停止批量广播
+        if (mBroadcastBatcher != null) {
+            mBroadcastBatcher.stop();
+            mBroadcastBatcher = null;
+        }
         // 反注册
         unregisterBroadcastReceiver();
     }
@@ -258,6 +834,11 @@ public class AsyncMQTTService extends Service implements MqttCallback {
         if (mConnection == null) {
             return;
         }
+        if (mOutboundScheduler != null) {
+            mOutboundScheduler.detach();
+            // 客户端关闭之后不会再重发，断开时还没有确认的消息不再等待
+            mOutboundScheduler.abandonRetries(new MqttException(MqttException.REASON_CODE_CLIENT_CLOSED));
+        }
         mConnection.disConnect(new IMqttActionListener() {
             @Override
             public void onSuccess(IMqttToken iMqttToken) {
@@ -272,6 +853,21 @@ public class AsyncMQTTService extends Service implements MqttCallback {
         mConnection.close();
     }
 
+    /**
+     * 清除注册在MQTTManager单例上的回调，避免销毁之后仍然被引用
+     */
+    private void clearManagerCallbacks() {
+        if (mMemoryGovernor != null) {
+            mMemoryGovernor.setHost(null);
+        }
+        if (mDeltaDecoder != null) {
+            mDeltaDecoder.setResyncRequester(null);
+        }
+        if (mBrokerRanking != null) {
+            mBrokerRanking.setMigrationCallback(null);
+        }
+    }
+
     /***
      * 清空Handler的消息队列
      *
@@ -296,9 +892,9 @@ public class AsyncMQTTService extends Service implements MqttCallback {
             mMessageReceiver = null;
         }
 
-        if (mManagerReceiver != null) {
-            unregisterReceiver(mManagerReceiver);
-            mManagerReceiver = null;
+        if (mNetworkMonitor != null) {
+            mNetworkMonitor.stop();
+            mNetworkMonitor = null;
         }
     }
 
@@ -338,8 +934,17 @@ public class AsyncMQTTService extends Service implements MqttCallback {
      * @since [产品/模块版本]
      */
     private class MqttConnectListener implements IMqttActionListener {
+
+        private final WakeLockTracker.Hold mHold = mWakeLockTracker.acquire(WakeCause.RECONNECT,
+                CONNECT_WAKE_TIMEOUT_MILLIS);
+
+        void releaseWakeLock() {
+            mHold.release();
+        }
+
         @Override
         public void onFailure(IMqttToken token, Throwable e) {
+            releaseWakeLock();
             LogUtil.e(TAG, "MQTT连接失败...");
             e.printStackTrace();
             afterConnectFailed();
@@ -348,8 +953,14 @@ public class AsyncMQTTService extends Service implements MqttCallback {
 
         @Override
         public void onSuccess(IMqttToken token) {
+            releaseWakeLock();
             LogUtil.i(TAG, "MQTT连接成功...");
+            if (mMetrics.startupConnectedNanos < 0) {
+                mMetrics.startupConnectedNanos = System.nanoTime() - mCreateNanos;
+                LogUtil.i(TAG, mMetrics.getStartupBreakdown());
+            }
             subscribe();
+            mOutboundScheduler.attach(mConnection);
             mMQTTConnectCount = 0;
             connectHandler.removeMessages(MQTT_CONNECT);
             LocalBroadcastManager.getInstance(AsyncMQTTService.this).sendBroadcast(new Intent(MQTTConstant.ACTION_CONNECT_SUCCESS));
@@ -357,23 +968,34 @@ public class AsyncMQTTService extends Service implements MqttCallback {
     }
 
     /**
-     * 网络状态改变的广播接收者
+     * 网络状态回调，已经过防抖处理
      *
-     * @author sun.bl
-     * @version [1.0, 2015-11-18]
+     * @author aracy
+     * @version [1.0, 2017-04-10]
      */
-    private class NetWorkManagerReceiver extends BroadcastReceiver {
+    private class NetworkCallback implements NetworkMonitor.Callback {
 
         @Override
-        public void onReceive(Context context, Intent intent) {
-            if (!TextUtils.equals(ConnectivityManager.CONNECTIVITY_ACTION, intent.getAction())) {
+        public void onNetworkAvailable(boolean switched) {
+            mNetConnected = true;
+            LogUtil.i(TAG, "mNetConnected:" + mNetConnected + " switched:" + switched);
+            if (mConnection == null) {
                 return;
             }
-            mNetConnected = MqttUtil.isNetworkConnected(context);
-            LogUtil.i(TAG, "mNetConnected:" + mNetConnected);
-            if (mNetConnected) {
-                mConnection.connect(new MqttConnectListener());
+            if (switched && mConnection.isConnected()) {
+                // 旧连接绑定在原来的网络上，主动迁移到新的默认网络
+                MQTTManager.getInstance(AsyncMQTTService.this).getMetrics().networkMigrations.incrementAndGet();
+                mConnection.reconnect(new MqttConnectListener());
+                return;
             }
+            connectWithWakeLock();
+        }
+
+        @Override
+        public void onNetworkLost() {
+            mNetConnected = false;
+            LogUtil.i(TAG, "mNetConnected:" + mNetConnected);
+            connectHandler.removeMessages(MQTT_CONNECT);
         }
     }
 
@@ -398,10 +1020,140 @@ public class AsyncMQTTService extends Service implements MqttCallback {
     }
 
     private void subscribe() {
-        mConnection.unSubscribe(topics);
+        String[] paused = mMemoryGovernor.getPausedTopics();
+        String[] resync = mDeltaDecoder.getResyncFilters();
+        if (paused.length > 0 || resync.length > 0) {
+            // 内存紧张时暂停的主题等内存恢复之后再订阅，差量主题的重新同步请求和其他主题一起订阅
+            subscribe(mConnection, paused, false, resync);
+            return;
+        }
+        // 重复订阅同一主题会替换原来的订阅，不需要先取消订阅
         mConnection.subscribe(topics, qoses);
     }
 
+    /**
+     * 订阅部分主题
+     *
+     * @param connection MQTT连接
+     * @param selected   选择的主题
+     * @param include    true订阅选择的主题，false订阅选择之外的主题
+     * @param extra      额外订阅的主题，QoS为0
+     */
+    private void subscribe(MQTTConnection connection, String[] selected, boolean include, String[] extra) {
+        List<String> selectedList = Arrays.asList(selected);
+        List<String> subscribeTopics = new ArrayList<>();
+        List<Integer> subscribeQoses = new ArrayList<>();
+        if (topics != null) {
+            for (int i = 0; i < topics.length; i++) {
+                if (selectedList.contains(topics[i]) == include) {
+                    subscribeTopics.add(topics[i]);
+                    subscribeQoses.add(qoses[i]);
+                }
+            }
+        }
+        for (String topic : extra) {
+            subscribeTopics.add(topic);
+            subscribeQoses.add(0);
+        }
+        if (subscribeTopics.isEmpty()) {
+            return;
+        }
+        int[] qosArray = new int[subscribeQoses.size()];
+        for (int i = 0; i < qosArray.length; i++) {
+            qosArray[i] = subscribeQoses.get(i);
+        }
+        connection.subscribe(subscribeTopics.toArray(new String[subscribeTopics.size()]), qosArray);
+    }
+
+    /**
+     * 当前服务器延迟明显变差时重新连接，重新连接时按新的排名连接更快的服务器
+     * <p>
+     * 通知来自PINGRESP的回调线程，Paho不允许在回调线程断开连接，转到connectHandler执行
+     *
+     * @author aracy
+     * @version [1.0, 2017-05-17]
+     */
+    private class BrokerMigration implements BrokerRanking.MigrationCallback {
+
+        @Override
+        public void onMigrate(final String from, String to) {
+            Handler handler = connectHandler;
+            if (mDestroyed || handler == null) {
+                mBrokerRanking.onMigrationFinished(false);
+                return;
+            }
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    migrate(from);
+                }
+            });
+        }
+
+        private void migrate(String from) {
+            MQTTConnection connection = mConnection;
+            String current = connection != null ? connection.getCurrentServerURI() : null;
+            // 排队期间连接可能已经断开或换了服务器
+            boolean migrate = !mDestroyed && connection != null && connection.isConnected()
+                    && (current == null || current.equals(from));
+            if (migrate) {
+                connection.reconnect(new MqttConnectListener());
+            }
+            mBrokerRanking.onMigrationFinished(migrate);
+        }
+    }
+
+    /**
+     * 向差量主题的发送方请求关键帧，请求本身不做差量编码
+     *
+     * @author aracy
+     * @version [1.0, 2017-05-12]
+     */
+    private class ResyncRequester implements DeltaDecoder.ResyncRequester {
+
+        @Override
+        public void requestResync(String topic) {
+            MqttMessage message = new MqttMessage(new byte[0]);
+            message.setQos(0);
+            mOutboundScheduler.submit(new OutboundMessage(DeltaCodec.RESYNC_PREFIX + topic, message, null));
+        }
+    }
+
+    /**
+     * 内存管理对线程池和订阅的控制
+     *
+     * @author aracy
+     * @version [1.0, 2017-05-08]
+     */
+    private class MemoryHost implements MemoryGovernor.Host {
+
+        @Override
+        public void setIdleThreadsTrimmed(boolean trimmed) {
+            synchronized (AsyncMQTTService.this) {
+                mIdleThreadsTrimmed = trimmed;
+                if (mPool instanceof ThreadPoolExecutor) {
+                    ((ThreadPoolExecutor) mPool).allowCoreThreadTimeOut(trimmed);
+                }
+            }
+        }
+
+        @Override
+        public void pauseSubscriptions(String[] pausedTopics) {
+            MQTTConnection connection = mConnection;
+            if (connection != null) {
+                connection.unSubscribe(pausedTopics);
+            }
+        }
+
+        @Override
+        public void resumeSubscriptions(String[] pausedTopics) {
+            MQTTConnection connection = mConnection;
+            if (connection != null) {
+                subscribe(connection, pausedTopics, true, new String[0]);
+            }
+        }
+    }
+
     /**
      * 发送信息的广播接收者
      *
@@ -430,12 +1182,16 @@ public class AsyncMQTTService extends Service implements MqttCallback {
             }
             int qos = intent.getIntExtra(MQTTConstant.BROADCAST_PUBLISH_QOS, 0);
             boolean retained = intent.getBooleanExtra(MQTTConstant.BROADCAST_PUBLISH_RETAIN, false);
+            String lane = intent.getStringExtra(MQTTConstant.BROADCAST_PUBLISH_LANE);
+            long ttlMillis = intent.getLongExtra(MQTTConstant.BROADCAST_PUBLISH_TTL, 0);
             // 构建MQTTMessage
             MqttMessage mqttMessage = new MqttMessage(message.getBytes());
             mqttMessage.setQos(qos);
             mqttMessage.setRetained(retained);
 
-            mConnection.publishMqttMessage(topic, mqttMessage);
+            // 按通道排队，连接可用时由调度器发送
+            MQTTManager.getInstance(context).getOutboundScheduler().submit(new OutboundMessage(topic, mqttMessage, lane),
+                    ttlMillis);
         }
     }
 }
@@ -0,0 +1,26 @@
+package android.aracy.support.mqtt;
+
+/**
+ * 订阅者处理速度跟不上消息速度时的处理策略
+ *
+ * @author aracy
+ * @version [1.0, 2017-04-17]
+ * @see MQTTManager#messages(String, BackpressureStrategy, int, java.util.concurrent.Executor)
+ */
+public enum BackpressureStrategy {
+
+    /**
+     * 缓存消息，缓存满时以{@link IllegalStateException}结束订阅
+     */
+    BUFFER,
+
+    /**
+     * 缓存满时丢弃新到的消息
+     */
+    DROP,
+
+    /**
+     * 缓存满时用新到的消息替换缓存中最新的一条
+     */
+    LATEST
+}
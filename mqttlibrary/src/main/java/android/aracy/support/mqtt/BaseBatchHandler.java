@@ -0,0 +1,31 @@
+package android.aracy.support.mqtt;
+
+import android.content.Context;
+
+import java.util.List;
+
+/**
+ * 批量处理消息
+ * <p>
+ * 收到的消息按到达顺序放入队列，由单独的线程每次取出最多N条或等待最多T毫秒后一起交给{@link #onMessages(List)}，
+ * 适合一批消息使用一次数据库事务。同一时间只有一个批次在处理，批次内和批次之间都保持到达顺序。
+ * 子类需要提供(Context)构造方法，通过{@link MQTTManager#setBatchHandler(Class, int, long)}设置
+ *
+ * @author aracy
+ * @version [1.0, 2017-05-03]
+ */
+public abstract class BaseBatchHandler {
+
+    protected Context mContext;
+
+    public BaseBatchHandler(Context context) {
+        this.mContext = context;
+    }
+
+    /**
+     * 处理一批消息，在批量处理线程中调用
+     *
+     * @param messages 按到达顺序排列的消息，只在本次调用中有效
+     */
+    public abstract void onMessages(List<MQTTMessage> messages);
+}
@@ -2,6 +2,10 @@ package android.aracy.support.mqtt;
 
 import android.content.Context;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
 /**
  * @author aracy
  * @version [1.0, 2016-07-05]
@@ -28,5 +32,42 @@ public class BaseRunnable implements Runnable {
 
     }
 
+    /**
+     * 并行执行子任务并等待全部完成
+     * <p>
+     * 在{@link DispatchMode#WORK_STEALING}模式下子任务由空闲线程取走并行执行，等待期间当前线程也会执行子任务；
+     * 其他模式下在当前线程依次执行
+     *
+     * @param tasks 子任务
+     */
+    protected void invokeAll(Runnable... tasks) {
+        if (ForkJoinSupport.inPool()) {
+            ForkJoinSupport.invokeAll(tasks);
+            return;
+        }
+        for (Runnable task : tasks) {
+            task.run();
+        }
+    }
+
+    /**
+     * 拆分一个子任务，通过返回值的get()等待结果
+     * <p>
+     * 在{@link DispatchMode#WORK_STEALING}模式下子任务放入当前线程的任务队列，由空闲线程取走执行；
+     * 其他模式下立即在当前线程执行
+     *
+     * @param task 子任务
+     * @param <T>  结果类型
+     * @return 子任务的结果
+     */
+    protected <T> Future<T> fork(Callable<T> task) {
+        if (ForkJoinSupport.inPool()) {
+            return ForkJoinSupport.fork(task);
+        }
+        FutureTask<T> future = new FutureTask<>(task);
+        future.run();
+        return future;
+    }
+
 
 }
@@ -0,0 +1,151 @@
+package android.aracy.support.mqtt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 批量分发消息的线程
+ * <p>
+ * 从队列中取出第一条消息之后，最多再等待{@code maxDelayMillis}凑满{@code maxBatchSize}条，然后交给{@link BaseBatchHandler}。
+ * 队列满时{@link #offer(MQTTMessage)}会阻塞Paho的回调线程，让处理速度反压到网络读取
+ *
+ * @author aracy
+ * @version [1.0, 2017-05-03]
+ */
+class BatchDispatcher implements Runnable {
+
+    private static final String TAG = "BatchDispatcher";
+
+    /**
+     * 等待批量处理的最大消息数
+     */
+    private static final int QUEUE_CAPACITY = 10000;
+
+    /**
+     * 批次处理完的回调，用于释放唤醒锁
+     */
+    interface Callback {
+
+        void onBatchProcessed(List<MQTTMessage> messages);
+    }
+
+    private final BaseBatchHandler mHandler;
+
+    private final int mMaxBatchSize;
+
+    private final long mMaxDelayNanos;
+
+    private final Callback mCallback;
+
+    private final MessageTracer mTracer;
+
+    private final LinkedBlockingQueue<MQTTMessage> mQueue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+
+    private final Thread mThread;
+
+    private volatile boolean mStopped;
+
+    /**
+     * @param handler        批量处理者
+     * @param maxBatchSize   每批最多的消息数
+     * @param maxDelayMillis 收到第一条消息之后最多等待的时间
+     * @param callback       批次处理完的回调
+     * @param tracer         消息跟踪
+     */
+    BatchDispatcher(BaseBatchHandler handler, int maxBatchSize, long maxDelayMillis, Callback callback,
+                    MessageTracer tracer) {
+        mHandler = handler;
+        mMaxBatchSize = maxBatchSize;
+        mMaxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        mCallback = callback;
+        mTracer = tracer;
+        mThread = new Thread(this, "mqtt-batch");
+    }
+
+    void start() {
+        mThread.start();
+    }
+
+    /**
+     * 停止处理，队列中剩余的消息会被丢弃
+     */
+    void stop() {
+        mStopped = true;
+        mThread.interrupt();
+    }
+
+    /**
+     * 加入一条消息，队列满时等待
+     *
+     * @param message 消息
+     * @return 是否加入成功，停止之后返回false
+     */
+    boolean offer(MQTTMessage message) {
+        mTracer.record(message.traceId, TracePoint.ENQUEUE, message.getTopic());
+        try {
+            while (!mStopped) {
+                if (mQueue.offer(message, 1, TimeUnit.SECONDS)) {
+                    return true;
+                }
+                LogUtil.w(TAG, "批量处理队列已满，等待处理");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    @Override
+    public void run() {
+        List<MQTTMessage> batch = new ArrayList<>(mMaxBatchSize);
+        List<MQTTMessage> view = Collections.unmodifiableList(batch);
+        while (!mStopped) {
+            try {
+                batch.add(mQueue.take());
+                long deadline = System.nanoTime() + mMaxDelayNanos;
+                // 先取走已经到达的消息，不够时再等待
+                mQueue.drainTo(batch, mMaxBatchSize - batch.size());
+                while (batch.size() < mMaxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    MQTTMessage message = mQueue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (message == null) {
+                        break;
+                    }
+                    batch.add(message);
+                    mQueue.drainTo(batch, mMaxBatchSize - batch.size());
+                }
+            } catch (InterruptedException e) {
+                if (mStopped) {
+                    break;
+                }
+            }
+            if (batch.isEmpty()) {
+                continue;
+            }
+            trace(batch, TracePoint.DEQUEUE);
+            trace(batch, TracePoint.HANDLER_START);
+            try {
+                mHandler.onMessages(view);
+            } catch (RuntimeException e) {
+                // 处理者的异常不能让线程退出，否则后面的消息不会再处理
+                LogUtil.e(TAG, "batch handler error, size:" + batch.size(), e);
+            }
+            trace(batch, TracePoint.HANDLER_END);
+            mCallback.onBatchProcessed(view);
+            batch.clear();
+        }
+    }
+
+    private void trace(List<MQTTMessage> batch, TracePoint point) {
+        for (int i = 0; i < batch.size(); i++) {
+            MQTTMessage message = batch.get(i);
+            mTracer.record(message.traceId, point, message.getTopic());
+        }
+    }
+}
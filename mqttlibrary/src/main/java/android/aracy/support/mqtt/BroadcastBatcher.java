@@ -0,0 +1,219 @@
+package android.aracy.support.mqtt;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.v4.content.LocalBroadcastManager;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 批量广播器
+ * <p>
+ * 在一个间隔内收到的消息合并成一次{@link MQTTConstant#ACTION_MESSAGE_BATCH_RECEIVE}广播，
+ * 每个间隔在主线程只投递一次，避免高频消息占满主线程的消息队列。
+ * <p>
+ * 速率限制按广播动作计算：LocalBroadcastManager把每次批量广播投递给所有注册的接收者，
+ * 所以每个接收者每秒收到的消息数都不超过限制。限制用令牌桶实现，不足一条的额度留到下一个间隔，
+ * 间隔小于消息间隔时也不会超过限制
+ *
+ * @author aracy
+ * @version [1.0, 2017-04-12]
+ */
+class BroadcastBatcher {
+
+    private static final String TAG = "BroadcastBatcher";
+
+    /**
+     * 等待广播的最大消息数，超过之后丢弃最早的消息
+     */
+    private static final int MAX_PENDING = 10000;
+
+    private final LocalBroadcastManager mBroadcastManager;
+
+    private final MQTTMetrics mMetrics;
+
+    private final Handler mMainHandler;
+
+    private final long mIntervalMillis;
+
+    private final boolean mConflate;
+
+    /**
+     * 每毫秒补充的额度，为0表示不限制
+     */
+    private final double mRatePerMillis;
+
+    /**
+     * 额度的上限，一个间隔的额度，至少一条
+     */
+    private final double mBurst;
+
+    /**
+     * 当前可以广播的消息数，可以有小数，在mLock内访问
+     */
+    private double mCredit;
+
+    /**
+     * 上一次补充额度的时间(SystemClock.uptimeMillis)
+     */
+    private long mRefillMillis;
+
+    private final Object mLock = new Object();
+
+    /**
+     * 不合并时的待广播消息，元素为{topic, message}
+     */
+    private final ArrayDeque<String[]> mPending = new ArrayDeque<>();
+
+    /**
+     * 合并时的待广播消息，按最后到达的顺序排列
+     */
+    private final LinkedHashMap<String, String> mConflated = new LinkedHashMap<>();
+
+    /**
+     * 是否已经安排了下一次广播
+     */
+    private boolean mScheduled;
+
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            deliver();
+        }
+    };
+
+    /**
+     * @param context        上下文环境
+     * @param metrics        运行统计
+     * @param intervalMillis 广播间隔
+     * @param conflate       同一主题是否只保留最新的消息
+     * @param maxRate        每秒最多广播的消息数，小于等于0表示不限制
+     */
+    BroadcastBatcher(Context context, MQTTMetrics metrics, long intervalMillis, boolean conflate, int maxRate) {
+        mBroadcastManager = LocalBroadcastManager.getInstance(context);
+        mMetrics = metrics;
+        mMainHandler = new Handler(Looper.getMainLooper());
+        mIntervalMillis = intervalMillis;
+        mConflate = conflate;
+        mRatePerMillis = maxRate <= 0 ? 0 : maxRate / 1000.0;
+        mBurst = Math.max(1, mRatePerMillis * intervalMillis);
+        mCredit = mBurst;
+        mRefillMillis = SystemClock.uptimeMillis();
+    }
+
+    /**
+     * 加入一条待广播的消息，可在任意线程调用
+     *
+     * @param topic   主题
+     * @param message 消息
+     */
+    void offer(String topic, String message) {
+        synchronized (mLock) {
+            if (mConflate) {
+                if (mConflated.remove(topic) != null) {
+                    mMetrics.broadcastConflated.incrementAndGet();
+                } else if (mConflated.size() >= MAX_PENDING) {
+                    Iterator<String> iterator = mConflated.keySet().iterator();
+                    iterator.next();
+                    iterator.remove();
+                    mMetrics.broadcastDropped.incrementAndGet();
+                }
+                mConflated.put(topic, message);
+            } else {
+                if (mPending.size() >= MAX_PENDING) {
+                    mPending.pollFirst();
+                    mMetrics.broadcastDropped.incrementAndGet();
+                }
+                mPending.addLast(new String[]{topic, message});
+            }
+            if (!mScheduled) {
+                mScheduled = true;
+                mMainHandler.postDelayed(mTick, mIntervalMillis);
+            }
+        }
+    }
+
+    /**
+     * 停止广播，丢弃未广播的消息
+     */
+    void stop() {
+        synchronized (mLock) {
+            mMainHandler.removeCallbacks(mTick);
+            mPending.clear();
+            mConflated.clear();
+            mScheduled = false;
+        }
+    }
+
+    /**
+     * 补充额度并取出本次可以广播的消息数，在mLock内调用
+     *
+     * @param wanted 待广播的消息数
+     * @return 可以广播的消息数
+     */
+    private int takeCredit(int wanted) {
+        if (mRatePerMillis <= 0) {
+            return wanted;
+        }
+        long now = SystemClock.uptimeMillis();
+        mCredit = Math.min(mBurst, mCredit + (now - mRefillMillis) * mRatePerMillis);
+        mRefillMillis = now;
+        int count = (int) Math.min(wanted, Math.floor(mCredit));
+        mCredit -= count;
+        return count;
+    }
+
+    /**
+     * 在主线程取出一批消息并广播
+     */
+    private void deliver() {
+        String[] topics;
+        String[] messages;
+        synchronized (mLock) {
+            int size = mConflate ? mConflated.size() : mPending.size();
+            int count = Math.min(size, takeCredit(size));
+            topics = new String[count];
+            messages = new String[count];
+            if (mConflate) {
+                Iterator<Map.Entry<String, String>> iterator = mConflated.entrySet().iterator();
+                for (int i = 0; i < count; i++) {
+                    Map.Entry<String, String> entry = iterator.next();
+                    topics[i] = entry.getKey();
+                    messages[i] = entry.getValue();
+                    iterator.remove();
+                }
+            } else {
+                for (int i = 0; i < count; i++) {
+                    String[] pair = mPending.pollFirst();
+                    topics[i] = pair[0];
+                    messages[i] = pair[1];
+                }
+            }
+            // 超出速率限制的消息留到下一个间隔，额度不足一条时等到额度够一条
+            mScheduled = size > count;
+            if (mScheduled) {
+                long delay = mIntervalMillis;
+                if (mRatePerMillis > 0 && mCredit < 1) {
+                    delay = Math.max(delay, (long) Math.ceil((1 - mCredit) / mRatePerMillis));
+                }
+                mMainHandler.postDelayed(mTick, delay);
+            }
+        }
+        if (topics.length == 0) {
+            return;
+        }
+        Intent intent = new Intent(MQTTConstant.ACTION_MESSAGE_BATCH_RECEIVE);
+        intent.putExtra(MQTTConstant.BROADCAST_RECEIVER_TOPICS, topics);
+        intent.putExtra(MQTTConstant.BROADCAST_RECEIVER_MESSAGES, messages);
+        // 已经在主线程，同步分发避免再排一次队
+        mBroadcastManager.sendBroadcastSync(intent);
+        mMetrics.broadcastBatches.incrementAndGet();
+        LogUtil.d(TAG, "batch size:" + topics.length);
+    }
+}
@@ -0,0 +1,102 @@
+package android.aracy.support.mqtt;
+
+/**
+ * 服务器地址的延迟排名快照
+ *
+ * @author aracy
+ * @version [1.0, 2017-05-17]
+ * @see MQTTManager#getBrokerRanks()
+ */
+public final class BrokerRank {
+
+    private final String mServerURI;
+
+    private final long mScoreMillis;
+
+    private final long mRttMillis;
+
+    private final long mConnectMillis;
+
+    private final long mPingMillis;
+
+    private final long mSamples;
+
+    private final long mFailures;
+
+    private final long mUpdatedMillis;
+
+    BrokerRank(String serverURI, long scoreMillis, long rttMillis, long connectMillis, long pingMillis, long samples,
+               long failures, long updatedMillis) {
+        mServerURI = serverURI;
+        mScoreMillis = scoreMillis;
+        mRttMillis = rttMillis;
+        mConnectMillis = connectMillis;
+        mPingMillis = pingMillis;
+        mSamples = samples;
+        mFailures = failures;
+        mUpdatedMillis = updatedMillis;
+    }
+
+    /**
+     * @return 服务器地址
+     */
+    public String getServerURI() {
+        return mServerURI;
+    }
+
+    /**
+     * @return 排序使用的分数(毫秒)，越小越靠前，随时间衰减，没有测量过时为0
+     */
+    public long getScoreMillis() {
+        return mScoreMillis;
+    }
+
+    /**
+     * @return 估算的往返时间(毫秒)，连接失败按连接超时计入
+     */
+    public long getRttMillis() {
+        return mRttMillis;
+    }
+
+    /**
+     * @return 从发出连接到收到CONNACK的平均时间(毫秒)，没有测量过时为-1
+     */
+    public long getConnectMillis() {
+        return mConnectMillis;
+    }
+
+    /**
+     * @return PINGRESP的平均往返时间(毫秒)，没有测量过时为-1
+     */
+    public long getPingMillis() {
+        return mPingMillis;
+    }
+
+    /**
+     * @return 测量次数
+     */
+    public long getSamples() {
+        return mSamples;
+    }
+
+    /**
+     * @return 连接失败次数
+     */
+    public long getFailures() {
+        return mFailures;
+    }
+
+    /**
+     * @return 最近一次测量的时间(System.currentTimeMillis)，没有测量过时为0
+     */
+    public long getUpdatedMillis() {
+        return mUpdatedMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "BrokerRank{" + mServerURI + ", score=" + mScoreMillis + "ms, rtt=" + mRttMillis + "ms, connect="
+                + mConnectMillis + "ms, ping=" + mPingMillis + "ms, samples=" + mSamples + ", failures=" + mFailures
+                + "}";
+    }
+}
@@ -0,0 +1,396 @@
+package android.aracy.support.mqtt;
+
+import android.content.Context;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按测量的延迟给服务器地址排序
+ * <p>
+ * 每个地址保存一个往返时间的指数加权平均：PINGRESP直接计入，CONNACK时间按连接需要的往返次数折算后计入，
+ * 连接失败按连接超时计入。排序分数按最近一次测量的时间衰减，长时间没有测量的地址会重新排到前面，
+ * 服务器或网络变化之后有机会重新测量。没有测量过的地址分数为0，保持配置的顺序排在最前面。
+ * 分数保存在配置中，进程重启之后继续使用：连接结果立即保存，PINGRESP的结果最多每{@link #SAVE_INTERVAL_MILLIS}保存一次，
+ * 断开和关闭连接时通过{@link #flush()}保存剩下的修改。
+ * <p>
+ * 开启迁移时，当前服务器的往返时间明显变差而另一个地址明显更快，通知Service重新连接，重新连接时按新的顺序连接。
+ * 通知在PINGRESP的回调线程发出，Service在自己的线程执行迁移后调用{@link #onMigrationFinished(boolean)}，
+ * 真正重新连接之后才计入迁移次数和迁移间隔。
+ *
+ * @author aracy
+ * @version [1.0, 2017-05-17]
+ */
+class BrokerRanking {
+
+    private static final String TAG = "BrokerRanking";
+
+    /**
+     * 连接失败计入的时间，与连接超时一致
+     */
+    static final long FAILURE_PENALTY_MILLIS = 15000;
+
+    /**
+     * 新样本的权重
+     */
+    private static final double ALPHA = 0.3;
+
+    /**
+     * 分数衰减一半的时间
+     */
+    private static final long HALF_LIFE_MILLIS = TimeUnit.DAYS.toMillis(3);
+
+    /**
+     * 当前服务器的往返时间超过最快地址的倍数时迁移
+     */
+    private static final double MIGRATE_RATIO = 2.0;
+
+    /**
+     * 迁移至少要节省的往返时间
+     */
+    private static final long MIGRATE_MIN_GAIN_MILLIS = 200;
+
+    /**
+     * 当前服务器至少有这么多次PINGRESP测量之后才考虑迁移
+     */
+    private static final int MIGRATE_MIN_PINGS = 3;
+
+    /**
+     * 两次迁移的最小间隔
+     */
+    private static final long MIGRATE_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+    /**
+     * PINGRESP的结果两次保存的最小间隔
+     */
+    static final long SAVE_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    /**
+     * 迁移的执行方
+     */
+    interface MigrationCallback {
+
+        /**
+         * 有明显更快的服务器，重新连接
+         * <p>
+         * 在Paho的回调线程调用，不能在这里断开连接，需要转到其他线程执行，执行完调用{@link #onMigrationFinished(boolean)}
+         *
+         * @param from 当前服务器
+         * @param to   更快的服务器
+         */
+        void onMigrate(String from, String to);
+    }
+
+    private final Context mContext;
+
+    private final MQTTMetrics mMetrics;
+
+    private final Map<String, Entry> mEntries = new HashMap<>();
+
+    private boolean mLoaded;
+
+    private boolean mMigrationEnabled;
+
+    private long mLastMigrationMillis;
+
+    /**
+     * 已经通知迁移，还没有执行完
+     */
+    private boolean mMigrationPending;
+
+    /**
+     * 有还没有保存的修改
+     */
+    private boolean mDirty;
+
+    private long mLastSaveMillis;
+
+    private volatile MigrationCallback mMigrationCallback;
+
+    BrokerRanking(Context context, MQTTMetrics metrics) {
+        mContext = context;
+        mMetrics = metrics;
+    }
+
+    synchronized void setMigrationEnabled(boolean enabled) {
+        mMigrationEnabled = enabled;
+    }
+
+    /**
+     * 设置迁移的执行方，原来的执行方还没有执行完的迁移不再等待
+     */
+    synchronized void setMigrationCallback(MigrationCallback callback) {
+        mMigrationCallback = callback;
+        mMigrationPending = false;
+    }
+
+    /**
+     * 按分数排序，分数相同时保持原来的顺序
+     *
+     * @param serverURIs 配置的服务器地址
+     * @return 排序后的服务器地址
+     */
+    String[] rank(String[] serverURIs) {
+        final Map<String, Long> scores = new HashMap<>();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            ensureLoaded();
+            for (String serverURI : serverURIs) {
+                scores.put(serverURI, score(mEntries.get(serverURI), now));
+            }
+        }
+        String[] ranked = serverURIs.clone();
+        // Arrays.sort对对象数组是稳定排序
+        Arrays.sort(ranked, new Comparator<String>() {
+            @Override
+            public int compare(String lhs, String rhs) {
+                long diff = scores.get(lhs) - scores.get(rhs);
+                return diff < 0 ? -1 : (diff == 0 ? 0 : 1);
+            }
+        });
+        return ranked;
+    }
+
+    /**
+     * 记录从发出连接到收到CONNACK的时间
+     *
+     * @param serverURI     服务器地址
+     * @param connectMillis 连接时间
+     */
+    void recordConnect(String serverURI, long connectMillis) {
+        synchronized (this) {
+            Entry entry = getEntry(serverURI);
+            entry.connectMillis = average(entry.connectMillis, connectMillis);
+            entry.rttMillis = average(entry.rttMillis, (double) connectMillis / roundTrips(serverURI));
+            entry.update();
+            save();
+        }
+    }
+
+    /**
+     * 记录连接失败
+     *
+     * @param serverURI 服务器地址
+     */
+    void recordFailure(String serverURI) {
+        synchronized (this) {
+            Entry entry = getEntry(serverURI);
+            entry.failures++;
+            entry.rttMillis = average(entry.rttMillis, FAILURE_PENALTY_MILLIS);
+            entry.update();
+            save();
+        }
+    }
+
+    /**
+     * 记录PINGRESP的往返时间，开启迁移时检查是否需要迁移
+     *
+     * @param serverURI  当前服务器地址
+     * @param pingMillis 往返时间
+     */
+    void recordPing(String serverURI, long pingMillis) {
+        MigrationCallback callback;
+        String target;
+        synchronized (this) {
+            Entry entry = getEntry(serverURI);
+            entry.pingMillis = average(entry.pingMillis, pingMillis);
+            entry.pings++;
+            entry.rttMillis = average(entry.rttMillis, pingMillis);
+            entry.update();
+            mDirty = true;
+            if (System.currentTimeMillis() - mLastSaveMillis >= SAVE_INTERVAL_MILLIS) {
+                save();
+            }
+            callback = mMigrationCallback;
+            target = callback != null ? findMigrationTarget(serverURI, entry) : null;
+            if (target != null) {
+                mMigrationPending = true;
+            }
+        }
+        if (target != null) {
+            LogUtil.i(TAG, "服务器延迟变差，请求迁移:" + serverURI + " -> " + target);
+            callback.onMigrate(serverURI, target);
+        }
+    }
+
+    /**
+     * 迁移执行完
+     *
+     * @param migrated 是否重新连接，连接已经断开或Service已经停止时为false
+     */
+    void onMigrationFinished(boolean migrated) {
+        synchronized (this) {
+            mMigrationPending = false;
+            if (!migrated) {
+                return;
+            }
+            mLastMigrationMillis = System.currentTimeMillis();
+        }
+        mMetrics.brokerMigrations.incrementAndGet();
+    }
+
+    /**
+     * 保存还没有保存的PINGRESP结果，断开或关闭连接时调用
+     */
+    synchronized void flush() {
+        if (mDirty) {
+            save();
+        }
+    }
+
+    /**
+     * 获取服务器地址的排名
+     *
+     * @param serverURIs 配置的服务器地址
+     * @return 按当前顺序排列的排名
+     */
+    BrokerRank[] snapshot(String[] serverURIs) {
+        String[] ranked = rank(serverURIs);
+        BrokerRank[] ranks = new BrokerRank[ranked.length];
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            for (int i = 0; i < ranked.length; i++) {
+                Entry entry = mEntries.get(ranked[i]);
+                if (entry == null) {
+                    ranks[i] = new BrokerRank(ranked[i], 0, -1, -1, -1, 0, 0, 0);
+                } else {
+                    ranks[i] = new BrokerRank(ranked[i], score(entry, now), Math.round(entry.rttMillis),
+                            Math.round(entry.connectMillis), Math.round(entry.pingMillis), entry.samples,
+                            entry.failures, entry.updatedMillis);
+                }
+            }
+        }
+        return ranks;
+    }
+
+    private String findMigrationTarget(String serverURI, Entry current) {
+        long now = System.currentTimeMillis();
+        if (!mMigrationEnabled || mMigrationPending || current.pings < MIGRATE_MIN_PINGS
+                || now - mLastMigrationMillis < MIGRATE_INTERVAL_MILLIS) {
+            return null;
+        }
+        String[] configured = MqttUtil.getServerURIs(mContext);
+        if (configured == null) {
+            return null;
+        }
+        List<String> serverURIs = Arrays.asList(configured);
+        String best = null;
+        double bestRtt = 0;
+        for (Map.Entry<String, Entry> candidate : mEntries.entrySet()) {
+            Entry entry = candidate.getValue();
+            // 只和半衰期内测量过的地址比较，太旧的结果不可靠
+            if (candidate.getKey().equals(serverURI) || !serverURIs.contains(candidate.getKey())
+                    || now - entry.updatedMillis > HALF_LIFE_MILLIS) {
+                continue;
+            }
+            if (best == null || entry.rttMillis < bestRtt) {
+                best = candidate.getKey();
+                bestRtt = entry.rttMillis;
+            }
+        }
+        if (best == null || current.rttMillis < bestRtt * MIGRATE_RATIO
+                || current.rttMillis - bestRtt < MIGRATE_MIN_GAIN_MILLIS) {
+            return null;
+        }
+        return best;
+    }
+
+    private static long score(Entry entry, long now) {
+        if (entry == null) {
+            return 0;
+        }
+        double age = Math.max(0, now - entry.updatedMillis);
+        return Math.round(entry.rttMillis * Math.pow(0.5, age / HALF_LIFE_MILLIS));
+    }
+
+    private static double average(double current, double sample) {
+        return current < 0 ? sample : current + ALPHA * (sample - current);
+    }
+
+    /**
+     * 收到CONNACK需要的往返次数：TCP握手和CONNECT各一次，TLS握手再加两次
+     */
+    private static int roundTrips(String serverURI) {
+        return serverURI.startsWith("ssl://") ? 4 : 2;
+    }
+
+    private Entry getEntry(String serverURI) {
+        ensureLoaded();
+        Entry entry = mEntries.get(serverURI);
+        if (entry == null) {
+            entry = new Entry();
+            mEntries.put(serverURI, entry);
+        }
+        return entry;
+    }
+
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        for (String value : MqttUtil.getBrokerScores(mContext)) {
+            // 格式为uri|rtt|connect|ping|pings|samples|failures|updated，地址中没有|
+            String[] values = value.split("\\|");
+            if (values.length != 8) {
+                continue;
+            }
+            try {
+                Entry entry = new Entry();
+                entry.rttMillis = Double.parseDouble(values[1]);
+                entry.connectMillis = Double.parseDouble(values[2]);
+                entry.pingMillis = Double.parseDouble(values[3]);
+                entry.pings = Long.parseLong(values[4]);
+                entry.samples = Long.parseLong(values[5]);
+                entry.failures = Long.parseLong(values[6]);
+                entry.updatedMillis = Long.parseLong(values[7]);
+                mEntries.put(values[0], entry);
+            } catch (NumberFormatException e) {
+                LogUtil.e(TAG, "服务器排名格式错误:" + value);
+            }
+        }
+    }
+
+    private void save() {
+        Set<String> values = new HashSet<>();
+        for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+            Entry value = entry.getValue();
+            values.add(entry.getKey() + "|" + value.rttMillis + "|" + value.connectMillis + "|" + value.pingMillis
+                    + "|" + value.pings + "|" + value.samples + "|" + value.failures + "|" + value.updatedMillis);
+        }
+        MqttUtil.setBrokerScores(mContext, values);
+        mDirty = false;
+        mLastSaveMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * 一个服务器地址的测量结果，平均值为-1表示没有测量过
+     */
+    private static final class Entry {
+
+        double rttMillis = -1;
+
+        double connectMillis = -1;
+
+        double pingMillis = -1;
+
+        long pings;
+
+        long samples;
+
+        long failures;
+
+        long updatedMillis;
+
+        void update() {
+            samples++;
+            updatedMillis = System.currentTimeMillis();
+        }
+    }
+}
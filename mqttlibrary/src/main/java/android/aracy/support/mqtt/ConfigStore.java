@@ -0,0 +1,372 @@
+package android.aracy.support.mqtt;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * 订阅主题、主题质量和集群地址的二进制配置文件
+ * <p>
+ * 文件格式：魔数、版本、集群地址列表、主题列表(主题和质量成对存储)、CRC32校验。
+ * 字符串按长度前缀存储，主题中可以包含逗号。读取时顺序读一遍并缓存在内存中，
+ * 修改后在后台线程写入临时文件再替换正式文件，写到一半被杀掉时不会破坏旧文件。
+ * 第一次读取时如果没有配置文件，从旧版本SharedPreferences中逗号拼接的字符串迁移。
+ * 损坏的配置文件改名保留，不会被新的配置覆盖；更新版本写入的配置文件不认识也不覆盖，这次运行的修改只保存在内存中。
+ *
+ * @author aracy
+ * @version [1.0, 2017-04-26]
+ */
+class ConfigStore {
+
+    private static final String TAG = "ConfigStore";
+
+    private static final String FILE_NAME = "mqtt_config.bin";
+
+    /**
+     * 损坏的配置文件改名后的后缀
+     */
+    private static final String CORRUPT_SUFFIX = ".corrupt";
+
+    private static final int MAGIC = 0x4D434647;
+
+    private static final int VERSION = 1;
+
+    private static final String[] EMPTY_STRINGS = new String[0];
+
+    private static final int[] EMPTY_INTS = new int[0];
+
+    private static ConfigStore sInstance;
+
+    private final Context mContext;
+
+    private final File mFile;
+
+    private final ExecutorService mExecutor;
+
+    private final Runnable mWriteTask = new Runnable() {
+        @Override
+        public void run() {
+            write();
+        }
+    };
+
+    private boolean mLoaded;
+
+    private boolean mWriteScheduled;
+
+    /**
+     * 配置文件是更新的版本写入的，不能覆盖
+     */
+    private boolean mReadOnly;
+
+    private String[] mServerURIs = EMPTY_STRINGS;
+
+    private String[] mTopics = EMPTY_STRINGS;
+
+    private int[] mQoses = EMPTY_INTS;
+
+    private ConfigStore(Context context) {
+        mContext = context.getApplicationContext();
+        mFile = new File(mContext.getFilesDir(), FILE_NAME);
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "mqtt-config");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    static synchronized ConfigStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ConfigStore(context);
+        }
+        return sInstance;
+    }
+
+    /**
+     * 获取订阅主题
+     *
+     * @return 主题，没有设置时返回null
+     */
+    synchronized String[] getTopics() {
+        ensureLoaded();
+        return mTopics.length == 0 ? null : mTopics.clone();
+    }
+
+    /**
+     * 获取主题质量，与{@link #getTopics()}一一对应
+     *
+     * @return 主题质量，没有设置时返回null
+     */
+    synchronized int[] getQoses() {
+        ensureLoaded();
+        return mTopics.length == 0 ? null : mQoses.clone();
+    }
+
+    /**
+     * 获取集群服务器地址
+     *
+     * @return 服务器地址，没有设置时返回null
+     */
+    synchronized String[] getServerURIs() {
+        ensureLoaded();
+        return mServerURIs.length == 0 ? null : mServerURIs.clone();
+    }
+
+    /**
+     * 设置订阅主题，主题质量为空或长度不一致时全部使用0
+     *
+     * @param topics 主题
+     * @param qoses  主题质量
+     */
+    synchronized void setTopics(String[] topics, int[] qoses) {
+        ensureLoaded();
+        mTopics = topics == null ? EMPTY_STRINGS : topics.clone();
+        if (qoses == null || qoses.length != mTopics.length) {
+            mQoses = new int[mTopics.length];
+        } else {
+            mQoses = qoses.clone();
+        }
+        scheduleWrite();
+    }
+
+    /**
+     * 只更新主题质量，主题不变
+     *
+     * @param qoses 主题质量
+     */
+    synchronized void setQoses(int[] qoses) {
+        ensureLoaded();
+        setTopics(mTopics, qoses);
+    }
+
+    /**
+     * 设置集群服务器地址
+     *
+     * @param serverURIs 服务器地址
+     */
+    synchronized void setServerURIs(String[] serverURIs) {
+        ensureLoaded();
+        mServerURIs = serverURIs == null ? EMPTY_STRINGS : serverURIs.clone();
+        scheduleWrite();
+    }
+
+    private void scheduleWrite() {
+        if (mReadOnly) {
+            LogUtil.e(TAG, "配置文件版本更新，修改只保存在内存中");
+            return;
+        }
+        if (!mWriteScheduled) {
+            mWriteScheduled = true;
+            mExecutor.execute(mWriteTask);
+        }
+    }
+
+    /**
+     * 第一次访问时读取配置文件，没有文件时从旧的配置迁移
+     */
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        if (mFile.exists()) {
+            read();
+        } else {
+            migrate();
+        }
+    }
+
+    private void read() {
+        DataInputStream in = null;
+        boolean corrupt = true;
+        try {
+            CheckedInputStream checked = new CheckedInputStream(
+                    new BufferedInputStream(new FileInputStream(mFile)), new CRC32());
+            in = new DataInputStream(checked);
+            if (in.readInt() != MAGIC) {
+                LogUtil.e(TAG, "配置文件格式错误");
+                return;
+            }
+            int version = in.readInt();
+            if (version > VERSION) {
+                LogUtil.e(TAG, "不支持的配置文件版本:" + version);
+                corrupt = false;
+                mReadOnly = true;
+                return;
+            }
+            String[] serverURIs = new String[in.readInt()];
+            for (int i = 0; i < serverURIs.length; i++) {
+                serverURIs[i] = in.readUTF();
+            }
+            int count = in.readInt();
+            String[] topics = new String[count];
+            int[] qoses = new int[count];
+            for (int i = 0; i < count; i++) {
+                topics[i] = in.readUTF();
+                qoses[i] = in.readByte();
+            }
+            long crc = checked.getChecksum().getValue();
+            if (in.readLong() != crc) {
+                LogUtil.e(TAG, "配置文件校验失败");
+                return;
+            }
+            mServerURIs = serverURIs;
+            mTopics = topics;
+            mQoses = qoses;
+            corrupt = false;
+        } catch (IOException | RuntimeException e) {
+            LogUtil.e(TAG, "读取配置文件失败", e);
+        } finally {
+            closeQuietly(in);
+            if (corrupt) {
+                moveAside();
+            }
+        }
+    }
+
+    /**
+     * 损坏的配置文件改名保留，之后的修改写入新的文件，不覆盖原来的内容
+     */
+    private void moveAside() {
+        File aside = new File(mFile.getPath() + CORRUPT_SUFFIX);
+        if (aside.exists() && !aside.delete()) {
+            LogUtil.e(TAG, "删除上一个损坏的配置文件失败");
+        }
+        if (mFile.renameTo(aside)) {
+            LogUtil.e(TAG, "损坏的配置文件已改名为:" + aside.getName());
+        } else {
+            // 改名失败时不能覆盖，修改只保存在内存中
+            LogUtil.e(TAG, "损坏的配置文件改名失败");
+            mReadOnly = true;
+        }
+    }
+
+    /**
+     * 把旧版本SharedPreferences中逗号拼接的主题、质量和集群地址迁移到配置文件
+     */
+    private void migrate() {
+        SharedPreferences preferences = mContext.getSharedPreferences(MqttUtil.MQTT_FILE_NAME, Context.MODE_PRIVATE);
+        String topics = preferences.getString(MqttUtil.MQTT_SUBCRIBE_TOPICS, null);
+        String qoses = preferences.getString(MqttUtil.MQTT_SUBCRIBE_QOSES, null);
+        String serverURIs = preferences.getString(MqttUtil.MQTT_SERVER_URI_ARRAY, null);
+        if (topics == null && qoses == null && serverURIs == null) {
+            return;
+        }
+        if (!TextUtils.isEmpty(topics)) {
+            mTopics = TextUtils.split(topics, ",");
+            mQoses = new int[mTopics.length];
+            if (!TextUtils.isEmpty(qoses)) {
+                String[] values = TextUtils.split(qoses, ",");
+                // 旧版本写入质量时丢失了第一个值，长度不一致时全部使用0
+                if (values.length == mTopics.length) {
+                    try {
+                        for (int i = 0; i < values.length; i++) {
+                            mQoses[i] = Integer.parseInt(values[i]);
+                        }
+                    } catch (NumberFormatException e) {
+                        mQoses = new int[mTopics.length];
+                    }
+                }
+            }
+        }
+        if (!TextUtils.isEmpty(serverURIs)) {
+            mServerURIs = TextUtils.split(serverURIs, ",");
+        }
+        LogUtil.i(TAG, "迁移旧配置，主题数:" + mTopics.length);
+        mWriteScheduled = true;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (write()) {
+                    SharedPreferences.Editor editor = mContext.getSharedPreferences(MqttUtil.MQTT_FILE_NAME,
+                            Context.MODE_PRIVATE).edit();
+                    editor.remove(MqttUtil.MQTT_SUBCRIBE_TOPICS);
+                    editor.remove(MqttUtil.MQTT_SUBCRIBE_QOSES);
+                    editor.remove(MqttUtil.MQTT_SERVER_URI_ARRAY);
+                    editor.apply();
+                }
+            }
+        });
+    }
+
+    /**
+     * 在后台线程把当前配置写入临时文件，写完之后替换正式文件
+     *
+     * @return 是否写入成功
+     */
+    private boolean write() {
+        String[] serverURIs;
+        String[] topics;
+        int[] qoses;
+        synchronized (this) {
+            mWriteScheduled = false;
+            serverURIs = mServerURIs;
+            topics = mTopics;
+            qoses = mQoses;
+        }
+        File temp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream fileOut = null;
+        DataOutputStream out = null;
+        try {
+            fileOut = new FileOutputStream(temp);
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fileOut), new CRC32());
+            out = new DataOutputStream(checked);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(serverURIs.length);
+            for (String serverURI : serverURIs) {
+                out.writeUTF(serverURI);
+            }
+            out.writeInt(topics.length);
+            for (int i = 0; i < topics.length; i++) {
+                out.writeUTF(topics[i]);
+                out.writeByte(qoses[i]);
+            }
+            out.writeLong(checked.getChecksum().getValue());
+            out.flush();
+            fileOut.getFD().sync();
+            out.close();
+            out = null;
+            if (!temp.renameTo(mFile)) {
+                LogUtil.e(TAG, "替换配置文件失败");
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            LogUtil.e(TAG, "写入配置文件失败", e);
+            return false;
+        } finally {
+            closeQuietly(out != null ? out : fileOut);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            LogUtil.e(TAG, "关闭配置文件失败", e);
+        }
+    }
+}
@@ -0,0 +1,660 @@
+package android.aracy.support.mqtt;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * 向多个服务器地址并行发起连接
+ * <p>
+ * 按地址顺序每隔一段时间启动一个连接，前一个连接失败时立即启动下一个，排在前面的服务器不可用时不需要等它的连接超时。
+ * 并行的只有TCP连接和TLS握手：候选连接的socket建立好之后在闸门等待，同一时间只有一个候选连接发出CONNECT，
+ * 它收到CONNACK就胜出，其余还在等待的连接不再发出CONNECT直接关闭；它失败时下一个建立好的连接继续。
+ * 所有地址使用同一个clientId，同时发出多个CONNECT时服务器会用后到的连接踢掉先到的会话，所以不能并行发送。
+ * 胜出之前收到的消息不会出现：Paho在连接成功的回调之后才分发消息。
+ * 每个地址的TCP/TLS连接时间和失败计入{@link BrokerRanking}，比胜出连接启动得早、还没有建立好的落选连接按已经等待的时间计入。
+ *
+ * @author aracy
+ * @version [1.0, 2017-05-15]
+ */
+class ConnectRace {
+
+    private static final String TAG = "ConnectRace";
+
+    /**
+     * 取消已经连上的候选连接时等待DISCONNECT发出的时间
+     */
+    private static final long DISCONNECT_TIMEOUT_MILLIS = 100;
+
+    private static final ScheduledExecutorService sExecutor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "mqtt-connect-race");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * 为每个地址创建独立的客户端
+     */
+    interface Factory {
+
+        /**
+         * @param serverURI 服务器地址
+         * @return 还没有连接的候选连接
+         * @throws MqttException 创建客户端失败
+         */
+        Candidate create(String serverURI) throws MqttException;
+
+        /**
+         * 有连接胜出，在胜出连接的回调线程调用，之后才回调连接结果
+         *
+         * @param winner 胜出的连接
+         */
+        void onWinner(Candidate winner);
+    }
+
+    private final String[] mServerURIs;
+
+    private final long mStaggerMillis;
+
+    private final Factory mFactory;
+
+    private final MqttCallback mCallback;
+
+    private final IMqttActionListener mListener;
+
+    private final MQTTMetrics mMetrics;
+
+    private final BrokerRanking mRanking;
+
+    private final Candidate[] mCandidates;
+
+    private int mLaunched;
+
+    private int mFailed;
+
+    private Candidate mWinner;
+
+    /**
+     * 正在发送CONNECT等待CONNACK的候选连接
+     */
+    private Candidate mGateHolder;
+
+    private boolean mDone;
+
+    private ScheduledFuture<?> mNextLaunch;
+
+    private final Runnable mLaunchTask = new Runnable() {
+        @Override
+        public void run() {
+            launchNext();
+        }
+    };
+
+    /**
+     * @param serverURIs    按优先级排列的服务器地址
+     * @param staggerMillis 相邻两个连接的启动间隔
+     * @param factory       创建候选连接
+     * @param callback      胜出连接的消息回调
+     * @param listener      连接结果，所有地址都失败时回调最后一个失败
+     * @param metrics       运行统计
+     * @param ranking       服务器延迟排名，不需要记录时为空
+     */
+    ConnectRace(String[] serverURIs, long staggerMillis, Factory factory, MqttCallback callback,
+                IMqttActionListener listener, MQTTMetrics metrics, BrokerRanking ranking) {
+        mServerURIs = serverURIs;
+        mStaggerMillis = staggerMillis;
+        mFactory = factory;
+        mCallback = callback;
+        mListener = listener;
+        mMetrics = metrics;
+        mRanking = ranking;
+        mCandidates = new Candidate[serverURIs.length];
+    }
+
+    void start() {
+        mMetrics.connectRaces.incrementAndGet();
+        launchNext();
+    }
+
+    /**
+     * @return 是否已经有结果或被取消
+     */
+    synchronized boolean isDone() {
+        return mDone;
+    }
+
+    /**
+     * 取消所有还没有完成的连接，连接结果不再回调
+     */
+    void cancel() {
+        Candidate[] losers;
+        synchronized (this) {
+            if (mDone) {
+                return;
+            }
+            mDone = true;
+            losers = cancelLocked(null);
+            notifyAll();
+        }
+        for (Candidate loser : losers) {
+            abort(loser);
+        }
+    }
+
+    private void launchNext() {
+        Candidate candidate;
+        synchronized (this) {
+            mNextLaunch = null;
+            if (mDone || mLaunched >= mServerURIs.length) {
+                return;
+            }
+            int index = mLaunched++;
+            String serverURI = mServerURIs[index];
+            try {
+                candidate = mFactory.create(serverURI);
+            } catch (MqttException e) {
+                LogUtil.e(TAG, "创建连接失败:" + serverURI + " " + e.getMessage());
+                candidate = null;
+            }
+            mCandidates[index] = candidate;
+            if (mLaunched < mServerURIs.length) {
+                mNextLaunch = sExecutor.schedule(mLaunchTask, mStaggerMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (candidate == null) {
+            onFailed(null, null, new MqttException(MqttException.REASON_CODE_CLIENT_EXCEPTION));
+            return;
+        }
+        mMetrics.connectRaceAttempts.incrementAndGet();
+        LogUtil.i(TAG, "开始连接:" + candidate.serverURI);
+        final Candidate launched = candidate;
+        launched.launchNanos = System.nanoTime();
+        launched.options.setSocketFactory(new GateSocketFactory(launched));
+        launched.client.setCallback(new GateCallback(launched));
+        try {
+            launched.client.connect(launched.options, null, new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    onConnected(launched, asyncActionToken);
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    onFailed(launched, asyncActionToken, exception);
+                }
+            });
+        } catch (MqttException e) {
+            onFailed(launched, null, e);
+        }
+    }
+
+    private void onConnected(Candidate candidate, IMqttToken token) {
+        Candidate[] losers;
+        boolean won;
+        synchronized (this) {
+            won = !mDone;
+            if (won) {
+                mDone = true;
+                mWinner = candidate;
+                losers = cancelLocked(candidate);
+                // 在闸门等待的连接不再发出CONNECT
+                notifyAll();
+            } else {
+                losers = new Candidate[]{candidate};
+            }
+        }
+        long now = System.nanoTime();
+        for (Candidate loser : losers) {
+            if (won && mRanking != null) {
+                long ready = loser.readyNanos;
+                if (ready != 0) {
+                    // 已经建立好连接，只是没有轮到发出CONNECT
+                    mRanking.recordConnect(loser.serverURI, TimeUnit.NANOSECONDS.toMillis(ready - loser.launchNanos));
+                } else if (loser.launchNanos < candidate.launchNanos) {
+                    // 比胜出连接先启动还没有连上，至少比它慢
+                    mRanking.recordConnect(loser.serverURI, TimeUnit.NANOSECONDS.toMillis(now - loser.launchNanos));
+                }
+            }
+            abort(loser);
+        }
+        if (!won) {
+            return;
+        }
+        LogUtil.i(TAG, "连接胜出:" + candidate.serverURI);
+        if (mRanking != null) {
+            long ready = candidate.readyNanos != 0 ? candidate.readyNanos : now;
+            mRanking.recordConnect(candidate.serverURI, TimeUnit.NANOSECONDS.toMillis(ready - candidate.launchNanos));
+        }
+        mFactory.onWinner(candidate);
+        mListener.onSuccess(token);
+    }
+
+    private void onFailed(Candidate candidate, IMqttToken token, Throwable exception) {
+        boolean allFailed;
+        boolean done;
+        synchronized (this) {
+            done = mDone;
+            mFailed++;
+            allFailed = !done && mFailed == mServerURIs.length;
+            if (allFailed) {
+                mDone = true;
+            }
+            if (!done && mNextLaunch != null) {
+                // 立即启动下一个，取消原来安排的启动
+                mNextLaunch.cancel(false);
+                mNextLaunch = null;
+            }
+            for (int i = 0; i < mCandidates.length; i++) {
+                if (mCandidates[i] == candidate) {
+                    mCandidates[i] = null;
+                }
+            }
+            if (candidate != null && mGateHolder == candidate) {
+                // 让下一个建立好的连接发出CONNECT
+                mGateHolder = null;
+                notifyAll();
+            }
+        }
+        if (candidate != null) {
+            LogUtil.e(TAG, "连接失败:" + candidate.serverURI);
+            if (!done && mRanking != null) {
+                mRanking.recordFailure(candidate.serverURI);
+            }
+            // 被取消时还在连接中的客户端也在这里关闭
+            closeQuietly(candidate);
+        }
+        if (allFailed) {
+            mListener.onFailure(token, exception);
+        } else if (!done) {
+            // 当前地址不可用，不等间隔直接尝试下一个
+            sExecutor.execute(mLaunchTask);
+        }
+    }
+
+    /**
+     * 建立好TCP/TLS连接之后等待发出CONNECT
+     * <p>
+     * 发出CONNECT的连接在超时时间内没有收到CONNACK时关闭它的socket，Paho的连接失败之后下一个连接继续，
+     * 所以等待的时间不会超过前面每个连接的超时时间之和
+     *
+     * @param candidate     候选连接
+     * @param socket        候选连接建立好的socket
+     * @param timeoutMillis 等待CONNACK的超时时间，0表示不限制
+     * @return 是否可以发出CONNECT，已经有连接胜出或被取消时返回false
+     */
+    private synchronized boolean awaitTurn(final Candidate candidate, final Socket socket, int timeoutMillis) {
+        while (!mDone && mGateHolder != null && mGateHolder != candidate) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        if (mDone) {
+            return false;
+        }
+        mGateHolder = candidate;
+        if (timeoutMillis > 0) {
+            sExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (ConnectRace.this) {
+                        if (mDone || mGateHolder != candidate) {
+                            return;
+                        }
+                    }
+                    LogUtil.e(TAG, "等待CONNACK超时:" + candidate.serverURI);
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                        LogUtil.d(TAG, "关闭连接失败:" + e.getMessage());
+                    }
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        return true;
+    }
+
+    private Candidate[] cancelLocked(Candidate winner) {
+        if (mNextLaunch != null) {
+            mNextLaunch.cancel(false);
+            mNextLaunch = null;
+        }
+        int count = 0;
+        Candidate[] losers = new Candidate[mCandidates.length];
+        for (Candidate candidate : mCandidates) {
+            if (candidate != null && candidate != winner) {
+                losers[count++] = candidate;
+            }
+        }
+        Candidate[] result = new Candidate[count];
+        System.arraycopy(losers, 0, result, 0, count);
+        return result;
+    }
+
+    private void abort(Candidate candidate) {
+        mMetrics.connectRaceCancelled.incrementAndGet();
+        synchronized (candidate) {
+            // 在闸门等待的连接被唤醒后自己失败，可能已经在失败回调中关闭，关闭后的客户端不能再断开
+            if (candidate.closed) {
+                return;
+            }
+            try {
+                // 正在连接的客户端关闭网络之后连接失败，失败回调中再关闭客户端
+                candidate.client.disconnectForcibly(0, DISCONNECT_TIMEOUT_MILLIS);
+            } catch (MqttException e) {
+                LogUtil.d(TAG, "取消连接:" + candidate.serverURI + " " + e.getMessage());
+            }
+            closeQuietly(candidate);
+        }
+    }
+
+    private static void closeQuietly(Candidate candidate) {
+        synchronized (candidate) {
+            if (candidate.closed) {
+                return;
+            }
+            try {
+                candidate.client.close();
+                candidate.closed = true;
+            } catch (MqttException e) {
+                // 还在连接中，等失败回调再关闭
+            }
+        }
+    }
+
+    /**
+     * 一个服务器地址的连接
+     */
+    static final class Candidate {
+
+        final String serverURI;
+
+        final MqttAsyncClient client;
+
+        final MqttConnectOptions options;
+
+        final AlarmPingSender pingSender;
+
+        /**
+         * ssl://地址在候选socket中完成TLS握手使用的SocketFactory，tcp://地址为空
+         */
+        final SSLSocketFactory sslFactory;
+
+        /**
+         * 发出连接的时间(System.nanoTime)
+         */
+        volatile long launchNanos;
+
+        /**
+         * TCP/TLS连接建立好的时间(System.nanoTime)，还没有建立好时为0
+         */
+        volatile long readyNanos;
+
+        /**
+         * 客户端已经关闭，在Candidate上同步访问
+         */
+        boolean closed;
+
+        /**
+         * @param serverURI  服务器地址
+         * @param client     客户端，ssl://地址的客户端使用tcp://地址，由候选socket完成TLS握手
+         * @param options    连接参数，SocketFactory会被替换
+         * @param pingSender 心跳
+         * @param sslFactory ssl://地址的SocketFactory，tcp://地址为空
+         */
+        Candidate(String serverURI, MqttAsyncClient client, MqttConnectOptions options, AlarmPingSender pingSender,
+                  SSLSocketFactory sslFactory) {
+            this.serverURI = serverURI;
+            this.client = client;
+            this.options = options;
+            this.pingSender = pingSender;
+            this.sslFactory = sslFactory;
+        }
+    }
+
+    /**
+     * 创建候选连接的socket，Paho只使用无参数的{@link #createSocket()}
+     */
+    private final class GateSocketFactory extends SocketFactory {
+
+        private final Candidate mCandidate;
+
+        GateSocketFactory(Candidate candidate) {
+            mCandidate = candidate;
+        }
+
+        @Override
+        public Socket createSocket() {
+            return new GateSocket(mCandidate);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            Socket socket = createSocket();
+            socket.connect(new InetSocketAddress(host, port));
+            return socket;
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            Socket socket = createSocket();
+            socket.connect(new InetSocketAddress(host, port));
+            return socket;
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+                throws IOException {
+            return createSocket(address, port);
+        }
+    }
+
+    /**
+     * 候选连接的socket
+     * <p>
+     * connect时建立TCP连接，ssl://地址接着完成TLS握手，然后在闸门等待轮到自己发出CONNECT，
+     * 之后Paho读写的都是建立好的连接。没有轮到就被取消时连接失败，CONNECT不会发出
+     */
+    private final class GateSocket extends Socket {
+
+        private final Candidate mCandidate;
+
+        private final Socket mPlain = new Socket();
+
+        /**
+         * 建立好的连接，ssl://地址为TLS连接
+         */
+        private volatile Socket mConnected;
+
+        private volatile boolean mClosed;
+
+        GateSocket(Candidate candidate) {
+            mCandidate = candidate;
+        }
+
+        @Override
+        public void connect(SocketAddress endpoint) throws IOException {
+            connect(endpoint, 0);
+        }
+
+        @Override
+        public void connect(SocketAddress endpoint, int timeout) throws IOException {
+            mPlain.connect(endpoint, timeout);
+            Socket connected = mPlain;
+            if (mCandidate.sslFactory != null) {
+                InetSocketAddress address = (InetSocketAddress) endpoint;
+                // 主机名用于SNI、会话缓存和主机名校验，IP地址不反向解析
+                String host = address.getAddress() != null ? TlsSocketFactory.hostOf(address.getAddress())
+                        : address.getHostName();
+                SSLSocket sslSocket = (SSLSocket) mCandidate.sslFactory.createSocket(mPlain, host, address.getPort(),
+                        true);
+                mPlain.setSoTimeout(timeout);
+                sslSocket.startHandshake();
+                mPlain.setSoTimeout(0);
+                connected = sslSocket;
+            }
+            mConnected = connected;
+            if (mClosed) {
+                connected.close();
+                throw new SocketException("Socket is closed");
+            }
+            mCandidate.readyNanos = System.nanoTime();
+            if (!awaitTurn(mCandidate, this, timeout)) {
+                close();
+                throw new SocketException("connect race lost: " + mCandidate.serverURI);
+            }
+        }
+
+        private Socket connected() throws SocketException {
+            Socket connected = mConnected;
+            if (connected == null) {
+                throw new SocketException("Socket is not connected");
+            }
+            return connected;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return connected().getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return connected().getOutputStream();
+        }
+
+        @Override
+        public void setSoTimeout(int timeout) throws SocketException {
+            Socket connected = mConnected;
+            (connected != null ? connected : mPlain).setSoTimeout(timeout);
+        }
+
+        @Override
+        public int getSoTimeout() throws SocketException {
+            Socket connected = mConnected;
+            return (connected != null ? connected : mPlain).getSoTimeout();
+        }
+
+        @Override
+        public void setTcpNoDelay(boolean on) throws SocketException {
+            mPlain.setTcpNoDelay(on);
+        }
+
+        @Override
+        public InetAddress getInetAddress() {
+            return mPlain.getInetAddress();
+        }
+
+        @Override
+        public int getPort() {
+            return mPlain.getPort();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return mConnected != null && mPlain.isConnected();
+        }
+
+        @Override
+        public boolean isClosed() {
+            return mClosed;
+        }
+
+        @Override
+        public void shutdownInput() throws IOException {
+            connected().shutdownInput();
+        }
+
+        @Override
+        public void shutdownOutput() throws IOException {
+            connected().shutdownOutput();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mClosed = true;
+            Socket connected = mConnected;
+            try {
+                if (connected != null && connected != mPlain) {
+                    connected.close();
+                }
+            } finally {
+                mPlain.close();
+            }
+        }
+    }
+
+    /**
+     * 只把胜出连接的回调交给调用方
+     */
+    private final class GateCallback implements MqttCallback {
+
+        private final Candidate mCandidate;
+
+        GateCallback(Candidate candidate) {
+            mCandidate = candidate;
+        }
+
+        private boolean isWinner() {
+            synchronized (ConnectRace.this) {
+                return mWinner == mCandidate;
+            }
+        }
+
+        @Override
+        public void connectionLost(Throwable cause) {
+            if (isWinner()) {
+                mCallback.connectionLost(cause);
+            }
+        }
+
+        @Override
+        public void messageArrived(String topic, MqttMessage message) throws Exception {
+            if (!isWinner()) {
+                throw new MqttException(MqttException.REASON_CODE_CLIENT_EXCEPTION);
+            }
+            mCallback.messageArrived(topic, message);
+        }
+
+        @Override
+        public void deliveryComplete(IMqttDeliveryToken token) {
+            if (isWinner()) {
+                mCallback.deliveryComplete(token);
+            }
+        }
+    }
+}
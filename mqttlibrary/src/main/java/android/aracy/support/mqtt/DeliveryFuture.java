@@ -0,0 +1,119 @@
+package android.aracy.support.mqtt;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 消息发布的结果
+ * <p>
+ * 可以阻塞等待{@link #get()}，也可以通过{@link #setListener(DeliveryListener, Executor)}在完成时回调。
+ * 发布失败时{@link #get()}不抛出异常，失败原因见{@link DeliveryReceipt#getFailure()}。
+ * 已经交给Paho的消息不能取消
+ *
+ * @author aracy
+ * @version [1.0, 2017-04-30]
+ */
+public final class DeliveryFuture implements Future<DeliveryReceipt> {
+
+    private final CountDownLatch mDone = new CountDownLatch(1);
+
+    private volatile DeliveryReceipt mReceipt;
+
+    private DeliveryListener mListener;
+
+    private Executor mExecutor;
+
+    DeliveryFuture() {
+    }
+
+    /**
+     * 设置完成的监听器，已经完成时立即回调
+     *
+     * @param listener 监听器
+     * @param executor 回调线程，见{@link MQTTExecutors}
+     */
+    public void setListener(DeliveryListener listener, Executor executor) {
+        if (listener == null) {
+            throw new IllegalArgumentException("listener is null");
+        }
+        Executor target = executor == null ? MQTTExecutors.CALLBACK_THREAD : executor;
+        synchronized (this) {
+            if (mReceipt == null) {
+                mListener = listener;
+                mExecutor = target;
+                return;
+            }
+        }
+        notifyListener(listener, target, mReceipt);
+    }
+
+    /**
+     * 发布完成
+     *
+     * @param receipt 发布结果
+     */
+    void complete(DeliveryReceipt receipt) {
+        DeliveryListener listener;
+        Executor executor;
+        synchronized (this) {
+            if (mReceipt != null) {
+                return;
+            }
+            mReceipt = receipt;
+            listener = mListener;
+            executor = mExecutor;
+            mListener = null;
+            mExecutor = null;
+        }
+        mDone.countDown();
+        if (listener != null) {
+            notifyListener(listener, executor, receipt);
+        }
+    }
+
+    private static void notifyListener(final DeliveryListener listener, Executor executor,
+                                       final DeliveryReceipt receipt) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    listener.onDeliveryComplete(receipt);
+                } catch (RuntimeException e) {
+                    LogUtil.e("DeliveryFuture", "listener error, topic:" + receipt.getTopic(), e);
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return mReceipt != null;
+    }
+
+    @Override
+    public DeliveryReceipt get() throws InterruptedException {
+        mDone.await();
+        return mReceipt;
+    }
+
+    @Override
+    public DeliveryReceipt get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        if (!mDone.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return mReceipt;
+    }
+}
@@ -0,0 +1,18 @@
+package android.aracy.support.mqtt;
+
+/**
+ * 消息发布完成的监听器
+ *
+ * @author aracy
+ * @version [1.0, 2017-04-30]
+ * @see DeliveryFuture#setListener(DeliveryListener, java.util.concurrent.Executor)
+ */
+public interface DeliveryListener {
+
+    /**
+     * 发布完成，成功或失败见{@link DeliveryReceipt#isSuccess()}
+     *
+     * @param receipt 发布结果
+     */
+    void onDeliveryComplete(DeliveryReceipt receipt);
+}
@@ -0,0 +1,94 @@
+package android.aracy.support.mqtt;
+
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 一条消息的发布结果
+ * <p>
+ * 时间分为排队(提交到交给Paho)和确认(交给Paho到完成)两段。QoS0在写出之后完成，QoS1/2在收到服务器确认之后完成
+ *
+ * @author aracy
+ * @version [1.0, 2017-04-30]
+ */
+public final class DeliveryReceipt {
+
+    private final String mTopic;
+
+    private final int mQos;
+
+    private final long mQueuedNanos;
+
+    private final long mAckNanos;
+
+    private final Throwable mFailure;
+
+    DeliveryReceipt(String topic, int qos, long queuedNanos, long ackNanos, Throwable failure) {
+        mTopic = topic;
+        mQos = qos;
+        mQueuedNanos = queuedNanos;
+        mAckNanos = ackNanos;
+        mFailure = failure;
+    }
+
+    /**
+     * @return 消息主题
+     */
+    public String getTopic() {
+        return mTopic;
+    }
+
+    /**
+     * @return 消息质量
+     */
+    public int getQos() {
+        return mQos;
+    }
+
+    /**
+     * @return 是否发布成功
+     */
+    public boolean isSuccess() {
+        return mFailure == null;
+    }
+
+    /**
+     * @return 是否因为超过有效期没有发送
+     */
+    public boolean isExpired() {
+        return mFailure instanceof TimeoutException;
+    }
+
+    /**
+     * @return 失败原因，成功时为null，超过有效期时为{@link TimeoutException}
+     */
+    public Throwable getFailure() {
+        return mFailure;
+    }
+
+    /**
+     * @return 从提交到交给Paho的时间(毫秒)，没有交给Paho时为-1
+     */
+    public long getQueuedMillis() {
+        return mQueuedNanos < 0 ? -1 : mQueuedNanos / 1000000;
+    }
+
+    /**
+     * @return 从交给Paho到完成的时间(毫秒)，没有交给Paho时为-1
+     */
+    public long getAckMillis() {
+        return mAckNanos < 0 ? -1 : mAckNanos / 1000000;
+    }
+
+    /**
+     * @return 从提交到完成的总时间(毫秒)
+     */
+    public long getTotalMillis() {
+        return (Math.max(mQueuedNanos, 0) + Math.max(mAckNanos, 0)) / 1000000;
+    }
+
+    @Override
+    public String toString() {
+        return "DeliveryReceipt{topic=" + mTopic + ", qos=" + mQos + ", success=" + isSuccess()
+                + ", queuedMillis=" + getQueuedMillis() + ", ackMillis=" + getAckMillis() + "}";
+    }
+}
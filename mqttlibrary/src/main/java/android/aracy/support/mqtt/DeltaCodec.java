@@ -0,0 +1,379 @@
+package android.aracy.support.mqtt;
+
+/**
+ * 差量编码的帧格式和二进制差分
+ * <p>
+ * 差量主题的每条消息都带有14字节的帧头：魔数、类型、流ID、序号和基准序号。
+ * 关键帧的内容是完整的消息，差量帧的内容是相对基准状态的复制/插入指令。
+ * 差分按16字节的块建立基准的索引，目标中的每个位置用滚动哈希查找相同的块，找到后向两边扩展，
+ * 只有少数字段变化的文档大部分内容都会变成复制指令。
+ *
+ * @author aracy
+ * @version [1.0, 2017-05-12]
+ */
+final class DeltaCodec {
+
+    static final int TYPE_KEYFRAME = 0;
+
+    static final int TYPE_DELTA = 1;
+
+    /**
+     * 帧头长度：魔数(1) + 类型(1) + 流ID(4) + 序号(4) + 基准序号(4)
+     */
+    static final int HEADER_LENGTH = 14;
+
+    /**
+     * 接收方为每个主题保留的最近状态数，发送方的基准序号落后超过这个数时改发关键帧
+     */
+    static final int HISTORY = 8;
+
+    /**
+     * 请求重新发送关键帧的主题前缀，后面接原主题
+     */
+    static final String RESYNC_PREFIX = "mqtt-delta-resync/";
+
+    private static final int MAGIC = 0xDE;
+
+    private static final int BLOCK = 16;
+
+    private static final int HASH_MULTIPLIER = 0x01000193;
+
+    /**
+     * 滚动哈希中移出字节的权重，即HASH_MULTIPLIER的BLOCK-1次方
+     */
+    private static final int HASH_OUT_WEIGHT;
+
+    static {
+        int weight = 1;
+        for (int i = 1; i < BLOCK; i++) {
+            weight *= HASH_MULTIPLIER;
+        }
+        HASH_OUT_WEIGHT = weight;
+    }
+
+    private static final int OP_COPY = 0;
+
+    private static final int OP_INSERT = 1;
+
+    private DeltaCodec() {
+    }
+
+    /**
+     * 主题的差量编码规则，配置修改时整体替换，{@link Topic}按实例缓存匹配结果
+     */
+    static final class Rules {
+
+        static final Rules EMPTY = new Rules(new String[0], new int[0]);
+
+        final String[] filters;
+
+        /**
+         * 每个过滤器的关键帧间隔(消息数)
+         */
+        final int[] intervals;
+
+        Rules(String[] filters, int[] intervals) {
+            this.filters = filters;
+            this.intervals = intervals;
+        }
+
+        boolean isEmpty() {
+            return filters.length == 0;
+        }
+
+        /**
+         * 查找主题匹配的规则
+         *
+         * @param topic 规范化的主题
+         * @return 关键帧间隔，不是差量主题时返回0
+         */
+        int match(Topic topic) {
+            Integer interval = (Integer) topic.getDelta(this);
+            if (interval == null) {
+                interval = 0;
+                if (!topic.getName().startsWith(RESYNC_PREFIX)) {
+                    for (int i = 0; i < filters.length; i++) {
+                        if (MqttUtil.isTopicMatched(filters[i], topic.getName())) {
+                            interval = intervals[i];
+                            break;
+                        }
+                    }
+                }
+                topic.setDelta(this, interval);
+            }
+            return interval;
+        }
+
+        /**
+         * @return 发送方需要订阅的重新同步请求主题
+         */
+        String[] resyncFilters() {
+            String[] resync = new String[filters.length];
+            for (int i = 0; i < filters.length; i++) {
+                resync[i] = RESYNC_PREFIX + filters[i];
+            }
+            return resync;
+        }
+    }
+
+    /**
+     * 组装一帧
+     *
+     * @param type     帧类型
+     * @param stream   流ID
+     * @param seq      序号
+     * @param baseSeq  基准序号，关键帧为0
+     * @param body     内容
+     * @param length   内容长度
+     * @return 完整的帧
+     */
+    static byte[] frame(int type, int stream, int seq, int baseSeq, byte[] body, int length) {
+        byte[] frame = new byte[HEADER_LENGTH + length];
+        frame[0] = (byte) MAGIC;
+        frame[1] = (byte) type;
+        writeInt(frame, 2, stream);
+        writeInt(frame, 6, seq);
+        writeInt(frame, 10, baseSeq);
+        System.arraycopy(body, 0, frame, HEADER_LENGTH, length);
+        return frame;
+    }
+
+    /**
+     * 判断是否为差量编码的帧，不是时按普通消息处理
+     *
+     * @param payload 消息内容
+     * @return 是否为差量编码的帧
+     */
+    static boolean isFrame(byte[] payload) {
+        return payload.length >= HEADER_LENGTH && (payload[0] & 0xFF) == MAGIC
+                && (payload[1] == TYPE_KEYFRAME || payload[1] == TYPE_DELTA);
+    }
+
+    static int type(byte[] frame) {
+        return frame[1];
+    }
+
+    static int stream(byte[] frame) {
+        return readInt(frame, 2);
+    }
+
+    static int seq(byte[] frame) {
+        return readInt(frame, 6);
+    }
+
+    static int baseSeq(byte[] frame) {
+        return readInt(frame, 10);
+    }
+
+    /**
+     * 计算目标相对基准的差分
+     *
+     * @param base     基准状态
+     * @param target   目标状态
+     * @param maxBytes 差分的最大长度，超过时放弃
+     * @return 差分，超过最大长度时返回null
+     */
+    static byte[] diff(byte[] base, byte[] target, int maxBytes) {
+        Output out = new Output(Math.min(maxBytes, 256), maxBytes);
+        out.writeVarint(target.length);
+        if (base.length < BLOCK || target.length < BLOCK) {
+            return out.insert(target, 0, target.length) ? out.toByteArray() : null;
+        }
+        int blocks = base.length / BLOCK;
+        int size = Integer.highestOneBit(blocks * 2 - 1) << 1;
+        int mask = size - 1;
+        // 存放块的偏移+1，0表示空位，哈希冲突时保留后面的块
+        int[] index = new int[size];
+        for (int i = 0; i < blocks; i++) {
+            index[hash(base, i * BLOCK) & mask] = i * BLOCK + 1;
+        }
+        int literal = 0;
+        int p = 0;
+        int h = hash(target, 0);
+        while (true) {
+            int candidate = index[h & mask] - 1;
+            if (candidate >= 0 && regionEquals(base, candidate, target, p, BLOCK)) {
+                int start = p;
+                int from = candidate;
+                while (start > literal && from > 0 && base[from - 1] == target[start - 1]) {
+                    start--;
+                    from--;
+                }
+                int end = p + BLOCK;
+                int to = candidate + BLOCK;
+                while (end < target.length && to < base.length && base[to] == target[end]) {
+                    end++;
+                    to++;
+                }
+                if (!out.insert(target, literal, start - literal) || !out.copy(from, end - start)) {
+                    return null;
+                }
+                literal = end;
+                p = end;
+                if (p + BLOCK > target.length) {
+                    break;
+                }
+                h = hash(target, p);
+            } else {
+                if (p + BLOCK >= target.length) {
+                    break;
+                }
+                h = (h - target[p] * HASH_OUT_WEIGHT) * HASH_MULTIPLIER + target[p + BLOCK];
+                p++;
+            }
+        }
+        return out.insert(target, literal, target.length - literal) ? out.toByteArray() : null;
+    }
+
+    /**
+     * 把差分应用到基准状态
+     *
+     * @param base   基准状态
+     * @param delta  差量帧
+     * @param offset 差分在帧中的起始位置
+     * @return 目标状态
+     * @throws IllegalArgumentException 差分格式错误或与基准不符
+     */
+    static byte[] patch(byte[] base, byte[] delta, int offset) {
+        int[] cursor = {offset};
+        int length = readVarint(delta, cursor);
+        // 每个操作至少占两个字节，复制不超过基准的长度，插入不超过差分本身，长度错误时不分配过大的数组
+        if (length > (long) (delta.length - cursor[0]) * Math.max(base.length, 1)) {
+            throw new IllegalArgumentException("delta length exceeds possible target");
+        }
+        byte[] target = new byte[length];
+        int written = 0;
+        while (cursor[0] < delta.length) {
+            int op = readVarint(delta, cursor);
+            int count = op >>> 1;
+            if (count > length - written) {
+                throw new IllegalArgumentException("delta overflows target");
+            }
+            if ((op & 1) == OP_COPY) {
+                int from = readVarint(delta, cursor);
+                if (from > base.length - count) {
+                    throw new IllegalArgumentException("delta copies outside base");
+                }
+                System.arraycopy(base, from, target, written, count);
+            } else {
+                if (count > delta.length - cursor[0]) {
+                    throw new IllegalArgumentException("delta truncated");
+                }
+                System.arraycopy(delta, cursor[0], target, written, count);
+                cursor[0] += count;
+            }
+            written += count;
+        }
+        if (written != length) {
+            throw new IllegalArgumentException("delta length mismatch");
+        }
+        return target;
+    }
+
+    private static int hash(byte[] data, int offset) {
+        int h = 0;
+        for (int i = 0; i < BLOCK; i++) {
+            h = h * HASH_MULTIPLIER + data[offset + i];
+        }
+        return h;
+    }
+
+    private static boolean regionEquals(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[aOffset + i] != b[bOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int readVarint(byte[] data, int[] cursor) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (cursor[0] >= data.length) {
+                throw new IllegalArgumentException("delta truncated");
+            }
+            int b = data[cursor[0]++];
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    throw new IllegalArgumentException("delta varint overflow");
+                }
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("delta varint overflow");
+    }
+
+    private static void writeInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xFF) << 24 | (data[offset + 1] & 0xFF) << 16 | (data[offset + 2] & 0xFF) << 8
+                | (data[offset + 3] & 0xFF);
+    }
+
+    /**
+     * 有长度上限的差分输出
+     */
+    private static final class Output {
+
+        private byte[] mData;
+
+        private int mCount;
+
+        private final int mLimit;
+
+        Output(int initial, int limit) {
+            mData = new byte[Math.max(initial, 16)];
+            mLimit = limit;
+        }
+
+        boolean copy(int from, int count) {
+            writeVarint(count << 1 | OP_COPY);
+            writeVarint(from);
+            return mCount <= mLimit;
+        }
+
+        boolean insert(byte[] source, int offset, int count) {
+            if (count == 0) {
+                return mCount <= mLimit;
+            }
+            writeVarint(count << 1 | OP_INSERT);
+            if (mCount + count > mLimit) {
+                return false;
+            }
+            ensure(count);
+            System.arraycopy(source, offset, mData, mCount, count);
+            mCount += count;
+            return true;
+        }
+
+        void writeVarint(int value) {
+            ensure(5);
+            while ((value & ~0x7F) != 0) {
+                mData[mCount++] = (byte) (value & 0x7F | 0x80);
+                value >>>= 7;
+            }
+            mData[mCount++] = (byte) value;
+        }
+
+        private void ensure(int extra) {
+            if (mCount + extra > mData.length) {
+                byte[] data = new byte[Math.max(mData.length * 2, mCount + extra)];
+                System.arraycopy(mData, 0, data, 0, mCount);
+                mData = data;
+            }
+        }
+
+        byte[] toByteArray() {
+            byte[] result = new byte[mCount];
+            System.arraycopy(mData, 0, result, 0, mCount);
+            return result;
+        }
+    }
+}
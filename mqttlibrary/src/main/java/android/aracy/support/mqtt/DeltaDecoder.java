@@ -0,0 +1,177 @@
+package android.aracy.support.mqtt;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 接收方的差量解码
+ * <p>
+ * 每个差量主题保留最近{@link DeltaCodec#HISTORY}个还原后的状态，差量帧按基准序号找到状态后还原完整内容。
+ * 找不到基准(漏收了消息、进程重启或发送方换了流)时丢弃这一帧，
+ * 并向{@link DeltaCodec#RESYNC_PREFIX}加原主题发布重新同步请求，发送方下一条消息改发关键帧。
+ * 不是差量编码帧的消息原样返回，例如清除保留消息的空消息。
+ *
+ * @author aracy
+ * @version [1.0, 2017-05-12]
+ */
+class DeltaDecoder {
+
+    private static final String TAG = "DeltaDecoder";
+
+    /**
+     * 最多保留状态的主题数，超过时淘汰最久没有收到消息的主题
+     */
+    private static final int MAX_STREAMS = 256;
+
+    /**
+     * 同一主题两次重新同步请求的最小间隔
+     */
+    private static final long RESYNC_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * 重新同步请求的发送方
+     */
+    interface ResyncRequester {
+
+        /**
+         * 请求发送方重新发送关键帧
+         *
+         * @param topic 缺少基准的主题
+         */
+        void requestResync(String topic);
+    }
+
+    private final MQTTMetrics mMetrics;
+
+    private final LinkedHashMap<String, Stream> mStreams = new LinkedHashMap<String, Stream>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Stream> eldest) {
+            return size() > MAX_STREAMS;
+        }
+    };
+
+    private volatile DeltaCodec.Rules mRules = DeltaCodec.Rules.EMPTY;
+
+    private volatile ResyncRequester mRequester;
+
+    DeltaDecoder(MQTTMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    void setRules(DeltaCodec.Rules rules) {
+        mRules = rules;
+    }
+
+    void setResyncRequester(ResyncRequester requester) {
+        mRequester = requester;
+    }
+
+    /**
+     * @return 发送方需要订阅的重新同步请求主题
+     */
+    String[] getResyncFilters() {
+        return mRules.resyncFilters();
+    }
+
+    /**
+     * 还原差量主题的消息
+     *
+     * @param topic   规范化的主题
+     * @param payload 收到的内容
+     * @return 完整的内容，不是差量主题或不是差量编码帧时返回payload本身，缺少基准时返回null
+     */
+    byte[] decode(Topic topic, byte[] payload) {
+        DeltaCodec.Rules rules = mRules;
+        if (rules.isEmpty() || rules.match(topic) <= 0 || !DeltaCodec.isFrame(payload)) {
+            return payload;
+        }
+        String name = topic.getName();
+        int streamId = DeltaCodec.stream(payload);
+        int seq = DeltaCodec.seq(payload);
+        byte[] state;
+        synchronized (mStreams) {
+            Stream stream = mStreams.get(name);
+            if (stream == null || stream.id != streamId) {
+                // 发送方重启之后旧的状态都不能再用
+                stream = new Stream(streamId);
+                mStreams.put(name, stream);
+            }
+            state = stream.find(seq);
+            if (state == null) {
+                if (DeltaCodec.type(payload) == DeltaCodec.TYPE_KEYFRAME) {
+                    state = new byte[payload.length - DeltaCodec.HEADER_LENGTH];
+                    System.arraycopy(payload, DeltaCodec.HEADER_LENGTH, state, 0, state.length);
+                } else {
+                    byte[] base = stream.find(DeltaCodec.baseSeq(payload));
+                    if (base != null) {
+                        try {
+                            state = DeltaCodec.patch(base, payload, DeltaCodec.HEADER_LENGTH);
+                        } catch (IllegalArgumentException e) {
+                            LogUtil.e(TAG, "差量帧格式错误:" + name + " " + e.getMessage());
+                        }
+                    }
+                    if (state == null) {
+                        mMetrics.deltaGaps.incrementAndGet();
+                        requestResync(stream, name);
+                        return null;
+                    }
+                }
+                stream.add(seq, state);
+            }
+        }
+        return state;
+    }
+
+    private void requestResync(Stream stream, String topic) {
+        long now = System.nanoTime();
+        if (stream.resyncNanos != 0 && now - stream.resyncNanos < RESYNC_INTERVAL_NANOS) {
+            return;
+        }
+        ResyncRequester requester = mRequester;
+        if (requester == null) {
+            return;
+        }
+        stream.resyncNanos = now;
+        mMetrics.deltaResyncRequests.incrementAndGet();
+        requester.requestResync(topic);
+    }
+
+    /**
+     * 一个主题最近还原的状态
+     */
+    private static final class Stream {
+
+        final int id;
+
+        final int[] seqs = new int[DeltaCodec.HISTORY];
+
+        final byte[][] states = new byte[DeltaCodec.HISTORY][];
+
+        int next;
+
+        long resyncNanos;
+
+        Stream(int id) {
+            this.id = id;
+        }
+
+        /**
+         * 查找状态，重发的消息也从这里直接返回
+         */
+        byte[] find(int seq) {
+            for (int i = 0; i < states.length; i++) {
+                if (states[i] != null && seqs[i] == seq) {
+                    return states[i];
+                }
+            }
+            return null;
+        }
+
+        void add(int seq, byte[] state) {
+            seqs[next] = seq;
+            states[next] = state;
+            next = (next + 1) % states.length;
+        }
+    }
+}
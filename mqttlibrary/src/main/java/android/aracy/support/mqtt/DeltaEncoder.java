@@ -0,0 +1,184 @@
+package android.aracy.support.mqtt;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * 发送方的差量编码
+ * <p>
+ * 每个差量主题是一个流，消息按顺序编号。差量帧只以服务器已经确认的状态为基准，
+ * 还没有确认的状态保存在待确认表中，确认之后成为新的基准。以下情况发送关键帧：
+ * 流的第一条消息、距离上一个关键帧达到间隔、上一个关键帧还没有确认、基准落后超过{@link DeltaCodec#HISTORY}、
+ * 收到接收方的重新同步请求，以及差分不比完整内容小。
+ * 同一个差量主题只能有一个发送方。
+ *
+ * @author aracy
+ * @version [1.0, 2017-05-12]
+ */
+class DeltaEncoder {
+
+    private final TopicTable mTopicTable;
+
+    private final MQTTMetrics mMetrics;
+
+    /**
+     * 流ID，进程重启之后接收方据此丢弃旧的状态
+     */
+    private final int mStreamId = new Random().nextInt();
+
+    private final HashMap<String, Stream> mStreams = new HashMap<>();
+
+    private volatile DeltaCodec.Rules mRules = DeltaCodec.Rules.EMPTY;
+
+    DeltaEncoder(TopicTable topicTable, MQTTMetrics metrics) {
+        mTopicTable = topicTable;
+        mMetrics = metrics;
+    }
+
+    void setRules(DeltaCodec.Rules rules) {
+        mRules = rules;
+    }
+
+    /**
+     * 差量主题的消息改为关键帧或差量帧，其他消息不变
+     *
+     * @param message 待发布的消息
+     */
+    void encode(OutboundMessage message) {
+        DeltaCodec.Rules rules = mRules;
+        if (rules.isEmpty()) {
+            return;
+        }
+        int interval = rules.match(mTopicTable.intern(message.topic));
+        if (interval <= 0) {
+            return;
+        }
+        // 调用方可能复用内容数组，保存一份拷贝作为以后的基准
+        byte[] state = message.message.getPayload().clone();
+        Stream stream = getStream(message.topic);
+        synchronized (stream) {
+            int seq = ++stream.seq;
+            byte[] frame = null;
+            if (stream.base != null && !stream.forceKeyframe && stream.sinceKeyframe < interval
+                    && stream.baseSeq >= stream.keyframeSeq && seq - stream.baseSeq <= DeltaCodec.HISTORY) {
+                byte[] delta = DeltaCodec.diff(stream.base, state, state.length - 1);
+                if (delta != null) {
+                    frame = DeltaCodec.frame(DeltaCodec.TYPE_DELTA, mStreamId, seq, stream.baseSeq, delta,
+                            delta.length);
+                    stream.sinceKeyframe++;
+                    mMetrics.deltaFrames.incrementAndGet();
+                    mMetrics.deltaBytesSaved.addAndGet(state.length - frame.length);
+                }
+            }
+            if (frame == null) {
+                frame = DeltaCodec.frame(DeltaCodec.TYPE_KEYFRAME, mStreamId, seq, 0, state, state.length);
+                stream.keyframeSeq = seq;
+                stream.sinceKeyframe = 0;
+                stream.forceKeyframe = false;
+                mMetrics.deltaKeyframes.incrementAndGet();
+            }
+            stream.pending.put(seq, state);
+            if (stream.pending.size() > DeltaCodec.HISTORY) {
+                // 确认太慢时不再保存更早的状态，基准落后太多之后会改发关键帧
+                Iterator<Integer> iterator = stream.pending.keySet().iterator();
+                iterator.next();
+                iterator.remove();
+            }
+            message.message.setPayload(frame);
+            message.deltaSeq = seq;
+        }
+    }
+
+    /**
+     * 消息发布完成，成功时把状态作为新的基准
+     *
+     * @param message 完成的消息
+     * @param success 是否成功
+     */
+    void onFinished(OutboundMessage message, boolean success) {
+        if (message.deltaSeq == 0) {
+            return;
+        }
+        Stream stream;
+        synchronized (mStreams) {
+            stream = mStreams.get(message.topic);
+        }
+        if (stream == null) {
+            return;
+        }
+        synchronized (stream) {
+            byte[] state = stream.pending.remove(message.deltaSeq);
+            if (!success || state == null || message.deltaSeq <= stream.baseSeq) {
+                return;
+            }
+            stream.base = state;
+            stream.baseSeq = message.deltaSeq;
+            Iterator<Map.Entry<Integer, byte[]>> iterator = stream.pending.entrySet().iterator();
+            while (iterator.hasNext() && iterator.next().getKey() < message.deltaSeq) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * 收到接收方的重新同步请求，下一条消息发送关键帧
+     *
+     * @param topic 主题
+     */
+    void requestKeyframe(String topic) {
+        Stream stream;
+        synchronized (mStreams) {
+            stream = mStreams.get(topic);
+        }
+        if (stream == null) {
+            // 还没有发布过，第一条消息本来就是关键帧
+            return;
+        }
+        synchronized (stream) {
+            stream.forceKeyframe = true;
+        }
+    }
+
+    private Stream getStream(String topic) {
+        synchronized (mStreams) {
+            Stream stream = mStreams.get(topic);
+            if (stream == null) {
+                stream = new Stream();
+                mStreams.put(topic, stream);
+            }
+            return stream;
+        }
+    }
+
+    /**
+     * 一个主题的发送状态，在自身的锁内访问
+     */
+    private static final class Stream {
+
+        int seq;
+
+        /**
+         * 服务器已经确认的最新状态，差量帧的基准
+         */
+        byte[] base;
+
+        int baseSeq;
+
+        /**
+         * 最近一个关键帧的序号，关键帧确认之前不发送差量帧，保证重新同步的接收方能用上新的基准
+         */
+        int keyframeSeq;
+
+        int sinceKeyframe;
+
+        boolean forceKeyframe;
+
+        /**
+         * 已经编码但还没有确认的状态，按序号排列
+         */
+        final LinkedHashMap<Integer, byte[]> pending = new LinkedHashMap<>();
+    }
+}
@@ -0,0 +1,23 @@
+package android.aracy.support.mqtt;
+
+/**
+ * BaseRunnable的执行方式
+ *
+ * @author aracy
+ * @version [1.0, 2017-05-10]
+ * @see MQTTManager#setDispatchMode(DispatchMode)
+ */
+public enum DispatchMode {
+
+    /**
+     * 固定大小的线程池，线程数为CPU核数的3倍，适合有阻塞IO的处理者
+     */
+    THREAD_POOL,
+
+    /**
+     * 线程数等于CPU核数的ForkJoinPool，每个线程有自己的任务队列，空闲线程从其他线程的队列中取任务，
+     * 适合计算量大的处理者，处理者可以通过{@link BaseRunnable#invokeAll(Runnable...)}拆分子任务。
+     * 需要Android 5.0及以上，低版本使用{@link #THREAD_POOL}
+     */
+    WORK_STEALING
+}
@@ -0,0 +1,73 @@
+package android.aracy.support.mqtt;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+
+/**
+ * ForkJoinPool相关的调用，只在Android 5.0及以上加载
+ *
+ * @author aracy
+ * @version [1.0, 2017-05-10]
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+final class ForkJoinSupport {
+
+    private ForkJoinSupport() {
+    }
+
+    /**
+     * 当前系统是否支持ForkJoinPool
+     */
+    static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+    }
+
+    /**
+     * 创建执行消息的ForkJoinPool
+     * <p>
+     * 消息任务只提交不等待，使用FIFO模式，保持同一线程上消息的到达顺序
+     *
+     * @param parallelism 线程数
+     * @return 线程池
+     */
+    static ExecutorService newPool(int parallelism) {
+        return new ForkJoinPool(parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+    }
+
+    /**
+     * 当前线程是否是ForkJoinPool的工作线程
+     */
+    static boolean inPool() {
+        return isSupported() && ForkJoinTask.inForkJoinPool();
+    }
+
+    /**
+     * 并行执行子任务并等待全部完成，等待期间当前线程会执行其他子任务
+     *
+     * @param tasks 子任务
+     */
+    static void invokeAll(Runnable[] tasks) {
+        ForkJoinTask<?>[] forkJoinTasks = new ForkJoinTask<?>[tasks.length];
+        for (int i = 0; i < tasks.length; i++) {
+            forkJoinTasks[i] = ForkJoinTask.adapt(tasks[i]);
+        }
+        ForkJoinTask.invokeAll(forkJoinTasks);
+    }
+
+    /**
+     * 把子任务放入当前线程的任务队列，其他空闲线程可以取走执行
+     *
+     * @param task 子任务
+     * @param <T>  结果类型
+     * @return 子任务的结果
+     */
+    static <T> Future<T> fork(Callable<T> task) {
+        return ForkJoinTask.adapt(task).fork();
+    }
+}
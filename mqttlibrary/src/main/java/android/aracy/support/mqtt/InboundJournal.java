@@ -0,0 +1,426 @@
+package android.aracy.support.mqtt;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * 收到消息的预写日志
+ * <p>
+ * messageArrived返回之前把消息追加到日志文件，处理者执行完之后追加完成标记，Service下次启动时重新分发没有完成的消息。
+ * 写入先进入内存缓冲，QoS1/2消息返回之前把缓冲中的所有记录(包括之前的QoS0消息和完成标记)用一次写操作提交，
+ * 只写到系统缓存不调用fsync，进程被杀时不会丢失，整机掉电时可能丢失最后一部分。
+ * 文件超过{@link #COMPACT_BYTES}并且一半以上是已经完成的消息时，只保留没有完成的消息重写文件
+ *
+ * @author aracy
+ * @version [1.0, 2017-05-04]
+ */
+class InboundJournal {
+
+    private static final String TAG = "InboundJournal";
+
+    private static final String FILE_NAME = "mqtt_inbox.log";
+
+    private static final byte TYPE_MESSAGE = 1;
+
+    private static final byte TYPE_DONE = 2;
+
+    /**
+     * 单条记录的最大长度，超过时认为文件已损坏
+     */
+    private static final int MAX_RECORD_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * 文件超过这个大小时压缩
+     */
+    private static final long COMPACT_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * 只有完成标记或QoS0消息时延迟写入的时间
+     */
+    private static final long FLUSH_DELAY_MILLIS = 500;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mFile;
+
+    private final Object mLock = new Object();
+
+    /**
+     * 等待写入文件的记录
+     */
+    private final RecordBuffer mPending = new RecordBuffer();
+
+    /**
+     * 编码单条记录用的缓冲
+     */
+    private final RecordBuffer mRecord = new RecordBuffer();
+
+    private final DataOutputStream mRecordOut = new DataOutputStream(mRecord);
+
+    private final CRC32 mCrc = new CRC32();
+
+    /**
+     * 没有完成的消息记录，用于压缩
+     */
+    private final LinkedHashMap<Long, byte[]> mLive = new LinkedHashMap<>();
+
+    /**
+     * 没有完成的消息记录的总长度
+     */
+    private long mLiveBytes;
+
+    private final ScheduledExecutorService mExecutor;
+
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                mFlushScheduled = false;
+                writePendingLocked();
+            }
+        }
+    };
+
+    private RandomAccessFile mAccessFile;
+
+    private FileChannel mChannel;
+
+    private long mFileBytes;
+
+    private long mNextSeq = 1;
+
+    private boolean mFlushScheduled;
+
+    /**
+     * 文件读写失败之后不再记录，避免影响消息处理
+     */
+    private boolean mBroken;
+
+    /**
+     * @param dir 日志文件的目录
+     */
+    InboundJournal(File dir) {
+        mFile = new File(dir, FILE_NAME);
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "mqtt-journal");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * 打开日志，读取上次没有完成的消息
+     *
+     * @return 没有完成的消息，按到达顺序排列
+     */
+    List<Entry> open() {
+        List<Entry> entries = new ArrayList<>();
+        synchronized (mLock) {
+            try {
+                long validBytes = readLocked(entries);
+                mAccessFile = new RandomAccessFile(mFile, "rw");
+                mChannel = mAccessFile.getChannel();
+                // 丢弃末尾没有写完整的记录
+                mChannel.truncate(validBytes);
+                mChannel.position(validBytes);
+                mFileBytes = validBytes;
+                if (needsCompactLocked()) {
+                    compactLocked();
+                }
+            } catch (IOException e) {
+                LogUtil.e(TAG, "打开日志失败", e);
+                mBroken = true;
+            }
+        }
+        if (!entries.isEmpty()) {
+            LogUtil.i(TAG, "需要重新分发的消息数:" + entries.size());
+        }
+        return entries;
+    }
+
+    /**
+     * 追加一条消息
+     *
+     * @param message 消息
+     * @param commit  是否在返回之前写入文件，QoS1/2消息需要写入之后才能确认给服务器
+     * @return 消息的序号，日志不可用时返回0
+     */
+    long append(MQTTMessage message, boolean commit) {
+        synchronized (mLock) {
+            if (mBroken) {
+                return 0;
+            }
+            long seq = mNextSeq++;
+            try {
+                byte[] record = encodeMessageLocked(seq, message);
+                mLive.put(seq, record);
+                mLiveBytes += record.length;
+                mPending.write(record);
+            } catch (IOException e) {
+                // 写入内存缓冲不会失败
+                throw new AssertionError(e);
+            }
+            if (commit) {
+                writePendingLocked();
+            } else {
+                scheduleFlushLocked();
+            }
+            return seq;
+        }
+    }
+
+    /**
+     * 标记消息已经处理完成，不再需要重新分发
+     *
+     * @param seq 消息的序号
+     */
+    void markDone(long seq) {
+        synchronized (mLock) {
+            byte[] record = mBroken ? null : mLive.remove(seq);
+            if (record == null) {
+                return;
+            }
+            mLiveBytes -= record.length;
+            try {
+                mRecord.reset();
+                mRecordOut.writeByte(TYPE_DONE);
+                mRecordOut.writeLong(seq);
+                writeRecordLocked(mPending);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+            scheduleFlushLocked();
+        }
+    }
+
+    /**
+     * 写入剩余的记录并关闭文件
+     */
+    void close() {
+        synchronized (mLock) {
+            writePendingLocked();
+            if (mChannel == null) {
+                return;
+            }
+            try {
+                mChannel.force(false);
+                mAccessFile.close();
+            } catch (IOException e) {
+                LogUtil.e(TAG, "关闭日志失败", e);
+            }
+            mChannel = null;
+            mAccessFile = null;
+            // 关闭之后完成的消息下次启动时重新分发
+            mBroken = true;
+        }
+        mExecutor.shutdown();
+    }
+
+    private void scheduleFlushLocked() {
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mExecutor.schedule(mFlushTask, FLUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 把缓冲中的记录用一次写操作写入文件
+     */
+    private void writePendingLocked() {
+        if (mBroken || mChannel == null || mPending.size() == 0) {
+            return;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(mPending.buffer(), 0, mPending.size());
+            while (buffer.hasRemaining()) {
+                mChannel.write(buffer);
+            }
+            mFileBytes += mPending.size();
+            mPending.reset();
+            if (needsCompactLocked()) {
+                compactLocked();
+            }
+        } catch (IOException e) {
+            LogUtil.e(TAG, "写入日志失败，停止记录", e);
+            mBroken = true;
+        }
+    }
+
+    /**
+     * 没有完成的消息本身超过压缩大小时，每次写入都压缩只会重复复制同样的内容
+     */
+    private boolean needsCompactLocked() {
+        return mFileBytes > COMPACT_BYTES && mFileBytes > mLiveBytes * 2;
+    }
+
+    /**
+     * 只保留没有完成的消息，写入临时文件之后替换日志文件
+     */
+    private void compactLocked() throws IOException {
+        File temp = new File(mFile.getPath() + ".tmp");
+        RandomAccessFile file = new RandomAccessFile(temp, "rw");
+        long length = 0;
+        try {
+            FileChannel channel = file.getChannel();
+            channel.truncate(0);
+            for (byte[] record : mLive.values()) {
+                ByteBuffer buffer = ByteBuffer.wrap(record);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                length += record.length;
+            }
+            channel.force(false);
+        } finally {
+            file.close();
+        }
+        mAccessFile.close();
+        if (!temp.renameTo(mFile)) {
+            throw new IOException("rename " + temp + " failed");
+        }
+        mAccessFile = new RandomAccessFile(mFile, "rw");
+        mChannel = mAccessFile.getChannel();
+        mChannel.position(length);
+        mFileBytes = length;
+        LogUtil.d(TAG, "压缩日志，剩余消息数:" + mLive.size());
+    }
+
+    /**
+     * 顺序读取日志文件
+     *
+     * @return 完整记录的总长度
+     */
+    private long readLocked(List<Entry> entries) throws IOException {
+        if (!mFile.exists()) {
+            return 0;
+        }
+        LinkedHashMap<Long, Entry> live = new LinkedHashMap<>();
+        long valid = 0;
+        RandomAccessFile file = new RandomAccessFile(mFile, "r");
+        try {
+            long length = file.length();
+            while (valid + 8 <= length) {
+                file.seek(valid);
+                int size = file.readInt();
+                int crc = file.readInt();
+                if (size <= 0 || size > MAX_RECORD_BYTES || valid + 8 + size > length) {
+                    break;
+                }
+                byte[] body = new byte[size];
+                file.readFully(body);
+                mCrc.reset();
+                mCrc.update(body, 0, size);
+                if ((int) mCrc.getValue() != crc) {
+                    LogUtil.e(TAG, "日志记录校验失败，丢弃之后的内容");
+                    break;
+                }
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+                byte type = in.readByte();
+                long seq = in.readLong();
+                mNextSeq = Math.max(mNextSeq, seq + 1);
+                if (type == TYPE_MESSAGE) {
+                    int qos = in.readByte();
+                    boolean retained = in.readBoolean();
+                    byte[] topic = new byte[in.readUnsignedShort()];
+                    in.readFully(topic);
+                    byte[] payload = new byte[in.readInt()];
+                    in.readFully(payload);
+                    MQTTMessage message = new MQTTMessage(new String(topic, UTF_8), payload, qos, retained, true);
+                    byte[] record = new byte[8 + size];
+                    file.seek(valid);
+                    file.readFully(record);
+                    mLive.put(seq, record);
+                    mLiveBytes += record.length;
+                    live.put(seq, new Entry(seq, message));
+                } else if (type == TYPE_DONE) {
+                    byte[] removed = mLive.remove(seq);
+                    if (removed != null) {
+                        mLiveBytes -= removed.length;
+                    }
+                    live.remove(seq);
+                }
+                valid += 8 + size;
+            }
+        } catch (EOFException e) {
+            LogUtil.e(TAG, "日志记录不完整，丢弃之后的内容");
+        } finally {
+            file.close();
+        }
+        entries.addAll(live.values());
+        return valid;
+    }
+
+    private byte[] encodeMessageLocked(long seq, MQTTMessage message) throws IOException {
+        byte[] topic = message.getTopic().getBytes(UTF_8);
+        mRecord.reset();
+        mRecordOut.writeByte(TYPE_MESSAGE);
+        mRecordOut.writeLong(seq);
+        mRecordOut.writeByte(message.getQos());
+        mRecordOut.writeBoolean(message.isRetained());
+        mRecordOut.writeShort(topic.length);
+        mRecordOut.write(topic);
+        mRecordOut.writeInt(message.getPayload().length);
+        mRecordOut.write(message.getPayload());
+        RecordBuffer out = new RecordBuffer();
+        writeRecordLocked(out);
+        return out.toByteArray();
+    }
+
+    /**
+     * 给{@link #mRecord}中的记录加上长度和校验写入目标缓冲
+     */
+    private void writeRecordLocked(RecordBuffer target) throws IOException {
+        int size = mRecord.size();
+        mCrc.reset();
+        mCrc.update(mRecord.buffer(), 0, size);
+        DataOutputStream out = new DataOutputStream(target);
+        out.writeInt(size);
+        out.writeInt((int) mCrc.getValue());
+        target.write(mRecord.buffer(), 0, size);
+    }
+
+    /**
+     * 上次没有处理完成的消息
+     */
+    static final class Entry {
+
+        final long seq;
+
+        final MQTTMessage message;
+
+        Entry(long seq, MQTTMessage message) {
+            this.seq = seq;
+            this.message = message;
+        }
+    }
+
+    /**
+     * 可以直接访问内部数组的缓冲，避免每次写入时复制
+     */
+    private static final class RecordBuffer extends ByteArrayOutputStream {
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+}
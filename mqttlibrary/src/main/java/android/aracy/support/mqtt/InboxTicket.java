@@ -0,0 +1,38 @@
+package android.aracy.support.mqtt;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 一条写入预写日志的消息，所有处理者都完成之后写入完成标记
+ *
+ * @author aracy
+ * @version [1.0, 2017-05-04]
+ */
+class InboxTicket {
+
+    private final InboundJournal mJournal;
+
+    private final long mSeq;
+
+    private final AtomicInteger mRemaining;
+
+    /**
+     * @param journal  预写日志
+     * @param seq      消息的序号
+     * @param handlers 需要完成的处理者数
+     */
+    InboxTicket(InboundJournal journal, long seq, int handlers) {
+        mJournal = journal;
+        mSeq = seq;
+        mRemaining = new AtomicInteger(handlers);
+    }
+
+    /**
+     * 一个处理者已经完成
+     */
+    void done() {
+        if (mRemaining.decrementAndGet() == 0) {
+            mJournal.markDone(mSeq);
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package android.aracy.support.mqtt;
+
+/**
+ * 发布通道的调度方式
+ *
+ * @author aracy
+ * @version [1.0, 2017-04-19]
+ * @see MQTTManager#setLaneScheduling(LaneScheduling)
+ */
+public enum LaneScheduling {
+
+    /**
+     * 严格优先级，高优先级通道有消息时低优先级通道不发送
+     */
+    STRICT,
+
+    /**
+     * 按权重轮流发送，低优先级通道也能按比例得到发送机会
+     */
+    WEIGHTED
+}
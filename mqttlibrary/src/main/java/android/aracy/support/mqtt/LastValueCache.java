@@ -0,0 +1,386 @@
+package android.aracy.support.mqtt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 主题最新值缓存
+ * <p>
+ * 缓存保留消息和状态主题的最新一条消息，按内存大小淘汰最久未使用的主题。
+ * 缓存定期写入内存映射文件，进程重启后第一次读取时从文件加载，不需要等待服务器重新推送保留消息。
+ *
+ * @author aracy
+ * @version [1.0, 2017-04-24]
+ */
+class LastValueCache {
+
+    private static final String TAG = "LastValueCache";
+
+    private static final String FILE_NAME = "mqtt_last_values.bin";
+
+    private static final int MAGIC = 0x4D4C5643;
+
+    private static final int VERSION = 1;
+
+    /**
+     * 默认的缓存大小
+     */
+    static final int DEFAULT_MAX_BYTES = 1024 * 1024;
+
+    /**
+     * 每个条目除主题和内容之外的估算开销
+     */
+    private static final int ENTRY_OVERHEAD = 64;
+
+    /**
+     * 有修改之后延迟写文件的时间
+     */
+    private static final long SNAPSHOT_DELAY_MILLIS = 5000;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String[] EMPTY = new String[0];
+
+    private final File mFile;
+
+    private final Object mLock = new Object();
+
+    private final LinkedHashMap<String, MQTTMessage> mEntries = new LinkedHashMap<>(64, 0.75f, true);
+
+    /**
+     * 已经缓存的主题，与mEntries的键相同，在锁内修改。收到消息时不加锁判断主题是否需要缓存
+     */
+    private final Set<String> mKeys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private long mBytes;
+
+    private int mMaxBytes;
+
+    /**
+     * 内存紧张时缓存大小缩小的倍数，正常时为1
+     */
+    private int mShrinkDivisor = 1;
+
+    private volatile boolean mLoaded;
+
+    private boolean mDirty;
+
+    private boolean mSnapshotScheduled;
+
+    private volatile String[] mStateFilters = EMPTY;
+
+    private final ScheduledExecutorService mExecutor;
+
+    private final Runnable mSnapshotTask = new Runnable() {
+        @Override
+        public void run() {
+            snapshot();
+        }
+    };
+
+    /**
+     * @param dir      缓存文件的目录
+     * @param maxBytes 缓存大小
+     */
+    LastValueCache(File dir, int maxBytes) {
+        mFile = new File(dir, FILE_NAME);
+        mMaxBytes = maxBytes;
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "mqtt-last-value");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * 设置状态主题过滤器，匹配的主题即使不是保留消息也会缓存
+     *
+     * @param filters 主题过滤器
+     */
+    void setStateFilters(String[] filters) {
+        mStateFilters = filters == null ? EMPTY : filters;
+    }
+
+    /**
+     * 设置缓存大小
+     *
+     * @param maxBytes 缓存大小
+     */
+    void setMaxBytes(int maxBytes) {
+        synchronized (mLock) {
+            mMaxBytes = maxBytes;
+            ensureLoaded();
+            trimToSize();
+        }
+    }
+
+    /**
+     * 收到消息，保留消息、状态主题和已经缓存的主题的消息更新缓存
+     * <p>
+     * 服务器只在订阅时把保留消息标记为RETAIN，之后转发给已有订阅者的实时消息RETAIN=0，
+     * 所以已经缓存的主题收到任何消息都要更新，空内容表示删除
+     *
+     * @param topic   规范化的消息主题
+     * @param message 消息
+     */
+    void onMessage(Topic topic, MQTTMessage message) {
+        boolean tracked = message.isRetained() || isStateTopic(topic);
+        // 大部分消息的主题不需要缓存，在Paho的回调线程上不加锁直接返回；还没有加载时需要加锁加载之后再判断
+        if (!tracked && mLoaded && !mKeys.contains(message.getTopic())) {
+            return;
+        }
+        synchronized (mLock) {
+            ensureLoaded();
+            if (!tracked && !mEntries.containsKey(message.getTopic())) {
+                return;
+            }
+            if (message.getPayload().length == 0) {
+                // 空的保留消息表示删除保留消息
+                MQTTMessage removed = mEntries.remove(message.getTopic());
+                if (removed != null) {
+                    mKeys.remove(message.getTopic());
+                    mBytes -= sizeOf(removed);
+                    markDirty();
+                }
+                return;
+            }
+            MQTTMessage previous = mEntries.put(message.getTopic(), message);
+            mKeys.add(message.getTopic());
+            if (previous != null) {
+                mBytes -= sizeOf(previous);
+            }
+            mBytes += sizeOf(message);
+            trimToSize();
+            markDirty();
+        }
+    }
+
+    /**
+     * 获取主题的最新值
+     *
+     * @param topic 主题
+     * @return 最新的消息，没有缓存时返回null
+     */
+    MQTTMessage get(String topic) {
+        synchronized (mLock) {
+            ensureLoaded();
+            return mEntries.get(topic);
+        }
+    }
+
+    /**
+     * 内存紧张时暂时缩小缓存，恢复之前缓存上限保持缩小
+     * <p>
+     * 淘汰是永久的：下一次写文件时淘汰的主题也从缓存文件中删除，要等服务器重新推送保留消息
+     * (例如重新订阅)或状态主题的下一条消息才会再次缓存
+     *
+     * @param divisor 缩小的倍数
+     * @return 释放的字节数(估算)
+     */
+    long shrink(int divisor) {
+        synchronized (mLock) {
+            ensureLoaded();
+            mShrinkDivisor = Math.max(1, divisor);
+            long before = mBytes;
+            trimToSize();
+            return before - mBytes;
+        }
+    }
+
+    /**
+     * 内存恢复之后恢复缓存大小
+     */
+    void restore() {
+        synchronized (mLock) {
+            mShrinkDivisor = 1;
+        }
+    }
+
+    /**
+     * 立即把缓存写入文件
+     */
+    void flush() {
+        mExecutor.execute(mSnapshotTask);
+    }
+
+    private boolean isStateTopic(Topic topic) {
+        String[] filters = mStateFilters;
+        Boolean state = (Boolean) topic.getState(filters);
+        if (state == null) {
+            state = Boolean.FALSE;
+            for (String filter : filters) {
+                if (MqttUtil.isTopicMatched(filter, topic.getName())) {
+                    state = Boolean.TRUE;
+                    break;
+                }
+            }
+            topic.setState(filters, state);
+        }
+        return state;
+    }
+
+    private static long sizeOf(MQTTMessage message) {
+        return message.getTopic().length() * 2 + message.getPayload().length + ENTRY_OVERHEAD;
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, MQTTMessage>> iterator = mEntries.entrySet().iterator();
+        long maxBytes = mMaxBytes / mShrinkDivisor;
+        while (mBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, MQTTMessage> eldest = iterator.next();
+            iterator.remove();
+            mKeys.remove(eldest.getKey());
+            mBytes -= sizeOf(eldest.getValue());
+        }
+    }
+
+    private void markDirty() {
+        mDirty = true;
+        if (!mSnapshotScheduled) {
+            mSnapshotScheduled = true;
+            mExecutor.schedule(mSnapshotTask, SNAPSHOT_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 第一次访问时从文件加载
+     */
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        try {
+            load();
+        } finally {
+            // 键集合完整之后再让onMessage不加锁判断
+            mLoaded = true;
+        }
+    }
+
+    private void load() {
+        if (!mFile.exists()) {
+            return;
+        }
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mFile, "r");
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                LogUtil.e(TAG, "缓存文件格式错误");
+                return;
+            }
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                byte[] topic = new byte[buffer.getShort() & 0xFFFF];
+                buffer.get(topic);
+                int qos = buffer.get();
+                boolean retained = buffer.get() != 0;
+                byte[] payload = new byte[buffer.getInt()];
+                buffer.get(payload);
+                MQTTMessage message = new MQTTMessage(new String(topic, UTF_8), payload, qos, retained, false);
+                mEntries.put(message.getTopic(), message);
+                mKeys.add(message.getTopic());
+                mBytes += sizeOf(message);
+            }
+            trimToSize();
+            LogUtil.i(TAG, "加载缓存:" + mEntries.size());
+        } catch (IOException | RuntimeException e) {
+            // 文件损坏时丢弃已经读取的部分，等待服务器推送
+            LogUtil.e(TAG, "加载缓存失败", e);
+            mEntries.clear();
+            mKeys.clear();
+            mBytes = 0;
+        } finally {
+            closeQuietly(file);
+        }
+    }
+
+    /**
+     * 在后台线程把缓存写入临时文件，写完之后替换正式文件
+     */
+    private void snapshot() {
+        List<byte[]> topics;
+        List<MQTTMessage> messages;
+        synchronized (mLock) {
+            mSnapshotScheduled = false;
+            if (!mDirty) {
+                return;
+            }
+            mDirty = false;
+            topics = new ArrayList<>(mEntries.size());
+            messages = new ArrayList<>(mEntries.size());
+            for (Map.Entry<String, MQTTMessage> entry : mEntries.entrySet()) {
+                topics.add(entry.getKey().getBytes(UTF_8));
+                messages.add(entry.getValue());
+            }
+        }
+        long length = 12;
+        for (int i = 0; i < topics.size(); i++) {
+            length += 2 + topics.get(i).length + 2 + 4 + messages.get(i).getPayload().length;
+        }
+        File temp = new File(mFile.getPath() + ".tmp");
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(temp, "rw");
+            file.setLength(length);
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(topics.size());
+            for (int i = 0; i < topics.size(); i++) {
+                writeEntry(buffer, topics.get(i), messages.get(i));
+            }
+            buffer.force();
+            file.close();
+            file = null;
+            if (!temp.renameTo(mFile)) {
+                LogUtil.e(TAG, "替换缓存文件失败");
+            }
+        } catch (IOException e) {
+            LogUtil.e(TAG, "写入缓存失败", e);
+            synchronized (mLock) {
+                mDirty = true;
+            }
+        } finally {
+            closeQuietly(file);
+        }
+    }
+
+    private static void writeEntry(ByteBuffer buffer, byte[] topic, MQTTMessage message) {
+        buffer.putShort((short) topic.length);
+        buffer.put(topic);
+        buffer.put((byte) message.getQos());
+        buffer.put((byte) (message.isRetained() ? 1 : 0));
+        buffer.putInt(message.getPayload().length);
+        buffer.put(message.getPayload());
+    }
+
+    private static void closeQuietly(RandomAccessFile file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            file.close();
+        } catch (IOException e) {
+            LogUtil.e(TAG, "关闭缓存文件失败", e);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package android.aracy.support.mqtt;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 延迟直方图
+ * <p>
+ * 按2的幂划分区间，第i个区间记录[2^(i-1), 2^i)毫秒的次数，第0个区间记录小于1毫秒的次数。
+ * 记录时只做一次原子加，可以在任意线程调用
+ *
+ * @author aracy
+ * @version [1.0, 2017-04-30]
+ */
+public final class LatencyHistogram {
+
+    /**
+     * 区间数，最后一个区间包含所有更大的值
+     */
+    public static final int BUCKET_COUNT = 24;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+
+    LatencyHistogram() {
+    }
+
+    /**
+     * 记录一次延迟
+     *
+     * @param nanos 延迟(纳秒)
+     */
+    void record(long nanos) {
+        long millis = nanos / 1000000;
+        int bucket = millis <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(millis);
+        mBuckets.incrementAndGet(Math.min(bucket, BUCKET_COUNT - 1));
+    }
+
+    /**
+     * @return 记录的总次数
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += mBuckets.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * 获取区间的次数
+     *
+     * @param bucket 区间下标
+     * @return 次数
+     */
+    public long getBucketCount(int bucket) {
+        return mBuckets.get(bucket);
+    }
+
+    /**
+     * 获取区间的上限
+     *
+     * @param bucket 区间下标
+     * @return 上限(毫秒，不包含)
+     */
+    public static long getBucketUpperMillis(int bucket) {
+        return 1L << bucket;
+    }
+
+    /**
+     * 获取百分位延迟的估计值，取所在区间的上限
+     *
+     * @param percentile 百分位，0到100
+     * @return 延迟(毫秒)，没有记录时返回0
+     */
+    public long getPercentileMillis(double percentile) {
+        long[] counts = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = mBuckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= target && counts[i] > 0) {
+                return getBucketUpperMillis(i);
+            }
+        }
+        return getBucketUpperMillis(BUCKET_COUNT - 1);
+    }
+
+    @Override
+    public String toString() {
+        return "{count=" + getCount() + ", p50=" + getPercentileMillis(50) + "ms, p99="
+                + getPercentileMillis(99) + "ms}";
+    }
+}
@@ -0,0 +1,74 @@
+package android.aracy.support.mqtt;
+
+import android.text.TextUtils;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * {@link IMQTTService}的实现，由{@link AsyncMQTTService#onBind}返回
+ *
+ * @author aracy
+ * @version [1.0, 2017-05-12]
+ */
+class MQTTBinder extends IMQTTService.Stub {
+
+    private final AsyncMQTTService mService;
+
+    /**
+     * onBind在主线程调用，调度器在第一次发布时从这里取得，在Binder线程创建
+     */
+    private final MQTTManager mManager;
+
+    private final RemoteMessageDispatcher mDispatcher;
+
+    MQTTBinder(AsyncMQTTService service, MQTTManager manager, RemoteMessageDispatcher dispatcher) {
+        mService = service;
+        mManager = manager;
+        mDispatcher = dispatcher;
+    }
+
+    @Override
+    public void publish(MessageBatch batch, String lane, long ttlMillis) {
+        if (batch == null) {
+            return;
+        }
+        OutboundScheduler scheduler = mManager.getOutboundScheduler();
+        for (MQTTMessage message : batch.getMessages()) {
+            MqttMessage mqttMessage = new MqttMessage(message.getPayload());
+            mqttMessage.setQos(message.getQos());
+            mqttMessage.setRetained(message.isRetained());
+            scheduler.submit(new OutboundMessage(message.getTopic(), mqttMessage, lane), ttlMillis);
+        }
+    }
+
+    @Override
+    public void subscribe(String[] topics, int[] qoses) {
+        if (topics == null || topics.length == 0) {
+            return;
+        }
+        mService.addSubscriptions(topics, qoses);
+    }
+
+    @Override
+    public void unsubscribe(String[] topics) {
+        if (topics == null || topics.length == 0) {
+            return;
+        }
+        mService.removeSubscriptions(topics);
+    }
+
+    @Override
+    public void registerCallback(String filter, IMQTTCallback callback) {
+        if (TextUtils.isEmpty(filter) || callback == null) {
+            throw new IllegalArgumentException("filter and callback must not be null");
+        }
+        mDispatcher.register(filter, callback);
+    }
+
+    @Override
+    public void unregisterCallback(IMQTTCallback callback) {
+        if (callback != null) {
+            mDispatcher.unregister(callback);
+        }
+    }
+}
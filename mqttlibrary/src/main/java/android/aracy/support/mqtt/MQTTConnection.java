@@ -13,6 +13,14 @@ import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLSocketFactory;
+
 
 /**
  * MQTT的实例连接类
@@ -23,11 +31,15 @@ class MQTTConnection {
 
     private static final String TAG = "MQTTConnection";
 
+    private static final String SSL_SCHEME = "ssl://";
+
+    private static final String TCP_SCHEME = "tcp://";
+
     private final static boolean CLEAN_START = false; // 连接服务器前是否清空上一次连接的订阅主题和没有接收的消息
 
     private final static short KEEP_ALIVE = 60;// 低耗网络，但是又需要及时获取数据，心跳30s
 
-    private MqttAsyncClient mClient;
+    private volatile MqttAsyncClient mClient;
 
     private MqttConnectOptions mOptions;
 
@@ -35,6 +47,69 @@ class MQTTConnection {
 
     private AlarmPingSender pingSender;
 
+    private final String mClientId;
+
+    private final MqttCallback mCallback;
+
+    private final Service mService;
+
+    /**
+     * 并行连接时相邻两个地址的启动间隔，0表示按顺序连接
+     */
+    private long mRaceStaggerMillis;
+
+    private MQTTMetrics mMetrics;
+
+    /**
+     * 正在进行的并行连接
+     */
+    private ConnectRace mRace;
+
+    private final String mServerURI;
+
+    /**
+     * 配置的服务器地址列表，每次连接前按延迟排序
+     */
+    private String[] mServerURIs;
+
+    /**
+     * 服务器延迟排名，不需要排序时为空
+     */
+    private volatile BrokerRanking mRanking;
+
+    /**
+     * 当前连上的服务器地址
+     */
+    private volatile String mCurrentServerURI;
+
+    /**
+     * 等待发送的订阅修改中表示取消订阅的值
+     */
+    private static final int UNSUBSCRIBE = -1;
+
+    /**
+     * 等待发送的订阅修改，同一主题只保留最后一次请求。值为订阅质量或{@link #UNSUBSCRIBE}，
+     * 正在进行的分批订阅和取消订阅都结束后一起发出
+     */
+    private final LinkedHashMap<String, Integer> mPendingSubscriptions = new LinkedHashMap<>();
+
+    private final SubscriptionBatcher.Callback mSubscriptionCallback = new SubscriptionBatcher.Callback() {
+        @Override
+        public void onFinished(SubscriptionBatcher batcher) {
+            onSubscriptionFinished(batcher);
+        }
+    };
+
+    /**
+     * 正在进行的分批订阅
+     */
+    private SubscriptionBatcher mSubscription;
+
+    /**
+     * 正在进行的分批取消订阅
+     */
+    private SubscriptionBatcher mUnsubscription;
+
     public MQTTConnection(String serverURI, String clientId, MqttCallback mqttCallback)
             throws MqttException {
         mOptions = new MqttConnectOptions();
@@ -43,6 +118,10 @@ class MQTTConnection {
         mOptions.setKeepAliveInterval(KEEP_ALIVE);
         // mOptions.setWill("zeropartner/mqttLost", clientId.getBytes(), 0, false);
 
+        mServerURI = serverURI;
+        mClientId = clientId;
+        mCallback = mqttCallback;
+        mService = null;
         mPersistence = new MemoryPersistence();
         mClient = new MqttAsyncClient(serverURI, clientId, mPersistence);
         mClient.setCallback(mqttCallback);
@@ -56,6 +135,10 @@ class MQTTConnection {
         mOptions.setKeepAliveInterval(KEEP_ALIVE);
         // mOptions.setWill("zeropartner/mqttLost", clientId.getBytes(), 0, false);
 
+        mServerURI = serverURI;
+        mClientId = clientId;
+        mCallback = mqttCallback;
+        mService = service;
         pingSender = new AlarmPingSender(service);
         mPersistence = new MemoryPersistence();
         mClient = new MqttAsyncClient(serverURI, clientId, mPersistence, pingSender);
@@ -66,43 +149,274 @@ class MQTTConnection {
      * 连接MQTT
      *
      * @param actionListener mqtt连接的监听事件
+     * @return 是否发出了连接，没有发出时监听事件不会回调
      * @see [类、类#方法、类#成员]
      */
-    public synchronized void connect(IMqttActionListener actionListener) {
+    public synchronized boolean connect(IMqttActionListener actionListener) {
         if (mClient == null) {
             LogUtil.i(TAG, "MqttClient为空");
-            return;
+            return false;
         }
         if (mClient.isConnected()) {
             LogUtil.i(TAG, "Mqtt已经正常连接");
-            return;
+            return false;
+        }
+        if (mRace != null && !mRace.isDone()) {
+            LogUtil.e(TAG, "Mqtt正在连接");
+            return false;
+        }
+        if (mRanking != null && mServerURIs != null) {
+            mOptions.setServerURIs(mRanking.rank(mServerURIs));
+        }
+        if (shouldRace()) {
+            mRace = new ConnectRace(mOptions.getServerURIs(), mRaceStaggerMillis, new RaceFactory(), mCallback,
+                    actionListener, mMetrics, mRanking);
+            mRace.start();
+            return true;
+        }
+        if (mRanking != null) {
+            String[] serverURIs = mOptions.getServerURIs();
+            actionListener = new RankingListener(actionListener,
+                    serverURIs != null ? serverURIs : new String[]{mServerURI});
         }
         try {
             mClient.connect(mOptions, null, actionListener);
+            return true;
         } catch (MqttException e) {
             switch (e.getReasonCode()) {
                 case MqttException.REASON_CODE_CLIENT_CONNECTED:
                     LogUtil.e(TAG, "Mqtt已经正常连接");
-                    return;
+                    return false;
                 case MqttException.REASON_CODE_CLIENT_ALREADY_DISCONNECTED:
                     LogUtil.e(TAG, "Mqtt已经手动断开连接");
-                    return;
+                    return false;
                 case MqttException.REASON_CODE_CLIENT_DISCONNECTING:
                     LogUtil.e(TAG, "Mqtt正在断开连接");
-                    return;
+                    return false;
                 case MqttException.REASON_CODE_CONNECT_IN_PROGRESS:
                     LogUtil.e(TAG, "Mqtt正在连接");
-                    return;
+                    return false;
                 case MqttException.REASON_CODE_CLIENT_CLOSED:
                     LogUtil.e(TAG, "Mqtt已经关闭");
-                    return;
+                    return false;
                 default:
                     break;
             }
             e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * 设置并行连接，配置了多个服务器地址时生效
+     *
+     * @param staggerMillis 相邻两个地址的启动间隔，小于等于0表示按顺序连接
+     * @param metrics       运行统计
+     */
+    public synchronized void setConnectRace(long staggerMillis, MQTTMetrics metrics) {
+        mRaceStaggerMillis = Math.max(0, staggerMillis);
+        mMetrics = metrics;
+    }
+
+    /**
+     * 设置服务器延迟排名，每次连接前按排名排序服务器地址，并记录连接时间和PINGRESP往返时间
+     *
+     * @param ranking 服务器延迟排名
+     */
+    public synchronized void setBrokerRanking(BrokerRanking ranking) {
+        mRanking = ranking;
+        if (pingSender != null) {
+            pingSender.setRttListener(new PingListener(null));
+        }
+    }
+
+    /**
+     * 设置ssl://连接使用的SocketFactory，重新连接和并行连接都使用同一个，共用TLS会话缓存
+     * <p>
+     * Paho不允许tcp://地址使用SSLSocketFactory，服务器地址不全是ssl://时不设置
+     *
+     * @param factory 共用会话缓存的SocketFactory
+     * @return 是否设置
+     */
+    public synchronized boolean setSSLSocketFactory(SSLSocketFactory factory) {
+        String[] serverURIs = mServerURIs != null ? mServerURIs : new String[]{mServerURI};
+        for (String serverURI : serverURIs) {
+            if (!serverURI.startsWith(SSL_SCHEME)) {
+                return false;
+            }
+        }
+        mOptions.setSocketFactory(factory);
+        return true;
+    }
+
+    /**
+     * @return 当前连上的服务器地址，还没有连上时为空
+     */
+    public String getCurrentServerURI() {
+        return mCurrentServerURI;
+    }
+
+    /**
+     * 是否并行连接
+     * <p>
+     * 每个候选地址使用新的客户端，旧客户端中还没有完成的QoS1/2消息会随旧客户端丢失，
+     * 这种情况下仍然由Paho按顺序连接，在原来的客户端中完成这些消息
+     */
+    private boolean shouldRace() {
+        String[] serverURIs = mOptions.getServerURIs();
+        if (mRaceStaggerMillis <= 0 || mService == null || serverURIs == null || serverURIs.length < 2) {
+            return false;
+        }
+        if (mOptions.getSSLProperties() != null && !(mOptions.getSocketFactory() instanceof SSLSocketFactory)) {
+            // 候选连接自己完成TLS握手，只能使用设置好的SSLSocketFactory，SSL属性只有Paho能解析
+            return false;
+        }
+        return mClient.getPendingDeliveryTokens().length == 0;
+    }
+
+    /**
+     * 胜出的连接替换原来的客户端
+     */
+    private synchronized void adopt(ConnectRace.Candidate winner) {
+        cancelSubscriptions();
+        MqttAsyncClient old = mClient;
+        mClient = winner.client;
+        pingSender = winner.pingSender;
+        mCurrentServerURI = winner.serverURI;
+        try {
+            old.close();
+        } catch (MqttException e) {
+            LogUtil.e(TAG, "关闭旧的客户端失败:" + e.getMessage());
+        }
+    }
+
+    /**
+     * 为每个候选地址创建客户端
+     */
+    private class RaceFactory implements ConnectRace.Factory {
+
+        @Override
+        public ConnectRace.Candidate create(String serverURI) throws MqttException {
+            AlarmPingSender sender = new AlarmPingSender(mService);
+            if (mRanking != null) {
+                sender.setRttListener(new PingListener(serverURI));
+            }
+            String clientURI = serverURI;
+            SSLSocketFactory sslFactory = null;
+            if (serverURI.startsWith(SSL_SCHEME)) {
+                // TLS握手在候选socket中完成，Paho只看到建立好的连接
+                SocketFactory factory = mOptions.getSocketFactory();
+                sslFactory = factory instanceof SSLSocketFactory ? (SSLSocketFactory) factory
+                        : (SSLSocketFactory) SSLSocketFactory.getDefault();
+                clientURI = TCP_SCHEME + serverURI.substring(SSL_SCHEME.length());
+            }
+            MqttAsyncClient client = new MqttAsyncClient(clientURI, mClientId, new MemoryPersistence(), sender);
+            return new ConnectRace.Candidate(serverURI, client, copyOptions(), sender, sslFactory);
+        }
+
+        @Override
+        public void onWinner(ConnectRace.Candidate winner) {
+            adopt(winner);
+        }
+    }
+
+    /**
+     * Paho按顺序连接时记录每个地址的结果
+     * <p>
+     * 只能得到总时间：连上的地址之前的地址都已经失败，连上的是第一个地址时才记录连接时间
+     */
+    private class RankingListener implements IMqttActionListener {
+
+        private final IMqttActionListener mDelegate;
+
+        private final String[] mCandidates;
+
+        private final long mStartNanos = System.nanoTime();
+
+        RankingListener(IMqttActionListener delegate, String[] candidates) {
+            mDelegate = delegate;
+            mCandidates = candidates;
+        }
+
+        @Override
+        public void onSuccess(IMqttToken asyncActionToken) {
+            AlarmPingSender sender = pingSender;
+            int index = sender != null ? sender.getConnectedServerIndex() : 0;
+            if (index < 0 || index >= mCandidates.length) {
+                index = 0;
+            }
+            for (int i = 0; i < index; i++) {
+                mRanking.recordFailure(mCandidates[i]);
+            }
+            if (index == 0) {
+                mRanking.recordConnect(mCandidates[0],
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mStartNanos));
+            }
+            mCurrentServerURI = mCandidates[index];
+            mDelegate.onSuccess(asyncActionToken);
+        }
+
+        @Override
+        public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+            for (String candidate : mCandidates) {
+                mRanking.recordFailure(candidate);
+            }
+            mDelegate.onFailure(asyncActionToken, exception);
+        }
+    }
+
+    /**
+     * 记录PINGRESP往返时间
+     */
+    private class PingListener implements AlarmPingSender.RttListener {
+
+        /**
+         * 候选连接的地址，为空时使用当前连上的地址
+         */
+        private final String mServerURI;
+
+        PingListener(String serverURI) {
+            mServerURI = serverURI;
+        }
+
+        @Override
+        public void onPingRtt(long rttMillis) {
+            String serverURI = mServerURI != null ? mServerURI : mCurrentServerURI;
+            BrokerRanking ranking = mRanking;
+            if (serverURI != null && ranking != null) {
+                ranking.recordPing(serverURI, rttMillis);
+            }
         }
     }
 
+    /**
+     * 复制连接参数，不带服务器地址列表，候选客户端只连接自己的地址
+     */
+    private MqttConnectOptions copyOptions() {
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setCleanSession(mOptions.isCleanSession());
+        options.setConnectionTimeout(mOptions.getConnectionTimeout());
+        options.setKeepAliveInterval(mOptions.getKeepAliveInterval());
+        options.setMqttVersion(mOptions.getMqttVersion());
+        if (mOptions.getUserName() != null) {
+            options.setUserName(mOptions.getUserName());
+        }
+        if (mOptions.getPassword() != null) {
+            options.setPassword(mOptions.getPassword());
+        }
+        if (mOptions.getSocketFactory() != null) {
+            options.setSocketFactory(mOptions.getSocketFactory());
+        }
+        if (mOptions.getSSLProperties() != null) {
+            options.setSSLProperties(mOptions.getSSLProperties());
+        }
+        if (mOptions.getWillDestination() != null) {
+            MqttMessage will = mOptions.getWillMessage();
+            options.setWill(mOptions.getWillDestination(), will.getPayload(), will.getQos(), will.isRetained());
+        }
+        return options;
+    }
+
     /**
      * 断开MQTT连接
      *
@@ -118,6 +432,8 @@ class MQTTConnection {
             LogUtil.i(TAG, "Mqtt已经断开连接");
             return;
         }
+        cancelSubscriptions();
+        flushRanking();
         try {
             mClient.disconnect(null, actionListener);
         } catch (MqttException e) {
@@ -125,6 +441,41 @@ class MQTTConnection {
         }
     }
 
+    /**
+     * 断开当前连接后重新连接，用于网络切换时把连接迁移到新的默认网络
+     *
+     * @param actionListener mqtt连接的监听事件
+     * @see [类、类#方法、类#成员]
+     */
+    public void reconnect(final IMqttActionListener actionListener) {
+        if (mClient == null) {
+            LogUtil.i(TAG, "MqttClient为空");
+            return;
+        }
+        if (!mClient.isConnected()) {
+            connect(actionListener);
+            return;
+        }
+        cancelSubscriptions();
+        try {
+            // 旧网络上的连接可能已经不可用，不等待未完成的消息
+            mClient.disconnect(0, null, new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    connect(actionListener);
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    connect(actionListener);
+                }
+            });
+        } catch (MqttException e) {
+            e.printStackTrace();
+            connect(actionListener);
+        }
+    }
+
     /**
      * 关闭MQTT
      *
@@ -136,9 +487,12 @@ class MQTTConnection {
             return;
         }
         try {
+            cancelRace();
             if (pingSender != null) {
                 pingSender.stop();
             }
+            cancelSubscriptions();
+            flushRanking();
             mClient.close();
         } catch (MqttException e) {
             e.printStackTrace();
@@ -146,13 +500,25 @@ class MQTTConnection {
     }
 
     /**
-     * 订阅主题
+     * 保存服务器排名中还没有保存的心跳测量结果
+     */
+    private void flushRanking() {
+        BrokerRanking ranking = mRanking;
+        if (ranking != null) {
+            ranking.flush();
+        }
+    }
+
+    /**
+     * 订阅主题，主题较多时分批发送，失败的主题会单独重试
+     * <p>
+     * 上一次的分批订阅或取消订阅还没有结束时先排队，结束后再发送，不会丢弃还没发出的批次
      *
      * @param topics
      * @param qos
      * @see [类、类#方法、类#成员]
      */
-    public void subscribe(String[] topics, int[] qos) {
+    public synchronized void subscribe(String[] topics, int[] qos) {
         if (mClient == null || !mClient.isConnected()) {
             LogUtil.e(TAG, "主题订阅失败，原因：无可用的MQTT连接");
             return;
@@ -163,25 +529,19 @@ class MQTTConnection {
         if (qos == null || topics.length != qos.length) {
             qos = new int[topics.length];
         }
-        try {
-            mClient.subscribe(topics, qos, null, new IMqttActionListener() {
-
-                @Override
-                public void onSuccess(IMqttToken arg0) {
-                    LogUtil.i(TAG, "订阅成功");
-                }
-
-                @Override
-                public void onFailure(IMqttToken arg0, Throwable arg1) {
-                    LogUtil.e(TAG, "订阅失败");
-                }
-            });
-        } catch (MqttException e) {
-            e.printStackTrace();
+        for (int i = 0; i < topics.length; i++) {
+            mPendingSubscriptions.put(topics[i], qos[i]);
         }
+        startSubscriptions();
     }
 
-    public void unSubscribe(String[] topics) {
+    /**
+     * 取消订阅主题，主题较多时分批发送，与订阅一样排队
+     *
+     * @param topics
+     * @see [类、类#方法、类#成员]
+     */
+    public synchronized void unSubscribe(String[] topics) {
         if (mClient == null || !mClient.isConnected()) {
             LogUtil.e(TAG, "主题取消失败，原因：无可用的MQTT连接");
             return;
@@ -189,10 +549,89 @@ class MQTTConnection {
         if (topics == null || topics.length == 0) {
             return;
         }
-        try {
-            mClient.unsubscribe(topics, null, null);
-        } catch (MqttException e) {
-            e.printStackTrace();
+        for (String topic : topics) {
+            mPendingSubscriptions.put(topic, UNSUBSCRIBE);
+        }
+        startSubscriptions();
+    }
+
+    /**
+     * 没有正在进行的分批订阅和取消订阅时，把排队的修改按订阅和取消订阅分成两批发出。
+     * 同一主题只会出现在其中一批，两批可以同时进行
+     */
+    private synchronized void startSubscriptions() {
+        if (mSubscription != null || mUnsubscription != null || mPendingSubscriptions.isEmpty()) {
+            return;
+        }
+        if (mClient == null || !mClient.isConnected()) {
+            return;
+        }
+        ArrayList<String> subscribeTopics = new ArrayList<>();
+        ArrayList<Integer> subscribeQoses = new ArrayList<>();
+        ArrayList<String> unsubscribeTopics = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : mPendingSubscriptions.entrySet()) {
+            if (entry.getValue() == UNSUBSCRIBE) {
+                unsubscribeTopics.add(entry.getKey());
+            } else {
+                subscribeTopics.add(entry.getKey());
+                subscribeQoses.add(entry.getValue());
+            }
+        }
+        mPendingSubscriptions.clear();
+        if (!subscribeTopics.isEmpty()) {
+            int[] qoses = new int[subscribeQoses.size()];
+            for (int i = 0; i < qoses.length; i++) {
+                qoses[i] = subscribeQoses.get(i);
+            }
+            mSubscription = new SubscriptionBatcher(mClient, true,
+                    subscribeTopics.toArray(new String[subscribeTopics.size()]), qoses, mSubscriptionCallback);
+        }
+        if (!unsubscribeTopics.isEmpty()) {
+            mUnsubscription = new SubscriptionBatcher(mClient, false,
+                    unsubscribeTopics.toArray(new String[unsubscribeTopics.size()]), null, mSubscriptionCallback);
+        }
+        // 两批都赋值后再启动，一批同步结束时另一批还在进行，回调不会提前取出新的修改
+        SubscriptionBatcher subscription = mSubscription;
+        SubscriptionBatcher unsubscription = mUnsubscription;
+        if (subscription != null) {
+            subscription.start();
+        }
+        if (unsubscription != null) {
+            unsubscription.start();
+        }
+    }
+
+    private synchronized void onSubscriptionFinished(SubscriptionBatcher batcher) {
+        if (batcher == mSubscription) {
+            mSubscription = null;
+        } else if (batcher == mUnsubscription) {
+            mUnsubscription = null;
+        } else {
+            return;
+        }
+        startSubscriptions();
+    }
+
+    private synchronized void cancelRace() {
+        if (mRace != null) {
+            mRace.cancel();
+            mRace = null;
+        }
+    }
+
+    /**
+     * 停止正在进行的分批订阅和取消订阅，丢弃排队的修改。只在断开连接或更换客户端时调用，
+     * 重新连接后由服务重新订阅全部主题
+     */
+    private synchronized void cancelSubscriptions() {
+        mPendingSubscriptions.clear();
+        if (mSubscription != null) {
+            mSubscription.cancel();
+            mSubscription = null;
+        }
+        if (mUnsubscription != null) {
+            mUnsubscription.cancel();
+            mUnsubscription = null;
         }
     }
 
@@ -215,6 +654,23 @@ class MQTTConnection {
         }
     }
 
+    /**
+     * 推送Mqtt消息，由调用方处理异常
+     *
+     * @param topic    推送主题
+     * @param message  推送消息
+     * @param listener 推送完成的监听事件，QoS0在写出后回调，QoS1/2在收到服务器确认后回调
+     * @throws MqttException 没有可用的连接或Paho拒绝发送
+     * @see [类、类#方法、类#成员]
+     */
+    public void publishMqttMessage(String topic, MqttMessage message, IMqttActionListener listener)
+            throws MqttException {
+        if (mClient == null) {
+            throw new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+        }
+        mClient.publish(topic, message, null, listener);
+    }
+
     /**
      * 判断Mqtt是否已经连接
      *
@@ -323,6 +779,7 @@ class MQTTConnection {
         if (serverURIs == null || serverURIs.length == 0) {
             return;
         }
+        mServerURIs = serverURIs.clone();
         mOptions.setServerURIs(serverURIs);
     }
 
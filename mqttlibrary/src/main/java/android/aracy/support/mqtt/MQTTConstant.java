@@ -17,10 +17,24 @@ public class MQTTConstant {
 
     static final String BROADCAST_PUBLISH_RETAIN = "publishRetainBroadcast";
 
+    static final String BROADCAST_PUBLISH_LANE = "publishLaneBroadcast";
+
+    static final String BROADCAST_PUBLISH_TTL = "publishTtlBroadcast";
+
     public static final String BROADCAST_RECEIVER_TOPIC = "receiveTopic";
 
     public static final String BROADCAST_RECEIVER_MESSAGE = "receiveMessage";
 
+    /**
+     * 批量广播的主题数组，与{@link #BROADCAST_RECEIVER_MESSAGES}一一对应
+     */
+    public static final String BROADCAST_RECEIVER_TOPICS = "receiveTopics";
+
+    /**
+     * 批量广播的消息数组
+     */
+    public static final String BROADCAST_RECEIVER_MESSAGES = "receiveMessages";
+
 
     // 广播ACTION
 
@@ -31,6 +45,11 @@ public class MQTTConstant {
 
     public static final String ACTION_MESSAGE_RECEIVE = "com.aracy.support.MessageReceived";
 
+    /**
+     * 批量接收消息的Action
+     */
+    public static final String ACTION_MESSAGE_BATCH_RECEIVE = "com.aracy.support.MessageBatchReceived";
+
     public static final String ACTION_CONNECT_LOST = "com.aracy.support.connect.lost";
 
     public static final String ACTION_CONNECT_SUCCESS = "com.aracy.support.connect.success";
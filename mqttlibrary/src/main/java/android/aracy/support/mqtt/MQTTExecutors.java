@@ -0,0 +1,58 @@
+package android.aracy.support.mqtt;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 消息监听器可选的回调线程
+ *
+ * @author aracy
+ * @version [1.0, 2017-04-14]
+ */
+public final class MQTTExecutors {
+
+    /**
+     * 直接在Paho的回调线程回调，延迟最低，但监听器不能阻塞
+     */
+    public static final Executor CALLBACK_THREAD = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    /**
+     * 在主线程回调
+     */
+    public static final Executor MAIN_THREAD = new Executor() {
+
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(Runnable command) {
+            mHandler.post(command);
+        }
+    };
+
+    private static ExecutorService sPool;
+
+    private MQTTExecutors() {
+        throw new AssertionError("this is util class");
+    }
+
+    /**
+     * 获取共享的线程池
+     *
+     * @return 线程池
+     */
+    public static synchronized Executor pool() {
+        if (sPool == null) {
+            sPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 2);
+        }
+        return sPool;
+    }
+}
@@ -5,6 +5,20 @@ import android.content.Intent;
 import android.support.v4.content.LocalBroadcastManager;
 import android.text.TextUtils;
 
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.reactivestreams.Publisher;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
 /**
  * MQTT消息管理器
  *
@@ -17,7 +31,44 @@ public class MQTTManager {
 
     private static MQTTManager sMQTTManager;
 
+    private static final int DEFAULT_PUBLISHER_CAPACITY = 128; //消息流默认的缓存大小
+
+    private final MQTTMetrics mMetrics = new MQTTMetrics(); //运行统计
+
+    private final MessageListenerRegistry mListenerRegistry = new MessageListenerRegistry(); //消息监听器
+
+    private final PayloadPool mPayloadPool = new PayloadPool(mMetrics); //发布内容缓冲池
+
+    private volatile WakeLockTracker mWakeLockTracker; //唤醒锁管理，第一次使用时创建
+
+    private final TopicTable mTopicTable = new TopicTable(mMetrics, TopicTable.DEFAULT_MAX_TOPICS); //主题规范化表
+
+    private final PublishRateLimiter mRateLimiter = new PublishRateLimiter(mTopicTable); //发布速率限制
+
+    private volatile OutboundScheduler mOutboundScheduler; //发布消息的调度器，第一次使用时创建
+
+    private volatile LastValueCache mLastValueCache; //主题最新值缓存，第一次使用时创建
+
+    private final MessageTracer mTracer = new MessageTracer(); //消息跟踪
+
+    private volatile boolean mTracerLoaded; //是否已经读取采样率
+
+    private volatile boolean mRateLimitsLoaded; //是否已经读取速率限制
+
+    private volatile boolean mDeltaRulesLoaded; //是否已经读取差量编码的主题
+
+    private volatile MemoryGovernor mMemoryGovernor; //内存管理，第一次使用时创建
+
+    private final DeltaEncoder mDeltaEncoder = new DeltaEncoder(mTopicTable, mMetrics); //差量编码
+
+    private final DeltaDecoder mDeltaDecoder = new DeltaDecoder(mMetrics); //差量解码
+
+    private volatile BrokerRanking mBrokerRanking; //服务器延迟排名，第一次使用时创建
+
+    private TlsSocketFactory mTlsSocketFactory; //ssl://连接共用的SocketFactory
+
     private MQTTManager(Context context) {
+        // 在主线程调用，其余组件和它们的配置在第一次使用时创建和读取，Service在mqtt-startup线程中使用它们
         this.mContext = context.getApplicationContext();
     }
 
@@ -27,7 +78,7 @@ public class MQTTManager {
      * @param context 上下文环境
      * @return 管理器
      */
-    public static MQTTManager getInstance(Context context) {
+    public static synchronized MQTTManager getInstance(Context context) {
         if (sMQTTManager == null) {
             sMQTTManager = new MQTTManager(context);
         }
@@ -64,6 +115,147 @@ public class MQTTManager {
         return this;
     }
 
+    /**
+     * 设置批量处理消息的Class，与{@link #setRunnableClass(Class)}可以同时使用
+     * <p>
+     * 每次最多交给处理者maxBatchSize条消息，第一条消息到达之后最多等待maxDelayMillis。
+     * Service下一次启动时生效
+     *
+     * @param handlerClass   批量处理消息的Class，需要有(Context)构造方法，为空时取消批量处理
+     * @param maxBatchSize   每批最多的消息数
+     * @param maxDelayMillis 收到第一条消息之后最多等待的时间
+     * @return 管理器
+     */
+    public MQTTManager setBatchHandler(Class<? extends BaseBatchHandler> handlerClass, int maxBatchSize,
+                                       long maxDelayMillis) {
+        if (maxBatchSize <= 0 || maxDelayMillis < 0) {
+            throw new IllegalArgumentException("maxBatchSize must be positive and maxDelayMillis not negative");
+        }
+        MqttUtil.setBatchHandler(mContext, handlerClass, maxBatchSize, maxDelayMillis);
+        return this;
+    }
+
+    /**
+     * 设置是否开启收到消息的预写日志
+     * <p>
+     * 开启后交给BaseRunnable和批量处理者的消息在确认给服务器之前先写入本地日志，处理完成后标记完成。
+     * 进程在处理完成之前被杀掉时，Service下次启动会重新分发这些消息，重新分发的消息{@link MQTTMessage#isDuplicate()}为true。
+     * Service下一次启动时生效
+     *
+     * @param enabled 是否开启
+     * @return 管理器
+     */
+    public MQTTManager setInboundJournal(boolean enabled) {
+        MqttUtil.setInboundJournal(mContext, enabled);
+        return this;
+    }
+
+    /**
+     * 设置BaseRunnable的执行方式，Service下一次启动时生效
+     *
+     * @param mode 执行方式，处理者以计算为主时使用{@link DispatchMode#WORK_STEALING}
+     * @return 管理器
+     */
+    public MQTTManager setDispatchMode(DispatchMode mode) {
+        if (mode == null) {
+            throw new IllegalArgumentException("mode is null");
+        }
+        MqttUtil.setDispatchMode(mContext, mode);
+        return this;
+    }
+
+    /**
+     * 设置消息跟踪
+     * <p>
+     * 被采样的收到的消息记录到达、入队、出队、处理开始和处理结束的时间，发布的消息记录提交、交给Paho和确认的时间。
+     * 记录保存在固定大小的环形缓冲中，通过{@link #dumpTrace(File)}导出。立即生效
+     *
+     * @param sampleEvery 每隔多少条消息跟踪一条，1表示全部跟踪，0表示关闭
+     * @return 管理器
+     */
+    public MQTTManager setTracing(int sampleEvery) {
+        if (sampleEvery < 0) {
+            throw new IllegalArgumentException("sampleEvery must not be negative");
+        }
+        MqttUtil.setTraceSampleEvery(mContext, sampleEvery);
+        synchronized (this) {
+            mTracer.setSampleEvery(sampleEvery);
+            mTracerLoaded = true;
+        }
+        return this;
+    }
+
+    /**
+     * 设置内存紧张时的释放策略
+     * <p>
+     * Service收到onTrimMemory/onLowMemory时，执行压力等级达到设置值的动作。
+     * 缩小缓存和队列、暂停通道和主题都是暂时的，一分钟内没有新的内存紧张通知时恢复，
+     * 但已经淘汰的缓存和丢弃的消息不会恢复。
+     * 默认只清理缓冲池、空闲线程和最新值缓存，会丢失或延迟消息的动作需要在这里开启
+     *
+     * @param action   释放动作
+     * @param pressure 执行动作的最低压力等级，为空时不执行这个动作
+     * @return 管理器
+     */
+    public MQTTManager setMemoryPolicy(MemoryAction action, MemoryPressure pressure) {
+        if (action == null) {
+            throw new IllegalArgumentException("action is null");
+        }
+        MqttUtil.setMemoryPolicy(mContext, action, pressure);
+        getMemoryGovernor().setPolicy(action, pressure);
+        return this;
+    }
+
+    /**
+     * 设置内存紧张时可以暂停的低优先级通道和主题
+     *
+     * @param lanePriority 优先级低于这个值的发布通道为低优先级通道，默认为0
+     * @param topics       低优先级的订阅主题，必须是{@link #setTopic(String[], int[])}中的主题
+     * @return 管理器
+     * @see MemoryAction#PAUSE_LOW_PRIORITY_LANES
+     * @see MemoryAction#PAUSE_LOW_PRIORITY_TOPICS
+     */
+    public MQTTManager setLowPriority(int lanePriority, String[] topics) {
+        MqttUtil.setLowPriority(mContext, lanePriority, topics);
+        getMemoryGovernor().setLowPriority(lanePriority, topics);
+        return this;
+    }
+
+    /**
+     * 获取最近一次内存释放的结果
+     *
+     * @return 释放结果，还没有收到过内存紧张通知时返回null
+     */
+    public MemoryShedReport getLastMemoryShedReport() {
+        return getMemoryGovernor().getLastReport();
+    }
+
+    /**
+     * 把最近的跟踪记录导出为Chrome trace-event JSON，用chrome://tracing或Perfetto打开
+     *
+     * @param file 导出的文件
+     * @return 是否导出成功
+     */
+    public boolean dumpTrace(File file) {
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+            getTracer().dump(writer);
+            return true;
+        } catch (IOException e) {
+            LogUtil.e("MQTTManager", "导出跟踪记录失败", e);
+            return false;
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    LogUtil.e("MQTTManager", "关闭跟踪文件失败", e);
+                }
+            }
+        }
+    }
+
     /**
      * 设置集群URI数组
      *
@@ -75,6 +267,83 @@ public class MQTTManager {
         return this;
     }
 
+    /**
+     * 设置并行连接，配置了多个服务器地址时生效
+     * <p>
+     * 按地址顺序每隔staggerMillis启动一个连接，前一个失败时立即启动下一个，第一个收到CONNACK的连接胜出，
+     * 其余的连接被取消，排在前面的服务器不可用时不需要等待它的连接超时。
+     * 间隔不宜太短：同一集群的多个节点都连上时，后连上的会顶掉先连上的会话。Service下一次启动时生效
+     *
+     * @param staggerMillis 相邻两个地址的启动间隔(毫秒)，小于等于0表示由Paho按顺序连接
+     * @return 管理器
+     */
+    public MQTTManager setConnectRace(long staggerMillis) {
+        MqttUtil.setConnectRaceStagger(mContext, staggerMillis);
+        return this;
+    }
+
+    /**
+     * 设置是否在当前服务器延迟明显变差时迁移
+     * <p>
+     * 每次连接都按测量的延迟给服务器地址排序。开启迁移后，当前服务器的往返时间超过最快地址的两倍且相差200ms以上时，
+     * 主动重新连接到更快的服务器，两次迁移至少间隔30分钟
+     *
+     * @param enabled 是否迁移
+     * @return 管理器
+     * @see #getBrokerRanks()
+     */
+    public MQTTManager setBrokerMigration(boolean enabled) {
+        MqttUtil.setBrokerMigration(mContext, enabled);
+        getBrokerRanking().setMigrationEnabled(enabled);
+        return this;
+    }
+
+    /**
+     * 设置ssl://服务器的TLS配置
+     * <p>
+     * 需要在Service启动之前设置。协议和会话设置保存在本地，Service运行在其他进程时也会使用；
+     * 证书和主机名校验只在调用的进程中有效，Service运行在其他进程时要在Application的onCreate中设置，
+     * 每个进程都会执行，否则Service进程使用默认的校验并输出错误日志。
+     * 没有设置时使用系统默认的证书和主机名校验。所有连接共用一个会话缓存，重新连接时恢复上一次的TLS会话。
+     * 服务器地址中同时有tcp://和ssl://时不使用
+     *
+     * @param config TLS配置
+     * @return 管理器
+     * @see MQTTMetrics#getTlsResumedHandshakes()
+     */
+    public MQTTManager setTlsConfig(TlsConfig config) {
+        if (config == null) {
+            throw new IllegalArgumentException("config is null");
+        }
+        TlsSocketFactory factory;
+        try {
+            factory = createTlsSocketFactory(config);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("invalid tls config: " + config, e);
+        }
+        MqttUtil.setTlsConfig(mContext, config.encode());
+        synchronized (this) {
+            mTlsSocketFactory = factory;
+        }
+        return this;
+    }
+
+    /**
+     * 获取服务器地址的延迟排名，用于诊断
+     * <p>
+     * CONNACK时间和PINGRESP往返时间按地址保存在本地，进程重启之后继续使用
+     *
+     * @return 按下次连接的顺序排列的排名
+     */
+    public List<BrokerRank> getBrokerRanks() {
+        String[] serverURIs = MqttUtil.getServerURIs(mContext);
+        if (serverURIs == null || serverURIs.length == 0) {
+            String serverURI = MqttUtil.getServerURI(mContext);
+            serverURIs = TextUtils.isEmpty(serverURI) ? new String[0] : new String[]{serverURI};
+        }
+        return Arrays.asList(getBrokerRanking().snapshot(serverURIs));
+    }
+
     /**
      * 设置登录账号
      *
@@ -106,8 +375,7 @@ public class MQTTManager {
      * @return 管理器
      */
     public MQTTManager setTopic(String[] topic, int[] qos) {
-        MqttUtil.setTopics(mContext, topic);
-        MqttUtil.setQoses(mContext, qos);
+        MqttUtil.setTopics(mContext, topic, qos);
         return this;
     }
 
@@ -122,6 +390,149 @@ public class MQTTManager {
         return this;
     }
 
+    /**
+     * 设置批量广播，需要同时开启{@link #setBroadcast(boolean)}
+     * <p>
+     * 开启后消息按间隔合并为一次{@link MQTTConstant#ACTION_MESSAGE_BATCH_RECEIVE}广播，
+     * 不再逐条发送{@link MQTTConstant#ACTION_MESSAGE_RECEIVE}
+     *
+     * @param intervalMillis 批量广播的间隔(毫秒)，小于等于0表示逐条广播
+     * @param conflate       同一主题在一个间隔内是否只保留最新的消息
+     * @param maxRate        每个接收者每秒最多收到的消息数，小于等于0表示不限制
+     * @return 管理器
+     */
+    public MQTTManager setBroadcastBatch(long intervalMillis, boolean conflate, int maxRate) {
+        MqttUtil.setBroadcastBatch(mContext, intervalMillis, conflate, maxRate);
+        return this;
+    }
+
+    /**
+     * 添加发布通道，同名通道会被覆盖
+     * <p>
+     * 发布的消息按通道排队，优先级高的通道先发送，保证控制类消息不会排在大量普通数据后面。
+     * 默认通道名称为"default"，优先级为0
+     *
+     * @param name     通道名称
+     * @param priority 优先级，越大越优先
+     * @param weight   按权重调度时的权重
+     * @param capacity 队列的最大长度，超过之后丢弃最早的消息
+     * @return 管理器
+     */
+    public MQTTManager addPublishLane(String name, int priority, int weight, int capacity) {
+        if (TextUtils.isEmpty(name)) {
+            throw new IllegalArgumentException("lane name is null");
+        }
+        MqttUtil.addPublishLane(mContext, name, priority, weight, capacity);
+        getOutboundScheduler().setLanes(MqttUtil.getPublishLanes(mContext));
+        return this;
+    }
+
+    /**
+     * 设置发布通道的调度方式
+     *
+     * @param scheduling 调度方式
+     * @return 管理器
+     */
+    public MQTTManager setLaneScheduling(LaneScheduling scheduling) {
+        if (scheduling == null) {
+            throw new IllegalArgumentException("scheduling is null");
+        }
+        MqttUtil.setLaneScheduling(mContext, scheduling);
+        getOutboundScheduler().setScheduling(scheduling);
+        return this;
+    }
+
+    /**
+     * 设置连接级别的发布速率限制(令牌桶)
+     *
+     * @param permitsPerSecond 每秒允许发布的消息数，小于等于0表示不限制
+     * @param burst            允许突发的消息数
+     * @param policy           超过限制时的处理方式
+     * @return 管理器
+     */
+    public MQTTManager setPublishRateLimit(double permitsPerSecond, int burst, RateLimitPolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("policy is null");
+        }
+        MqttUtil.setRateLimit(mContext, permitsPerSecond, burst, policy);
+        getRateLimiter().setConnectionLimit(permitsPerSecond, burst, policy);
+        return this;
+    }
+
+    /**
+     * 设置主题过滤器的发布速率限制(令牌桶)，同一过滤器会被覆盖，一条消息只使用第一个匹配的过滤器
+     *
+     * @param filter           主题过滤器，支持+和#通配符
+     * @param permitsPerSecond 每秒允许发布的消息数，小于等于0表示取消限制
+     * @param burst            允许突发的消息数
+     * @param policy           超过限制时的处理方式
+     * @return 管理器
+     */
+    public MQTTManager setTopicRateLimit(String filter, double permitsPerSecond, int burst, RateLimitPolicy policy) {
+        if (TextUtils.isEmpty(filter) || policy == null) {
+            throw new IllegalArgumentException("filter and policy must not be null");
+        }
+        MqttUtil.setTopicRateLimit(mContext, filter, permitsPerSecond, burst, policy);
+        getRateLimiter().setTopicLimit(filter, permitsPerSecond, burst, policy);
+        return this;
+    }
+
+    /**
+     * 添加状态主题，匹配的主题即使不是保留消息也会缓存最新值
+     *
+     * @param filter 主题过滤器，支持+和#通配符
+     * @return 管理器
+     * @see #getLastValue(String)
+     */
+    public MQTTManager addStateTopic(String filter) {
+        if (TextUtils.isEmpty(filter)) {
+            throw new IllegalArgumentException("filter is null");
+        }
+        MqttUtil.addStateTopic(mContext, filter);
+        getLastValueCache().setStateFilters(MqttUtil.getStateTopics(mContext));
+        return this;
+    }
+
+    /**
+     * 设置差量编码的主题
+     * <p>
+     * 匹配的主题发布时先发关键帧，之后只发相对服务器已经确认的状态的差分，每keyframeInterval条消息再发一次关键帧。
+     * 收到的差量帧还原成完整内容之后再分发，漏收导致缺少基准时丢弃并自动请求发送方重新发送关键帧。
+     * 发送方和接收方需要配置相同的过滤器，同一主题只能有一个发送方，重新同步请求的订阅在下次连接时生效
+     *
+     * @param filter           主题过滤器，支持+和#通配符
+     * @param keyframeInterval 关键帧间隔(消息数)，小于等于0表示取消差量编码
+     * @return 管理器
+     */
+    public MQTTManager setDeltaTopic(String filter, int keyframeInterval) {
+        if (TextUtils.isEmpty(filter)) {
+            throw new IllegalArgumentException("filter is null");
+        }
+        MqttUtil.setDeltaTopic(mContext, filter, keyframeInterval);
+        synchronized (this) {
+            setDeltaRules(MqttUtil.getDeltaRules(mContext));
+            mDeltaRulesLoaded = true;
+        }
+        return this;
+    }
+
+    private void setDeltaRules(DeltaCodec.Rules rules) {
+        mDeltaEncoder.setRules(rules);
+        mDeltaDecoder.setRules(rules);
+    }
+
+    /**
+     * 设置最新值缓存的大小，超过之后淘汰最久未读取的主题
+     *
+     * @param maxBytes 缓存大小(字节)
+     * @return 管理器
+     */
+    public MQTTManager setLastValueCacheSize(int maxBytes) {
+        MqttUtil.setLastValueCacheSize(mContext, maxBytes);
+        getLastValueCache().setMaxBytes(maxBytes);
+        return this;
+    }
+
     /***
      * 设置是否debug
      *
@@ -175,13 +586,461 @@ public class MQTTManager {
      * @param retained 是否保留副本
      */
     public void publishMessage(String topic, String message, int qos, boolean retained) {
+        publishMessage(topic, message, qos, retained, OutboundScheduler.DEFAULT_LANE);
+    }
+
+    /***
+     * 通过指定的通道发布消息
+     *
+     * @param topic    消息主题
+     * @param message  消息
+     * @param qos      消息质量
+     * @param retained 是否保留副本
+     * @param lane     发布通道，不存在时使用默认通道
+     */
+    public void publishMessage(String topic, String message, int qos, boolean retained, String lane) {
+        publishMessage(topic, message, qos, retained, lane, 0);
+    }
+
+    /***
+     * 通过指定的通道发布消息，超过有效期还没有发送时丢弃
+     *
+     * @param topic     消息主题
+     * @param message   消息
+     * @param qos       消息质量
+     * @param retained  是否保留副本
+     * @param lane      发布通道，不存在时使用默认通道
+     * @param ttlMillis 有效期(毫秒)，从调用时开始计算，小于等于0表示不过期
+     */
+    public void publishMessage(String topic, String message, int qos, boolean retained, String lane, long ttlMillis) {
         Intent intent = new Intent(MQTTConstant.ACTION_MESSAGE_PUBLISH);
         intent.putExtra(MQTTConstant.BROADCAST_PUBLISH_TOPIC, topic);
         intent.putExtra(MQTTConstant.BROADCAST_PUBLISH_MESSAGE, message);
         intent.putExtra(MQTTConstant.BROADCAST_PUBLISH_QOS, qos);
         intent.putExtra(MQTTConstant.BROADCAST_PUBLISH_RETAIN, retained);
+        intent.putExtra(MQTTConstant.BROADCAST_PUBLISH_LANE, lane);
+        intent.putExtra(MQTTConstant.BROADCAST_PUBLISH_TTL, ttlMillis);
         LocalBroadcastManager.getInstance(mContext).sendBroadcast(intent);
     }
 
+    /**
+     * 从缓冲池借出发布内容，填好之后通过{@link #publishPayload(String, PayloadBuffer, int, boolean, String)}发布
+     * <p>
+     * 只有长度完全相同的缓冲才能复用，适合固定格式的内容。长度随机变化的内容几乎不会命中，
+     * 直接发布byte[]即可，可以通过{@link MQTTMetrics#getPayloadPoolHits()}判断命中率
+     *
+     * @param length 内容长度，整个缓冲都会作为消息内容
+     * @return 缓冲
+     */
+    public PayloadBuffer obtainPayload(int length) {
+        if (length < 0) {
+            throw new IllegalArgumentException("length must not be negative");
+        }
+        return mPayloadPool.obtain(length);
+    }
+
+    /**
+     * 发布从缓冲池借出的内容
+     * <p>
+     * 消息直接进入发布队列，不经过广播，也不复制内容。发布完成或被丢弃之后缓冲自动归还，调用之后不能再使用
+     *
+     * @param topic    消息主题
+     * @param payload  借出的内容
+     * @param qos      消息质量
+     * @param retained 是否保留副本
+     * @param lane     发布通道，不存在时使用默认通道
+     * @return 发布结果
+     */
+    public DeliveryFuture publishPayload(String topic, PayloadBuffer payload, int qos, boolean retained, String lane) {
+        return publishPayload(topic, payload, qos, retained, lane, 0);
+    }
+
+    /**
+     * 发布从缓冲池借出的内容，超过有效期还没有交给Paho时丢弃，缓冲同样自动归还
+     *
+     * @param topic     消息主题
+     * @param payload   借出的内容
+     * @param qos       消息质量
+     * @param retained  是否保留副本
+     * @param lane      发布通道，不存在时使用默认通道
+     * @param ttlMillis 有效期(毫秒)，小于等于0表示不过期
+     * @return 发布结果，过期时{@link DeliveryReceipt#isExpired()}为true
+     */
+    public DeliveryFuture publishPayload(String topic, PayloadBuffer payload, int qos, boolean retained, String lane,
+                                         long ttlMillis) {
+        if (payload == null) {
+            throw new IllegalArgumentException("payload is null");
+        }
+        return submit(topic, payload.data(), qos, retained, lane, payload, ttlMillis);
+    }
+
+    /**
+     * 发布消息并跟踪发布结果
+     * <p>
+     * 消息直接进入发布队列，不经过广播。QoS0在写出之后完成，QoS1/2在收到服务器确认之后完成，
+     * 各阶段耗时见{@link DeliveryReceipt}，延迟统计见{@link MQTTMetrics#getPublishLatency(int)}
+     *
+     * @param topic    消息主题
+     * @param payload  消息内容，发布完成之前不能修改
+     * @param qos      消息质量
+     * @param retained 是否保留副本
+     * @param lane     发布通道，不存在时使用默认通道
+     * @return 发布结果
+     */
+    public DeliveryFuture publish(String topic, byte[] payload, int qos, boolean retained, String lane) {
+        return publish(topic, payload, qos, retained, lane, 0);
+    }
+
+    /**
+     * 发布消息并跟踪发布结果，超过有效期还没有交给Paho时丢弃
+     * <p>
+     * 离线或拥塞时排队的消息到发送时可能已经没有意义，设置有效期之后过期的消息不再发送，
+     * 统计见{@link MQTTMetrics#getPublishExpired()}和{@link PublishLaneStats#getExpired()}
+     *
+     * @param topic     消息主题
+     * @param payload   消息内容，发布完成之前不能修改
+     * @param qos       消息质量
+     * @param retained  是否保留副本
+     * @param lane      发布通道，不存在时使用默认通道
+     * @param ttlMillis 有效期(毫秒)，小于等于0表示不过期
+     * @return 发布结果，过期时{@link DeliveryReceipt#isExpired()}为true
+     */
+    public DeliveryFuture publish(String topic, byte[] payload, int qos, boolean retained, String lane,
+                                  long ttlMillis) {
+        if (payload == null) {
+            throw new IllegalArgumentException("payload is null");
+        }
+        return submit(topic, payload, qos, retained, lane, null, ttlMillis);
+    }
+
+    private DeliveryFuture submit(String topic, byte[] payload, int qos, boolean retained, String lane,
+                                  PayloadBuffer buffer, long ttlMillis) {
+        if (TextUtils.isEmpty(topic)) {
+            throw new IllegalArgumentException("topic is null");
+        }
+        MqttMessage message = new MqttMessage(payload);
+        message.setQos(qos);
+        message.setRetained(retained);
+        DeliveryFuture future = new DeliveryFuture();
+        getOutboundScheduler().submit(new OutboundMessage(topic, message, lane, buffer, future), ttlMillis);
+        return future;
+    }
+
+    /**
+     * 获取主题的最新值
+     * <p>
+     * 保留消息和状态主题的最新消息会缓存在本地文件中，进程重启之后不需要等待网络即可读取
+     *
+     * @param topic 主题
+     * @return 最新的消息，没有缓存时返回null
+     */
+    public MQTTMessage getLastValue(String topic) {
+        return getLastValueCache().get(topic);
+    }
+
+    /**
+     * 获取发布通道的统计
+     *
+     * @return 通道统计，按优先级从高到低排列
+     */
+    public List<PublishLaneStats> getPublishLaneStats() {
+        return getOutboundScheduler().getLaneStats();
+    }
+
+    /**
+     * 注册消息监听器，在Paho的回调线程回调
+     *
+     * @param filter   主题过滤器，支持+和#通配符
+     * @param listener 监听器
+     * @return 管理器
+     */
+    public MQTTManager addMessageListener(String filter, MQTTMessageListener listener) {
+        return addMessageListener(filter, listener, MQTTExecutors.CALLBACK_THREAD);
+    }
+
+    /**
+     * 注册消息监听器
+     *
+     * @param filter   主题过滤器，支持+和#通配符
+     * @param listener 监听器
+     * @param executor 回调线程，见{@link MQTTExecutors}
+     * @return 管理器
+     */
+    public MQTTManager addMessageListener(String filter, MQTTMessageListener listener, Executor executor) {
+        if (TextUtils.isEmpty(filter) || listener == null) {
+            throw new IllegalArgumentException("filter and listener must not be null");
+        }
+        mListenerRegistry.add(filter, listener, executor == null ? MQTTExecutors.CALLBACK_THREAD : executor);
+        return this;
+    }
+
+    /**
+     * 注销消息监听器
+     *
+     * @param listener 监听器
+     * @return 管理器
+     */
+    public MQTTManager removeMessageListener(MQTTMessageListener listener) {
+        mListenerRegistry.remove(listener);
+        return this;
+    }
+
+    /**
+     * 获取主题过滤器的消息流，缓存满时用新消息替换最新的一条
+     *
+     * @param filter 主题过滤器，支持+和#通配符
+     * @return 消息流
+     */
+    public Publisher<MQTTMessage> messages(String filter) {
+        return messages(filter, BackpressureStrategy.LATEST, DEFAULT_PUBLISHER_CAPACITY, MQTTExecutors.CALLBACK_THREAD);
+    }
+
+    /**
+     * 获取主题过滤器的消息流
+     * <p>
+     * 每个订阅者有独立的缓存，消息按订阅者的request(n)发送，订阅者处理不过来时按strategy处理，不会无限堆积
+     *
+     * @param filter   主题过滤器，支持+和#通配符
+     * @param strategy 缓存满时的处理策略
+     * @param capacity 每个订阅者的缓存大小
+     * @param executor 向订阅者发送消息的线程，见{@link MQTTExecutors}
+     * @return 消息流
+     */
+    public Publisher<MQTTMessage> messages(String filter, BackpressureStrategy strategy, int capacity, Executor executor) {
+        if (TextUtils.isEmpty(filter) || strategy == null) {
+            throw new IllegalArgumentException("filter and strategy must not be null");
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        return new MessagePublisher(mListenerRegistry, mMetrics, filter, strategy, capacity,
+                executor == null ? MQTTExecutors.CALLBACK_THREAD : executor);
+    }
+
+    /**
+     * 获取唤醒锁管理
+     *
+     * @return 唤醒锁管理
+     */
+    WakeLockTracker getWakeLockTracker() {
+        WakeLockTracker tracker = mWakeLockTracker;
+        if (tracker == null) {
+            synchronized (this) {
+                if (mWakeLockTracker == null) {
+                    mWakeLockTracker = new WakeLockTracker(mContext, mMetrics);
+                }
+                tracker = mWakeLockTracker;
+            }
+        }
+        return tracker;
+    }
+
+    /**
+     * 获取主题规范化表
+     *
+     * @return 主题规范化表
+     */
+    TopicTable getTopicTable() {
+        return mTopicTable;
+    }
+
+    /**
+     * 获取消息监听器注册表
+     *
+     * @return 注册表
+     */
+    MessageListenerRegistry getListenerRegistry() {
+        return mListenerRegistry;
+    }
+
+    /**
+     * 获取发布消息的调度器
+     *
+     * @return 调度器
+     */
+    OutboundScheduler getOutboundScheduler() {
+        OutboundScheduler scheduler = mOutboundScheduler;
+        if (scheduler == null) {
+            synchronized (this) {
+                if (mOutboundScheduler == null) {
+                    OutboundScheduler created = new OutboundScheduler(mMetrics, getRateLimiter(), getTracer(),
+                            getDeltaEncoder());
+                    created.setLanes(MqttUtil.getPublishLanes(mContext));
+                    created.setScheduling(MqttUtil.getLaneScheduling(mContext));
+                    mOutboundScheduler = created;
+                }
+                scheduler = mOutboundScheduler;
+            }
+        }
+        return scheduler;
+    }
+
+    /**
+     * 获取主题最新值缓存
+     *
+     * @return 缓存
+     */
+    LastValueCache getLastValueCache() {
+        LastValueCache cache = mLastValueCache;
+        if (cache == null) {
+            synchronized (this) {
+                if (mLastValueCache == null) {
+                    LastValueCache created = new LastValueCache(mContext.getFilesDir(),
+                            MqttUtil.getLastValueCacheSize(mContext));
+                    created.setStateFilters(MqttUtil.getStateTopics(mContext));
+                    mLastValueCache = created;
+                }
+                cache = mLastValueCache;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * 获取消息跟踪
+     *
+     * @return 消息跟踪
+     */
+    MessageTracer getTracer() {
+        if (!mTracerLoaded) {
+            synchronized (this) {
+                if (!mTracerLoaded) {
+                    mTracer.setSampleEvery(MqttUtil.getTraceSampleEvery(mContext));
+                    mTracerLoaded = true;
+                }
+            }
+        }
+        return mTracer;
+    }
+
+    /**
+     * 获取服务器延迟排名
+     *
+     * @return 服务器延迟排名
+     */
+    BrokerRanking getBrokerRanking() {
+        BrokerRanking ranking = mBrokerRanking;
+        if (ranking == null) {
+            synchronized (this) {
+                if (mBrokerRanking == null) {
+                    BrokerRanking created = new BrokerRanking(mContext, mMetrics);
+                    created.setMigrationEnabled(MqttUtil.isBrokerMigration(mContext));
+                    mBrokerRanking = created;
+                }
+                ranking = mBrokerRanking;
+            }
+        }
+        return ranking;
+    }
+
+    /**
+     * 获取ssl://连接共用的SocketFactory
+     * <p>
+     * 当前进程没有设置TLS配置时第一次使用按保存的配置创建，例如Service运行在其他进程时；没有保存的配置时按默认配置创建
+     *
+     * @return SocketFactory，配置创建失败时为空
+     */
+    synchronized TlsSocketFactory getTlsSocketFactory() {
+        if (mTlsSocketFactory == null) {
+            String saved = MqttUtil.getTlsConfig(mContext);
+            TlsConfig config = saved != null ? TlsConfig.decode(saved) : null;
+            if (config == null) {
+                config = new TlsConfig();
+            } else if (TlsConfig.hasCustomVerification(saved)) {
+                LogUtil.e("MQTTManager", "TLS配置中的证书和主机名校验只在设置的进程中有效，当前进程使用默认校验，"
+                        + "请在Application的onCreate中调用setTlsConfig");
+            }
+            try {
+                mTlsSocketFactory = createTlsSocketFactory(config);
+            } catch (GeneralSecurityException e) {
+                LogUtil.e("MQTTManager", "创建TLS配置失败:" + e.getMessage());
+            }
+        }
+        return mTlsSocketFactory;
+    }
+
+    private TlsSocketFactory createTlsSocketFactory(TlsConfig config) throws GeneralSecurityException {
+        return new TlsSocketFactory(config.createContext(), config.isSessionTickets(), config.getHostnameVerifier(),
+                mMetrics);
+    }
+
+    /**
+     * 获取差量编码
+     *
+     * @return 差量编码
+     */
+    DeltaEncoder getDeltaEncoder() {
+        ensureDeltaRules();
+        return mDeltaEncoder;
+    }
+
+    /**
+     * 获取差量解码
+     *
+     * @return 差量解码
+     */
+    DeltaDecoder getDeltaDecoder() {
+        ensureDeltaRules();
+        return mDeltaDecoder;
+    }
+
+    /**
+     * 获取内存管理
+     *
+     * @return 内存管理
+     */
+    MemoryGovernor getMemoryGovernor() {
+        MemoryGovernor governor = mMemoryGovernor;
+        if (governor == null) {
+            synchronized (this) {
+                if (mMemoryGovernor == null) {
+                    MemoryGovernor created = new MemoryGovernor(mMetrics, mPayloadPool, getLastValueCache(),
+                            getOutboundScheduler());
+                    MqttUtil.loadMemoryPolicies(mContext, created);
+                    mMemoryGovernor = created;
+                }
+                governor = mMemoryGovernor;
+            }
+        }
+        return governor;
+    }
+
+    /**
+     * 获取发布速率限制，第一次使用时读取保存的限制
+     *
+     * @return 发布速率限制
+     */
+    private PublishRateLimiter getRateLimiter() {
+        if (!mRateLimitsLoaded) {
+            synchronized (this) {
+                if (!mRateLimitsLoaded) {
+                    MqttUtil.loadRateLimits(mContext, mRateLimiter);
+                    mRateLimitsLoaded = true;
+                }
+            }
+        }
+        return mRateLimiter;
+    }
+
+    private void ensureDeltaRules() {
+        if (!mDeltaRulesLoaded) {
+            synchronized (this) {
+                if (!mDeltaRulesLoaded) {
+                    setDeltaRules(MqttUtil.getDeltaRules(mContext));
+                    mDeltaRulesLoaded = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * 获取运行统计
+     *
+     * @return 运行统计
+     */
+    public MQTTMetrics getMetrics() {
+        return mMetrics;
+    }
+
 
 }
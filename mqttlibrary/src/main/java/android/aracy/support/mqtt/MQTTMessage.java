@@ -0,0 +1,112 @@
+package android.aracy.support.mqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * 收到的MQTT消息
+ * <p>
+ * 消息内容直接引用Paho收到的数据，不做拷贝，使用方不要修改{@link #getPayload()}返回的数组
+ *
+ * @author aracy
+ * @version [1.0, 2017-04-14]
+ */
+public final class MQTTMessage {
+
+    private final String mTopic;
+
+    private final byte[] mPayload;
+
+    private final int mQos;
+
+    private final boolean mRetained;
+
+    private final boolean mDuplicate;
+
+    /**
+     * 按UTF-8解码后的内容，第一次使用时解码
+     */
+    private volatile String mText;
+
+    /**
+     * 预写日志中的记录，没有写入日志时为空
+     */
+    InboxTicket ticket;
+
+    /**
+     * 跟踪ID，没有被采样时为0
+     */
+    long traceId;
+
+    MQTTMessage(String topic, MqttMessage message) {
+        this(topic, message.getPayload(), message.getQos(), message.isRetained(), message.isDuplicate());
+    }
+
+    MQTTMessage(String topic, byte[] payload, int qos, boolean retained, boolean duplicate) {
+        mTopic = topic;
+        mPayload = payload;
+        mQos = qos;
+        mRetained = retained;
+        mDuplicate = duplicate;
+    }
+
+    /**
+     * @return 消息主题
+     */
+    public String getTopic() {
+        return mTopic;
+    }
+
+    /**
+     * @return 消息内容
+     */
+    public byte[] getPayload() {
+        return mPayload;
+    }
+
+    /**
+     * 获取按UTF-8解码的消息内容
+     *
+     * @return 消息内容
+     */
+    public String getText() {
+        String text = mText;
+        if (text == null) {
+            try {
+                text = new String(mPayload, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+            mText = text;
+        }
+        return text;
+    }
+
+    /**
+     * @return 消息质量
+     */
+    public int getQos() {
+        return mQos;
+    }
+
+    /**
+     * @return 是否为保留消息
+     */
+    public boolean isRetained() {
+        return mRetained;
+    }
+
+    /**
+     * @return 是否为重发的消息
+     */
+    public boolean isDuplicate() {
+        return mDuplicate;
+    }
+
+    @Override
+    public String toString() {
+        return "MQTTMessage{topic=" + mTopic + ", qos=" + mQos + ", retained=" + mRetained + ", length="
+                + mPayload.length + "}";
+    }
+}
@@ -0,0 +1,18 @@
+package android.aracy.support.mqtt;
+
+/**
+ * 消息监听器
+ *
+ * @author aracy
+ * @version [1.0, 2017-04-14]
+ * @see MQTTManager#addMessageListener(String, MQTTMessageListener, java.util.concurrent.Executor)
+ */
+public interface MQTTMessageListener {
+
+    /**
+     * 收到匹配的消息，在注册时指定的线程回调
+     *
+     * @param message 消息
+     */
+    void onMessageArrived(MQTTMessage message);
+}
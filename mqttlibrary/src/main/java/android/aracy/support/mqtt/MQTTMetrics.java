@@ -0,0 +1,641 @@
+package android.aracy.support.mqtt;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * MQTT运行统计
+ * <p>
+ * 所有计数都是进程内累计值，通过{@link MQTTManager#getMetrics()}获取
+ *
+ * @author aracy
+ * @version [1.0, 2017-04-10]
+ */
+public class MQTTMetrics {
+
+    /**
+     * 收到的原始网络变化事件数
+     */
+    final AtomicLong networkEvents = new AtomicLong();
+    /**
+     * 被防抖合并掉的网络事件数
+     */
+    final AtomicLong networkEventsCoalesced = new AtomicLong();
+    /**
+     * 防抖之后判断为无变化的网络事件数
+     */
+    final AtomicLong networkNoise = new AtomicLong();
+    /**
+     * 真实的网络切换次数
+     */
+    final AtomicLong networkSwitches = new AtomicLong();
+    /**
+     * 因网络切换而主动迁移连接的次数
+     */
+    final AtomicLong networkMigrations = new AtomicLong();
+
+    /**
+     * 发送的批量广播数
+     */
+    final AtomicLong broadcastBatches = new AtomicLong();
+    /**
+     * 批量广播中被同主题新消息覆盖的消息数
+     */
+    final AtomicLong broadcastConflated = new AtomicLong();
+    /**
+     * 批量广播队列已满被丢弃的消息数
+     */
+    final AtomicLong broadcastDropped = new AtomicLong();
+
+    /**
+     * Publisher订阅者缓存满时被丢弃的消息数
+     */
+    final AtomicLong reactiveDropped = new AtomicLong();
+
+    /**
+     * 超过发布速率限制被延迟发送的消息数
+     */
+    final AtomicLong publishThrottledDelayed = new AtomicLong();
+    /**
+     * 超过发布速率限制被丢弃的消息数
+     */
+    final AtomicLong publishThrottledDropped = new AtomicLong();
+    /**
+     * 超过发布速率限制被同主题新消息合并掉的消息数
+     */
+    final AtomicLong publishThrottledCoalesced = new AtomicLong();
+
+    /**
+     * 主题规范化表已满、没有放入表中的主题次数
+     */
+    final AtomicLong topicInternOverflow = new AtomicLong();
+
+    /**
+     * 发布内容缓冲池的命中和未命中次数
+     */
+    final AtomicLong payloadPoolHits = new AtomicLong();
+
+    final AtomicLong payloadPoolMisses = new AtomicLong();
+
+    /**
+     * 调试模式下发现没有归还的发布内容缓冲数
+     */
+    final AtomicLong payloadLeaks = new AtomicLong();
+
+    /**
+     * 按QoS统计的发布延迟，从提交到完成
+     */
+    final LatencyHistogram[] publishLatency = {
+            new LatencyHistogram(), new LatencyHistogram(), new LatencyHistogram()
+    };
+
+    /**
+     * 发布失败或被丢弃的消息数
+     */
+    final AtomicLong publishFailed = new AtomicLong();
+
+    /**
+     * 超过有效期没有发送的消息数
+     */
+    final AtomicLong publishExpired = new AtomicLong();
+
+    /**
+     * 按{@link WakeCause}统计的唤醒锁持有时间(毫秒)、持有次数和超时次数
+     */
+    final AtomicLong[] wakeLockMillis = newCounters(WakeCause.values().length);
+
+    final AtomicLong[] wakeLockAcquires = newCounters(WakeCause.values().length);
+
+    final AtomicLong[] wakeLockTimeouts = newCounters(WakeCause.values().length);
+
+    /**
+     * 收到内存紧张通知并执行释放的次数
+     */
+    final AtomicLong memoryTrims = new AtomicLong();
+
+    /**
+     * 内存紧张时从发布队列中丢弃的消息数
+     */
+    final AtomicLong memoryShedMessages = new AtomicLong();
+
+    /**
+     * 发送给其他进程的消息批数
+     */
+    final AtomicLong remoteBatches = new AtomicLong();
+
+    /**
+     * 发送给其他进程时队列已满丢弃的消息数
+     */
+    final AtomicLong remoteDropped = new AtomicLong();
+
+    /**
+     * 差量主题发送的关键帧数和差量帧数
+     */
+    final AtomicLong deltaKeyframes = new AtomicLong();
+
+    final AtomicLong deltaFrames = new AtomicLong();
+
+    /**
+     * 差量帧相对完整内容节省的字节数
+     */
+    final AtomicLong deltaBytesSaved = new AtomicLong();
+
+    /**
+     * 收到的差量帧缺少基准被丢弃的次数
+     */
+    final AtomicLong deltaGaps = new AtomicLong();
+
+    /**
+     * 发出的重新同步请求数
+     */
+    final AtomicLong deltaResyncRequests = new AtomicLong();
+
+    /**
+     * 并行连接的次数、启动的候选连接数和被取消的候选连接数
+     */
+    final AtomicLong connectRaces = new AtomicLong();
+
+    final AtomicLong connectRaceAttempts = new AtomicLong();
+
+    final AtomicLong connectRaceCancelled = new AtomicLong();
+
+    /**
+     * 服务器延迟变差而迁移到更快服务器的次数
+     */
+    final AtomicLong brokerMigrations = new AtomicLong();
+
+    /**
+     * TLS完整握手和恢复会话的耗时，从创建socket到握手完成，包含TCP连接
+     */
+    final LatencyHistogram tlsFullHandshakes = new LatencyHistogram();
+
+    final LatencyHistogram tlsResumedHandshakes = new LatencyHistogram();
+
+    /**
+     * 创建统计的时间，用于计算每小时的唤醒时间
+     */
+    private final long mCreatedRealtime = SystemClock.elapsedRealtime();
+
+    /**
+     * 启动阶段的耗时，从Service的onCreate开始计算，单位纳秒，未到达时为-1
+     */
+    volatile long startupConfigNanos = -1;
+
+    volatile long startupClientNanos = -1;
+
+    volatile long startupConnectSentNanos = -1;
+
+    volatile long startupConnectedNanos = -1;
+
+    volatile long startupFirstMessageNanos = -1;
+
+    MQTTMetrics() {
+    }
+
+    /**
+     * @return 收到的原始网络变化事件数
+     */
+    public long getNetworkEvents() {
+        return networkEvents.get();
+    }
+
+    /**
+     * @return 被防抖合并掉的网络事件数
+     */
+    public long getNetworkEventsCoalesced() {
+        return networkEventsCoalesced.get();
+    }
+
+    /**
+     * @return 防抖之后判断为无变化的网络事件数
+     */
+    public long getNetworkNoise() {
+        return networkNoise.get();
+    }
+
+    /**
+     * @return 真实的网络切换次数
+     */
+    public long getNetworkSwitches() {
+        return networkSwitches.get();
+    }
+
+    /**
+     * @return 因网络切换而主动迁移连接的次数
+     */
+    public long getNetworkMigrations() {
+        return networkMigrations.get();
+    }
+
+    /**
+     * @return 避免掉的重连次数(合并的事件与无变化的事件)
+     */
+    public long getPreventedReconnects() {
+        return networkEventsCoalesced.get() + networkNoise.get();
+    }
+
+    /**
+     * @return 发送的批量广播数
+     */
+    public long getBroadcastBatches() {
+        return broadcastBatches.get();
+    }
+
+    /**
+     * @return 批量广播中被同主题新消息覆盖的消息数
+     */
+    public long getBroadcastConflated() {
+        return broadcastConflated.get();
+    }
+
+    /**
+     * @return 批量广播队列已满被丢弃的消息数
+     */
+    public long getBroadcastDropped() {
+        return broadcastDropped.get();
+    }
+
+    /**
+     * @return Publisher订阅者缓存满时被丢弃的消息数
+     */
+    public long getReactiveDropped() {
+        return reactiveDropped.get();
+    }
+
+    /**
+     * @return 超过发布速率限制被延迟发送的消息数
+     */
+    public long getPublishThrottledDelayed() {
+        return publishThrottledDelayed.get();
+    }
+
+    /**
+     * @return 超过发布速率限制被丢弃的消息数
+     */
+    public long getPublishThrottledDropped() {
+        return publishThrottledDropped.get();
+    }
+
+    /**
+     * @return 超过发布速率限制被同主题新消息合并掉的消息数
+     */
+    public long getPublishThrottledCoalesced() {
+        return publishThrottledCoalesced.get();
+    }
+
+    /**
+     * @return 因发布速率限制被延迟、丢弃或合并的消息总数
+     */
+    public long getPublishThrottled() {
+        return publishThrottledDelayed.get() + publishThrottledDropped.get() + publishThrottledCoalesced.get();
+    }
+
+    /**
+     * 获取主题规范化表已满时没有放入表中的主题次数
+     *
+     * @return 次数
+     */
+    public long getTopicInternOverflow() {
+        return topicInternOverflow.get();
+    }
+
+    /**
+     * 获取从缓冲池借出时复用已有缓冲的次数
+     *
+     * @return 次数
+     */
+    public long getPayloadPoolHits() {
+        return payloadPoolHits.get();
+    }
+
+    /**
+     * 获取从缓冲池借出时新建缓冲的次数
+     *
+     * @return 次数
+     */
+    public long getPayloadPoolMisses() {
+        return payloadPoolMisses.get();
+    }
+
+    /**
+     * 获取调试模式下发现没有归还的缓冲数
+     *
+     * @return 缓冲数
+     */
+    public long getPayloadLeaks() {
+        return payloadLeaks.get();
+    }
+
+    /**
+     * 获取发布延迟的直方图，从提交到QoS0写出或QoS1/2收到确认
+     *
+     * @param qos 消息质量
+     * @return 直方图
+     */
+    public LatencyHistogram getPublishLatency(int qos) {
+        return publishLatency[qos];
+    }
+
+    /**
+     * 获取发布失败或被丢弃的消息数
+     *
+     * @return 消息数
+     */
+    public long getPublishFailed() {
+        return publishFailed.get();
+    }
+
+    /**
+     * 获取超过有效期没有发送的消息数
+     *
+     * @return 消息数
+     */
+    public long getPublishExpired() {
+        return publishExpired.get();
+    }
+
+    /**
+     * 获取收到内存紧张通知并执行释放的次数
+     *
+     * @return 次数
+     */
+    public long getMemoryTrims() {
+        return memoryTrims.get();
+    }
+
+    /**
+     * 获取内存紧张时从发布队列中丢弃的消息数
+     *
+     * @return 消息数
+     */
+    public long getMemoryShedMessages() {
+        return memoryShedMessages.get();
+    }
+
+    /**
+     * 获取发送给其他进程的消息批数
+     *
+     * @return 批数
+     */
+    public long getRemoteBatches() {
+        return remoteBatches.get();
+    }
+
+    /**
+     * 获取发送给其他进程时队列已满丢弃的消息数
+     *
+     * @return 消息数
+     */
+    public long getRemoteDropped() {
+        return remoteDropped.get();
+    }
+
+    /**
+     * @return 差量主题发送的关键帧数
+     */
+    public long getDeltaKeyframes() {
+        return deltaKeyframes.get();
+    }
+
+    /**
+     * @return 差量主题发送的差量帧数
+     */
+    public long getDeltaFrames() {
+        return deltaFrames.get();
+    }
+
+    /**
+     * @return 差量帧相对完整内容节省的字节数
+     */
+    public long getDeltaBytesSaved() {
+        return deltaBytesSaved.get();
+    }
+
+    /**
+     * @return 收到的差量帧缺少基准被丢弃的次数
+     */
+    public long getDeltaGaps() {
+        return deltaGaps.get();
+    }
+
+    /**
+     * @return 发出的重新同步请求数
+     */
+    public long getDeltaResyncRequests() {
+        return deltaResyncRequests.get();
+    }
+
+    /**
+     * @return 并行连接的次数
+     */
+    public long getConnectRaces() {
+        return connectRaces.get();
+    }
+
+    /**
+     * @return 并行连接中启动的候选连接数
+     */
+    public long getConnectRaceAttempts() {
+        return connectRaceAttempts.get();
+    }
+
+    /**
+     * @return 并行连接中被取消的候选连接数
+     */
+    public long getConnectRaceCancelled() {
+        return connectRaceCancelled.get();
+    }
+
+    /**
+     * @return 服务器延迟变差而迁移到更快服务器的次数
+     */
+    public long getBrokerMigrations() {
+        return brokerMigrations.get();
+    }
+
+    /**
+     * @return TLS完整握手耗时的直方图，包含TCP连接
+     */
+    public LatencyHistogram getTlsFullHandshakes() {
+        return tlsFullHandshakes;
+    }
+
+    /**
+     * @return TLS恢复会话耗时的直方图，包含TCP连接
+     */
+    public LatencyHistogram getTlsResumedHandshakes() {
+        return tlsResumedHandshakes;
+    }
+
+    /**
+     * 获取唤醒锁的累计持有时间
+     *
+     * @param cause 原因
+     * @return 毫秒
+     */
+    public long getWakeLockMillis(WakeCause cause) {
+        return wakeLockMillis[cause.ordinal()].get();
+    }
+
+    /**
+     * 获取唤醒锁的持有次数
+     *
+     * @param cause 原因
+     * @return 次数
+     */
+    public long getWakeLockAcquires(WakeCause cause) {
+        return wakeLockAcquires[cause.ordinal()].get();
+    }
+
+    /**
+     * 获取唤醒锁因为超时才释放的次数
+     *
+     * @param cause 原因
+     * @return 次数
+     */
+    public long getWakeLockTimeouts(WakeCause cause) {
+        return wakeLockTimeouts[cause.ordinal()].get();
+    }
+
+    /**
+     * 获取MQTT平均每小时持有唤醒锁的时间
+     *
+     * @return 毫秒每小时
+     */
+    public long getWakeMillisPerHour() {
+        long total = 0;
+        for (AtomicLong millis : wakeLockMillis) {
+            total += millis.get();
+        }
+        long elapsed = Math.max(1, SystemClock.elapsedRealtime() - mCreatedRealtime);
+        return total * 3600000L / elapsed;
+    }
+
+    private static AtomicLong[] newCounters(int count) {
+        AtomicLong[] counters = new AtomicLong[count];
+        for (int i = 0; i < count; i++) {
+            counters[i] = new AtomicLong();
+        }
+        return counters;
+    }
+
+    /**
+     * 获取启动后读取完配置的耗时
+     *
+     * @return 毫秒，未到达时返回-1
+     */
+    public long getStartupConfigMillis() {
+        return toMillis(startupConfigNanos);
+    }
+
+    /**
+     * 获取启动后创建完MQTT客户端的耗时
+     *
+     * @return 毫秒，未到达时返回-1
+     */
+    public long getStartupClientMillis() {
+        return toMillis(startupClientNanos);
+    }
+
+    /**
+     * 获取启动后发出第一次连接的耗时
+     *
+     * @return 毫秒，未到达时返回-1
+     */
+    public long getStartupConnectSentMillis() {
+        return toMillis(startupConnectSentNanos);
+    }
+
+    /**
+     * 获取启动后第一次连接成功的耗时
+     *
+     * @return 毫秒，未到达时返回-1
+     */
+    public long getStartupConnectedMillis() {
+        return toMillis(startupConnectedNanos);
+    }
+
+    /**
+     * 获取启动后收到第一条消息的耗时
+     *
+     * @return 毫秒，未到达时返回-1
+     */
+    public long getStartupFirstMessageMillis() {
+        return toMillis(startupFirstMessageNanos);
+    }
+
+    /**
+     * 获取启动各阶段的耗时说明，用于日志
+     *
+     * @return 各阶段耗时
+     */
+    public String getStartupBreakdown() {
+        return "startup(ms): config=" + getStartupConfigMillis()
+                + ", client=" + getStartupClientMillis()
+                + ", connectSent=" + getStartupConnectSentMillis()
+                + ", connected=" + getStartupConnectedMillis()
+                + ", firstMessage=" + getStartupFirstMessageMillis();
+    }
+
+    /**
+     * Service重新创建时清空上一次的启动耗时
+     */
+    void resetStartup() {
+        startupConfigNanos = -1;
+        startupClientNanos = -1;
+        startupConnectSentNanos = -1;
+        startupConnectedNanos = -1;
+        startupFirstMessageNanos = -1;
+    }
+
+    private static long toMillis(long nanos) {
+        return nanos < 0 ? -1 : nanos / 1000000;
+    }
+
+    @Override
+    public String toString() {
+        return "MQTTMetrics{"
+                + "networkEvents=" + networkEvents.get()
+                + ", networkEventsCoalesced=" + networkEventsCoalesced.get()
+                + ", networkNoise=" + networkNoise.get()
+                + ", networkSwitches=" + networkSwitches.get()
+                + ", networkMigrations=" + networkMigrations.get()
+                + ", broadcastBatches=" + broadcastBatches.get()
+                + ", broadcastConflated=" + broadcastConflated.get()
+                + ", broadcastDropped=" + broadcastDropped.get()
+                + ", reactiveDropped=" + reactiveDropped.get()
+                + ", publishThrottledDelayed=" + publishThrottledDelayed.get()
+                + ", publishThrottledDropped=" + publishThrottledDropped.get()
+                + ", publishThrottledCoalesced=" + publishThrottledCoalesced.get()
+                + ", topicInternOverflow=" + topicInternOverflow.get()
+                + ", payloadPoolHits=" + payloadPoolHits.get()
+                + ", payloadPoolMisses=" + payloadPoolMisses.get()
+                + ", payloadLeaks=" + payloadLeaks.get()
+                + ", publishLatencyQos0=" + publishLatency[0]
+                + ", publishLatencyQos1=" + publishLatency[1]
+                + ", publishLatencyQos2=" + publishLatency[2]
+                + ", publishFailed=" + publishFailed.get()
+                + ", publishExpired=" + publishExpired.get()
+                + ", wakeLockMillis(ping/reconnect/dispatch)=" + wakeLockMillis[0].get() + "/"
+                + wakeLockMillis[1].get() + "/" + wakeLockMillis[2].get()
+                + ", wakeMillisPerHour=" + getWakeMillisPerHour()
+                + ", memoryTrims=" + memoryTrims.get()
+                + ", memoryShedMessages=" + memoryShedMessages.get()
+                + ", remoteBatches=" + remoteBatches.get()
+                + ", remoteDropped=" + remoteDropped.get()
+                + ", deltaKeyframes=" + deltaKeyframes.get()
+                + ", deltaFrames=" + deltaFrames.get()
+                + ", deltaBytesSaved=" + deltaBytesSaved.get()
+                + ", deltaGaps=" + deltaGaps.get()
+                + ", deltaResyncRequests=" + deltaResyncRequests.get()
+                + ", connectRaces=" + connectRaces.get()
+                + ", connectRaceAttempts=" + connectRaceAttempts.get()
+                + ", connectRaceCancelled=" + connectRaceCancelled.get()
+                + ", brokerMigrations=" + brokerMigrations.get()
+                + ", tlsFullHandshakes=" + tlsFullHandshakes
+                + ", tlsResumedHandshakes=" + tlsResumedHandshakes
+                + ", " + getStartupBreakdown()
+                + "}";
+    }
+}
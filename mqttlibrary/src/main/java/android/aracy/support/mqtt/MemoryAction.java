@@ -0,0 +1,41 @@
+package android.aracy.support.mqtt;
+
+/**
+ * 内存紧张时可以执行的释放动作
+ *
+ * @author aracy
+ * @version [1.0, 2017-05-08]
+ * @see MQTTManager#setMemoryPolicy(MemoryAction, MemoryPressure)
+ */
+public enum MemoryAction {
+
+    /**
+     * 清空发布内容缓冲池
+     */
+    TRIM_PAYLOAD_POOL,
+
+    /**
+     * 让处理消息的空闲线程尽快退出
+     */
+    TRIM_IDLE_THREADS,
+
+    /**
+     * 最新值缓存缩小到四分之一，淘汰的主题同时从缓存文件中删除，恢复之后要等服务器重新推送
+     */
+    SHRINK_LAST_VALUE_CACHE,
+
+    /**
+     * 发布通道的队列缩小到四分之一，超出的消息从最早的开始丢弃。会丢失消息，默认不执行
+     */
+    SHRINK_PUBLISH_QUEUES,
+
+    /**
+     * 暂停低优先级的发布通道，消息留在队列中，暂停期间不发送。默认不执行
+     */
+    PAUSE_LOW_PRIORITY_LANES,
+
+    /**
+     * 暂时取消订阅低优先级的主题，暂停期间的消息收不到。默认不执行
+     */
+    PAUSE_LOW_PRIORITY_TOPICS
+}
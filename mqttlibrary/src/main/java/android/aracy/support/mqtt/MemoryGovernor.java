@@ -0,0 +1,262 @@
+package android.aracy.support.mqtt;
+
+import android.content.ComponentCallbacks2;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.EnumMap;
+import java.util.List;
+
+/**
+ * 内存管理
+ * <p>
+ * 收到onTrimMemory/onLowMemory时换算成{@link MemoryPressure}，按策略执行达到等级的{@link MemoryAction}。
+ * 缩小缓存和队列、暂停通道和主题都是暂时的，最后一次内存紧张通知之后{@link #RECOVERY_DELAY_MILLIS}内没有新的通知时恢复
+ *
+ * @author aracy
+ * @version [1.0, 2017-05-08]
+ */
+class MemoryGovernor {
+
+    private static final String TAG = "MemoryGovernor";
+
+    /**
+     * 缓存和队列缩小的倍数
+     */
+    static final int SHRINK_DIVISOR = 4;
+
+    /**
+     * 没有新的内存紧张通知之后恢复的时间
+     */
+    static final long RECOVERY_DELAY_MILLIS = 60 * 1000;
+
+    private static final String[] EMPTY = new String[0];
+
+    /**
+     * Service提供的线程和订阅控制
+     */
+    interface Host {
+
+        /**
+         * 设置处理消息的空闲线程是否尽快退出
+         *
+         * @param trimmed 是否尽快退出
+         */
+        void setIdleThreadsTrimmed(boolean trimmed);
+
+        /**
+         * 暂时取消订阅
+         *
+         * @param topics 主题
+         */
+        void pauseSubscriptions(String[] topics);
+
+        /**
+         * 重新订阅暂停的主题
+         *
+         * @param topics 主题
+         */
+        void resumeSubscriptions(String[] topics);
+    }
+
+    private final MQTTMetrics mMetrics;
+
+    private final PayloadPool mPayloadPool;
+
+    private final LastValueCache mLastValueCache;
+
+    private final OutboundScheduler mOutboundScheduler;
+
+    private final EnumMap<MemoryAction, MemoryPressure> mPolicies = new EnumMap<>(MemoryAction.class);
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final Runnable mRecoveryTask = new Runnable() {
+        @Override
+        public void run() {
+            recover();
+        }
+    };
+
+    private Host mHost;
+
+    /**
+     * 优先级低于这个值的通道为低优先级通道
+     */
+    private int mLowPriorityLane;
+
+    private String[] mLowPriorityTopics = EMPTY;
+
+    /**
+     * 当前暂停的主题
+     */
+    private String[] mPausedTopics = EMPTY;
+
+    private boolean mShed;
+
+    private MemoryShedReport mLastReport;
+
+    MemoryGovernor(MQTTMetrics metrics, PayloadPool payloadPool, LastValueCache lastValueCache,
+                   OutboundScheduler outboundScheduler) {
+        mMetrics = metrics;
+        mPayloadPool = payloadPool;
+        mLastValueCache = lastValueCache;
+        mOutboundScheduler = outboundScheduler;
+    }
+
+    /**
+     * 默认的策略，默认只释放缓存、缓冲池和空闲线程。丢弃或延迟消息的动作需要应用自己开启
+     *
+     * @param action 释放动作
+     * @return 执行动作的最低压力等级，为空时不执行
+     */
+    static MemoryPressure defaultPolicy(MemoryAction action) {
+        switch (action) {
+            case TRIM_PAYLOAD_POOL:
+            case TRIM_IDLE_THREADS:
+                return MemoryPressure.MODERATE;
+            case SHRINK_LAST_VALUE_CACHE:
+                return MemoryPressure.LOW;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * 设置策略
+     *
+     * @param action   释放动作
+     * @param pressure 执行动作的最低压力等级，为空时不执行
+     */
+    synchronized void setPolicy(MemoryAction action, MemoryPressure pressure) {
+        mPolicies.put(action, pressure);
+    }
+
+    /**
+     * 设置低优先级的通道和主题
+     *
+     * @param lanePriority 优先级低于这个值的通道为低优先级通道
+     * @param topics       低优先级的订阅主题
+     */
+    synchronized void setLowPriority(int lanePriority, String[] topics) {
+        mLowPriorityLane = lanePriority;
+        mLowPriorityTopics = topics == null ? EMPTY : topics;
+    }
+
+    synchronized void setHost(Host host) {
+        mHost = host;
+    }
+
+    /**
+     * 获取当前暂停的主题，重新连接时不订阅这些主题
+     *
+     * @return 主题
+     */
+    synchronized String[] getPausedTopics() {
+        return mPausedTopics;
+    }
+
+    synchronized MemoryShedReport getLastReport() {
+        return mLastReport;
+    }
+
+    /**
+     * 收到onTrimMemory
+     *
+     * @param level 系统的内存等级
+     */
+    void onTrimMemory(int level) {
+        MemoryPressure pressure;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            pressure = MemoryPressure.CRITICAL;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            pressure = MemoryPressure.LOW;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            pressure = MemoryPressure.MODERATE;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            pressure = MemoryPressure.CRITICAL;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            pressure = MemoryPressure.LOW;
+        } else {
+            pressure = MemoryPressure.MODERATE;
+        }
+        shed(pressure);
+    }
+
+    /**
+     * 按压力等级执行释放动作
+     *
+     * @param pressure 压力等级
+     */
+    synchronized void shed(MemoryPressure pressure) {
+        long payloadBytes = 0;
+        long cacheBytes = 0;
+        int dropped = 0;
+        String[] pausedLanes = EMPTY;
+        boolean temporary = false;
+        if (isEnabled(MemoryAction.TRIM_PAYLOAD_POOL, pressure)) {
+            payloadBytes = mPayloadPool.trim();
+        }
+        if (isEnabled(MemoryAction.TRIM_IDLE_THREADS, pressure) && mHost != null) {
+            mHost.setIdleThreadsTrimmed(true);
+            temporary = true;
+        }
+        if (isEnabled(MemoryAction.SHRINK_LAST_VALUE_CACHE, pressure)) {
+            cacheBytes = mLastValueCache.shrink(SHRINK_DIVISOR);
+            temporary = true;
+        }
+        if (isEnabled(MemoryAction.SHRINK_PUBLISH_QUEUES, pressure)) {
+            dropped = mOutboundScheduler.shrinkQueues(SHRINK_DIVISOR);
+            temporary = true;
+        }
+        if (isEnabled(MemoryAction.PAUSE_LOW_PRIORITY_LANES, pressure)) {
+            List<String> lanes = mOutboundScheduler.pauseLanes(mLowPriorityLane);
+            pausedLanes = lanes.toArray(new String[lanes.size()]);
+            temporary = true;
+        }
+        if (isEnabled(MemoryAction.PAUSE_LOW_PRIORITY_TOPICS, pressure) && mLowPriorityTopics.length > 0) {
+            if (mPausedTopics.length == 0 && mHost != null) {
+                mPausedTopics = mLowPriorityTopics;
+                mHost.pauseSubscriptions(mPausedTopics);
+            }
+            temporary = true;
+        }
+        if (temporary) {
+            mShed = true;
+            mHandler.removeCallbacks(mRecoveryTask);
+            mHandler.postDelayed(mRecoveryTask, RECOVERY_DELAY_MILLIS);
+        }
+        mMetrics.memoryTrims.incrementAndGet();
+        mMetrics.memoryShedMessages.addAndGet(dropped);
+        mLastReport = new MemoryShedReport(pressure, System.currentTimeMillis(), payloadBytes, cacheBytes, dropped,
+                pausedLanes, mPausedTopics);
+        LogUtil.i(TAG, mLastReport.toString());
+    }
+
+    private boolean isEnabled(MemoryAction action, MemoryPressure pressure) {
+        MemoryPressure threshold = mPolicies.containsKey(action) ? mPolicies.get(action) : defaultPolicy(action);
+        return threshold != null && pressure.compareTo(threshold) >= 0;
+    }
+
+    /**
+     * 内存恢复，恢复缓存和队列大小，恢复暂停的通道和主题
+     */
+    private synchronized void recover() {
+        if (!mShed) {
+            return;
+        }
+        mShed = false;
+        mLastValueCache.restore();
+        mOutboundScheduler.restoreQueues();
+        mOutboundScheduler.resumeLanes();
+        if (mHost != null) {
+            mHost.setIdleThreadsTrimmed(false);
+            if (mPausedTopics.length > 0) {
+                mHost.resumeSubscriptions(mPausedTopics);
+            }
+        }
+        // 没有Service时下次连接会订阅全部主题
+        mPausedTopics = EMPTY;
+        LogUtil.i(TAG, "内存恢复");
+    }
+}
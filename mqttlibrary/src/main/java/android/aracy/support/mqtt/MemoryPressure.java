@@ -0,0 +1,26 @@
+package android.aracy.support.mqtt;
+
+/**
+ * 内存压力等级，由系统的onTrimMemory/onLowMemory换算得到
+ *
+ * @author aracy
+ * @version [1.0, 2017-05-08]
+ * @see MQTTManager#setMemoryPolicy(MemoryAction, MemoryPressure)
+ */
+public enum MemoryPressure {
+
+    /**
+     * 内存开始紧张，或者应用进入后台
+     */
+    MODERATE,
+
+    /**
+     * 内存不足，后台进程开始被杀掉
+     */
+    LOW,
+
+    /**
+     * 内存严重不足，进程随时可能被杀掉
+     */
+    CRITICAL
+}
@@ -0,0 +1,98 @@
+package android.aracy.support.mqtt;
+
+import java.util.Arrays;
+
+/**
+ * 一次内存释放的结果
+ *
+ * @author aracy
+ * @version [1.0, 2017-05-08]
+ * @see MQTTManager#getLastMemoryShedReport()
+ */
+public final class MemoryShedReport {
+
+    private final MemoryPressure mPressure;
+
+    private final long mTime;
+
+    private final long mPayloadPoolBytes;
+
+    private final long mLastValueCacheBytes;
+
+    private final int mDroppedMessages;
+
+    private final String[] mPausedLanes;
+
+    private final String[] mPausedTopics;
+
+    MemoryShedReport(MemoryPressure pressure, long time, long payloadPoolBytes, long lastValueCacheBytes,
+                     int droppedMessages, String[] pausedLanes, String[] pausedTopics) {
+        mPressure = pressure;
+        mTime = time;
+        mPayloadPoolBytes = payloadPoolBytes;
+        mLastValueCacheBytes = lastValueCacheBytes;
+        mDroppedMessages = droppedMessages;
+        mPausedLanes = pausedLanes;
+        mPausedTopics = pausedTopics;
+    }
+
+    /**
+     * @return 内存压力等级
+     */
+    public MemoryPressure getPressure() {
+        return mPressure;
+    }
+
+    /**
+     * @return 释放的时间(System.currentTimeMillis)
+     */
+    public long getTime() {
+        return mTime;
+    }
+
+    /**
+     * @return 缓冲池释放的字节数
+     */
+    public long getPayloadPoolBytes() {
+        return mPayloadPoolBytes;
+    }
+
+    /**
+     * @return 最新值缓存释放的字节数(估算)
+     */
+    public long getLastValueCacheBytes() {
+        return mLastValueCacheBytes;
+    }
+
+    /**
+     * @return 发布队列中丢弃的消息数
+     */
+    public int getDroppedMessages() {
+        return mDroppedMessages;
+    }
+
+    /**
+     * @return 暂停的发布通道
+     */
+    public String[] getPausedLanes() {
+        return mPausedLanes.clone();
+    }
+
+    /**
+     * @return 暂时取消订阅的主题
+     */
+    public String[] getPausedTopics() {
+        return mPausedTopics.clone();
+    }
+
+    @Override
+    public String toString() {
+        return "MemoryShedReport{pressure=" + mPressure
+                + ", payloadPoolBytes=" + mPayloadPoolBytes
+                + ", lastValueCacheBytes=" + mLastValueCacheBytes
+                + ", droppedMessages=" + mDroppedMessages
+                + ", pausedLanes=" + Arrays.toString(mPausedLanes)
+                + ", pausedTopics=" + Arrays.toString(mPausedTopics)
+                + "}";
+    }
+}
@@ -0,0 +1,252 @@
+package android.aracy.support.mqtt;
+
+import android.os.Parcel;
+import android.os.ParcelFileDescriptor;
+import android.os.Parcelable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 跨进程传输的一批消息
+ * <p>
+ * 一批消息在一次Binder调用中传输。不小于{@link #MAPPED_PAYLOAD_BYTES}的内容不写入Parcel，
+ * 而是写入一个已经删除的临时文件，只传输文件描述符，接收方直接映射读取，避免超过Binder的传输上限。
+ * 发送方在{@link #isFull()}返回true时发送当前批次并开始新的批次
+ *
+ * @author aracy
+ * @version [1.0, 2017-05-12]
+ * @see IMQTTService
+ */
+public final class MessageBatch implements Parcelable {
+
+    private static final String TAG = "MessageBatch";
+
+    /**
+     * 写入Parcel的内容上限。Binder的传输缓冲为进程共享的1MB，同时进行的其他调用也要占用，
+     * 单次调用保持在64KB左右
+     */
+    public static final int MAX_INLINE_BYTES = 64 * 1024;
+
+    /**
+     * 每批最多的消息数
+     */
+    public static final int MAX_MESSAGES = 1000;
+
+    /**
+     * 内容不小于这个大小时通过映射文件传输
+     */
+    static final int MAPPED_PAYLOAD_BYTES = 16 * 1024;
+
+    /**
+     * 每条消息除主题和内容之外写入Parcel的字节数
+     */
+    private static final int ENTRY_OVERHEAD = 16;
+
+    private static final int FLAG_RETAINED = 1;
+
+    private static final int FLAG_DUPLICATE = 2;
+
+    /**
+     * 内容在Parcel中时的偏移量标记
+     */
+    private static final int INLINE = -1;
+
+    public static final Creator<MessageBatch> CREATOR = new Creator<MessageBatch>() {
+        @Override
+        public MessageBatch createFromParcel(Parcel source) {
+            return new MessageBatch(source);
+        }
+
+        @Override
+        public MessageBatch[] newArray(int size) {
+            return new MessageBatch[size];
+        }
+    };
+
+    private final ArrayList<MQTTMessage> mMessages;
+
+    private int mInlineBytes;
+
+    private boolean mHasMapped;
+
+    public MessageBatch() {
+        mMessages = new ArrayList<>();
+    }
+
+    private MessageBatch(Parcel source) {
+        int count = source.readInt();
+        mMessages = new ArrayList<>(count);
+        MappedByteBuffer mapped = null;
+        ParcelFileDescriptor descriptor = null;
+        FileInputStream in = null;
+        try {
+            int mappedBytes = source.readInt();
+            if (mappedBytes > 0) {
+                descriptor = source.readFileDescriptor();
+                in = new FileInputStream(descriptor.getFileDescriptor());
+                mapped = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, mappedBytes);
+            }
+            for (int i = 0; i < count; i++) {
+                String topic = source.readString();
+                int qos = source.readInt();
+                int flags = source.readInt();
+                int offset = source.readInt();
+                byte[] payload;
+                if (offset == INLINE) {
+                    payload = source.createByteArray();
+                } else {
+                    payload = new byte[source.readInt()];
+                    mapped.position(offset);
+                    mapped.get(payload);
+                }
+                add(new MQTTMessage(topic, payload, qos, (flags & FLAG_RETAINED) != 0,
+                        (flags & FLAG_DUPLICATE) != 0));
+            }
+        } catch (IOException e) {
+            LogUtil.e(TAG, "读取映射内容失败", e);
+        } finally {
+            closeQuietly(in);
+            closeQuietly(descriptor);
+        }
+    }
+
+    /**
+     * 增加一条消息
+     *
+     * @param topic    主题
+     * @param payload  内容
+     * @param qos      质量
+     * @param retained 是否为保留消息
+     */
+    public void add(String topic, byte[] payload, int qos, boolean retained) {
+        if (topic == null || payload == null) {
+            throw new IllegalArgumentException("topic and payload must not be null");
+        }
+        add(new MQTTMessage(topic, payload, qos, retained, false));
+    }
+
+    void add(MQTTMessage message) {
+        mMessages.add(message);
+        int payloadLength = message.getPayload().length;
+        mInlineBytes += message.getTopic().length() * 2 + ENTRY_OVERHEAD;
+        if (payloadLength < MAPPED_PAYLOAD_BYTES) {
+            mInlineBytes += payloadLength;
+        } else {
+            mHasMapped = true;
+        }
+    }
+
+    /**
+     * @return 消息数
+     */
+    public int size() {
+        return mMessages.size();
+    }
+
+    /**
+     * @return 是否应该发送当前批次
+     */
+    public boolean isFull() {
+        return mInlineBytes >= MAX_INLINE_BYTES || mMessages.size() >= MAX_MESSAGES;
+    }
+
+    /**
+     * @return 按加入顺序排列的消息
+     */
+    public List<MQTTMessage> getMessages() {
+        return Collections.unmodifiableList(mMessages);
+    }
+
+    @Override
+    public int describeContents() {
+        return mHasMapped ? CONTENTS_FILE_DESCRIPTOR : 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        int[] offsets = new int[mMessages.size() + 1];
+        ParcelFileDescriptor descriptor = mHasMapped ? mapPayloads(offsets) : null;
+        dest.writeInt(mMessages.size());
+        if (descriptor == null) {
+            dest.writeInt(0);
+        } else {
+            dest.writeInt(offsets[mMessages.size()]);
+            // Parcel会复制文件描述符，写入之后可以关闭
+            dest.writeFileDescriptor(descriptor.getFileDescriptor());
+            closeQuietly(descriptor);
+        }
+        for (int i = 0; i < mMessages.size(); i++) {
+            MQTTMessage message = mMessages.get(i);
+            dest.writeString(message.getTopic());
+            dest.writeInt(message.getQos());
+            dest.writeInt((message.isRetained() ? FLAG_RETAINED : 0) | (message.isDuplicate() ? FLAG_DUPLICATE : 0));
+            if (descriptor == null || message.getPayload().length < MAPPED_PAYLOAD_BYTES) {
+                dest.writeInt(INLINE);
+                dest.writeByteArray(message.getPayload());
+            } else {
+                dest.writeInt(offsets[i]);
+                dest.writeInt(message.getPayload().length);
+            }
+        }
+    }
+
+    /**
+     * 把大的内容写入临时文件，写完后删除文件，只保留文件描述符
+     *
+     * @param offsets 输出每条消息在文件中的偏移量，最后多出的一个位置输出文件总长度
+     * @return 文件描述符，失败时返回null，所有内容写入Parcel
+     */
+    private ParcelFileDescriptor mapPayloads(int[] offsets) {
+        int total = 0;
+        for (int i = 0; i < mMessages.size(); i++) {
+            int length = mMessages.get(i).getPayload().length;
+            if (length >= MAPPED_PAYLOAD_BYTES) {
+                offsets[i] = total;
+                total += length;
+            }
+        }
+        File file = null;
+        RandomAccessFile output = null;
+        try {
+            file = File.createTempFile("mqtt-batch", ".bin");
+            output = new RandomAccessFile(file, "rw");
+            MappedByteBuffer buffer = output.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, total);
+            for (MQTTMessage message : mMessages) {
+                if (message.getPayload().length >= MAPPED_PAYLOAD_BYTES) {
+                    buffer.put(message.getPayload());
+                }
+            }
+            ParcelFileDescriptor descriptor = ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+            offsets[mMessages.size()] = total;
+            return descriptor;
+        } catch (IOException e) {
+            LogUtil.e(TAG, "写入映射内容失败", e);
+            return null;
+        } finally {
+            closeQuietly(output);
+            if (file != null && !file.delete()) {
+                LogUtil.w(TAG, "删除临时文件失败:" + file);
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            LogUtil.e(TAG, "关闭文件失败", e);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package android.aracy.support.mqtt;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * 消息监听器注册表
+ * <p>
+ * 注册和注销时复制一份新的数组，分发时只读取当前数组，不加锁也不分配内存。
+ * 每个主题匹配到的监听器和数组一起缓存，注册表变化之前不需要重新匹配；
+ * 变化时连同缓存整体替换，注销的监听器不会被旧的匹配结果引用
+ *
+ * @author aracy
+ * @version [1.0, 2017-04-14]
+ */
+class MessageListenerRegistry {
+
+    private static final String TAG = "MessageListenerRegistry";
+
+    private static final ListenerEntry[] EMPTY = new ListenerEntry[0];
+
+    private final Object mLock = new Object();
+
+    private volatile Routes mRoutes = new Routes(EMPTY);
+
+    /**
+     * 注册监听器
+     *
+     * @param filter   主题过滤器，支持+和#通配符
+     * @param listener 监听器
+     * @param executor 回调线程
+     */
+    void add(String filter, MQTTMessageListener listener, Executor executor) {
+        synchronized (mLock) {
+            ListenerEntry[] entries = mRoutes.entries;
+            ListenerEntry[] newEntries = new ListenerEntry[entries.length + 1];
+            System.arraycopy(entries, 0, newEntries, 0, entries.length);
+            newEntries[entries.length] = new ListenerEntry(filter, listener, executor);
+            mRoutes = new Routes(newEntries);
+        }
+    }
+
+    /**
+     * 注销监听器的所有注册
+     *
+     * @param listener 监听器
+     */
+    void remove(MQTTMessageListener listener) {
+        synchronized (mLock) {
+            ListenerEntry[] entries = mRoutes.entries;
+            int count = 0;
+            for (ListenerEntry entry : entries) {
+                if (entry.listener != listener) {
+                    count++;
+                }
+            }
+            if (count == entries.length) {
+                return;
+            }
+            ListenerEntry[] newEntries = count == 0 ? EMPTY : new ListenerEntry[count];
+            int index = 0;
+            for (ListenerEntry entry : entries) {
+                if (entry.listener != listener) {
+                    newEntries[index++] = entry;
+                }
+            }
+            mRoutes = new Routes(newEntries);
+        }
+    }
+
+    /**
+     * 是否有注册的监听器
+     *
+     * @return 是否为空
+     */
+    boolean isEmpty() {
+        return mRoutes.entries.length == 0;
+    }
+
+    /**
+     * 分发消息
+     *
+     * @param topic   规范化的消息主题
+     * @param message 消息
+     */
+    void dispatch(Topic topic, MQTTMessage message) {
+        Routes routes = mRoutes;
+        ListenerEntry[] matched = routes.cache.get(topic);
+        if (matched == null) {
+            matched = match(routes.entries, topic.getName());
+            // 表满后的临时主题每次都是新实例，缓存只会不断增长
+            if (topic.isInterned()) {
+                routes.cache.put(topic, matched);
+            }
+        }
+        for (ListenerEntry entry : matched) {
+            if (entry.executor == MQTTExecutors.CALLBACK_THREAD) {
+                deliver(entry.listener, message);
+            } else {
+                entry.executor.execute(new DeliveryTask(entry.listener, message));
+            }
+        }
+    }
+
+    private static ListenerEntry[] match(ListenerEntry[] entries, String topic) {
+        int count = 0;
+        for (ListenerEntry entry : entries) {
+            if (MqttUtil.isTopicMatched(entry.filter, topic)) {
+                count++;
+            }
+        }
+        if (count == 0) {
+            return EMPTY;
+        }
+        ListenerEntry[] matched = new ListenerEntry[count];
+        int index = 0;
+        for (ListenerEntry entry : entries) {
+            if (MqttUtil.isTopicMatched(entry.filter, topic)) {
+                matched[index++] = entry;
+            }
+        }
+        return matched;
+    }
+
+    private static void deliver(MQTTMessageListener listener, MQTTMessage message) {
+        try {
+            listener.onMessageArrived(message);
+        } catch (RuntimeException e) {
+            // 监听器的异常不能影响其他监听器，也不能抛回Paho导致断开连接
+            LogUtil.e(TAG, "listener error, topic:" + message.getTopic(), e);
+        }
+    }
+
+    /**
+     * 监听器数组和按主题缓存的匹配结果
+     */
+    private static final class Routes {
+
+        final ListenerEntry[] entries;
+
+        final ConcurrentHashMap<Topic, ListenerEntry[]> cache = new ConcurrentHashMap<>();
+
+        Routes(ListenerEntry[] entries) {
+            this.entries = entries;
+        }
+    }
+
+    private static final class ListenerEntry {
+
+        final String filter;
+
+        final MQTTMessageListener listener;
+
+        final Executor executor;
+
+        ListenerEntry(String filter, MQTTMessageListener listener, Executor executor) {
+            this.filter = filter;
+            this.listener = listener;
+            this.executor = executor;
+        }
+    }
+
+    private static final class DeliveryTask implements Runnable {
+
+        private final MQTTMessageListener mListener;
+
+        private final MQTTMessage mMessage;
+
+        DeliveryTask(MQTTMessageListener listener, MQTTMessage message) {
+            mListener = listener;
+            mMessage = message;
+        }
+
+        @Override
+        public void run() {
+            deliver(mListener, mMessage);
+        }
+    }
+}
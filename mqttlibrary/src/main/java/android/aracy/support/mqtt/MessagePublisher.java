@@ -0,0 +1,209 @@
+package android.aracy.support.mqtt;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按主题过滤器订阅消息的Publisher
+ * <p>
+ * 每个订阅者有独立的有界缓存，只有订阅者通过{@link Subscription#request(long)}请求之后才会从缓存中取出消息，
+ * 缓存满时按{@link BackpressureStrategy}处理
+ *
+ * @author aracy
+ * @version [1.0, 2017-04-17]
+ */
+class MessagePublisher implements Publisher<MQTTMessage> {
+
+    private final MessageListenerRegistry mRegistry;
+
+    private final MQTTMetrics mMetrics;
+
+    private final String mFilter;
+
+    private final BackpressureStrategy mStrategy;
+
+    private final int mCapacity;
+
+    private final Executor mExecutor;
+
+    /**
+     * @param registry 消息监听器注册表
+     * @param metrics  运行统计
+     * @param filter   主题过滤器
+     * @param strategy 缓存满时的处理策略
+     * @param capacity 每个订阅者的缓存大小
+     * @param executor 向订阅者发送消息的线程
+     */
+    MessagePublisher(MessageListenerRegistry registry, MQTTMetrics metrics, String filter,
+                     BackpressureStrategy strategy, int capacity, Executor executor) {
+        mRegistry = registry;
+        mMetrics = metrics;
+        mFilter = filter;
+        mStrategy = strategy;
+        mCapacity = capacity;
+        mExecutor = executor;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super MQTTMessage> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber is null");
+        }
+        MessageSubscription subscription = new MessageSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+        if (!subscription.mCancelled) {
+            mRegistry.add(mFilter, subscription, MQTTExecutors.CALLBACK_THREAD);
+        }
+    }
+
+    /**
+     * 单个订阅者的订阅关系
+     * <p>
+     * 所有对订阅者的回调都通过{@link #drain()}串行执行
+     */
+    private final class MessageSubscription implements Subscription, MQTTMessageListener, Runnable {
+
+        private final Subscriber<? super MQTTMessage> mSubscriber;
+
+        private final ArrayDeque<MQTTMessage> mQueue;
+
+        private final AtomicLong mRequested = new AtomicLong();
+
+        private final AtomicInteger mWip = new AtomicInteger();
+
+        private volatile boolean mCancelled;
+
+        private volatile Throwable mError;
+
+        /**
+         * 是否已经结束，只在drain中访问
+         */
+        private boolean mDone;
+
+        MessageSubscription(Subscriber<? super MQTTMessage> subscriber) {
+            mSubscriber = subscriber;
+            mQueue = new ArrayDeque<>(Math.min(mCapacity, 64));
+        }
+
+        @Override
+        public void onMessageArrived(MQTTMessage message) {
+            if (mCancelled) {
+                return;
+            }
+            synchronized (mQueue) {
+                if (mQueue.size() < mCapacity) {
+                    mQueue.offerLast(message);
+                } else {
+                    switch (mStrategy) {
+                        case DROP:
+                            mMetrics.reactiveDropped.incrementAndGet();
+                            return;
+                        case LATEST:
+                            mQueue.pollLast();
+                            mQueue.offerLast(message);
+                            mMetrics.reactiveDropped.incrementAndGet();
+                            break;
+                        default:
+                            mError = new IllegalStateException("buffer overflow, capacity:" + mCapacity
+                                    + " filter:" + mFilter);
+                            mRegistry.remove(this);
+                            break;
+                    }
+                }
+            }
+            drain();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                mError = new IllegalArgumentException("request must be positive, but was " + n);
+                mRegistry.remove(this);
+                drain();
+                return;
+            }
+            long current;
+            long next;
+            do {
+                current = mRequested.get();
+                if (current == Long.MAX_VALUE) {
+                    return;
+                }
+                next = current + n;
+                if (next < 0) {
+                    next = Long.MAX_VALUE;
+                }
+            } while (!mRequested.compareAndSet(current, next));
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            if (mCancelled) {
+                return;
+            }
+            mCancelled = true;
+            mRegistry.remove(this);
+            synchronized (mQueue) {
+                mQueue.clear();
+            }
+        }
+
+        /**
+         * 安排一次发送，同一时间只有一个线程在发送
+         */
+        private void drain() {
+            if (mWip.getAndIncrement() == 0) {
+                mExecutor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            while (true) {
+                if (mDone || mCancelled) {
+                    return;
+                }
+                long requested = mRequested.get();
+                long emitted = 0;
+                while (emitted != requested) {
+                    if (mCancelled || mError != null) {
+                        break;
+                    }
+                    MQTTMessage message;
+                    synchronized (mQueue) {
+                        message = mQueue.pollFirst();
+                    }
+                    if (message == null) {
+                        break;
+                    }
+                    mSubscriber.onNext(message);
+                    emitted++;
+                }
+                if (emitted != 0 && requested != Long.MAX_VALUE) {
+                    mRequested.addAndGet(-emitted);
+                }
+                Throwable error = mError;
+                if (error != null && !mCancelled) {
+                    mDone = true;
+                    synchronized (mQueue) {
+                        mQueue.clear();
+                    }
+                    mSubscriber.onError(error);
+                    return;
+                }
+                missed = mWip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+    }
+}
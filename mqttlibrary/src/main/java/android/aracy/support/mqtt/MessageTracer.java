@@ -0,0 +1,206 @@
+package android.aracy.support.mqtt;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 消息跟踪
+ * <p>
+ * 按采样率给收到和发布的消息分配跟踪ID，在各个时间点记录到固定大小的环形缓冲中，缓冲满后覆盖最早的记录。
+ * 每条记录是一个不可变的小对象，记录时只有一次原子加和一次数组写入，不加锁，可以在生产环境保持开启。
+ * 对象的字段都是final，通过{@link AtomicReferenceArray}发布，导出时读到的记录一定是完整的。
+ * 导出为Chrome trace-event JSON，用chrome://tracing或Perfetto打开
+ *
+ * @author aracy
+ * @version [1.0, 2017-05-05]
+ */
+class MessageTracer {
+
+    /**
+     * 环形缓冲的大小，必须是2的幂
+     */
+    static final int CAPACITY = 16384;
+
+    private static final int MASK = CAPACITY - 1;
+
+    /**
+     * 每隔多少条消息跟踪一条，0表示关闭
+     */
+    private volatile int mSampleEvery;
+
+    private final AtomicLong mSampleCounter = new AtomicLong();
+
+    private final AtomicLong mNextTraceId = new AtomicLong(1);
+
+    private final AtomicLong mCursor = new AtomicLong();
+
+    private final AtomicReferenceArray<Event> mEvents = new AtomicReferenceArray<>(CAPACITY);
+
+    private final long mStartNanos = System.nanoTime();
+
+    /**
+     * 设置采样率
+     *
+     * @param sampleEvery 每隔多少条消息跟踪一条，1表示全部跟踪，0表示关闭
+     */
+    void setSampleEvery(int sampleEvery) {
+        mSampleEvery = Math.max(0, sampleEvery);
+    }
+
+    /**
+     * 按采样率给一条消息分配跟踪ID
+     *
+     * @return 跟踪ID，不跟踪时返回0
+     */
+    long newTraceId() {
+        int sampleEvery = mSampleEvery;
+        if (sampleEvery == 0) {
+            return 0;
+        }
+        if (sampleEvery > 1 && mSampleCounter.getAndIncrement() % sampleEvery != 0) {
+            return 0;
+        }
+        return mNextTraceId.getAndIncrement();
+    }
+
+    /**
+     * 记录一个时间点
+     *
+     * @param traceId 跟踪ID，为0时不记录
+     * @param point   时间点
+     * @param topic   消息主题
+     */
+    void record(long traceId, TracePoint point, String topic) {
+        if (traceId == 0) {
+            return;
+        }
+        long index = mCursor.getAndIncrement();
+        mEvents.lazySet((int) (index & MASK), new Event(index, traceId, System.nanoTime(),
+                Thread.currentThread().getId(), point, topic));
+    }
+
+    /**
+     * 导出缓冲中的记录
+     * <p>
+     * 同一条消息相邻的两个时间点导出为一个阶段，阶段名称见{@link TracePoint#stage}
+     *
+     * @param writer 输出
+     * @throws IOException 写入失败
+     */
+    void dump(Writer writer) throws IOException {
+        List<Event> events = snapshot();
+        Collections.sort(events, new Comparator<Event>() {
+            @Override
+            public int compare(Event lhs, Event rhs) {
+                if (lhs.traceId != rhs.traceId) {
+                    return lhs.traceId < rhs.traceId ? -1 : 1;
+                }
+                return lhs.time < rhs.time ? -1 : (lhs.time == rhs.time ? 0 : 1);
+            }
+        });
+        writer.write("{\"traceEvents\":[");
+        boolean first = true;
+        for (int i = 0; i + 1 < events.size(); i++) {
+            Event from = events.get(i);
+            Event to = events.get(i + 1);
+            if (from.traceId != to.traceId || from.point.stage == null) {
+                continue;
+            }
+            if (!first) {
+                writer.write(',');
+            }
+            first = false;
+            writer.write("{\"name\":\"");
+            writer.write(from.point.stage);
+            writer.write("\",\"cat\":\"mqtt\",\"ph\":\"X\",\"pid\":1,\"tid\":");
+            writer.write(Long.toString(to.threadId));
+            writer.write(",\"ts\":");
+            writer.write(toMicros(from.time - mStartNanos));
+            writer.write(",\"dur\":");
+            writer.write(toMicros(to.time - from.time));
+            writer.write(",\"args\":{\"id\":");
+            writer.write(Long.toString(from.traceId));
+            writer.write(",\"topic\":\"");
+            writeEscaped(writer, from.topic);
+            writer.write("\"}}");
+        }
+        writer.write("],\"displayTimeUnit\":\"ms\"}");
+        writer.flush();
+    }
+
+    /**
+     * 读取缓冲中的记录，读取期间被覆盖和还没有写入的槽会被跳过
+     */
+    private List<Event> snapshot() {
+        long end = mCursor.get();
+        long start = Math.max(0, end - CAPACITY);
+        List<Event> events = new ArrayList<>((int) (end - start));
+        for (long index = start; index < end; index++) {
+            Event event = mEvents.get((int) (index & MASK));
+            if (event != null && event.index == index) {
+                events.add(event);
+            }
+        }
+        return events;
+    }
+
+    /**
+     * 纳秒转换为微秒，保留三位小数
+     */
+    private static String toMicros(long nanos) {
+        String fraction = Long.toString(1000 + Math.abs(nanos % 1000)).substring(1);
+        return (nanos < 0 && nanos > -1000 ? "-0" : Long.toString(nanos / 1000)) + "." + fraction;
+    }
+
+    private static void writeEscaped(Writer writer, String text) throws IOException {
+        if (text == null) {
+            return;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                writer.write('\\');
+                writer.write(c);
+            } else if (c < 0x20) {
+                writer.write("\\u00");
+                writer.write(Character.forDigit(c >> 4, 16));
+                writer.write(Character.forDigit(c & 0xF, 16));
+            } else {
+                writer.write(c);
+            }
+        }
+    }
+
+    private static final class Event {
+
+        /**
+         * 写入时的游标，判断槽中是否为这一轮的记录
+         */
+        final long index;
+
+        final long traceId;
+
+        final long time;
+
+        final long threadId;
+
+        final TracePoint point;
+
+        final String topic;
+
+        Event(long index, long traceId, long time, long threadId, TracePoint point, String topic) {
+            this.index = index;
+            this.traceId = traceId;
+            this.time = time;
+            this.threadId = threadId;
+            this.point = point;
+            this.topic = topic;
+        }
+    }
+}
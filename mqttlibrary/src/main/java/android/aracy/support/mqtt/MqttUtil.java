@@ -6,6 +6,12 @@ import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.text.TextUtils;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 /**
  * MQTT 工具类
  *
@@ -14,7 +20,7 @@ import android.text.TextUtils;
  */
 class MqttUtil {
 
-    private static final String MQTT_FILE_NAME = "mqttFile";
+    static final String MQTT_FILE_NAME = "mqttFile";
 
     private static final String MQTT_SERVER_URI = "mqttServerUri";
 
@@ -24,11 +30,11 @@ class MqttUtil {
 
     private static final String MQTT_LOGIN_PASSWORD = "mqttLoginPassword";
 
-    private static final String MQTT_SUBCRIBE_TOPICS = "mqttSubcribeTopics";
+    static final String MQTT_SUBCRIBE_TOPICS = "mqttSubcribeTopics";
 
-    private static final String MQTT_SUBCRIBE_QOSES = "mqttSubcribeQoses";
+    static final String MQTT_SUBCRIBE_QOSES = "mqttSubcribeQoses";
 
-    private static final String MQTT_SERVER_URI_ARRAY = "mqttServerArray";
+    static final String MQTT_SERVER_URI_ARRAY = "mqttServerArray";
 
     private static final String MQTT_SERVICE_AUTO_START = "MQTTServiceStartAuto";
 
@@ -36,6 +42,52 @@ class MqttUtil {
 
     private static final String MQTT_BROADCAST = "MQTTBroadcast";
 
+    private static final String MQTT_BROADCAST_BATCH_INTERVAL = "MQTTBroadcastBatchInterval";
+
+    private static final String MQTT_BROADCAST_BATCH_CONFLATE = "MQTTBroadcastBatchConflate";
+
+    private static final String MQTT_BROADCAST_BATCH_MAX_RATE = "MQTTBroadcastBatchMaxRate";
+
+    private static final String MQTT_PUBLISH_LANES = "MQTTPublishLanes";
+
+    private static final String MQTT_LANE_SCHEDULING = "MQTTLaneScheduling";
+
+    private static final String MQTT_RATE_LIMIT = "MQTTRateLimit";
+
+    private static final String MQTT_TOPIC_RATE_LIMITS = "MQTTTopicRateLimits";
+
+    private static final String MQTT_STATE_TOPICS = "MQTTStateTopics";
+
+    private static final String MQTT_LAST_VALUE_CACHE_SIZE = "MQTTLastValueCacheSize";
+
+    private static final String MQTT_BATCH_HANDLER_CLASS_NAME = "MQTTBatchHandler";
+
+    private static final String MQTT_INBOUND_JOURNAL = "MQTTInboundJournal";
+
+    private static final String MQTT_BATCH_MAX_SIZE = "MQTTBatchMaxSize";
+
+    private static final String MQTT_BATCH_MAX_DELAY = "MQTTBatchMaxDelay";
+
+    private static final String MQTT_TRACE_SAMPLE_EVERY = "MQTTTraceSampleEvery";
+
+    private static final String MQTT_MEMORY_POLICY_PREFIX = "MQTTMemoryPolicy_";
+
+    private static final String MQTT_LOW_PRIORITY_LANE = "MQTTLowPriorityLane";
+
+    private static final String MQTT_LOW_PRIORITY_TOPICS = "MQTTLowPriorityTopics";
+
+    private static final String MQTT_DISPATCH_MODE = "MQTTDispatchMode";
+
+    private static final String MQTT_DELTA_TOPICS = "MQTTDeltaTopics";
+
+    private static final String MQTT_CONNECT_RACE_STAGGER = "MQTTConnectRaceStagger";
+
+    private static final String MQTT_BROKER_SCORES = "MQTTBrokerScores";
+
+    private static final String MQTT_BROKER_MIGRATION = "MQTTBrokerMigration";
+
+    private static final String MQTT_TLS_CONFIG = "MQTTTlsConfig";
+
     /**
      * 设置服务器的URI
      *
@@ -64,18 +116,7 @@ class MqttUtil {
             return;
         }
 
-        SharedPreferences sharedPreferences = context.getApplicationContext().getSharedPreferences(MQTT_FILE_NAME, Context.MODE_PRIVATE);
-        SharedPreferences.Editor editor = sharedPreferences.edit();
-
-        StringBuilder builder = new StringBuilder(serverURIs[0]);
-
-        for (int i = 1; i < serverURIs.length; i++) {
-            builder.append(",").append(serverURIs[i]);
-        }
-
-        editor.putString(MQTT_SERVER_URI_ARRAY, builder.toString());
-        editor.apply();
-
+        ConfigStore.getInstance(context).setServerURIs(serverURIs);
     }
 
     /**
@@ -120,19 +161,22 @@ class MqttUtil {
      * @see [类、类#方法、类#成员]
      */
     static void setTopics(Context context, String[] topics) {
+        setTopics(context, topics, null);
+    }
+
+    /**
+     * 设置订阅主题和主题质量
+     *
+     * @param context 上下文环境
+     * @param topics  主题
+     * @param qoses   主题质量，为空或长度不一致时全部使用0
+     * @see [类、类#方法、类#成员]
+     */
+    static void setTopics(Context context, String[] topics, int[] qoses) {
         if (topics == null) {
             return;
         }
-        SharedPreferences sharedPreferences = context.getApplicationContext().getSharedPreferences(MQTT_FILE_NAME, Context.MODE_PRIVATE);
-        SharedPreferences.Editor editor = sharedPreferences.edit();
-
-        StringBuilder builder = new StringBuilder();
-        for (String topic : topics) {
-            builder.append(TextUtils.isEmpty(builder) ? "" : ",").append(topic);
-        }
-
-        editor.putString(MQTT_SUBCRIBE_TOPICS, builder.toString());
-        editor.apply();
+        ConfigStore.getInstance(context).setTopics(topics, qoses);
     }
 
     /***
@@ -146,17 +190,7 @@ class MqttUtil {
         if (Qoses == null) {
             return;
         }
-        SharedPreferences sharedPreferences = context.getApplicationContext().getSharedPreferences(MQTT_FILE_NAME, Context.MODE_PRIVATE);
-        SharedPreferences.Editor editor = sharedPreferences.edit();
-
-        StringBuilder builder = new StringBuilder(Qoses[0]);
-
-        for (int i = 1; i < Qoses.length; i++) {
-            builder.append(TextUtils.isEmpty(builder) ? "" : ",").append(Qoses[i]);
-        }
-
-        editor.putString(MQTT_SUBCRIBE_QOSES, builder.toString());
-        editor.apply();
+        ConfigStore.getInstance(context).setQoses(Qoses);
     }
 
     /**
@@ -206,6 +240,237 @@ class MqttUtil {
         editor.apply();
     }
 
+    /**
+     * 存储批量广播的配置
+     *
+     * @param context        上下文环境
+     * @param intervalMillis 批量广播的间隔，小于等于0表示逐条广播
+     * @param conflate       同一主题在一个间隔内是否只保留最新的消息
+     * @param maxRate        每秒最多广播的消息数，小于等于0表示不限制
+     */
+    static void setBroadcastBatch(Context context, long intervalMillis, boolean conflate, int maxRate) {
+        SharedPreferences sharedPreferences = context.getApplicationContext().getSharedPreferences(MQTT_FILE_NAME, Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = sharedPreferences.edit();
+
+        editor.putLong(MQTT_BROADCAST_BATCH_INTERVAL, intervalMillis);
+        editor.putBoolean(MQTT_BROADCAST_BATCH_CONFLATE, conflate);
+        editor.putInt(MQTT_BROADCAST_BATCH_MAX_RATE, maxRate);
+        editor.apply();
+    }
+
+    /**
+     * 存储发布通道，同名通道会被覆盖
+     *
+     * @param context  上下文环境
+     * @param name     通道名称
+     * @param priority 优先级
+     * @param weight   权重
+     * @param capacity 队列长度
+     */
+    static void addPublishLane(Context context, String name, int priority, int weight, int capacity) {
+        SharedPreferences sharedPreferences = context.getApplicationContext().getSharedPreferences(MQTT_FILE_NAME, Context.MODE_PRIVATE);
+
+        Set<String> lanes = new HashSet<>();
+        for (String lane : sharedPreferences.getStringSet(MQTT_PUBLISH_LANES, new HashSet<String>())) {
+            if (!TextUtils.equals(parseLaneName(lane), name)) {
+                lanes.add(lane);
+            }
+        }
+        lanes.add(name + "|" + priority + "|" + weight + "|" + capacity);
+
+        SharedPreferences.Editor editor = sharedPreferences.edit();
+        editor.putStringSet(MQTT_PUBLISH_LANES, lanes);
+        editor.apply();
+    }
+
+    /**
+     * 存储发布通道的调度方式
+     *
+     * @param context    上下文环境
+     * @param scheduling 调度方式
+     */
+    static void setLaneScheduling(Context context, LaneScheduling scheduling) {
+        SharedPreferences sharedPreferences = context.getApplicationContext().getSharedPreferences(MQTT_FILE_NAME, Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = sharedPreferences.edit();
+
+        editor.putString(MQTT_LANE_SCHEDULING, scheduling.name());
+        editor.apply();
+    }
+
+    /**
+     * 存储连接级别的发布速率限制
+     *
+     * @param context          上下文环境
+     * @param permitsPerSecond 每秒允许发布的消息数，小于等于0表示不限制
+     * @param burst            允许突发的消息数
+     * @param policy           超过限制时的处理方式
+     */
+    static void setRateLimit(Context context, double permitsPerSecond, int burst, RateLimitPolicy policy) {
+        SharedPreferences sharedPreferences = context.getApplicationContext().getSharedPreferences(MQTT_FILE_NAME, Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = sharedPreferences.edit();
+
+        if (permitsPerSecond <= 0) {
+            editor.remove(MQTT_RATE_LIMIT);
+        } else {
+            editor.putString(MQTT_RATE_LIMIT, permitsPerSecond + "|" + burst + "|" + policy.name());
+        }
+        editor.apply();
+    }
+
+    /**
+     * 存储主题过滤器的发布速率限制，同一过滤器会被覆盖
+     *
+     * @param context          上下文环境
+     * @param filter           主题过滤器
+     * @param permitsPerSecond 每秒允许发布的消息数，小于等于0表示取消限制
+     * @param burst            允许突发的消息数
+     * @param policy           超过限制时的处理方式
+     */
+    static void setTopicRateLimit(Context context, String filter, double permitsPerSecond, int burst,
+                                  RateLimitPolicy policy) {
+        SharedPreferences sharedPreferences = context.getApplicationContext().getSharedPreferences(MQTT_FILE_NAME, Context.MODE_PRIVATE);
+
+        Set<String> limits = new HashSet<>();
+        for (String limit : sharedPreferences.getStringSet(MQTT_TOPIC_RATE_LIMITS, new HashSet<String>())) {
+            if (!TextUtils.equals(parseLaneName(limit), filter)) {
+                limits.add(limit);
+            }
+        }
+        if (permitsPerSecond > 0) {
+            limits.add(filter + "|" + permitsPerSecond + "|" + burst + "|" + policy.name());
+        }
+
+        SharedPreferences.Editor editor = sharedPreferences.edit();
+        editor.putStringSet(MQTT_TOPIC_RATE_LIMITS, limits);
+        editor.apply();
+    }
+
+    /**
+     * 添加状态主题过滤器
+     *
+     * @param context 上下文环境
+     * @param filter  主题过滤器
+     */
+    static void addStateTopic(Context context, String filter) {
+        SharedPreferences sharedPreferences = context.getApplicationContext().getSharedPreferences(MQTT_FILE_NAME, Context.MODE_PRIVATE);
+
+        Set<String> filters = new HashSet<>(sharedPreferences.getStringSet(MQTT_STATE_TOPICS, new HashSet<String>()));
+        filters.add(filter);
+
+        SharedPreferences.Editor editor = sharedPreferences.edit();
+        editor.putStringSet(MQTT_STATE_TOPICS, filters);
+        editor.apply();
+    }
+
+    /**
+     * 存储最新值缓存的大小
+     *
+     * @param context  上下文环境
+     * @param maxBytes 缓存大小
+     */
+    static void setLastValueCacheSize(Context context, int maxBytes) {
+        SharedPreferences sharedPreferences = context.getApplicationContext().getSharedPreferences(MQTT_FILE_NAME, Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = sharedPreferences.edit();
+
+        editor.putInt(MQTT_LAST_VALUE_CACHE_SIZE, maxBytes);
+        editor.apply();
+    }
+
+    /**
+     * 存储批量处理消息的class
+     *
+     * @param context        上下文环境
+     * @param handlerClass   批量处理消息的Class，为空时取消批量处理
+     * @param maxBatchSize   每批最多的消息数
+     * @param maxDelayMillis 收到第一条消息之后最多等待的时间
+     */
+    static void setBatchHandler(Context context, Class<?> handlerClass, int maxBatchSize, long maxDelayMillis) {
+        SharedPreferences sharedPreferences = context.getApplicationContext().getSharedPreferences(MQTT_FILE_NAME, Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = sharedPreferences.edit();
+
+        if (handlerClass == null) {
+            editor.remove(MQTT_BATCH_HANDLER_CLASS_NAME);
+        } else {
+            editor.putString(MQTT_BATCH_HANDLER_CLASS_NAME, handlerClass.getName());
+        }
+        editor.putInt(MQTT_BATCH_MAX_SIZE, maxBatchSize);
+        editor.putLong(MQTT_BATCH_MAX_DELAY, maxDelayMillis);
+        editor.apply();
+    }
+
+    /**
+     * 存储是否开启收到消息的预写日志
+     *
+     * @param context 上下文环境
+     * @param enabled 是否开启
+     */
+    static void setInboundJournal(Context context, boolean enabled) {
+        SharedPreferences sharedPreferences = context.getApplicationContext().getSharedPreferences(MQTT_FILE_NAME, Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = sharedPreferences.edit();
+
+        editor.putBoolean(MQTT_INBOUND_JOURNAL, enabled);
+        editor.apply();
+    }
+
+    /**
+     * 存储消息跟踪的采样率
+     *
+     * @param context     上下文环境
+     * @param sampleEvery 每隔多少条消息跟踪一条，0表示关闭
+     */
+    static void setTraceSampleEvery(Context context, int sampleEvery) {
+        SharedPreferences sharedPreferences = context.getApplicationContext().getSharedPreferences(MQTT_FILE_NAME, Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = sharedPreferences.edit();
+
+        editor.putInt(MQTT_TRACE_SAMPLE_EVERY, sampleEvery);
+        editor.apply();
+    }
+
+    /**
+     * 存储内存紧张时的释放策略
+     *
+     * @param context  上下文环境
+     * @param action   释放动作
+     * @param pressure 执行动作的最低压力等级，为空时不执行
+     */
+    static void setMemoryPolicy(Context context, MemoryAction action, MemoryPressure pressure) {
+        SharedPreferences sharedPreferences = context.getApplicationContext().getSharedPreferences(MQTT_FILE_NAME, Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = sharedPreferences.edit();
+
+        editor.putString(MQTT_MEMORY_POLICY_PREFIX + action.name(), pressure == null ? "" : pressure.name());
+        editor.apply();
+    }
+
+    /**
+     * 存储BaseRunnable的执行方式
+     *
+     * @param context 上下文环境
+     * @param mode    执行方式
+     */
+    static void setDispatchMode(Context context, DispatchMode mode) {
+        SharedPreferences sharedPreferences = context.getApplicationContext().getSharedPreferences(MQTT_FILE_NAME, Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = sharedPreferences.edit();
+
+        editor.putString(MQTT_DISPATCH_MODE, mode.name());
+        editor.apply();
+    }
+
+    /**
+     * 存储低优先级的通道和主题
+     *
+     * @param context      上下文环境
+     * @param lanePriority 优先级低于这个值的通道为低优先级通道
+     * @param topics       低优先级的订阅主题
+     */
+    static void setLowPriority(Context context, int lanePriority, String[] topics) {
+        SharedPreferences sharedPreferences = context.getApplicationContext().getSharedPreferences(MQTT_FILE_NAME, Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = sharedPreferences.edit();
+
+        editor.putInt(MQTT_LOW_PRIORITY_LANE, lanePriority);
+        editor.putStringSet(MQTT_LOW_PRIORITY_TOPICS,
+                topics == null ? new HashSet<String>() : new HashSet<>(Arrays.asList(topics)));
+        editor.apply();
+    }
 
     /**
      * 获取ClientId
@@ -272,14 +537,7 @@ class MqttUtil {
      * @see [类、类#方法、类#成员]
      */
     static String[] getTopics(Context context) {
-        SharedPreferences preferences = context.getSharedPreferences(MQTT_FILE_NAME, Context.MODE_PRIVATE);
-        String topicsStr = preferences.getString(MQTT_SUBCRIBE_TOPICS, null);
-
-        if (TextUtils.isEmpty(topicsStr)) {
-            return null;
-        }
-
-        return TextUtils.split(topicsStr, ",");
+        return ConfigStore.getInstance(context).getTopics();
     }
 
     /**
@@ -290,24 +548,7 @@ class MqttUtil {
      * @see [类、类#方法、类#成员]
      */
     static int[] getQoses(Context context) {
-        SharedPreferences sharedPreferences = context.getApplicationContext().getSharedPreferences(MQTT_FILE_NAME, Context.MODE_PRIVATE);
-        String qosesStr = sharedPreferences.getString(MQTT_SUBCRIBE_QOSES, "");
-
-        if (TextUtils.isEmpty(qosesStr)) {
-            return null;
-        }
-        String[] qosesStrArray = TextUtils.split(qosesStr, ",");
-
-        int[] Qoses = new int[qosesStrArray.length];
-        try {
-            for (int i = 0; i < qosesStrArray.length; i++) {
-                Qoses[i] = Integer.valueOf(qosesStrArray[i]);
-            }
-        } catch (Exception exception) {
-            return null;
-        }
-
-        return Qoses;
+        return ConfigStore.getInstance(context).getQoses();
     }
 
     /**
@@ -318,9 +559,7 @@ class MqttUtil {
      * @throws ClassNotFoundException
      */
     static Class<?> getRunnableClass(Context context) throws ClassNotFoundException {
-        SharedPreferences sharedPreferences = context.getApplicationContext().getSharedPreferences(MQTT_FILE_NAME, Context.MODE_PRIVATE);
-
-        String className = sharedPreferences.getString(MQTT_RUNNABLE_CLASS_NAME, "");
+        String className = getRunnableClassName(context);
         if (TextUtils.isEmpty(className)) {
             return null;
         }
@@ -328,6 +567,18 @@ class MqttUtil {
         return Class.forName(className);
     }
 
+    /**
+     * 获取用于处理消息的Class名称
+     *
+     * @param context 上下文环境
+     * @return 处理消息的Class名称，没有设置时返回空字符串
+     */
+    static String getRunnableClassName(Context context) {
+        SharedPreferences sharedPreferences = context.getApplicationContext().getSharedPreferences(MQTT_FILE_NAME, Context.MODE_PRIVATE);
+
+        return sharedPreferences.getString(MQTT_RUNNABLE_CLASS_NAME, "");
+    }
+
     /**
      * 获取服务器地址的数组
      *
@@ -335,13 +586,7 @@ class MqttUtil {
      * @return 服务器地址数组
      */
     static String[] getServerURIs(Context context) {
-        SharedPreferences sharedPreferences = context.getApplicationContext().getSharedPreferences(MQTT_FILE_NAME, Context.MODE_PRIVATE);
-        String uris = sharedPreferences.getString(MQTT_SERVER_URI_ARRAY, "");
-
-        if (TextUtils.isEmpty(uris)) {
-            return null;
-        }
-        return uris.split(",");
+        return ConfigStore.getInstance(context).getServerURIs();
     }
 
     /**
@@ -356,6 +601,487 @@ class MqttUtil {
         return sharedPreferences.getBoolean(MQTT_BROADCAST, false);
     }
 
+    /**
+     * 获取批量广播的间隔
+     *
+     * @param context 上下文环境
+     * @return 批量广播的间隔，小于等于0表示逐条广播
+     */
+    static long getBroadcastBatchInterval(Context context) {
+        SharedPreferences sharedPreferences = context.getApplicationContext().getSharedPreferences(MQTT_FILE_NAME, Context.MODE_PRIVATE);
+
+        return sharedPreferences.getLong(MQTT_BROADCAST_BATCH_INTERVAL, 0);
+    }
+
+    /**
+     * 获取批量广播是否合并同一主题的消息
+     *
+     * @param context 上下文环境
+     * @return 是否合并
+     */
+    static boolean isBroadcastBatchConflate(Context context) {
+        SharedPreferences sharedPreferences = context.getApplicationContext().getSharedPreferences(MQTT_FILE_NAME, Context.MODE_PRIVATE);
+
+        return sharedPreferences.getBoolean(MQTT_BROADCAST_BATCH_CONFLATE, false);
+    }
+
+    /**
+     * 获取批量广播每秒最多广播的消息数
+     *
+     * @param context 上下文环境
+     * @return 每秒最多广播的消息数，小于等于0表示不限制
+     */
+    static int getBroadcastBatchMaxRate(Context context) {
+        SharedPreferences sharedPreferences = context.getApplicationContext().getSharedPreferences(MQTT_FILE_NAME, Context.MODE_PRIVATE);
+
+        return sharedPreferences.getInt(MQTT_BROADCAST_BATCH_MAX_RATE, 0);
+    }
+
+    /**
+     * 获取存储的发布通道
+     *
+     * @param context 上下文环境
+     * @return 发布通道
+     */
+    static List<PublishLane> getPublishLanes(Context context) {
+        SharedPreferences sharedPreferences = context.getApplicationContext().getSharedPreferences(MQTT_FILE_NAME, Context.MODE_PRIVATE);
+
+        List<PublishLane> lanes = new ArrayList<>();
+        for (String lane : sharedPreferences.getStringSet(MQTT_PUBLISH_LANES, new HashSet<String>())) {
+            // 格式为name|priority|weight|capacity，名称中可能包含|，从后往前解析
+            int capacityIndex = lane.lastIndexOf('|');
+            int weightIndex = lane.lastIndexOf('|', capacityIndex - 1);
+            int priorityIndex = lane.lastIndexOf('|', weightIndex - 1);
+            if (priorityIndex <= 0) {
+                continue;
+            }
+            try {
+                lanes.add(new PublishLane(lane.substring(0, priorityIndex),
+                        Integer.parseInt(lane.substring(priorityIndex + 1, weightIndex)),
+                        Integer.parseInt(lane.substring(weightIndex + 1, capacityIndex)),
+                        Integer.parseInt(lane.substring(capacityIndex + 1))));
+            } catch (NumberFormatException e) {
+                LogUtil.e("MqttUtil", "发布通道格式错误:" + lane);
+            }
+        }
+        return lanes;
+    }
+
+    /**
+     * 把存储的发布速率限制加载到限流器
+     *
+     * @param context     上下文环境
+     * @param rateLimiter 限流器
+     */
+    static void loadRateLimits(Context context, PublishRateLimiter rateLimiter) {
+        SharedPreferences sharedPreferences = context.getApplicationContext().getSharedPreferences(MQTT_FILE_NAME, Context.MODE_PRIVATE);
+
+        String limit = sharedPreferences.getString(MQTT_RATE_LIMIT, null);
+        if (!TextUtils.isEmpty(limit)) {
+            String[] values = limit.split("\\|");
+            try {
+                rateLimiter.setConnectionLimit(Double.parseDouble(values[0]), Integer.parseInt(values[1]),
+                        RateLimitPolicy.valueOf(values[2]));
+            } catch (RuntimeException e) {
+                LogUtil.e("MqttUtil", "发布速率限制格式错误:" + limit);
+            }
+        }
+        for (String topicLimit : sharedPreferences.getStringSet(MQTT_TOPIC_RATE_LIMITS, new HashSet<String>())) {
+            // 格式为filter|rate|burst|policy，过滤器中可能包含|，从后往前解析
+            int policyIndex = topicLimit.lastIndexOf('|');
+            int burstIndex = topicLimit.lastIndexOf('|', policyIndex - 1);
+            int rateIndex = topicLimit.lastIndexOf('|', burstIndex - 1);
+            if (rateIndex <= 0) {
+                continue;
+            }
+            try {
+                rateLimiter.setTopicLimit(topicLimit.substring(0, rateIndex),
+                        Double.parseDouble(topicLimit.substring(rateIndex + 1, burstIndex)),
+                        Integer.parseInt(topicLimit.substring(burstIndex + 1, policyIndex)),
+                        RateLimitPolicy.valueOf(topicLimit.substring(policyIndex + 1)));
+            } catch (RuntimeException e) {
+                LogUtil.e("MqttUtil", "主题发布速率限制格式错误:" + topicLimit);
+            }
+        }
+    }
+
+    /**
+     * 获取BaseRunnable的执行方式
+     *
+     * @param context 上下文环境
+     * @return 执行方式，默认为{@link DispatchMode#THREAD_POOL}
+     */
+    static DispatchMode getDispatchMode(Context context) {
+        SharedPreferences sharedPreferences = context.getApplicationContext().getSharedPreferences(MQTT_FILE_NAME, Context.MODE_PRIVATE);
+
+        String mode = sharedPreferences.getString(MQTT_DISPATCH_MODE, null);
+        if (mode == null) {
+            return DispatchMode.THREAD_POOL;
+        }
+        try {
+            return DispatchMode.valueOf(mode);
+        } catch (IllegalArgumentException e) {
+            LogUtil.e("MqttUtil", "执行方式格式错误:" + mode);
+            return DispatchMode.THREAD_POOL;
+        }
+    }
+
+    /**
+     * 读取内存紧张时的释放策略和低优先级的通道、主题
+     *
+     * @param context  上下文环境
+     * @param governor 内存管理
+     */
+    static void loadMemoryPolicies(Context context, MemoryGovernor governor) {
+        SharedPreferences sharedPreferences = context.getApplicationContext().getSharedPreferences(MQTT_FILE_NAME, Context.MODE_PRIVATE);
+
+        for (MemoryAction action : MemoryAction.values()) {
+            String pressure = sharedPreferences.getString(MQTT_MEMORY_POLICY_PREFIX + action.name(), null);
+            if (pressure == null) {
+                continue;
+            }
+            try {
+                governor.setPolicy(action, TextUtils.isEmpty(pressure) ? null : MemoryPressure.valueOf(pressure));
+            } catch (IllegalArgumentException e) {
+                LogUtil.e("MqttUtil", "内存策略格式错误:" + pressure);
+            }
+        }
+        Set<String> topics = sharedPreferences.getStringSet(MQTT_LOW_PRIORITY_TOPICS, new HashSet<String>());
+        governor.setLowPriority(sharedPreferences.getInt(MQTT_LOW_PRIORITY_LANE, 0),
+                topics.toArray(new String[topics.size()]));
+    }
+
+    /**
+     * 存储并行连接的启动间隔
+     *
+     * @param context       上下文环境
+     * @param staggerMillis 相邻两个地址的启动间隔，小于等于0表示按顺序连接
+     */
+    static void setConnectRaceStagger(Context context, long staggerMillis) {
+        SharedPreferences sharedPreferences = context.getApplicationContext().getSharedPreferences(MQTT_FILE_NAME, Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = sharedPreferences.edit();
+
+        editor.putLong(MQTT_CONNECT_RACE_STAGGER, staggerMillis);
+
+        editor.apply();
+    }
+
+    /**
+     * 获取并行连接的启动间隔
+     *
+     * @param context 上下文环境
+     * @return 启动间隔，0表示按顺序连接
+     */
+    static long getConnectRaceStagger(Context context) {
+        SharedPreferences sharedPreferences = context.getApplicationContext().getSharedPreferences(MQTT_FILE_NAME, Context.MODE_PRIVATE);
+
+        return sharedPreferences.getLong(MQTT_CONNECT_RACE_STAGGER, 0);
+    }
+
+    /**
+     * 存储服务器地址的延迟测量结果
+     *
+     * @param context 上下文环境
+     * @param scores  每个地址一条记录，格式由{@link BrokerRanking}定义
+     */
+    static void setBrokerScores(Context context, Set<String> scores) {
+        SharedPreferences sharedPreferences = context.getApplicationContext().getSharedPreferences(MQTT_FILE_NAME, Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = sharedPreferences.edit();
+
+        editor.putStringSet(MQTT_BROKER_SCORES, scores);
+
+        editor.apply();
+    }
+
+    /**
+     * 获取服务器地址的延迟测量结果
+     *
+     * @param context 上下文环境
+     * @return 每个地址一条记录
+     */
+    static Set<String> getBrokerScores(Context context) {
+        SharedPreferences sharedPreferences = context.getApplicationContext().getSharedPreferences(MQTT_FILE_NAME, Context.MODE_PRIVATE);
+
+        return sharedPreferences.getStringSet(MQTT_BROKER_SCORES, new HashSet<String>());
+    }
+
+    /**
+     * 存储是否在服务器延迟变差时迁移
+     *
+     * @param context 上下文环境
+     * @param enabled 是否迁移
+     */
+    static void setBrokerMigration(Context context, boolean enabled) {
+        SharedPreferences sharedPreferences = context.getApplicationContext().getSharedPreferences(MQTT_FILE_NAME, Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = sharedPreferences.edit();
+
+        editor.putBoolean(MQTT_BROKER_MIGRATION, enabled);
+
+        editor.apply();
+    }
+
+    /**
+     * 获取是否在服务器延迟变差时迁移
+     *
+     * @param context 上下文环境
+     * @return 是否迁移
+     */
+    static boolean isBrokerMigration(Context context) {
+        SharedPreferences sharedPreferences = context.getApplicationContext().getSharedPreferences(MQTT_FILE_NAME, Context.MODE_PRIVATE);
+
+        return sharedPreferences.getBoolean(MQTT_BROKER_MIGRATION, false);
+    }
+
+    /**
+     * 存储TLS配置中可以保存的部分
+     *
+     * @param context 上下文环境
+     * @param config  格式由{@link TlsConfig#encode()}定义
+     */
+    static void setTlsConfig(Context context, String config) {
+        SharedPreferences sharedPreferences = context.getApplicationContext().getSharedPreferences(MQTT_FILE_NAME, Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = sharedPreferences.edit();
+
+        editor.putString(MQTT_TLS_CONFIG, config);
+
+        editor.apply();
+    }
+
+    /**
+     * 获取TLS配置中可以保存的部分
+     *
+     * @param context 上下文环境
+     * @return 保存的配置，没有设置时为空
+     */
+    static String getTlsConfig(Context context) {
+        SharedPreferences sharedPreferences = context.getApplicationContext().getSharedPreferences(MQTT_FILE_NAME, Context.MODE_PRIVATE);
+
+        return sharedPreferences.getString(MQTT_TLS_CONFIG, null);
+    }
+
+    /**
+     * 存储差量编码的主题，同一过滤器会被覆盖
+     *
+     * @param context          上下文环境
+     * @param filter           主题过滤器
+     * @param keyframeInterval 关键帧间隔，小于等于0表示取消
+     */
+    static void setDeltaTopic(Context context, String filter, int keyframeInterval) {
+        SharedPreferences sharedPreferences = context.getApplicationContext().getSharedPreferences(MQTT_FILE_NAME, Context.MODE_PRIVATE);
+
+        Set<String> topics = new HashSet<>();
+        for (String topic : sharedPreferences.getStringSet(MQTT_DELTA_TOPICS, new HashSet<String>())) {
+            if (!TextUtils.equals(topic.substring(0, Math.max(0, topic.lastIndexOf('|'))), filter)) {
+                topics.add(topic);
+            }
+        }
+        if (keyframeInterval > 0) {
+            topics.add(filter + "|" + keyframeInterval);
+        }
+
+        SharedPreferences.Editor editor = sharedPreferences.edit();
+        editor.putStringSet(MQTT_DELTA_TOPICS, topics);
+        editor.apply();
+    }
+
+    /**
+     * 获取差量编码的规则
+     *
+     * @param context 上下文环境
+     * @return 差量编码规则
+     */
+    static DeltaCodec.Rules getDeltaRules(Context context) {
+        SharedPreferences sharedPreferences = context.getApplicationContext().getSharedPreferences(MQTT_FILE_NAME, Context.MODE_PRIVATE);
+
+        Set<String> topics = sharedPreferences.getStringSet(MQTT_DELTA_TOPICS, new HashSet<String>());
+        List<String> filters = new ArrayList<>();
+        List<Integer> intervals = new ArrayList<>();
+        for (String topic : topics) {
+            // 格式为filter|interval，过滤器中可能包含|，从后往前解析
+            int index = topic.lastIndexOf('|');
+            if (index <= 0) {
+                continue;
+            }
+            try {
+                intervals.add(Integer.parseInt(topic.substring(index + 1)));
+                filters.add(topic.substring(0, index));
+            } catch (NumberFormatException e) {
+                LogUtil.e("MqttUtil", "差量编码主题格式错误:" + topic);
+            }
+        }
+        int[] intervalArray = new int[intervals.size()];
+        for (int i = 0; i < intervalArray.length; i++) {
+            intervalArray[i] = intervals.get(i);
+        }
+        return new DeltaCodec.Rules(filters.toArray(new String[filters.size()]), intervalArray);
+    }
+
+    /**
+     * 获取状态主题过滤器
+     *
+     * @param context 上下文环境
+     * @return 主题过滤器
+     */
+    static String[] getStateTopics(Context context) {
+        SharedPreferences sharedPreferences = context.getApplicationContext().getSharedPreferences(MQTT_FILE_NAME, Context.MODE_PRIVATE);
+
+        Set<String> filters = sharedPreferences.getStringSet(MQTT_STATE_TOPICS, new HashSet<String>());
+        return filters.toArray(new String[filters.size()]);
+    }
+
+    /**
+     * 获取最新值缓存的大小
+     *
+     * @param context 上下文环境
+     * @return 缓存大小
+     */
+    static int getLastValueCacheSize(Context context) {
+        SharedPreferences sharedPreferences = context.getApplicationContext().getSharedPreferences(MQTT_FILE_NAME, Context.MODE_PRIVATE);
+
+        return sharedPreferences.getInt(MQTT_LAST_VALUE_CACHE_SIZE, LastValueCache.DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * 是否开启收到消息的预写日志
+     *
+     * @param context 上下文环境
+     * @return 是否开启
+     */
+    static boolean isInboundJournal(Context context) {
+        SharedPreferences sharedPreferences = context.getApplicationContext().getSharedPreferences(MQTT_FILE_NAME, Context.MODE_PRIVATE);
+
+        return sharedPreferences.getBoolean(MQTT_INBOUND_JOURNAL, false);
+    }
+
+    /**
+     * 获取消息跟踪的采样率
+     *
+     * @param context 上下文环境
+     * @return 每隔多少条消息跟踪一条，默认为0即关闭
+     */
+    static int getTraceSampleEvery(Context context) {
+        SharedPreferences sharedPreferences = context.getApplicationContext().getSharedPreferences(MQTT_FILE_NAME, Context.MODE_PRIVATE);
+
+        return sharedPreferences.getInt(MQTT_TRACE_SAMPLE_EVERY, 0);
+    }
+
+    /**
+     * 获取批量处理消息的Class名称
+     *
+     * @param context 上下文环境
+     * @return Class名称，没有设置时返回空字符串
+     */
+    static String getBatchHandlerClassName(Context context) {
+        SharedPreferences sharedPreferences = context.getApplicationContext().getSharedPreferences(MQTT_FILE_NAME, Context.MODE_PRIVATE);
+
+        return sharedPreferences.getString(MQTT_BATCH_HANDLER_CLASS_NAME, "");
+    }
+
+    /**
+     * 获取每批最多的消息数
+     *
+     * @param context 上下文环境
+     * @return 消息数
+     */
+    static int getBatchMaxSize(Context context) {
+        SharedPreferences sharedPreferences = context.getApplicationContext().getSharedPreferences(MQTT_FILE_NAME, Context.MODE_PRIVATE);
+
+        return sharedPreferences.getInt(MQTT_BATCH_MAX_SIZE, 100);
+    }
+
+    /**
+     * 获取收到第一条消息之后最多等待的时间
+     *
+     * @param context 上下文环境
+     * @return 毫秒
+     */
+    static long getBatchMaxDelay(Context context) {
+        SharedPreferences sharedPreferences = context.getApplicationContext().getSharedPreferences(MQTT_FILE_NAME, Context.MODE_PRIVATE);
+
+        return sharedPreferences.getLong(MQTT_BATCH_MAX_DELAY, 100);
+    }
+
+    /**
+     * 解析name|a|b|c格式中的名称
+     */
+    private static String parseLaneName(String lane) {
+        int index = lane.length();
+        for (int i = 0; i < 3 && index > 0; i++) {
+            index = lane.lastIndexOf('|', index - 1);
+        }
+        return index <= 0 ? null : lane.substring(0, index);
+    }
+
+    /**
+     * 获取发布通道的调度方式
+     *
+     * @param context 上下文环境
+     * @return 调度方式
+     */
+    static LaneScheduling getLaneScheduling(Context context) {
+        SharedPreferences sharedPreferences = context.getApplicationContext().getSharedPreferences(MQTT_FILE_NAME, Context.MODE_PRIVATE);
+
+        String scheduling = sharedPreferences.getString(MQTT_LANE_SCHEDULING, null);
+        if (TextUtils.isEmpty(scheduling)) {
+            return LaneScheduling.STRICT;
+        }
+        try {
+            return LaneScheduling.valueOf(scheduling);
+        } catch (IllegalArgumentException e) {
+            return LaneScheduling.STRICT;
+        }
+    }
+
+    /**
+     * 判断主题是否匹配主题过滤器，支持+和#通配符，匹配过程不分配内存
+     *
+     * @param filter 主题过滤器
+     * @param topic  主题
+     * @return 是否匹配
+     */
+    static boolean isTopicMatched(String filter, String topic) {
+        int filterLength = filter.length();
+        int topicLength = topic.length();
+        // 以$开头的系统主题不能被通配符开头的过滤器匹配
+        if (topicLength > 0 && topic.charAt(0) == '$' && filterLength > 0
+                && (filter.charAt(0) == '+' || filter.charAt(0) == '#')) {
+            return false;
+        }
+        int fi = 0;
+        int ti = 0;
+        while (fi < filterLength && ti < topicLength) {
+            char fc = filter.charAt(fi);
+            if (fc == '#') {
+                return true;
+            }
+            if (fc == '+') {
+                while (ti < topicLength && topic.charAt(ti) != '/') {
+                    ti++;
+                }
+                fi++;
+                continue;
+            }
+            if (fc != topic.charAt(ti)) {
+                return false;
+            }
+            fi++;
+            ti++;
+        }
+        if (fi == filterLength) {
+            return ti == topicLength;
+        }
+        if (ti < topicLength) {
+            return false;
+        }
+        // 主题已经结束，剩余的过滤器只能是"#"、"/#"或匹配空层级的"+"
+        int remaining = filterLength - fi;
+        if (remaining == 1) {
+            char fc = filter.charAt(fi);
+            return fc == '#' || fc == '+';
+        }
+        return remaining == 2 && filter.charAt(fi) == '/' && filter.charAt(fi + 1) == '#';
+    }
+
     /**
      * 判断是否有网络连接
      *
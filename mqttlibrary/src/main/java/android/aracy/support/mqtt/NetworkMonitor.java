@@ -0,0 +1,285 @@
+package android.aracy.support.mqtt;
+
+import android.annotation.TargetApi;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.net.NetworkRequest;
+import android.os.Build;
+import android.os.Handler;
+import android.text.TextUtils;
+
+/**
+ * 网络状态监听器
+ * <p>
+ * Android 5.0以上使用NetworkCallback，以下使用CONNECTIVITY_ACTION广播。
+ * 原始事件经过防抖之后才会回调，并根据当前默认网络的标识区分真实的网络切换和无变化的抖动。
+ *
+ * @author aracy
+ * @version [1.0, 2017-04-10]
+ */
+class NetworkMonitor {
+
+    private static final String TAG = "NetworkMonitor";
+
+    /**
+     * 默认的防抖时间
+     */
+    static final long DEFAULT_DEBOUNCE_MILLIS = 1500;
+
+    /**
+     * 网络状态回调
+     */
+    interface Callback {
+
+        /**
+         * 网络可用
+         *
+         * @param switched 是否由另一个网络切换而来
+         */
+        void onNetworkAvailable(boolean switched);
+
+        /**
+         * 网络断开
+         */
+        void onNetworkLost();
+    }
+
+    private final Context mContext;
+
+    private final Handler mHandler;
+
+    private final Callback mCallback;
+
+    private final MQTTMetrics mMetrics;
+
+    private final long mDebounceMillis;
+
+    private final ConnectivityManager mConnectivityManager;
+
+    /**
+     * 上一次稳定状态下的网络标识，为空表示无网络
+     */
+    private String mStableNetworkKey;
+
+    /**
+     * 是否已经确定过一次网络状态
+     */
+    private boolean mSettled;
+
+    /**
+     * 是否有等待中的防抖检查
+     */
+    private boolean mEvaluatePending;
+
+    private BroadcastReceiver mReceiver;
+
+    private Object mNetworkCallback;
+
+    private final Runnable mEvaluateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mEvaluatePending = false;
+            evaluate();
+        }
+    };
+
+    NetworkMonitor(Context context, Handler handler, MQTTMetrics metrics, Callback callback) {
+        this(context, handler, metrics, callback, DEFAULT_DEBOUNCE_MILLIS);
+    }
+
+    NetworkMonitor(Context context, Handler handler, MQTTMetrics metrics, Callback callback, long debounceMillis) {
+        mContext = context.getApplicationContext();
+        mHandler = handler;
+        mMetrics = metrics;
+        mCallback = callback;
+        mDebounceMillis = debounceMillis;
+        mConnectivityManager = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+    }
+
+    /**
+     * 开始监听
+     */
+    void start() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            registerNetworkCallback();
+        } else {
+            mReceiver = new ConnectivityReceiver();
+            mContext.registerReceiver(mReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+        }
+        // 立即确定一次初始状态
+        mEvaluatePending = true;
+        mHandler.post(mEvaluateRunnable);
+    }
+
+    /**
+     * 停止监听
+     */
+    void stop() {
+        mHandler.removeCallbacks(mEvaluateRunnable);
+        mEvaluatePending = false;
+        if (mReceiver != null) {
+            try {
+                mContext.unregisterReceiver(mReceiver);
+            } catch (IllegalArgumentException e) {
+                LogUtil.e(TAG, "网络广播接收者已经反注册");
+            }
+            mReceiver = null;
+        }
+        if (mNetworkCallback != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            unregisterNetworkCallback();
+        }
+    }
+
+    /**
+     * 当前是否有可用网络
+     *
+     * @return 最近一次稳定状态下是否有网络
+     */
+    boolean isConnected() {
+        return mStableNetworkKey != null;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void registerNetworkCallback() {
+        ConnectivityManager.NetworkCallback callback = new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(Network network) {
+                postRawEvent();
+            }
+
+            @Override
+            public void onLost(Network network) {
+                postRawEvent();
+            }
+
+            @Override
+            public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+                postRawEvent();
+            }
+        };
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            mConnectivityManager.registerDefaultNetworkCallback(callback);
+        } else {
+            NetworkRequest request = new NetworkRequest.Builder()
+                    .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                    .build();
+            mConnectivityManager.registerNetworkCallback(request, callback);
+        }
+        mNetworkCallback = callback;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void unregisterNetworkCallback() {
+        try {
+            mConnectivityManager.unregisterNetworkCallback((ConnectivityManager.NetworkCallback) mNetworkCallback);
+        } catch (IllegalArgumentException e) {
+            LogUtil.e(TAG, "NetworkCallback已经反注册");
+        }
+        mNetworkCallback = null;
+    }
+
+    /**
+     * NetworkCallback在系统线程回调，切换到监听线程处理
+     */
+    private void postRawEvent() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                onRawEvent();
+            }
+        });
+    }
+
+    /**
+     * 收到原始事件，重新开始防抖计时
+     */
+    private void onRawEvent() {
+        mMetrics.networkEvents.incrementAndGet();
+        if (mEvaluatePending) {
+            mMetrics.networkEventsCoalesced.incrementAndGet();
+            mHandler.removeCallbacks(mEvaluateRunnable);
+        }
+        mEvaluatePending = true;
+        mHandler.postDelayed(mEvaluateRunnable, mSettled ? mDebounceMillis : 0);
+    }
+
+    /**
+     * 防抖结束，比较网络标识
+     */
+    private void evaluate() {
+        String networkKey = currentNetworkKey();
+        boolean settled = mSettled;
+        String previousKey = mStableNetworkKey;
+        mSettled = true;
+        mStableNetworkKey = networkKey;
+
+        if (settled && TextUtils.equals(previousKey, networkKey)) {
+            mMetrics.networkNoise.incrementAndGet();
+            LogUtil.i(TAG, "网络没有变化:" + networkKey);
+            return;
+        }
+        if (networkKey == null) {
+            LogUtil.i(TAG, "网络断开:" + previousKey);
+            mCallback.onNetworkLost();
+            return;
+        }
+        boolean switched = previousKey != null;
+        if (switched) {
+            mMetrics.networkSwitches.incrementAndGet();
+            LogUtil.i(TAG, "网络切换:" + previousKey + " -> " + networkKey);
+        } else {
+            LogUtil.i(TAG, "网络可用:" + networkKey);
+        }
+        mCallback.onNetworkAvailable(switched);
+    }
+
+    /**
+     * 获取当前默认网络的标识
+     *
+     * @return 网络标识，无网络时返回null
+     */
+    private String currentNetworkKey() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            return currentNetworkKeyM();
+        }
+        NetworkInfo info = mConnectivityManager.getActiveNetworkInfo();
+        if (info == null || !info.isConnected()) {
+            // 部分机型ActiveNetworkInfo不可靠，再遍历一次
+            return MqttUtil.isNetworkConnected(mContext) ? "unknown" : null;
+        }
+        return info.getType() + ":" + info.getExtraInfo();
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private String currentNetworkKeyM() {
+        Network network = mConnectivityManager.getActiveNetwork();
+        if (network == null) {
+            return null;
+        }
+        NetworkInfo info = mConnectivityManager.getActiveNetworkInfo();
+        if (info == null || !info.isConnected()) {
+            return null;
+        }
+        return network.toString();
+    }
+
+    /**
+     * 5.0以下的网络状态广播接收者
+     */
+    private class ConnectivityReceiver extends BroadcastReceiver {
+
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (!TextUtils.equals(ConnectivityManager.CONNECTIVITY_ACTION, intent.getAction())) {
+                return;
+            }
+            onRawEvent();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package android.aracy.support.mqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * 排队等待发布的消息
+ *
+ * @author aracy
+ * @version [1.0, 2017-04-19]
+ */
+class OutboundMessage {
+
+    /**
+     * 在通道队列或合并表中等待发送
+     */
+    static final int STATE_QUEUED = 0;
+
+    /**
+     * 已经交给Paho
+     */
+    static final int STATE_SENT = 1;
+
+    /**
+     * 已经完成、失败、过期或被丢弃
+     */
+    static final int STATE_DONE = 2;
+
+    final String topic;
+
+    final MqttMessage message;
+
+    final String lane;
+
+    /**
+     * 从缓冲池借出的内容，消息完成或被丢弃时归还，不是借出的内容时为空
+     */
+    final PayloadBuffer buffer;
+
+    /**
+     * 发布结果，不需要通知调用方时为空
+     */
+    final DeliveryFuture future;
+
+    /**
+     * 进入队列的时间(System.nanoTime)
+     */
+    long enqueueNanos;
+
+    /**
+     * 交给Paho的时间(System.nanoTime)，还没有交给Paho时为0
+     */
+    long writeNanos;
+
+    /**
+     * 是否已经因为速率限制被延迟过
+     */
+    boolean throttled;
+
+    /**
+     * 过期时间(System.nanoTime)，0表示不过期
+     */
+    long expireNanos;
+
+    /**
+     * 当前状态，只在{@link OutboundScheduler}的锁内修改，改为完成只有一次
+     */
+    volatile int state = STATE_QUEUED;
+
+    /**
+     * 所在的通道队列，不在通道队列中时为空
+     */
+    PublishLane queuedLane;
+
+    /**
+     * 跟踪ID，没有被采样时为0
+     */
+    long traceId;
+
+    /**
+     * 差量编码的序号，不是差量主题时为0
+     */
+    int deltaSeq;
+
+    /**
+     * 在调度器的锁内完成时暂存的结果，释放锁之后再通知调用方
+     */
+    DeliveryReceipt receipt;
+
+    OutboundMessage(String topic, MqttMessage message, String lane) {
+        this(topic, message, lane, null, null);
+    }
+
+    OutboundMessage(String topic, MqttMessage message, String lane, PayloadBuffer buffer, DeliveryFuture future) {
+        this.topic = topic;
+        this.message = message;
+        this.lane = lane;
+        this.buffer = buffer;
+        this.future = future;
+    }
+
+    /**
+     * 消息已经完成或被丢弃，归还借出的内容
+     *
+     * @param reusable 内容是否可以再借出，Paho可能还持有内容时为false
+     */
+    void release(boolean reusable) {
+        if (buffer == null) {
+            return;
+        }
+        if (reusable) {
+            buffer.recycle();
+        } else {
+            buffer.discard();
+        }
+    }
+}
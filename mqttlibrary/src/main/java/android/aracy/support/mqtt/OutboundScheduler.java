@@ -0,0 +1,904 @@
+package android.aracy.support.mqtt;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 发布消息的调度器
+ * <p>
+ * 发布的消息先按通道排队，由单独的线程按优先级取出交给{@link MQTTConnection}。
+ * 交给Paho但还没有完成的消息数不超过{@link #MAX_IN_FLIGHT}，保证后到的高优先级消息不会排在大量低优先级消息后面。
+ * 没有可用连接时消息留在队列中，连接成功后继续发送。
+ * 交给Paho之前还要经过{@link PublishRateLimiter}的速率限制。
+ * 设置了有效期的消息同时放入按过期时间排序的堆，过期时只标记状态，留在通道队列中的记录到达队首时再移除，
+ * 不需要扫描整个队列。
+ * 差量主题的消息在进入队列之前由{@link DeltaEncoder}编码，发布成功之后内容成为后续差量帧的基准。
+ * 连接断开时还没有确认的QoS1/2消息不算失败：Paho保留这些消息，重新连接之后重发，收到确认时再完成。
+ * 发布结果总是在锁外通知调用方，{@link MQTTExecutors#CALLBACK_THREAD}上的监听器不会持有调度器的锁。
+ *
+ * @author aracy
+ * @version [1.0, 2017-04-19]
+ */
+class OutboundScheduler {
+
+    private static final String TAG = "OutboundScheduler";
+
+    /**
+     * 默认通道的名称
+     */
+    static final String DEFAULT_LANE = "default";
+
+    /**
+     * 默认通道的队列长度
+     */
+    static final int DEFAULT_LANE_CAPACITY = 1000;
+
+    /**
+     * 同时交给Paho的最大消息数，与Paho的默认窗口一致
+     */
+    private static final int MAX_IN_FLIGHT = 10;
+
+    /**
+     * 过期堆中已经离开队列的记录超过这个数时重建堆
+     */
+    private static final int EXPIRY_COMPACT_SLACK = 64;
+
+    private static final Comparator<OutboundMessage> EXPIRY_ORDER = new Comparator<OutboundMessage>() {
+        @Override
+        public int compare(OutboundMessage lhs, OutboundMessage rhs) {
+            long diff = lhs.expireNanos - rhs.expireNanos;
+            return diff < 0 ? -1 : (diff == 0 ? 0 : 1);
+        }
+    };
+
+    private static final Comparator<PublishLane> PRIORITY_ORDER = new Comparator<PublishLane>() {
+        @Override
+        public int compare(PublishLane lhs, PublishLane rhs) {
+            return rhs.priority < lhs.priority ? -1 : (rhs.priority == lhs.priority ? 0 : 1);
+        }
+    };
+
+    private final MQTTMetrics mMetrics;
+
+    private final PublishRateLimiter mRateLimiter;
+
+    private final MessageTracer mTracer;
+
+    private final DeltaEncoder mDeltaEncoder;
+
+    private final Object mLock = new Object();
+
+    /**
+     * 按优先级从高到低排列的通道
+     */
+    private PublishLane[] mLanes;
+
+    private PublishLane mDefaultLane;
+
+    private LaneScheduling mScheduling = LaneScheduling.STRICT;
+
+    /**
+     * 内存紧张时队列长度缩小的倍数，正常时为1
+     */
+    private int mCapacityDivisor = 1;
+
+    /**
+     * 当前可用的连接，为空时不发送
+     */
+    private MQTTConnection mConnection;
+
+    /**
+     * 连接的代数，连接变化之后旧连接的回调不再计入在途消息
+     */
+    private int mEpoch;
+
+    private int mInFlight;
+
+    /**
+     * 被合并等待令牌的消息，按主题保留最新的一条，只在发送线程访问，修改时同时持有锁
+     */
+    private final LinkedHashMap<String, OutboundMessage> mCoalesced = new LinkedHashMap<>();
+
+    /**
+     * 合并表中的消息数，在锁内修改，提交线程通过它读取合并表的大小
+     */
+    private int mCoalescedCount;
+
+    /**
+     * 设置了有效期的消息，按过期时间排序，已经发送或丢弃的记录在堆顶时才移除
+     */
+    private final PriorityQueue<OutboundMessage> mExpiryQueue = new PriorityQueue<>(16, EXPIRY_ORDER);
+
+    /**
+     * 已经安排的过期检查时间，没有安排时为0
+     */
+    private long mExpiryDeadline;
+
+    /**
+     * 连接断开时还没有确认的QoS1/2消息，等待Paho重新连接之后重发并确认
+     */
+    private final LinkedHashSet<OutboundMessage> mAwaitingRetry = new LinkedHashSet<>();
+
+    /**
+     * 在锁内完成的消息，释放锁之后由{@link #notifyCompleted()}通知调用方
+     */
+    private final ArrayList<OutboundMessage> mCompleted = new ArrayList<>();
+
+    private final Runnable mExpiryTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                mExpiryDeadline = 0;
+                expire(System.nanoTime());
+                scheduleExpiry();
+            }
+            notifyCompleted();
+        }
+    };
+
+    private final AtomicInteger mWip = new AtomicInteger();
+
+    /**
+     * 已经安排的等待令牌之后的调度时间，没有安排时为0，在锁内访问
+     */
+    private long mWakeDeadline;
+
+    private final ScheduledExecutorService mExecutor;
+
+    private final Runnable mWakeTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                if (mWakeDeadline != 0 && mWakeDeadline - System.nanoTime() <= 0) {
+                    mWakeDeadline = 0;
+                }
+            }
+            schedule();
+        }
+    };
+
+    private final Runnable mDrainTask = new Runnable() {
+        @Override
+        public void run() {
+            int missed = 1;
+            while (true) {
+                try {
+                    drainOnce();
+                } catch (RuntimeException e) {
+                    // 不能让异常跳过mWip的递减，否则之后再也不会调度发送
+                    LogUtil.e(TAG, "发送消息异常", e);
+                } finally {
+                    notifyCompleted();
+                }
+                missed = mWip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+    };
+
+    OutboundScheduler(MQTTMetrics metrics, PublishRateLimiter rateLimiter, MessageTracer tracer,
+                      DeltaEncoder deltaEncoder) {
+        mMetrics = metrics;
+        mRateLimiter = rateLimiter;
+        mTracer = tracer;
+        mDeltaEncoder = deltaEncoder;
+        mDefaultLane = new PublishLane(DEFAULT_LANE, 0, 1, DEFAULT_LANE_CAPACITY);
+        mLanes = new PublishLane[]{mDefaultLane};
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "mqtt-outbound");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * 重新设置通道，已经排队的消息移到同名通道，没有同名通道的移到默认通道
+     *
+     * @param lanes 通道配置，可以不包含默认通道
+     */
+    void setLanes(List<PublishLane> lanes) {
+        synchronized (mLock) {
+            List<PublishLane> newLanes = new ArrayList<>(lanes);
+            PublishLane defaultLane = null;
+            for (PublishLane lane : newLanes) {
+                if (DEFAULT_LANE.equals(lane.name)) {
+                    defaultLane = lane;
+                }
+            }
+            if (defaultLane == null) {
+                defaultLane = new PublishLane(DEFAULT_LANE, 0, 1, DEFAULT_LANE_CAPACITY);
+                newLanes.add(defaultLane);
+            }
+            Collections.sort(newLanes, PRIORITY_ORDER);
+            PublishLane[] oldLanes = mLanes;
+            mLanes = newLanes.toArray(new PublishLane[newLanes.size()]);
+            mDefaultLane = defaultLane;
+            for (PublishLane oldLane : oldLanes) {
+                PublishLane target = findLane(oldLane.name);
+                OutboundMessage message;
+                while ((message = oldLane.queue.pollFirst()) != null) {
+                    message.queuedLane = null;
+                    if (message.state == OutboundMessage.STATE_QUEUED) {
+                        enqueue(target, message);
+                    }
+                }
+            }
+        }
+        notifyCompleted();
+        schedule();
+    }
+
+    /**
+     * 设置调度方式
+     *
+     * @param scheduling 调度方式
+     */
+    void setScheduling(LaneScheduling scheduling) {
+        synchronized (mLock) {
+            mScheduling = scheduling;
+        }
+    }
+
+    /**
+     * 连接成功之后开始发送
+     *
+     * @param connection MQTT连接
+     */
+    void attach(MQTTConnection connection) {
+        synchronized (mLock) {
+            mConnection = connection;
+            mEpoch++;
+            mInFlight = 0;
+        }
+        schedule();
+    }
+
+    /**
+     * 连接断开之后停止发送，消息保留在队列中
+     */
+    void detach() {
+        synchronized (mLock) {
+            mConnection = null;
+            mEpoch++;
+            mInFlight = 0;
+        }
+    }
+
+    /**
+     * 连接关闭，Paho不会再重发断开时还没有确认的消息，这些消息按失败完成
+     *
+     * @param cause 失败原因
+     */
+    void abandonRetries(Throwable cause) {
+        OutboundMessage[] abandoned;
+        synchronized (mLock) {
+            abandoned = mAwaitingRetry.toArray(new OutboundMessage[mAwaitingRetry.size()]);
+            mAwaitingRetry.clear();
+        }
+        for (OutboundMessage message : abandoned) {
+            finish(message, cause);
+        }
+    }
+
+    /**
+     * 加入发布队列
+     *
+     * @param message 待发布的消息
+     */
+    void submit(OutboundMessage message) {
+        submit(message, 0);
+    }
+
+    /**
+     * 加入发布队列，超过有效期还没有交给Paho时丢弃
+     *
+     * @param message   待发布的消息
+     * @param ttlMillis 有效期(毫秒)，小于等于0表示不过期
+     */
+    void submit(OutboundMessage message, long ttlMillis) {
+        message.enqueueNanos = System.nanoTime();
+        message.traceId = mTracer.newTraceId();
+        mTracer.record(message.traceId, TracePoint.PUBLISH_SUBMIT, message.topic);
+        mDeltaEncoder.encode(message);
+        synchronized (mLock) {
+            if (ttlMillis > 0) {
+                // 0表示不过期，计算结果恰好为0时向后错开1纳秒
+                message.expireNanos = message.enqueueNanos + TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+                if (message.expireNanos == 0) {
+                    message.expireNanos = 1;
+                }
+                addExpiry(message);
+            }
+            enqueue(findLane(message.lane), message);
+        }
+        notifyCompleted();
+        schedule();
+    }
+
+    /**
+     * 获取各个通道的统计
+     *
+     * @return 通道统计，按优先级从高到低排列
+     */
+    List<PublishLaneStats> getLaneStats() {
+        synchronized (mLock) {
+            PublishLaneStats[] stats = new PublishLaneStats[mLanes.length];
+            for (int i = 0; i < mLanes.length; i++) {
+                stats[i] = mLanes[i].snapshot(mLanes[i].depth());
+            }
+            return Arrays.asList(stats);
+        }
+    }
+
+    /**
+     * 内存紧张时缩小所有通道的队列，超出的消息从最早的开始丢弃
+     *
+     * @param divisor 缩小的倍数
+     * @return 丢弃的消息数
+     */
+    int shrinkQueues(int divisor) {
+        int dropped = 0;
+        synchronized (mLock) {
+            mCapacityDivisor = Math.max(1, divisor);
+            for (PublishLane lane : mLanes) {
+                int capacity = capacityOf(lane);
+                purgeHead(lane);
+                while (lane.depth() > capacity) {
+                    finish(pollFirst(lane), new IllegalStateException("shed under memory pressure"));
+                    lane.dropped.incrementAndGet();
+                    dropped++;
+                    purgeHead(lane);
+                }
+            }
+        }
+        notifyCompleted();
+        return dropped;
+    }
+
+    /**
+     * 内存恢复之后恢复队列长度
+     */
+    void restoreQueues() {
+        synchronized (mLock) {
+            mCapacityDivisor = 1;
+        }
+    }
+
+    /**
+     * 暂停优先级低于指定值的通道，消息继续排队但不发送
+     *
+     * @param belowPriority 优先级
+     * @return 暂停的通道名称
+     */
+    List<String> pauseLanes(int belowPriority) {
+        List<String> paused = new ArrayList<>();
+        synchronized (mLock) {
+            for (PublishLane lane : mLanes) {
+                if (lane.priority < belowPriority) {
+                    lane.paused = true;
+                    paused.add(lane.name);
+                }
+            }
+        }
+        return paused;
+    }
+
+    /**
+     * 恢复所有暂停的通道
+     */
+    void resumeLanes() {
+        synchronized (mLock) {
+            for (PublishLane lane : mLanes) {
+                lane.paused = false;
+            }
+        }
+        schedule();
+    }
+
+    private int capacityOf(PublishLane lane) {
+        return Math.max(1, lane.capacity / mCapacityDivisor);
+    }
+
+    private PublishLane findLaneLocked(String name) {
+        synchronized (mLock) {
+            return findLane(name);
+        }
+    }
+
+    private PublishLane findLane(String name) {
+        if (name != null) {
+            for (PublishLane lane : mLanes) {
+                if (lane.name.equals(name)) {
+                    return lane;
+                }
+            }
+        }
+        return mDefaultLane;
+    }
+
+    private void enqueue(PublishLane lane, OutboundMessage message) {
+        purgeHead(lane);
+        if (lane.depth() >= capacityOf(lane)) {
+            finish(pollFirst(lane), new IllegalStateException("lane " + lane.name + " is full"));
+            purgeHead(lane);
+            lane.dropped.incrementAndGet();
+            LogUtil.w(TAG, "通道" + lane.name + "已满，丢弃最早的消息");
+        }
+        message.queuedLane = lane;
+        lane.queue.offerLast(message);
+        lane.enqueued.incrementAndGet();
+    }
+
+    /**
+     * 移除队首已经过期的记录，保证队首总是等待发送的消息
+     */
+    private void purgeHead(PublishLane lane) {
+        OutboundMessage head;
+        while ((head = lane.queue.peekFirst()) != null && head.state != OutboundMessage.STATE_QUEUED) {
+            lane.queue.pollFirst();
+            lane.stale--;
+        }
+    }
+
+    /**
+     * 取出队首的消息，调用前队首必须是等待发送的消息
+     */
+    private OutboundMessage pollFirst(PublishLane lane) {
+        OutboundMessage message = lane.queue.pollFirst();
+        message.queuedLane = null;
+        return message;
+    }
+
+    /**
+     * 过期记录超过队列的一半时重建队列
+     */
+    private void compactLane(PublishLane lane) {
+        if (lane.stale <= EXPIRY_COMPACT_SLACK || lane.stale * 2 < lane.queue.size()) {
+            return;
+        }
+        Iterator<OutboundMessage> iterator = lane.queue.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().state != OutboundMessage.STATE_QUEUED) {
+                iterator.remove();
+            }
+        }
+        lane.stale = 0;
+    }
+
+    private void addExpiry(OutboundMessage message) {
+        mExpiryQueue.offer(message);
+        int queued = mCoalescedCount;
+        for (PublishLane lane : mLanes) {
+            queued += lane.depth();
+        }
+        if (mExpiryQueue.size() > queued * 2 + EXPIRY_COMPACT_SLACK) {
+            // 大部分记录已经发送，重建堆去掉这些记录
+            List<OutboundMessage> live = new ArrayList<>(queued);
+            for (OutboundMessage pending : mExpiryQueue) {
+                if (pending.state == OutboundMessage.STATE_QUEUED) {
+                    live.add(pending);
+                }
+            }
+            mExpiryQueue.clear();
+            mExpiryQueue.addAll(live);
+        }
+        scheduleExpiry();
+    }
+
+    /**
+     * 丢弃已经过期的消息，在锁内调用
+     *
+     * @param now 当前时间(System.nanoTime)
+     */
+    private void expire(long now) {
+        int expired = 0;
+        OutboundMessage head;
+        while ((head = mExpiryQueue.peek()) != null && head.expireNanos - now <= 0) {
+            mExpiryQueue.poll();
+            if (head.state != OutboundMessage.STATE_QUEUED) {
+                continue;
+            }
+            PublishLane lane = head.queuedLane;
+            finish(head, new TimeoutException("message expired before sending"));
+            if (lane != null) {
+                // 留在通道队列中，到达队首时移除
+                lane.stale++;
+            } else {
+                lane = findLane(head.lane);
+            }
+            lane.expired.incrementAndGet();
+            mMetrics.publishExpired.incrementAndGet();
+            expired++;
+        }
+        if (expired > 0) {
+            for (PublishLane lane : mLanes) {
+                purgeHead(lane);
+                compactLane(lane);
+            }
+            LogUtil.w(TAG, "丢弃过期消息:" + expired);
+        }
+    }
+
+    /**
+     * 在堆顶消息过期时检查，没有连接时过期的消息也能及时通知调用方
+     */
+    private void scheduleExpiry() {
+        OutboundMessage head = mExpiryQueue.peek();
+        if (head == null) {
+            return;
+        }
+        if (mExpiryDeadline != 0 && mExpiryDeadline - head.expireNanos <= 0) {
+            return;
+        }
+        mExpiryDeadline = head.expireNanos;
+        long delay = Math.max(0, head.expireNanos - System.nanoTime());
+        mExecutor.schedule(mExpiryTask, delay, TimeUnit.NANOSECONDS);
+    }
+
+    private void schedule() {
+        if (mWip.getAndIncrement() == 0) {
+            mExecutor.execute(mDrainTask);
+        }
+    }
+
+    /**
+     * 在发送线程中尽可能多地发送消息
+     */
+    private void drainOnce() {
+        synchronized (mLock) {
+            for (PublishLane lane : mLanes) {
+                lane.throttled = false;
+            }
+        }
+        if (!drainCoalesced()) {
+            return;
+        }
+        while (true) {
+            PublishLane lane;
+            OutboundMessage message;
+            MQTTConnection connection;
+            int epoch;
+            synchronized (mLock) {
+                connection = mConnection;
+                if (connection == null || mInFlight >= MAX_IN_FLIGHT) {
+                    return;
+                }
+                // 交给Paho之前先丢弃过期的消息
+                expire(System.nanoTime());
+                lane = selectLane();
+                if (lane == null) {
+                    return;
+                }
+                message = lane.queue.peekFirst();
+                long wait = mRateLimiter.acquire(message.topic, System.nanoTime());
+                if (wait > 0) {
+                    onThrottled(lane, message, wait);
+                    continue;
+                }
+                pollFirst(lane);
+                purgeHead(lane);
+                message.state = OutboundMessage.STATE_SENT;
+                mInFlight++;
+                epoch = mEpoch;
+            }
+            if (!send(connection, lane, message, epoch)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 先发送之前被合并的消息，还在等待令牌的消息跳过，不影响通道中的消息
+     *
+     * @return 是否可以继续发送通道中的消息
+     */
+    private boolean drainCoalesced() {
+        long minWait = 0;
+        Iterator<OutboundMessage> iterator = mCoalesced.values().iterator();
+        while (iterator.hasNext()) {
+            OutboundMessage message = iterator.next();
+            MQTTConnection connection;
+            int epoch;
+            synchronized (mLock) {
+                connection = mConnection;
+                if (connection == null || mInFlight >= MAX_IN_FLIGHT) {
+                    return false;
+                }
+                if (message.state != OutboundMessage.STATE_QUEUED) {
+                    // 等待令牌时已经过期
+                    iterator.remove();
+                    mCoalescedCount--;
+                    continue;
+                }
+                long wait = mRateLimiter.acquire(message.topic, System.nanoTime());
+                if (wait > 0) {
+                    minWait = minWait == 0 ? wait : Math.min(minWait, wait);
+                    continue;
+                }
+                message.state = OutboundMessage.STATE_SENT;
+                mInFlight++;
+                epoch = mEpoch;
+                iterator.remove();
+                mCoalescedCount--;
+            }
+            if (!send(connection, findLaneLocked(message.lane), message, epoch)) {
+                return false;
+            }
+        }
+        if (minWait > 0) {
+            synchronized (mLock) {
+                scheduleWake(minWait);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 通道队首的消息超过速率限制，在锁内调用
+     */
+    private void onThrottled(PublishLane lane, OutboundMessage message, long waitNanos) {
+        RateLimitPolicy policy = mRateLimiter.lastPolicy();
+        switch (policy) {
+            case DROP:
+                pollFirst(lane);
+                purgeHead(lane);
+                finish(message, new IllegalStateException("publish rate limit exceeded"));
+                mMetrics.publishThrottledDropped.incrementAndGet();
+                LogUtil.w(TAG, "超过发布速率限制，丢弃消息:" + message.topic);
+                return;
+            case COALESCE:
+                pollFirst(lane);
+                purgeHead(lane);
+                OutboundMessage replaced = mCoalesced.remove(message.topic);
+                if (replaced != null) {
+                    finish(replaced, new IllegalStateException("coalesced by a newer message"));
+                    mMetrics.publishThrottledCoalesced.incrementAndGet();
+                } else {
+                    mCoalescedCount++;
+                }
+                mCoalesced.put(message.topic, message);
+                scheduleWake(waitNanos);
+                return;
+            default:
+                if (!message.throttled) {
+                    message.throttled = true;
+                    mMetrics.publishThrottledDelayed.incrementAndGet();
+                }
+                // 保持通道内的顺序，只跳过这个通道
+                lane.throttled = true;
+                scheduleWake(waitNanos);
+        }
+    }
+
+    /**
+     * 等待令牌之后重新调度，已经安排了更早的调度时不再安排，在锁内调用
+     *
+     * @param waitNanos 等待时间
+     */
+    private void scheduleWake(long waitNanos) {
+        long deadline = System.nanoTime() + waitNanos;
+        if (mWakeDeadline != 0 && mWakeDeadline - deadline <= 0) {
+            return;
+        }
+        // 0表示没有安排，恰好为0时向后错开1纳秒
+        mWakeDeadline = deadline == 0 ? 1 : deadline;
+        mExecutor.schedule(mWakeTask, waitNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 选择下一个发送的通道
+     *
+     * @return 通道，所有通道都为空时返回null
+     */
+    private PublishLane selectLane() {
+        if (mScheduling == LaneScheduling.STRICT) {
+            for (PublishLane lane : mLanes) {
+                if (!lane.paused && !lane.throttled && !lane.queue.isEmpty()) {
+                    return lane;
+                }
+            }
+            return null;
+        }
+        // 平滑加权轮询
+        PublishLane selected = null;
+        int totalWeight = 0;
+        for (PublishLane lane : mLanes) {
+            if (lane.paused || lane.throttled || lane.queue.isEmpty()) {
+                continue;
+            }
+            lane.currentWeight += lane.weight;
+            totalWeight += lane.weight;
+            if (selected == null || lane.currentWeight > selected.currentWeight) {
+                selected = lane;
+            }
+        }
+        if (selected != null) {
+            selected.currentWeight -= totalWeight;
+        }
+        return selected;
+    }
+
+    /**
+     * 把消息交给Paho
+     *
+     * @return 是否可以继续发送下一条
+     */
+    private boolean send(MQTTConnection connection, PublishLane lane, final OutboundMessage message,
+                         final int epoch) {
+        try {
+            // QoS0写出之后、QoS1/2收到确认之后回调，此时Paho已经不再使用消息内容
+            message.writeNanos = System.nanoTime();
+            mTracer.record(message.traceId, TracePoint.PUBLISH_WRITE, message.topic);
+            connection.publishMqttMessage(message.topic, message.message, new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    // 断开之后重发的消息，Paho在收到确认时再次回调同一个监听器；
+                    // 连接关闭时已经按失败完成的消息不再完成
+                    boolean owned;
+                    synchronized (mLock) {
+                        mAwaitingRetry.remove(message);
+                        owned = message.state == OutboundMessage.STATE_SENT;
+                    }
+                    if (owned) {
+                        finish(message, null);
+                    }
+                    onComplete(epoch);
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    if (isRetried(message, exception)) {
+                        LogUtil.w(TAG, "连接断开，等待重新连接之后重发:" + message.topic);
+                        synchronized (mLock) {
+                            if (message.state == OutboundMessage.STATE_SENT) {
+                                mAwaitingRetry.add(message);
+                            }
+                        }
+                        onComplete(epoch);
+                        return;
+                    }
+                    LogUtil.e(TAG, "消息发布失败:" + exception);
+                    finish(message, exception == null ? new IllegalStateException("publish failed") : exception);
+                    onComplete(epoch);
+                }
+            });
+            lane.recordSent(System.nanoTime() - message.enqueueNanos);
+            return true;
+        } catch (MqttException e) {
+            int reason = e.getReasonCode();
+            if (reason == MqttException.REASON_CODE_MAX_INFLIGHT
+                    || reason == MqttException.REASON_CODE_CLIENT_NOT_CONNECTED
+                    || reason == MqttException.REASON_CODE_CLIENT_DISCONNECTING
+                    || reason == MqttException.REASON_CODE_CONNECT_IN_PROGRESS) {
+                // 暂时不能发送，放回队首等待下一次调度
+                message.writeNanos = 0;
+                synchronized (mLock) {
+                    // 发送期间setLanes可能已经替换了通道，按名称在当前的通道中重新查找，不存在时放入默认通道
+                    PublishLane target = findLane(message.lane);
+                    message.state = OutboundMessage.STATE_QUEUED;
+                    message.queuedLane = target;
+                    target.queue.offerFirst(message);
+                    if (epoch == mEpoch) {
+                        mInFlight--;
+                    }
+                }
+                return false;
+            }
+            LogUtil.e(TAG, "消息发布失败，丢弃消息", e);
+            finish(message, e);
+        } catch (IllegalArgumentException e) {
+            LogUtil.e(TAG, "消息主题不合法，丢弃消息:" + message.topic, e);
+            finish(message, e);
+        }
+        synchronized (mLock) {
+            if (epoch == mEpoch) {
+                mInFlight--;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 是否是Paho会在重新连接之后重发的消息
+     * <p>
+     * 连接断开时Paho让QoS1/2的发布回调失败，但消息保留在持久化中，不清除会话的重新连接之后重发
+     */
+    private static boolean isRetried(OutboundMessage message, Throwable exception) {
+        return message.message.getQos() > 0 && exception instanceof MqttException
+                && ((MqttException) exception).getReasonCode() == MqttException.REASON_CODE_CONNECTION_LOST;
+    }
+
+    /**
+     * 消息完成或被丢弃，归还借出的内容，记录延迟并通知调用方
+     *
+     * @param message 消息
+     * @param failure 失败原因，成功时为null
+     */
+    private void finish(OutboundMessage message, Throwable failure) {
+        // Paho的回调、send和abandonRetries可能同时完成同一条消息，只有把状态改为完成的一方继续
+        synchronized (mLock) {
+            if (message.state == OutboundMessage.STATE_DONE) {
+                return;
+            }
+            message.state = OutboundMessage.STATE_DONE;
+        }
+        // 成功时Paho已经写出或收到确认，不再使用内容；交给Paho之后失败的内容可能还在Paho的持久化中，
+        // 重新连接之后会被重发，不能放回缓冲池
+        message.release(failure == null || message.writeNanos == 0);
+        mDeltaEncoder.onFinished(message, failure == null);
+        mTracer.record(message.traceId, TracePoint.PUBLISH_ACK, message.topic);
+        long now = System.nanoTime();
+        long queuedNanos = -1;
+        long ackNanos = -1;
+        if (message.writeNanos != 0) {
+            queuedNanos = message.writeNanos - message.enqueueNanos;
+            ackNanos = now - message.writeNanos;
+        }
+        int qos = message.message.getQos();
+        if (failure == null) {
+            mMetrics.publishLatency[qos].record(now - message.enqueueNanos);
+        } else {
+            mMetrics.publishFailed.incrementAndGet();
+        }
+        if (message.future != null) {
+            DeliveryReceipt receipt = new DeliveryReceipt(message.topic, qos, queuedNanos, ackNanos, failure);
+            if (Thread.holdsLock(mLock)) {
+                message.receipt = receipt;
+                mCompleted.add(message);
+            } else {
+                message.future.complete(receipt);
+            }
+        }
+    }
+
+    /**
+     * 通知在锁内完成的消息，调用时不能持有锁
+     */
+    private void notifyCompleted() {
+        OutboundMessage[] completed;
+        synchronized (mLock) {
+            if (mCompleted.isEmpty()) {
+                return;
+            }
+            completed = mCompleted.toArray(new OutboundMessage[mCompleted.size()]);
+            mCompleted.clear();
+        }
+        for (OutboundMessage message : completed) {
+            DeliveryReceipt receipt = message.receipt;
+            message.receipt = null;
+            message.future.complete(receipt);
+        }
+    }
+
+    private void onComplete(int epoch) {
+        synchronized (mLock) {
+            if (epoch == mEpoch) {
+                mInFlight--;
+            }
+        }
+        // 旧连接重发的消息完成后Paho的窗口也会空出来
+        schedule();
+    }
+}
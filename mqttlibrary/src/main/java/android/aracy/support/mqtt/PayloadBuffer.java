@@ -0,0 +1,67 @@
+package android.aracy.support.mqtt;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 从缓冲池借出的发布内容
+ * <p>
+ * 通过{@link MQTTManager#obtainPayload(int)}借出，填好{@link #data()}之后交给
+ * {@link MQTTManager#publishPayload(String, PayloadBuffer, int, boolean, String)}发布。
+ * QoS0的消息写出之后、QoS1/2的消息收到服务器确认之后由库自动归还，发布之后不能再修改或使用。
+ * 交给Paho之后发布失败的缓冲不再放回缓冲池，Paho可能在重新连接之后重发这个数组。
+ * 借出后不发布时需要调用{@link #recycle()}归还
+ *
+ * @author aracy
+ * @version [1.0, 2017-04-29]
+ */
+public final class PayloadBuffer {
+
+    private final byte[] mData;
+
+    private final PayloadPool mPool;
+
+    /**
+     * 是否已经借出
+     */
+    final AtomicBoolean borrowed = new AtomicBoolean();
+
+    /**
+     * 调试模式下用于检测没有归还的缓冲
+     */
+    PayloadPool.LeakReference leak;
+
+    PayloadBuffer(PayloadPool pool, int length) {
+        mPool = pool;
+        mData = new byte[length];
+    }
+
+    /**
+     * 获取缓冲的内容，长度与借出时指定的长度相同，整个数组都会作为消息内容发布
+     *
+     * @return 内容数组
+     */
+    public byte[] data() {
+        return mData;
+    }
+
+    /**
+     * @return 内容长度
+     */
+    public int length() {
+        return mData.length;
+    }
+
+    /**
+     * 归还没有发布的缓冲
+     */
+    public void recycle() {
+        mPool.recycle(this);
+    }
+
+    /**
+     * 放弃缓冲，不放回缓冲池
+     */
+    void discard() {
+        mPool.discard(this);
+    }
+}
@@ -0,0 +1,248 @@
+package android.aracy.support.mqtt;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 发布内容的缓冲池
+ * <p>
+ * Paho会把MqttMessage的整个数组作为消息内容，所以缓冲按长度分别缓存，只有长度完全相同时才能复用。
+ * 适合固定格式、长度只有几种的内容；长度随机变化时几乎不能复用，最多缓存{@link #MAX_LENGTHS}种长度，
+ * 新的长度替换最久没有使用的长度，不会被用不上的长度占满。
+ * 缓存的总大小和每种长度的个数都有上限，超过上限的缓冲归还时直接丢弃。
+ * 调试模式下记录每个缓冲借出的位置，缓冲没有归还就被回收时打印借出位置
+ *
+ * @author aracy
+ * @version [1.0, 2017-04-29]
+ */
+class PayloadPool {
+
+    private static final String TAG = "PayloadPool";
+
+    /**
+     * 缓存的最大总字节数
+     */
+    private static final int MAX_POOLED_BYTES = 256 * 1024;
+
+    /**
+     * 每种长度最多缓存的个数
+     */
+    private static final int MAX_PER_LENGTH = 16;
+
+    /**
+     * 超过这个长度的缓冲不缓存
+     */
+    private static final int MAX_POOLED_LENGTH = 64 * 1024;
+
+    /**
+     * 最多缓存的长度种数
+     */
+    static final int MAX_LENGTHS = 16;
+
+    private final MQTTMetrics mMetrics;
+
+    /**
+     * 每种长度一个槽位，按长度顺序查找，不需要装箱
+     */
+    private final Slot[] mSlots = new Slot[MAX_LENGTHS];
+
+    private int mPooledBytes;
+
+    /**
+     * 槽位最近使用的顺序
+     */
+    private long mClock;
+
+    private final ReferenceQueue<PayloadBuffer> mLeakQueue = new ReferenceQueue<>();
+
+    /**
+     * 调试模式下借出还没有归还的缓冲
+     */
+    private final Set<LeakReference> mTracked =
+            Collections.newSetFromMap(new ConcurrentHashMap<LeakReference, Boolean>());
+
+    PayloadPool(MQTTMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * 借出一个缓冲
+     *
+     * @param length 内容长度
+     * @return 缓冲
+     */
+    PayloadBuffer obtain(int length) {
+        PayloadBuffer buffer = null;
+        if (length <= MAX_POOLED_LENGTH) {
+            synchronized (mSlots) {
+                Slot slot = findSlot(length);
+                if (slot != null) {
+                    buffer = slot.buffers.pollFirst();
+                    if (buffer != null) {
+                        mPooledBytes -= length;
+                        slot.lastUsed = ++mClock;
+                    }
+                }
+            }
+        }
+        if (buffer != null) {
+            mMetrics.payloadPoolHits.incrementAndGet();
+        } else {
+            mMetrics.payloadPoolMisses.incrementAndGet();
+            buffer = new PayloadBuffer(this, length);
+        }
+        buffer.borrowed.set(true);
+        if (LogUtil.sDebug) {
+            reportLeaks();
+            buffer.leak = new LeakReference(buffer, mLeakQueue);
+            mTracked.add(buffer.leak);
+        }
+        return buffer;
+    }
+
+    /**
+     * 归还缓冲
+     *
+     * @param buffer 缓冲
+     */
+    void recycle(PayloadBuffer buffer) {
+        if (!buffer.borrowed.compareAndSet(true, false)) {
+            LogUtil.e(TAG, "缓冲重复归还", new IllegalStateException());
+            return;
+        }
+        LeakReference leak = buffer.leak;
+        if (leak != null) {
+            buffer.leak = null;
+            mTracked.remove(leak);
+            leak.clear();
+        }
+        int length = buffer.length();
+        if (length > MAX_POOLED_LENGTH) {
+            return;
+        }
+        synchronized (mSlots) {
+            Slot slot = findSlot(length);
+            if (slot == null) {
+                slot = claimSlot(length);
+            }
+            slot.lastUsed = ++mClock;
+            if (mPooledBytes + length > MAX_POOLED_BYTES) {
+                return;
+            }
+            if (slot.buffers.size() < MAX_PER_LENGTH) {
+                slot.buffers.offerFirst(buffer);
+                mPooledBytes += length;
+            }
+        }
+    }
+
+    /**
+     * 放弃缓冲，不再放回缓存，交给GC回收
+     * <p>
+     * 交给Paho之后失败的消息，内容可能还留在Paho的持久化中，重新连接之后会被重发，不能再借给别人
+     *
+     * @param buffer 缓冲
+     */
+    void discard(PayloadBuffer buffer) {
+        if (!buffer.borrowed.compareAndSet(true, false)) {
+            LogUtil.e(TAG, "缓冲重复归还", new IllegalStateException());
+            return;
+        }
+        LeakReference leak = buffer.leak;
+        if (leak != null) {
+            buffer.leak = null;
+            mTracked.remove(leak);
+            leak.clear();
+        }
+    }
+
+    /**
+     * 清空缓存的缓冲，借出的缓冲不受影响
+     */
+    long trim() {
+        synchronized (mSlots) {
+            long released = mPooledBytes;
+            Arrays.fill(mSlots, null);
+            mPooledBytes = 0;
+            return released;
+        }
+    }
+
+    private Slot findSlot(int length) {
+        for (Slot slot : mSlots) {
+            if (slot != null && slot.length == length) {
+                return slot;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 为新的长度分配槽位，没有空槽位时清空最久没有使用的槽位
+     */
+    private Slot claimSlot(int length) {
+        int index = 0;
+        for (int i = 0; i < mSlots.length; i++) {
+            if (mSlots[i] == null) {
+                index = i;
+                break;
+            }
+            if (mSlots[i].lastUsed < mSlots[index].lastUsed) {
+                index = i;
+            }
+        }
+        Slot slot = mSlots[index];
+        if (slot == null) {
+            slot = new Slot();
+            mSlots[index] = slot;
+        } else {
+            mPooledBytes -= slot.length * slot.buffers.size();
+            slot.buffers.clear();
+        }
+        slot.length = length;
+        return slot;
+    }
+
+    /**
+     * 打印已经被回收但没有归还的缓冲
+     */
+    private void reportLeaks() {
+        LeakReference leak;
+        while ((leak = (LeakReference) mLeakQueue.poll()) != null) {
+            if (mTracked.remove(leak)) {
+                mMetrics.payloadLeaks.incrementAndGet();
+                LogUtil.e(TAG, "缓冲没有归还就被回收，借出位置:", leak.stack);
+            }
+        }
+    }
+
+    /**
+     * 一种长度的缓冲
+     */
+    private static final class Slot {
+
+        final ArrayDeque<PayloadBuffer> buffers = new ArrayDeque<>(MAX_PER_LENGTH);
+
+        int length;
+
+        long lastUsed;
+    }
+
+    /**
+     * 记录缓冲借出位置的弱引用
+     */
+    static final class LeakReference extends WeakReference<PayloadBuffer> {
+
+        final Throwable stack;
+
+        LeakReference(PayloadBuffer buffer, ReferenceQueue<PayloadBuffer> queue) {
+            super(buffer, queue);
+            stack = new Throwable("PayloadBuffer obtained here");
+        }
+    }
+}
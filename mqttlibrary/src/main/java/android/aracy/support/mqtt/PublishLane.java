@@ -0,0 +1,107 @@
+package android.aracy.support.mqtt;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 发布通道，保存一个通道的配置、队列和统计
+ * <p>
+ * 队列只在{@link OutboundScheduler}的锁内访问
+ *
+ * @author aracy
+ * @version [1.0, 2017-04-19]
+ */
+class PublishLane {
+
+    final String name;
+
+    final int priority;
+
+    final int weight;
+
+    final int capacity;
+
+    final ArrayDeque<OutboundMessage> queue = new ArrayDeque<>();
+
+    /**
+     * 平滑加权轮询的当前权重
+     */
+    int currentWeight;
+
+    /**
+     * 内存紧张时暂停发送，消息留在队列中
+     */
+    boolean paused;
+
+    /**
+     * 队列中已经过期但还没有移除的记录数
+     */
+    int stale;
+
+    /**
+     * 队首消息在这一轮发送中等待令牌，这一轮不再选择这个通道，其他通道继续发送
+     */
+    boolean throttled;
+
+    final AtomicLong enqueued = new AtomicLong();
+
+    final AtomicLong sent = new AtomicLong();
+
+    final AtomicLong dropped = new AtomicLong();
+
+    final AtomicLong expired = new AtomicLong();
+
+    final AtomicLong totalLatencyNanos = new AtomicLong();
+
+    final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    /**
+     * @param name     通道名称
+     * @param priority 优先级，越大越优先
+     * @param weight   按权重调度时的权重
+     * @param capacity 队列的最大长度，超过之后丢弃最早的消息
+     */
+    PublishLane(String name, int priority, int weight, int capacity) {
+        this.name = name;
+        this.priority = priority;
+        this.weight = Math.max(1, weight);
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * @return 队列中等待发送的消息数
+     */
+    int depth() {
+        return queue.size() - stale;
+    }
+
+    /**
+     * 记录一条消息从入队到交给Paho的排队时间
+     *
+     * @param latencyNanos 排队时间
+     */
+    void recordSent(long latencyNanos) {
+        sent.incrementAndGet();
+        totalLatencyNanos.addAndGet(latencyNanos);
+        long max;
+        do {
+            max = maxLatencyNanos.get();
+            if (latencyNanos <= max) {
+                return;
+            }
+        } while (!maxLatencyNanos.compareAndSet(max, latencyNanos));
+    }
+
+    /**
+     * 生成统计快照
+     *
+     * @param depth 当前队列长度
+     * @return 统计快照
+     */
+    PublishLaneStats snapshot(int depth) {
+        long sentCount = sent.get();
+        long averageNanos = sentCount == 0 ? 0 : totalLatencyNanos.get() / sentCount;
+        return new PublishLaneStats(name, priority, weight, depth, enqueued.get(), sentCount, dropped.get(),
+                expired.get(), averageNanos / 1000000, maxLatencyNanos.get() / 1000000);
+    }
+}
@@ -0,0 +1,123 @@
+package android.aracy.support.mqtt;
+
+/**
+ * 发布通道的统计快照
+ *
+ * @author aracy
+ * @version [1.0, 2017-04-19]
+ * @see MQTTManager#getPublishLaneStats()
+ */
+public final class PublishLaneStats {
+
+    private final String mName;
+
+    private final int mPriority;
+
+    private final int mWeight;
+
+    private final int mDepth;
+
+    private final long mEnqueued;
+
+    private final long mSent;
+
+    private final long mDropped;
+
+    private final long mExpired;
+
+    private final long mAverageLatencyMillis;
+
+    private final long mMaxLatencyMillis;
+
+    PublishLaneStats(String name, int priority, int weight, int depth, long enqueued, long sent, long dropped,
+                     long expired, long averageLatencyMillis, long maxLatencyMillis) {
+        mName = name;
+        mPriority = priority;
+        mWeight = weight;
+        mDepth = depth;
+        mEnqueued = enqueued;
+        mSent = sent;
+        mDropped = dropped;
+        mExpired = expired;
+        mAverageLatencyMillis = averageLatencyMillis;
+        mMaxLatencyMillis = maxLatencyMillis;
+    }
+
+    /**
+     * @return 通道名称
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * @return 优先级
+     */
+    public int getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * @return 权重
+     */
+    public int getWeight() {
+        return mWeight;
+    }
+
+    /**
+     * @return 当前排队的消息数
+     */
+    public int getDepth() {
+        return mDepth;
+    }
+
+    /**
+     * @return 累计入队的消息数
+     */
+    public long getEnqueued() {
+        return mEnqueued;
+    }
+
+    /**
+     * @return 累计交给Paho发送的消息数
+     */
+    public long getSent() {
+        return mSent;
+    }
+
+    /**
+     * @return 队列满时被丢弃的消息数
+     */
+    public long getDropped() {
+        return mDropped;
+    }
+
+    /**
+     * @return 超过有效期没有发送的消息数
+     */
+    public long getExpired() {
+        return mExpired;
+    }
+
+    /**
+     * @return 平均排队时间(毫秒)
+     */
+    public long getAverageLatencyMillis() {
+        return mAverageLatencyMillis;
+    }
+
+    /**
+     * @return 最大排队时间(毫秒)
+     */
+    public long getMaxLatencyMillis() {
+        return mMaxLatencyMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "PublishLaneStats{name=" + mName + ", priority=" + mPriority + ", weight=" + mWeight
+                + ", depth=" + mDepth + ", enqueued=" + mEnqueued + ", sent=" + mSent + ", dropped=" + mDropped
+                + ", expired=" + mExpired + ", avgLatency=" + mAverageLatencyMillis + "ms, maxLatency="
+                + mMaxLatencyMillis + "ms}";
+    }
+}
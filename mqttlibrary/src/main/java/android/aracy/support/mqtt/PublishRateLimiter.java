@@ -0,0 +1,151 @@
+package android.aracy.support.mqtt;
+
+/**
+ * 发布速率限制
+ * <p>
+ * 由连接级别的令牌桶和按主题过滤器的令牌桶组成，一条消息需要同时拿到匹配的主题令牌和连接令牌才能发送。
+ * 配置可以在任意线程修改，{@link #acquire(String, long)}只在发送线程调用
+ *
+ * @author aracy
+ * @version [1.0, 2017-04-21]
+ */
+class PublishRateLimiter {
+
+    private static final Rule[] EMPTY = new Rule[0];
+
+    /**
+     * 没有匹配的主题规则，用于缓存在{@link Topic}中
+     */
+    private static final Rule NO_RULE = new Rule("", null, null);
+
+    private final TopicTable mTopicTable;
+
+    private volatile Rule mConnectionRule;
+
+    private volatile Rule[] mTopicRules = EMPTY;
+
+    /**
+     * 最近一次被限制时使用的处理方式
+     */
+    private RateLimitPolicy mLastPolicy = RateLimitPolicy.DELAY;
+
+    /**
+     * @param topicTable 主题规范化表，主题匹配的规则缓存在规范化的主题中
+     */
+    PublishRateLimiter(TopicTable topicTable) {
+        mTopicTable = topicTable;
+    }
+
+    /**
+     * 设置连接级别的限制
+     *
+     * @param permitsPerSecond 每秒允许发布的消息数，小于等于0表示不限制
+     * @param burst            允许突发的消息数
+     * @param policy           超过限制时的处理方式
+     */
+    void setConnectionLimit(double permitsPerSecond, int burst, RateLimitPolicy policy) {
+        mConnectionRule = permitsPerSecond <= 0 ? null
+                : new Rule(null, new TokenBucket(permitsPerSecond, burst), policy);
+    }
+
+    /**
+     * 设置主题过滤器的限制，同一过滤器会被覆盖
+     *
+     * @param filter           主题过滤器
+     * @param permitsPerSecond 每秒允许发布的消息数，小于等于0表示取消限制
+     * @param burst            允许突发的消息数
+     * @param policy           超过限制时的处理方式
+     */
+    synchronized void setTopicLimit(String filter, double permitsPerSecond, int burst, RateLimitPolicy policy) {
+        Rule[] rules = mTopicRules;
+        int count = 0;
+        for (Rule rule : rules) {
+            if (!rule.filter.equals(filter)) {
+                count++;
+            }
+        }
+        Rule[] newRules = new Rule[permitsPerSecond <= 0 ? count : count + 1];
+        int index = 0;
+        for (Rule rule : rules) {
+            if (!rule.filter.equals(filter)) {
+                newRules[index++] = rule;
+            }
+        }
+        if (permitsPerSecond > 0) {
+            newRules[index] = new Rule(filter, new TokenBucket(permitsPerSecond, burst), policy);
+        }
+        mTopicRules = newRules;
+    }
+
+    /**
+     * 为一条消息获取令牌
+     *
+     * @param topic    消息主题
+     * @param nowNanos 当前时间(System.nanoTime)
+     * @return 0表示可以发送，否则为需要等待的时间(纳秒)，处理方式见{@link #lastPolicy()}
+     */
+    long acquire(String topic, long nowNanos) {
+        Rule topicRule = matchTopicRule(topic);
+        if (topicRule != null) {
+            long wait = topicRule.bucket.tryAcquire(nowNanos);
+            if (wait > 0) {
+                mLastPolicy = topicRule.policy;
+                return wait;
+            }
+        }
+        Rule connectionRule = mConnectionRule;
+        if (connectionRule != null) {
+            long wait = connectionRule.bucket.tryAcquire(nowNanos);
+            if (wait > 0) {
+                if (topicRule != null) {
+                    topicRule.bucket.refund();
+                }
+                mLastPolicy = connectionRule.policy;
+                return wait;
+            }
+        }
+        return 0;
+    }
+
+    private Rule matchTopicRule(String name) {
+        Rule[] rules = mTopicRules;
+        if (rules.length == 0) {
+            return null;
+        }
+        Topic topic = mTopicTable.intern(name);
+        Rule matched = (Rule) topic.getRateRule(rules);
+        if (matched == null) {
+            matched = NO_RULE;
+            for (Rule rule : rules) {
+                if (MqttUtil.isTopicMatched(rule.filter, name)) {
+                    matched = rule;
+                    break;
+                }
+            }
+            topic.setRateRule(rules, matched);
+        }
+        return matched == NO_RULE ? null : matched;
+    }
+
+    /**
+     * @return 最近一次被限制时使用的处理方式
+     */
+    RateLimitPolicy lastPolicy() {
+        return mLastPolicy;
+    }
+
+    private static final class Rule {
+
+        final String filter;
+
+        final TokenBucket bucket;
+
+        final RateLimitPolicy policy;
+
+        Rule(String filter, TokenBucket bucket, RateLimitPolicy policy) {
+            this.filter = filter;
+            this.bucket = bucket;
+            this.policy = policy == null ? RateLimitPolicy.DELAY : policy;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package android.aracy.support.mqtt;
+
+/**
+ * 发布速率超过限制时的处理方式
+ *
+ * @author aracy
+ * @version [1.0, 2017-04-21]
+ * @see MQTTManager#setPublishRateLimit(double, int, RateLimitPolicy)
+ */
+public enum RateLimitPolicy {
+
+    /**
+     * 等待令牌之后再发送，同一通道中的消息保持顺序
+     */
+    DELAY,
+
+    /**
+     * 直接丢弃超过限制的消息
+     */
+    DROP,
+
+    /**
+     * 同一主题只保留最新的一条，等待令牌之后发送
+     */
+    COALESCE
+}
@@ -0,0 +1,183 @@
+package android.aracy.support.mqtt;
+
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 向其他进程的回调分批发送收到的消息
+ * <p>
+ * 消息先放入队列，由单独的线程每次取出最多{@link #MAX_BATCH_MESSAGES}条或等待最多{@link #MAX_DELAY_MILLIS}毫秒，
+ * 按每个回调的主题过滤器组成{@link MessageBatch}，每批一次oneway调用。
+ * 队列满时丢弃新消息，与广播一样不保证送达
+ *
+ * @author aracy
+ * @version [1.0, 2017-05-12]
+ */
+class RemoteMessageDispatcher implements Runnable {
+
+    private static final String TAG = "RemoteMessageDispatcher";
+
+    private static final int QUEUE_CAPACITY = 10000;
+
+    static final int MAX_BATCH_MESSAGES = 256;
+
+    static final long MAX_DELAY_MILLIS = 20;
+
+    private final MQTTMetrics mMetrics;
+
+    private final AtomicInteger mCallbackCount = new AtomicInteger();
+
+    private final RemoteCallbackList<IMQTTCallback> mCallbacks = new RemoteCallbackList<IMQTTCallback>() {
+        @Override
+        public void onCallbackDied(IMQTTCallback callback, Object cookie) {
+            mCallbackCount.decrementAndGet();
+        }
+    };
+
+    private final LinkedBlockingQueue<MQTTMessage> mQueue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+
+    private Thread mThread;
+
+    private volatile boolean mStopped;
+
+    RemoteMessageDispatcher(MQTTMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * 注册回调，同一个回调重复注册时替换主题过滤器
+     *
+     * @param filter   主题过滤器
+     * @param callback 回调
+     */
+    synchronized void register(String filter, IMQTTCallback callback) {
+        if (mStopped) {
+            return;
+        }
+        if (mCallbacks.unregister(callback)) {
+            mCallbackCount.decrementAndGet();
+        }
+        if (mCallbacks.register(callback, filter)) {
+            mCallbackCount.incrementAndGet();
+        }
+        if (mThread == null) {
+            mThread = new Thread(this, "mqtt-remote");
+            mThread.start();
+        }
+    }
+
+    /**
+     * 注销回调
+     *
+     * @param callback 回调
+     */
+    synchronized void unregister(IMQTTCallback callback) {
+        if (mCallbacks.unregister(callback)) {
+            mCallbackCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * 收到消息，有注册的回调时加入队列
+     *
+     * @param message 消息
+     */
+    void offer(MQTTMessage message) {
+        if (mCallbackCount.get() <= 0) {
+            return;
+        }
+        if (!mQueue.offer(message)) {
+            mMetrics.remoteDropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * 停止发送，注销所有回调
+     */
+    synchronized void stop() {
+        mStopped = true;
+        if (mThread != null) {
+            mThread.interrupt();
+        }
+        mCallbacks.kill();
+        mCallbackCount.set(0);
+    }
+
+    @Override
+    public void run() {
+        List<MQTTMessage> batch = new ArrayList<>(MAX_BATCH_MESSAGES);
+        long maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(MAX_DELAY_MILLIS);
+        while (!mStopped) {
+            try {
+                batch.add(mQueue.take());
+                long deadline = System.nanoTime() + maxDelayNanos;
+                mQueue.drainTo(batch, MAX_BATCH_MESSAGES - batch.size());
+                while (batch.size() < MAX_BATCH_MESSAGES) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    MQTTMessage message = mQueue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (message == null) {
+                        break;
+                    }
+                    batch.add(message);
+                    mQueue.drainTo(batch, MAX_BATCH_MESSAGES - batch.size());
+                }
+            } catch (InterruptedException e) {
+                if (mStopped) {
+                    break;
+                }
+            }
+            if (!batch.isEmpty()) {
+                deliver(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * 按每个回调的主题过滤器分批发送
+     */
+    private void deliver(List<MQTTMessage> messages) {
+        int count = mCallbacks.beginBroadcast();
+        try {
+            for (int i = 0; i < count; i++) {
+                IMQTTCallback callback = mCallbacks.getBroadcastItem(i);
+                String filter = (String) mCallbacks.getBroadcastCookie(i);
+                MessageBatch batch = new MessageBatch();
+                for (MQTTMessage message : messages) {
+                    if (!MqttUtil.isTopicMatched(filter, message.getTopic())) {
+                        continue;
+                    }
+                    batch.add(message);
+                    if (batch.isFull()) {
+                        send(callback, batch);
+                        batch = new MessageBatch();
+                    }
+                }
+                if (batch.size() > 0) {
+                    send(callback, batch);
+                }
+            }
+        } finally {
+            mCallbacks.finishBroadcast();
+        }
+    }
+
+    private void send(IMQTTCallback callback, MessageBatch batch) {
+        try {
+            callback.onMessages(batch);
+            mMetrics.remoteBatches.incrementAndGet();
+        } catch (RemoteException | RuntimeException e) {
+            // 对方进程已经退出时由RemoteCallbackList自动移除
+            LogUtil.e(TAG, "跨进程发送消息失败", e);
+        }
+    }
+}
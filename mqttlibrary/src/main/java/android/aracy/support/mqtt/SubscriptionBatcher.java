@@ -0,0 +1,344 @@
+package android.aracy.support.mqtt;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 分批订阅/取消订阅
+ * <p>
+ * 大量主题按数量和报文大小拆成多个SUBSCRIBE/UNSUBSCRIBE，同时最多有{@link #MAX_OUTSTANDING}批等待确认，
+ * 每个主题的确认结果用一个字节记录。一轮结束后只重试失败的主题，全部成功或重试次数用完后回调{@link Callback}，
+ * 取消后不再回调。
+ *
+ * @author aracy
+ * @version [1.0, 2017-04-27]
+ */
+class SubscriptionBatcher {
+
+    private static final String TAG = "SubscriptionBatcher";
+
+    /**
+     * 每批最多的主题数
+     */
+    static final int MAX_BATCH_TOPICS = 100;
+
+    /**
+     * 每批主题部分的最大字节数
+     */
+    static final int MAX_BATCH_BYTES = 16 * 1024;
+
+    /**
+     * 同时等待确认的最大批数
+     */
+    static final int MAX_OUTSTANDING = 4;
+
+    /**
+     * 失败主题的最大重试轮数
+     */
+    private static final int MAX_RETRIES = 3;
+
+    private static final long RETRY_DELAY_MILLIS = 2000;
+
+    /**
+     * 还没有收到确认
+     */
+    static final byte STATUS_PENDING = -1;
+
+    /**
+     * 服务器拒绝或发送失败，与SUBACK中的失败返回码相同
+     */
+    static final byte STATUS_FAILED = (byte) 0x80;
+
+    private static final int SUBACK_FAILURE = 0x80;
+
+    private static ScheduledExecutorService sRetryExecutor;
+
+    /**
+     * 分批订阅结束的回调
+     */
+    interface Callback {
+
+        /**
+         * 所有主题都已确认，或者失败的主题已经用完重试次数。不持有batcher的锁
+         *
+         * @param batcher 结束的batcher
+         */
+        void onFinished(SubscriptionBatcher batcher);
+    }
+
+    private final MqttAsyncClient mClient;
+
+    private final boolean mSubscribe;
+
+    private final String[] mTopics;
+
+    private final int[] mQoses;
+
+    private final Callback mCallback;
+
+    /**
+     * 每个主题的状态，订阅时为服务器授予的质量，取消订阅时为0
+     */
+    private final byte[] mStatus;
+
+    /**
+     * 本轮要发送的主题下标
+     */
+    private int[] mRound;
+
+    private int mCursor;
+
+    private int mOutstanding;
+
+    private int mAttempt;
+
+    private boolean mCancelled;
+
+    private final IMqttActionListener mListener = new IMqttActionListener() {
+        @Override
+        public void onSuccess(IMqttToken asyncActionToken) {
+            int[] indexes = (int[]) asyncActionToken.getUserContext();
+            int[] granted = mSubscribe ? asyncActionToken.getGrantedQos() : null;
+            onBatchComplete(indexes, granted, true);
+        }
+
+        @Override
+        public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+            LogUtil.e(TAG, (mSubscribe ? "订阅" : "取消订阅") + "失败", exception);
+            onBatchComplete((int[]) asyncActionToken.getUserContext(), null, false);
+        }
+    };
+
+    /**
+     * @param client    MQTT客户端
+     * @param subscribe true为订阅，false为取消订阅
+     * @param topics    主题
+     * @param qoses     主题质量，取消订阅时为空
+     * @param callback  结束的回调，可以为空
+     */
+    SubscriptionBatcher(MqttAsyncClient client, boolean subscribe, String[] topics, int[] qoses,
+                        Callback callback) {
+        mClient = client;
+        mSubscribe = subscribe;
+        mTopics = topics;
+        mQoses = qoses;
+        mCallback = callback;
+        mStatus = new byte[topics.length];
+        Arrays.fill(mStatus, STATUS_PENDING);
+        mRound = new int[topics.length];
+        for (int i = 0; i < mRound.length; i++) {
+            mRound[i] = i;
+        }
+    }
+
+    /**
+     * 开始发送一轮
+     */
+    void start() {
+        boolean finished;
+        synchronized (this) {
+            finished = sendMore();
+        }
+        if (finished) {
+            notifyFinished();
+        }
+    }
+
+    /**
+     * 取消，已经发出的批次不再处理结果，也不再重试
+     */
+    synchronized void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * 获取主题的确认状态
+     *
+     * @param index 主题下标
+     * @return 授予的质量、{@link #STATUS_PENDING}或{@link #STATUS_FAILED}
+     */
+    synchronized byte getStatus(int index) {
+        return mStatus[index];
+    }
+
+    /**
+     * 在发送窗口内继续发送下一批
+     *
+     * @return 是否已经结束
+     */
+    private boolean sendMore() {
+        while (!mCancelled && mOutstanding < MAX_OUTSTANDING && mCursor < mRound.length) {
+            int start = mCursor;
+            int end = nextBatchEnd(start);
+            mCursor = end;
+            int[] indexes = Arrays.copyOfRange(mRound, start, end);
+            String[] topics = new String[indexes.length];
+            int[] qoses = new int[indexes.length];
+            for (int i = 0; i < indexes.length; i++) {
+                topics[i] = mTopics[indexes[i]];
+                qoses[i] = mSubscribe ? mQoses[indexes[i]] : 0;
+            }
+            mOutstanding++;
+            try {
+                if (mSubscribe) {
+                    mClient.subscribe(topics, qoses, indexes, mListener);
+                } else {
+                    mClient.unsubscribe(topics, indexes, mListener);
+                }
+            } catch (MqttException e) {
+                LogUtil.e(TAG, "发送失败:" + e.getReasonCode());
+                mOutstanding--;
+                markFailed(indexes);
+            }
+        }
+        if (!mCancelled && mOutstanding == 0 && mCursor >= mRound.length) {
+            return onRoundComplete();
+        }
+        return false;
+    }
+
+    /**
+     * 按主题数和报文大小计算一批的结束位置
+     */
+    private int nextBatchEnd(int start) {
+        int end = start;
+        int bytes = 0;
+        while (end < mRound.length && end - start < MAX_BATCH_TOPICS) {
+            // 长度前缀2字节，订阅时每个主题还有1字节质量
+            int size = 2 + utf8Length(mTopics[mRound[end]]) + (mSubscribe ? 1 : 0);
+            if (end > start && bytes + size > MAX_BATCH_BYTES) {
+                break;
+            }
+            bytes += size;
+            end++;
+        }
+        return end;
+    }
+
+    private void onBatchComplete(int[] indexes, int[] granted, boolean success) {
+        boolean finished;
+        synchronized (this) {
+            finished = onBatchCompleteLocked(indexes, granted, success);
+        }
+        if (finished) {
+            notifyFinished();
+        }
+    }
+
+    private boolean onBatchCompleteLocked(int[] indexes, int[] granted, boolean success) {
+        mOutstanding--;
+        if (mCancelled) {
+            return false;
+        }
+        if (!success) {
+            markFailed(indexes);
+        } else {
+            for (int i = 0; i < indexes.length; i++) {
+                int code;
+                if (!mSubscribe) {
+                    code = 0;
+                } else if (granted != null && granted.length == indexes.length) {
+                    code = granted[i];
+                } else {
+                    code = mQoses[indexes[i]];
+                }
+                mStatus[indexes[i]] = code == SUBACK_FAILURE ? STATUS_FAILED : (byte) code;
+            }
+        }
+        return sendMore();
+    }
+
+    private void notifyFinished() {
+        if (mCallback != null) {
+            mCallback.onFinished(this);
+        }
+    }
+
+    private void markFailed(int[] indexes) {
+        for (int index : indexes) {
+            mStatus[index] = STATUS_FAILED;
+        }
+    }
+
+    /**
+     * 一轮结束，只重试失败的主题
+     *
+     * @return 是否不再重试
+     */
+    private boolean onRoundComplete() {
+        int failed = 0;
+        for (byte status : mStatus) {
+            if (status == STATUS_FAILED) {
+                failed++;
+            }
+        }
+        String action = mSubscribe ? "订阅" : "取消订阅";
+        if (failed == 0) {
+            LogUtil.i(TAG, action + "完成，主题数:" + mTopics.length);
+            return true;
+        }
+        if (mAttempt >= MAX_RETRIES) {
+            LogUtil.e(TAG, action + "结束，失败主题数:" + failed + "/" + mTopics.length);
+            return true;
+        }
+        int[] round = new int[failed];
+        int n = 0;
+        for (int i = 0; i < mStatus.length; i++) {
+            if (mStatus[i] == STATUS_FAILED) {
+                mStatus[i] = STATUS_PENDING;
+                round[n++] = i;
+            }
+        }
+        mRound = round;
+        mCursor = 0;
+        mAttempt++;
+        LogUtil.i(TAG, action + "重试第" + mAttempt + "次，主题数:" + failed);
+        getRetryExecutor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                start();
+            }
+        }, RETRY_DELAY_MILLIS * mAttempt, TimeUnit.MILLISECONDS);
+        return false;
+    }
+
+    private static synchronized ScheduledExecutorService getRetryExecutor() {
+        if (sRetryExecutor == null) {
+            sRetryExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "mqtt-subscribe");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sRetryExecutor;
+    }
+
+    private static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,212 @@
+package android.aracy.support.mqtt;
+
+import java.security.GeneralSecurityException;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManager;
+
+/**
+ * ssl://服务器的TLS配置
+ * <p>
+ * 按配置创建一个SSLContext，所有连接(包括重新连接和并行连接的候选连接)共用同一个SocketFactory，
+ * 也就共用SSLContext的会话缓存。重新连接同一个服务器地址时恢复上一次的会话(会话ID或会话票据)，
+ * 省去证书交换和密钥协商，握手从两个往返减少到一个。每次连接都新建SSLContext时缓存是空的，每次都是完整握手。
+ * <p>
+ * Paho不校验服务器证书中的主机名，握手完成后按{@link #setHostnameVerifier(HostnameVerifier)}校验，不匹配时连接失败。
+ * <p>
+ * 协议和会话设置会保存在本地，Service在其他进程运行时也能使用；证书和主机名校验是对象，只在设置它的进程中有效。
+ *
+ * @author aracy
+ * @version [1.0, 2017-05-19]
+ * @see MQTTManager#setTlsConfig(TlsConfig)
+ */
+public final class TlsConfig {
+
+    /**
+     * 默认缓存的会话数，一个服务器地址只需要一个
+     */
+    public static final int DEFAULT_SESSION_CACHE_SIZE = 16;
+
+    /**
+     * 默认的会话有效期(秒)，服务器的有效期更短时以服务器为准
+     */
+    public static final int DEFAULT_SESSION_TIMEOUT_SECONDS = 24 * 60 * 60;
+
+    private String mProtocol = "TLS";
+
+    private KeyManager[] mKeyManagers;
+
+    private TrustManager[] mTrustManagers;
+
+    private int mSessionCacheSize = DEFAULT_SESSION_CACHE_SIZE;
+
+    private int mSessionTimeoutSeconds = DEFAULT_SESSION_TIMEOUT_SECONDS;
+
+    private boolean mSessionTickets = true;
+
+    private HostnameVerifier mHostnameVerifier;
+
+    /**
+     * 使用系统默认的证书校验
+     */
+    public TlsConfig() {
+    }
+
+    /**
+     * 设置协议，默认为TLS
+     *
+     * @param protocol SSLContext的协议名
+     * @return 配置
+     */
+    public TlsConfig setProtocol(String protocol) {
+        if (protocol == null) {
+            throw new IllegalArgumentException("protocol is null");
+        }
+        mProtocol = protocol;
+        return this;
+    }
+
+    /**
+     * 设置客户端证书，服务器要求双向认证时使用
+     *
+     * @param keyManagers 客户端证书，为空时不发送证书
+     * @return 配置
+     */
+    public TlsConfig setKeyManagers(KeyManager[] keyManagers) {
+        mKeyManagers = keyManagers == null ? null : keyManagers.clone();
+        return this;
+    }
+
+    /**
+     * 设置服务器证书的校验，例如只信任自签名的根证书
+     *
+     * @param trustManagers 证书校验，为空时使用系统默认的校验
+     * @return 配置
+     */
+    public TlsConfig setTrustManagers(TrustManager[] trustManagers) {
+        mTrustManagers = trustManagers == null ? null : trustManagers.clone();
+        return this;
+    }
+
+    /**
+     * 设置会话缓存
+     *
+     * @param cacheSize      缓存的会话数，0表示不限制
+     * @param timeoutSeconds 会话有效期(秒)，0表示不限制
+     * @return 配置
+     */
+    public TlsConfig setSessionCache(int cacheSize, int timeoutSeconds) {
+        if (cacheSize < 0 || timeoutSeconds < 0) {
+            throw new IllegalArgumentException("cacheSize and timeoutSeconds must not be negative");
+        }
+        mSessionCacheSize = cacheSize;
+        mSessionTimeoutSeconds = timeoutSeconds;
+        return this;
+    }
+
+    /**
+     * 设置是否使用会话票据(RFC 5077)，默认使用
+     * <p>
+     * 服务器集群不共享会话缓存时，会话票据仍然可以在集群内恢复会话。只在系统的TLS实现支持时生效
+     *
+     * @param enabled 是否使用
+     * @return 配置
+     */
+    public TlsConfig setSessionTickets(boolean enabled) {
+        mSessionTickets = enabled;
+        return this;
+    }
+
+    /**
+     * 设置握手完成后的主机名校验，默认使用系统HTTPS连接的校验
+     *
+     * @param verifier 主机名校验，为空时使用默认的校验
+     * @return 配置
+     */
+    public TlsConfig setHostnameVerifier(HostnameVerifier verifier) {
+        mHostnameVerifier = verifier;
+        return this;
+    }
+
+    boolean isSessionTickets() {
+        return mSessionTickets;
+    }
+
+    HostnameVerifier getHostnameVerifier() {
+        return mHostnameVerifier != null ? mHostnameVerifier : HttpsURLConnection.getDefaultHostnameVerifier();
+    }
+
+    /**
+     * @return 是否设置了只能保存在内存中的证书或主机名校验
+     */
+    boolean hasCustomVerification() {
+        return mKeyManagers != null || mTrustManagers != null || mHostnameVerifier != null;
+    }
+
+    /**
+     * 可以保存的部分，格式为protocol|cacheSize|timeout|tickets|custom，协议名中没有|
+     *
+     * @return 保存的字符串
+     */
+    String encode() {
+        return mProtocol + "|" + mSessionCacheSize + "|" + mSessionTimeoutSeconds + "|" + mSessionTickets + "|"
+                + hasCustomVerification();
+    }
+
+    /**
+     * 从保存的字符串恢复，证书和主机名校验使用默认值
+     *
+     * @param value {@link #encode()}的结果
+     * @return 配置，格式错误时为空
+     */
+    static TlsConfig decode(String value) {
+        String[] values = value.split("\\|");
+        if (values.length != 5) {
+            return null;
+        }
+        try {
+            return new TlsConfig().setProtocol(values[0])
+                    .setSessionCache(Integer.parseInt(values[1]), Integer.parseInt(values[2]))
+                    .setSessionTickets(Boolean.parseBoolean(values[3]));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 保存的配置是否设置了证书或主机名校验
+     *
+     * @param value {@link #encode()}的结果
+     * @return 是否设置了
+     */
+    static boolean hasCustomVerification(String value) {
+        return value.endsWith("|true");
+    }
+
+    /**
+     * 按配置创建SSLContext
+     *
+     * @return 初始化并设置好会话缓存的SSLContext
+     * @throws GeneralSecurityException 协议不支持或证书初始化失败
+     */
+    SSLContext createContext() throws GeneralSecurityException {
+        SSLContext context = SSLContext.getInstance(mProtocol);
+        context.init(mKeyManagers, mTrustManagers, null);
+        SSLSessionContext sessions = context.getClientSessionContext();
+        if (sessions != null) {
+            sessions.setSessionCacheSize(mSessionCacheSize);
+            sessions.setSessionTimeout(mSessionTimeoutSeconds);
+        }
+        return context;
+    }
+
+    @Override
+    public String toString() {
+        return "TlsConfig{" + mProtocol + ", sessionCache=" + mSessionCacheSize + ", sessionTimeout="
+                + mSessionTimeoutSeconds + "s, sessionTickets=" + mSessionTickets + "}";
+    }
+}
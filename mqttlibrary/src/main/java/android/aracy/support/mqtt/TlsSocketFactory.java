@@ -0,0 +1,502 @@
+package android.aracy.support.mqtt;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * 共享会话缓存的SSLSocketFactory
+ * <p>
+ * 进程内只创建一次，所有ssl://连接都通过它创建socket。Paho先创建未连接的socket再连接服务器地址，
+ * 握手时系统按服务器的主机名和端口在SSLContext的会话缓存中查找可以恢复的会话。
+ * 每个socket握手完成后按会话的创建时间判断是完整握手还是恢复会话，分别计入统计。
+ * <p>
+ * Paho 1.0.2不校验服务器证书中的主机名，返回的socket在握手完成后用{@link HostnameVerifier}校验连接的主机名，
+ * 不匹配时关闭连接，CONNECT不会发出。
+ *
+ * @author aracy
+ * @version [1.0, 2017-05-19]
+ */
+class TlsSocketFactory extends SSLSocketFactory {
+
+    private static final String TAG = "TlsSocketFactory";
+
+    private final SSLSocketFactory mDelegate;
+
+    private final boolean mSessionTickets;
+
+    private final HostnameVerifier mHostnameVerifier;
+
+    private final MQTTMetrics mMetrics;
+
+    /**
+     * 开启会话票据的方法，系统的TLS实现没有这个方法时为空
+     */
+    private volatile Method mSetUseSessionTickets;
+
+    private volatile boolean mTicketsResolved;
+
+    TlsSocketFactory(SSLContext context, boolean sessionTickets, HostnameVerifier hostnameVerifier,
+                     MQTTMetrics metrics) {
+        mDelegate = context.getSocketFactory();
+        mSessionTickets = sessionTickets;
+        mHostnameVerifier = hostnameVerifier;
+        mMetrics = metrics;
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+        return mDelegate.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return mDelegate.getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+        // 还没有连接，主机名在connect时取得
+        return configure(mDelegate.createSocket(), null);
+    }
+
+    @Override
+    public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+        return configure(mDelegate.createSocket(s, host, port, autoClose), host);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        return configure(mDelegate.createSocket(host, port), host);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+        return configure(mDelegate.createSocket(host, port, localHost, localPort), host);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        return configure(mDelegate.createSocket(host, port), hostOf(host));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+            throws IOException {
+        return configure(mDelegate.createSocket(address, port, localAddress, localPort), hostOf(address));
+    }
+
+    private Socket configure(Socket socket, String host) {
+        if (!(socket instanceof SSLSocket)) {
+            return socket;
+        }
+        SSLSocket sslSocket = (SSLSocket) socket;
+        if (mSessionTickets) {
+            enableSessionTickets(sslSocket);
+        }
+        // Paho创建socket之后立即连接并握手，从这里开始计时包含TCP连接的时间
+        sslSocket.addHandshakeCompletedListener(new HandshakeTimer(System.currentTimeMillis(), System.nanoTime()));
+        return new VerifyingSocket(sslSocket, host, mHostnameVerifier);
+    }
+
+    /**
+     * 创建地址时使用的主机名，用IP地址创建时为IP地址
+     * <p>
+     * 不能用getHostName：IP地址会被反向解析，解析结果由DNS决定，用来校验证书就不可靠了。
+     * toString的格式为"主机名/IP地址"，不会反向解析
+     */
+    static String hostOf(InetAddress address) {
+        String text = address.toString();
+        int slash = text.indexOf('/');
+        return slash > 0 ? text.substring(0, slash) : address.getHostAddress();
+    }
+
+    /**
+     * Android的TLS实现默认不发送会话票据扩展，通过反射开启，其他实现上不做处理
+     */
+    private void enableSessionTickets(SSLSocket socket) {
+        Method method = mSetUseSessionTickets;
+        if (method == null && !mTicketsResolved) {
+            try {
+                method = socket.getClass().getMethod("setUseSessionTickets", boolean.class);
+                mSetUseSessionTickets = method;
+            } catch (NoSuchMethodException e) {
+                LogUtil.d(TAG, "不支持会话票据:" + socket.getClass().getName());
+            }
+            mTicketsResolved = true;
+        }
+        if (method == null) {
+            return;
+        }
+        try {
+            method.invoke(socket, true);
+        } catch (Exception e) {
+            LogUtil.e(TAG, "开启会话票据失败:" + e.getMessage());
+        }
+    }
+
+    /**
+     * 记录握手耗时，会话在socket创建之前就存在说明是恢复的会话
+     */
+    private final class HandshakeTimer implements HandshakeCompletedListener {
+
+        private final long mCreatedMillis;
+
+        private final long mCreatedNanos;
+
+        HandshakeTimer(long createdMillis, long createdNanos) {
+            mCreatedMillis = createdMillis;
+            mCreatedNanos = createdNanos;
+        }
+
+        @Override
+        public void handshakeCompleted(HandshakeCompletedEvent event) {
+            long elapsed = System.nanoTime() - mCreatedNanos;
+            event.getSocket().removeHandshakeCompletedListener(this);
+            if (event.getSession().getCreationTime() < mCreatedMillis) {
+                mMetrics.tlsResumedHandshakes.record(elapsed);
+                LogUtil.d(TAG, "恢复TLS会话:" + event.getSession().getPeerHost() + " " + elapsed / 1000000 + "ms");
+            } else {
+                mMetrics.tlsFullHandshakes.record(elapsed);
+                LogUtil.d(TAG, "完整TLS握手:" + event.getSession().getPeerHost() + " " + elapsed / 1000000 + "ms");
+            }
+        }
+    }
+
+    /**
+     * 握手完成后校验主机名的SSLSocket
+     * <p>
+     * 其余操作都交给系统的SSLSocket。Paho显式调用{@link #startHandshake()}，没有显式握手时在第一次读写前握手并校验，
+     * 校验通过之前不会发出应用数据
+     */
+    private static final class VerifyingSocket extends SSLSocket {
+
+        private final SSLSocket mDelegate;
+
+        private final HostnameVerifier mVerifier;
+
+        private volatile String mHost;
+
+        private volatile boolean mVerified;
+
+        VerifyingSocket(SSLSocket delegate, String host, HostnameVerifier verifier) {
+            mDelegate = delegate;
+            mHost = host;
+            mVerifier = verifier;
+        }
+
+        @Override
+        public void connect(SocketAddress endpoint) throws IOException {
+            connect(endpoint, 0);
+        }
+
+        @Override
+        public void connect(SocketAddress endpoint, int timeout) throws IOException {
+            if (mHost == null && endpoint instanceof InetSocketAddress) {
+                // Paho用服务器地址中的主机名创建地址，这里取到的就是地址中的主机名
+                InetSocketAddress address = (InetSocketAddress) endpoint;
+                mHost = address.getAddress() != null ? hostOf(address.getAddress()) : address.getHostName();
+            }
+            mDelegate.connect(endpoint, timeout);
+        }
+
+        @Override
+        public synchronized void startHandshake() throws IOException {
+            // 握手完成后再次调用会重新协商，已经校验过时不再握手
+            if (mVerified) {
+                return;
+            }
+            mDelegate.startHandshake();
+            String host = mHost;
+            SSLSession session = mDelegate.getSession();
+            if (host == null || !mVerifier.verify(host, session)) {
+                mDelegate.close();
+                throw new SSLPeerUnverifiedException("hostname " + host + " not verified");
+            }
+            mVerified = true;
+        }
+
+        private void ensureVerified() throws IOException {
+            if (!mVerified) {
+                startHandshake();
+            }
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return new FilterInputStream(mDelegate.getInputStream()) {
+                @Override
+                public int read() throws IOException {
+                    ensureVerified();
+                    return super.read();
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    ensureVerified();
+                    return super.read(b, off, len);
+                }
+            };
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return new FilterOutputStream(mDelegate.getOutputStream()) {
+                @Override
+                public void write(int b) throws IOException {
+                    ensureVerified();
+                    out.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    ensureVerified();
+                    out.write(b, off, len);
+                }
+            };
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return mDelegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public String[] getEnabledCipherSuites() {
+            return mDelegate.getEnabledCipherSuites();
+        }
+
+        @Override
+        public void setEnabledCipherSuites(String[] suites) {
+            mDelegate.setEnabledCipherSuites(suites);
+        }
+
+        @Override
+        public String[] getSupportedProtocols() {
+            return mDelegate.getSupportedProtocols();
+        }
+
+        @Override
+        public String[] getEnabledProtocols() {
+            return mDelegate.getEnabledProtocols();
+        }
+
+        @Override
+        public void setEnabledProtocols(String[] protocols) {
+            mDelegate.setEnabledProtocols(protocols);
+        }
+
+        @Override
+        public SSLSession getSession() {
+            return mDelegate.getSession();
+        }
+
+        @Override
+        public SSLParameters getSSLParameters() {
+            return mDelegate.getSSLParameters();
+        }
+
+        @Override
+        public void setSSLParameters(SSLParameters params) {
+            mDelegate.setSSLParameters(params);
+        }
+
+        @Override
+        public void addHandshakeCompletedListener(HandshakeCompletedListener listener) {
+            mDelegate.addHandshakeCompletedListener(listener);
+        }
+
+        @Override
+        public void removeHandshakeCompletedListener(HandshakeCompletedListener listener) {
+            mDelegate.removeHandshakeCompletedListener(listener);
+        }
+
+        @Override
+        public void setUseClientMode(boolean mode) {
+            mDelegate.setUseClientMode(mode);
+        }
+
+        @Override
+        public boolean getUseClientMode() {
+            return mDelegate.getUseClientMode();
+        }
+
+        @Override
+        public void setNeedClientAuth(boolean need) {
+            mDelegate.setNeedClientAuth(need);
+        }
+
+        @Override
+        public boolean getNeedClientAuth() {
+            return mDelegate.getNeedClientAuth();
+        }
+
+        @Override
+        public void setWantClientAuth(boolean want) {
+            mDelegate.setWantClientAuth(want);
+        }
+
+        @Override
+        public boolean getWantClientAuth() {
+            return mDelegate.getWantClientAuth();
+        }
+
+        @Override
+        public void setEnableSessionCreation(boolean flag) {
+            mDelegate.setEnableSessionCreation(flag);
+        }
+
+        @Override
+        public boolean getEnableSessionCreation() {
+            return mDelegate.getEnableSessionCreation();
+        }
+
+        @Override
+        public void bind(SocketAddress bindpoint) throws IOException {
+            mDelegate.bind(bindpoint);
+        }
+
+        @Override
+        public InetAddress getInetAddress() {
+            return mDelegate.getInetAddress();
+        }
+
+        @Override
+        public InetAddress getLocalAddress() {
+            return mDelegate.getLocalAddress();
+        }
+
+        @Override
+        public int getPort() {
+            return mDelegate.getPort();
+        }
+
+        @Override
+        public int getLocalPort() {
+            return mDelegate.getLocalPort();
+        }
+
+        @Override
+        public SocketAddress getRemoteSocketAddress() {
+            return mDelegate.getRemoteSocketAddress();
+        }
+
+        @Override
+        public SocketAddress getLocalSocketAddress() {
+            return mDelegate.getLocalSocketAddress();
+        }
+
+        @Override
+        public void setTcpNoDelay(boolean on) throws SocketException {
+            mDelegate.setTcpNoDelay(on);
+        }
+
+        @Override
+        public boolean getTcpNoDelay() throws SocketException {
+            return mDelegate.getTcpNoDelay();
+        }
+
+        @Override
+        public void setSoLinger(boolean on, int linger) throws SocketException {
+            mDelegate.setSoLinger(on, linger);
+        }
+
+        @Override
+        public int getSoLinger() throws SocketException {
+            return mDelegate.getSoLinger();
+        }
+
+        @Override
+        public void setSoTimeout(int timeout) throws SocketException {
+            mDelegate.setSoTimeout(timeout);
+        }
+
+        @Override
+        public int getSoTimeout() throws SocketException {
+            return mDelegate.getSoTimeout();
+        }
+
+        @Override
+        public void setSendBufferSize(int size) throws SocketException {
+            mDelegate.setSendBufferSize(size);
+        }
+
+        @Override
+        public int getSendBufferSize() throws SocketException {
+            return mDelegate.getSendBufferSize();
+        }
+
+        @Override
+        public void setReceiveBufferSize(int size) throws SocketException {
+            mDelegate.setReceiveBufferSize(size);
+        }
+
+        @Override
+        public int getReceiveBufferSize() throws SocketException {
+            return mDelegate.getReceiveBufferSize();
+        }
+
+        @Override
+        public void setKeepAlive(boolean on) throws SocketException {
+            mDelegate.setKeepAlive(on);
+        }
+
+        @Override
+        public boolean getKeepAlive() throws SocketException {
+            return mDelegate.getKeepAlive();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return mDelegate.isConnected();
+        }
+
+        @Override
+        public boolean isBound() {
+            return mDelegate.isBound();
+        }
+
+        @Override
+        public boolean isClosed() {
+            return mDelegate.isClosed();
+        }
+
+        @Override
+        public boolean isInputShutdown() {
+            return mDelegate.isInputShutdown();
+        }
+
+        @Override
+        public boolean isOutputShutdown() {
+            return mDelegate.isOutputShutdown();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mDelegate.close();
+        }
+
+        @Override
+        public String toString() {
+            return mDelegate.toString();
+        }
+    }
+}
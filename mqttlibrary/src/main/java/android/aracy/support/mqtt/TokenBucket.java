@@ -0,0 +1,69 @@
+package android.aracy.support.mqtt;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 无锁令牌桶
+ * <p>
+ * 只保存下一个令牌的理论到达时间，令牌的补充由时间推算，获取令牌只需要一次CAS
+ *
+ * @author aracy
+ * @version [1.0, 2017-04-21]
+ */
+class TokenBucket {
+
+    /**
+     * 每个令牌的间隔
+     */
+    private final long mIntervalNanos;
+
+    /**
+     * 允许突发的时间，等于(容量-1)个令牌间隔
+     */
+    private final long mToleranceNanos;
+
+    /**
+     * 下一个令牌的理论到达时间(System.nanoTime)
+     */
+    private final AtomicLong mTheoreticalArrival;
+
+    /**
+     * @param permitsPerSecond 每秒的令牌数
+     * @param burst            桶的容量
+     */
+    TokenBucket(double permitsPerSecond, int burst) {
+        if (permitsPerSecond <= 0) {
+            throw new IllegalArgumentException("permitsPerSecond must be positive");
+        }
+        mIntervalNanos = Math.max(1, (long) (1000000000L / permitsPerSecond));
+        mToleranceNanos = mIntervalNanos * (Math.max(1, burst) - 1);
+        mTheoreticalArrival = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * 尝试获取一个令牌
+     *
+     * @param nowNanos 当前时间(System.nanoTime)
+     * @return 0表示获取成功，否则为需要等待的时间(纳秒)
+     */
+    long tryAcquire(long nowNanos) {
+        while (true) {
+            long arrival = mTheoreticalArrival.get();
+            long base = arrival - nowNanos > 0 ? arrival : nowNanos;
+            long wait = base - nowNanos - mToleranceNanos;
+            if (wait > 0) {
+                return wait;
+            }
+            if (mTheoreticalArrival.compareAndSet(arrival, base + mIntervalNanos)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * 归还一个刚刚获取的令牌
+     */
+    void refund() {
+        mTheoreticalArrival.addAndGet(-mIntervalNanos);
+    }
+}
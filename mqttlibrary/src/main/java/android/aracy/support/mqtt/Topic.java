@@ -0,0 +1,118 @@
+package android.aracy.support.mqtt;
+
+/**
+ * 规范化的主题
+ * <p>
+ * 由{@link TopicTable}创建，同一主题在进程内只有一个实例(表满之后创建的临时实例除外)。
+ * 缓存状态主题、速率限制规则和差量编码规则的匹配结果，配置没有变化时每条消息不需要再做主题匹配。
+ * 监听器路由缓存在{@link MessageListenerRegistry}中，注册表变化时整体释放
+ *
+ * @author aracy
+ * @version [1.0, 2017-04-28]
+ */
+final class Topic {
+
+    private final String mName;
+
+    /**
+     * 是否保存在{@link TopicTable}中，临时实例不缓存监听器路由
+     */
+    private final boolean mInterned;
+
+    /**
+     * 是否为状态主题，key为状态主题过滤器数组
+     */
+    private volatile Cached mState;
+
+    /**
+     * 匹配的速率限制规则，key为规则数组
+     */
+    private volatile Cached mRateRule;
+
+    /**
+     * 差量编码的关键帧间隔，key为差量编码规则
+     */
+    private volatile Cached mDelta;
+
+    Topic(String name, boolean interned) {
+        mName = name;
+        mInterned = interned;
+    }
+
+    String getName() {
+        return mName;
+    }
+
+    /**
+     * @return 是否为进程内唯一的实例
+     */
+    boolean isInterned() {
+        return mInterned;
+    }
+
+    /**
+     * 获取缓存的状态主题判断
+     *
+     * @param source 当前的状态主题过滤器数组
+     * @return 匹配结果，配置变化后返回null
+     */
+    Object getState(Object source) {
+        return get(mState, source);
+    }
+
+    void setState(Object source, Object value) {
+        mState = new Cached(source, value);
+    }
+
+    /**
+     * 获取缓存的速率限制规则
+     *
+     * @param source 当前的规则数组
+     * @return 匹配结果，配置变化后返回null
+     */
+    Object getRateRule(Object source) {
+        return get(mRateRule, source);
+    }
+
+    void setRateRule(Object source, Object value) {
+        mRateRule = new Cached(source, value);
+    }
+
+    /**
+     * 获取缓存的差量编码规则匹配结果
+     *
+     * @param source 当前的差量编码规则
+     * @return 匹配结果，配置变化后返回null
+     */
+    Object getDelta(Object source) {
+        return get(mDelta, source);
+    }
+
+    void setDelta(Object source, Object value) {
+        mDelta = new Cached(source, value);
+    }
+
+    private static Object get(Cached cached, Object source) {
+        return cached != null && cached.source == source ? cached.value : null;
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+
+    /**
+     * 缓存的匹配结果，配置修改时会替换数组，按数组引用判断缓存是否有效
+     */
+    private static final class Cached {
+
+        final Object source;
+
+        final Object value;
+
+        Cached(Object source, Object value) {
+            this.source = source;
+            this.value = value;
+        }
+    }
+}
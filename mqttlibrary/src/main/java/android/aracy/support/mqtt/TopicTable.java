@@ -0,0 +1,62 @@
+package android.aracy.support.mqtt;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 主题规范化表
+ * <p>
+ * 把收到和发布的主题字符串映射为唯一的{@link Topic}，已经存在的主题查找时不分配内存。
+ * 表的大小有上限，超过之后新的主题不再放入表中，每次创建临时的{@link Topic}
+ *
+ * @author aracy
+ * @version [1.0, 2017-04-28]
+ */
+class TopicTable {
+
+    /**
+     * 默认最多保存的主题数
+     */
+    static final int DEFAULT_MAX_TOPICS = 8192;
+
+    private final ConcurrentHashMap<String, Topic> mTopics = new ConcurrentHashMap<>();
+
+    private final MQTTMetrics mMetrics;
+
+    private final int mMaxTopics;
+
+    /**
+     * @param metrics   运行统计
+     * @param maxTopics 最多保存的主题数
+     */
+    TopicTable(MQTTMetrics metrics, int maxTopics) {
+        mMetrics = metrics;
+        mMaxTopics = maxTopics;
+    }
+
+    /**
+     * 获取主题对应的规范化对象
+     *
+     * @param name 主题
+     * @return 规范化的主题
+     */
+    Topic intern(String name) {
+        Topic topic = mTopics.get(name);
+        if (topic != null) {
+            return topic;
+        }
+        if (mTopics.size() >= mMaxTopics) {
+            mMetrics.topicInternOverflow.incrementAndGet();
+            return new Topic(name, false);
+        }
+        topic = new Topic(name, true);
+        Topic previous = mTopics.putIfAbsent(name, topic);
+        return previous != null ? previous : topic;
+    }
+
+    /**
+     * @return 表中的主题数
+     */
+    int size() {
+        return mTopics.size();
+    }
+}
@@ -0,0 +1,59 @@
+package android.aracy.support.mqtt;
+
+/**
+ * 消息跟踪的时间点
+ *
+ * @author aracy
+ * @version [1.0, 2017-05-05]
+ */
+enum TracePoint {
+
+    /**
+     * Paho回调messageArrived
+     */
+    ARRIVE("callback"),
+
+    /**
+     * 放入线程池或批量处理队列
+     */
+    ENQUEUE("queue"),
+
+    /**
+     * 从队列中取出
+     */
+    DEQUEUE("dispatch"),
+
+    /**
+     * 处理者开始执行
+     */
+    HANDLER_START("handler"),
+
+    /**
+     * 处理者执行完成
+     */
+    HANDLER_END(null),
+
+    /**
+     * 提交发布
+     */
+    PUBLISH_SUBMIT("publish queue"),
+
+    /**
+     * 交给Paho发送
+     */
+    PUBLISH_WRITE("publish ack"),
+
+    /**
+     * QoS0写出或QoS1/2收到确认
+     */
+    PUBLISH_ACK(null);
+
+    /**
+     * 从这个时间点开始到下一个时间点的阶段名称，最后一个时间点为空
+     */
+    final String stage;
+
+    TracePoint(String stage) {
+        this.stage = stage;
+    }
+}
@@ -0,0 +1,26 @@
+package android.aracy.support.mqtt;
+
+/**
+ * 持有唤醒锁的原因
+ *
+ * @author aracy
+ * @version [1.0, 2017-05-02]
+ * @see MQTTMetrics#getWakeLockMillis(WakeCause)
+ */
+public enum WakeCause {
+
+    /**
+     * 心跳，从发出PINGREQ到收到PINGRESP
+     */
+    PING,
+
+    /**
+     * 重连，从发出CONNECT到连接成功或失败
+     */
+    RECONNECT,
+
+    /**
+     * 处理消息，线程池中还有没有执行完的消息时
+     */
+    DISPATCH
+}
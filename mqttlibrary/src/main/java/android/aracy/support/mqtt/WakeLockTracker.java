@@ -0,0 +1,103 @@
+package android.aracy.support.mqtt;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 唤醒锁管理
+ * <p>
+ * 每次持有都必须指定超时时间，超时后即使回调没有到达也会释放。
+ * 按原因累计持有时间、次数和超时次数，统计见{@link MQTTMetrics}
+ *
+ * @author aracy
+ * @version [1.0, 2017-05-02]
+ */
+class WakeLockTracker {
+
+    private static final String TAG = "WakeLockTracker";
+
+    private final PowerManager mPowerManager;
+
+    private final MQTTMetrics mMetrics;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    WakeLockTracker(Context context, MQTTMetrics metrics) {
+        mPowerManager = (PowerManager) context.getApplicationContext().getSystemService(Context.POWER_SERVICE);
+        mMetrics = metrics;
+    }
+
+    /**
+     * 持有唤醒锁
+     *
+     * @param cause         原因
+     * @param timeoutMillis 超时时间，超时之后自动释放
+     * @return 持有记录，完成之后调用{@link Hold#release()}
+     */
+    Hold acquire(WakeCause cause, long timeoutMillis) {
+        PowerManager.WakeLock wakeLock = mPowerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
+                "MQTT:" + cause.name());
+        // 不计数的锁在超时后重复释放不会抛出异常
+        wakeLock.setReferenceCounted(false);
+        wakeLock.acquire(timeoutMillis);
+        mMetrics.wakeLockAcquires[cause.ordinal()].incrementAndGet();
+        Hold hold = new Hold(cause, wakeLock);
+        mHandler.postDelayed(hold.mTimeoutTask, timeoutMillis);
+        return hold;
+    }
+
+    /**
+     * 一次唤醒锁的持有
+     */
+    final class Hold {
+
+        private final WakeCause mCause;
+
+        private final PowerManager.WakeLock mWakeLock;
+
+        private final long mAcquireRealtime = SystemClock.elapsedRealtime();
+
+        private final AtomicBoolean mDone = new AtomicBoolean();
+
+        private final Runnable mTimeoutTask = new Runnable() {
+            @Override
+            public void run() {
+                if (finish()) {
+                    mMetrics.wakeLockTimeouts[mCause.ordinal()].incrementAndGet();
+                    LogUtil.w(TAG, mCause + "唤醒锁超时释放");
+                }
+            }
+        };
+
+        private Hold(WakeCause cause, PowerManager.WakeLock wakeLock) {
+            mCause = cause;
+            mWakeLock = wakeLock;
+        }
+
+        /**
+         * 释放唤醒锁，可以重复调用
+         */
+        void release() {
+            if (finish()) {
+                mHandler.removeCallbacks(mTimeoutTask);
+            }
+        }
+
+        private boolean finish() {
+            if (!mDone.compareAndSet(false, true)) {
+                return false;
+            }
+            if (mWakeLock.isHeld()) {
+                mWakeLock.release();
+            }
+            long held = SystemClock.elapsedRealtime() - mAcquireRealtime;
+            mMetrics.wakeLockMillis[mCause.ordinal()].addAndGet(held);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package android.aracy.support.mqtt;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link ConnectRace}只并行建立TCP连接，同一时间只有一个候选连接发出CONNECT
+ *
+ * @author aracy
+ * @version [1.0, 2017-05-15]
+ */
+public class ConnectRaceTest {
+
+    private final List<FakeBroker> mBrokers = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        LogUtil.sDebug = false;
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (FakeBroker broker : mBrokers) {
+            broker.close();
+        }
+    }
+
+    @Test
+    public void losersNeverSendConnect() throws Exception {
+        // 两个服务器都可用，第一个的CONNACK较慢，第二个的TCP连接在这期间已经建立好
+        FakeBroker slow = broker(300);
+        FakeBroker fast = broker(0);
+        Result result = race(new String[]{slow.uri(), fast.uri()}, 50, 5);
+
+        assertEquals(slow.uri(), result.winner);
+        assertEquals(1, slow.connects.get());
+        assertEquals(1, fast.accepted.get());
+        assertEquals(0, fast.connects.get());
+    }
+
+    @Test
+    public void nextCandidateSendsConnectAfterConnackTimeout() throws Exception {
+        FakeBroker silent = broker(-1);
+        FakeBroker live = broker(0);
+        long start = System.nanoTime();
+        Result result = race(new String[]{silent.uri(), live.uri()}, 50, 1);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals(live.uri(), result.winner);
+        assertEquals(1, silent.connects.get());
+        assertEquals(1, live.connects.get());
+        // 第二个CONNECT在第一个超时之后才发出
+        assertTrue("elapsed " + elapsed, elapsed >= 1000);
+        assertTrue(live.firstConnectNanos - silent.firstConnectNanos >= TimeUnit.MILLISECONDS.toNanos(900));
+    }
+
+    @Test
+    public void refusedAddressFallsThroughImmediately() throws Exception {
+        ServerSocket closed = new ServerSocket(0);
+        String refused = "tcp://127.0.0.1:" + closed.getLocalPort();
+        closed.close();
+        FakeBroker live = broker(0);
+        Result result = race(new String[]{refused, live.uri()}, 5000, 5);
+
+        assertEquals(live.uri(), result.winner);
+        assertEquals(1, live.connects.get());
+        assertTrue("elapsed " + result.millis, result.millis < 2000);
+    }
+
+    private FakeBroker broker(long connackDelayMillis) throws IOException {
+        FakeBroker broker = new FakeBroker(connackDelayMillis);
+        mBrokers.add(broker);
+        return broker;
+    }
+
+    private static Result race(String[] uris, long staggerMillis, final int timeoutSeconds) throws Exception {
+        final Result result = new Result();
+        final CountDownLatch done = new CountDownLatch(1);
+        long start = System.nanoTime();
+        ConnectRace race = new ConnectRace(uris, staggerMillis, new ConnectRace.Factory() {
+            @Override
+            public ConnectRace.Candidate create(String serverURI) throws MqttException {
+                MqttConnectOptions options = new MqttConnectOptions();
+                options.setConnectionTimeout(timeoutSeconds);
+                // 默认版本在3.1.1失败后会用3.1重试一次，固定版本让每个地址只发出一个CONNECT
+                options.setMqttVersion(MqttConnectOptions.MQTT_VERSION_3_1_1);
+                return new ConnectRace.Candidate(serverURI,
+                        new MqttAsyncClient(serverURI, "race-client", new MemoryPersistence()), options, null, null);
+            }
+
+            @Override
+            public void onWinner(ConnectRace.Candidate winner) {
+                result.winner = winner.serverURI;
+                result.client = winner.client;
+            }
+        }, new MqttCallback() {
+            @Override
+            public void connectionLost(Throwable cause) {
+            }
+
+            @Override
+            public void messageArrived(String topic, MqttMessage message) {
+            }
+
+            @Override
+            public void deliveryComplete(IMqttDeliveryToken token) {
+            }
+        }, new IMqttActionListener() {
+            @Override
+            public void onSuccess(IMqttToken asyncActionToken) {
+                done.countDown();
+            }
+
+            @Override
+            public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                done.countDown();
+            }
+        }, new MQTTMetrics(), null);
+        race.start();
+        assertTrue(done.await(20, TimeUnit.SECONDS));
+        result.millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        // 等落选的连接关闭
+        Thread.sleep(200);
+        if (result.client != null) {
+            result.client.disconnectForcibly(0, 100);
+            result.client.close();
+        }
+        return result;
+    }
+
+    private static final class Result {
+
+        String winner;
+
+        MqttAsyncClient client;
+
+        long millis;
+    }
+
+    /**
+     * 只处理CONNECT的服务器，记录收到的连接和CONNECT数
+     */
+    private static final class FakeBroker extends Thread {
+
+        final AtomicInteger accepted = new AtomicInteger();
+
+        final AtomicInteger connects = new AtomicInteger();
+
+        volatile long firstConnectNanos;
+
+        private final ServerSocket mServer = new ServerSocket(0);
+
+        private final long mConnackDelayMillis;
+
+        /**
+         * @param connackDelayMillis 收到CONNECT之后多久回复CONNACK，小于0时不回复
+         */
+        FakeBroker(long connackDelayMillis) throws IOException {
+            mConnackDelayMillis = connackDelayMillis;
+            setDaemon(true);
+            start();
+        }
+
+        String uri() {
+            return "tcp://127.0.0.1:" + mServer.getLocalPort();
+        }
+
+        void close() throws IOException {
+            mServer.close();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final Socket socket = mServer.accept();
+                    accepted.incrementAndGet();
+                    Thread session = new Thread() {
+                        @Override
+                        public void run() {
+                            serve(socket);
+                        }
+                    };
+                    session.setDaemon(true);
+                    session.start();
+                }
+            } catch (IOException e) {
+                // 关闭
+            }
+        }
+
+        private void serve(Socket socket) {
+            try {
+                InputStream in = socket.getInputStream();
+                int type = in.read();
+                if (type != 0x10) {
+                    return;
+                }
+                int length = 0;
+                int shift = 0;
+                int b;
+                do {
+                    b = in.read();
+                    length |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+                for (int i = 0; i < length; i++) {
+                    in.read();
+                }
+                if (connects.incrementAndGet() == 1) {
+                    firstConnectNanos = System.nanoTime();
+                }
+                if (mConnackDelayMillis >= 0) {
+                    Thread.sleep(mConnackDelayMillis);
+                    OutputStream out = socket.getOutputStream();
+                    out.write(new byte[]{0x20, 2, 0, 0});
+                    out.flush();
+                }
+                while (in.read() >= 0) {
+                    // 等客户端关闭
+                }
+            } catch (IOException e) {
+                // 客户端关闭
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // 忽略
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package android.aracy.support.mqtt;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link DeltaCodec}的差分和还原
+ *
+ * @author aracy
+ * @version [1.0, 2017-05-15]
+ */
+public class DeltaCodecTest {
+
+    /**
+     * 与DeltaCodec中的块大小相同
+     */
+    private static final int BLOCK = 16;
+
+    @Test
+    public void roundTripsRandomEdits() {
+        Random random = new Random(47);
+        for (int i = 0; i < 2000; i++) {
+            byte[] base = randomText(random, random.nextInt(4000));
+            byte[] target = edit(random, base, 1 + random.nextInt(8));
+            assertRoundTrip(base, target);
+        }
+    }
+
+    @Test
+    public void smallEditsProduceSmallDeltas() {
+        Random random = new Random(3);
+        byte[] base = randomText(random, 8000);
+        byte[] target = base.clone();
+        for (int i = 0; i < 5; i++) {
+            target[random.nextInt(target.length)] = (byte) '#';
+        }
+        byte[] delta = assertRoundTrip(base, target);
+        assertTrue("delta " + delta.length, delta.length < 100);
+
+        // 中间插入一段之后，后面的内容仍然可以从基准复制
+        byte[] inserted = new byte[base.length + 7];
+        System.arraycopy(base, 0, inserted, 0, 1000);
+        System.arraycopy("INSERTD".getBytes(), 0, inserted, 1000, 7);
+        System.arraycopy(base, 1000, inserted, 1007, base.length - 1000);
+        delta = assertRoundTrip(base, inserted);
+        assertTrue("delta " + delta.length, delta.length < 40);
+    }
+
+    @Test
+    public void roundTripsInputsShorterThanBlock() {
+        Random random = new Random(5);
+        for (int baseLength = 0; baseLength <= BLOCK + 1; baseLength++) {
+            for (int targetLength = 0; targetLength <= BLOCK + 1; targetLength++) {
+                byte[] base = randomText(random, baseLength);
+                byte[] target = Arrays.copyOf(base, targetLength);
+                assertRoundTrip(base, target);
+                assertRoundTrip(base, randomText(random, targetLength));
+            }
+        }
+        byte[] large = randomText(random, 1000);
+        assertRoundTrip(large, Arrays.copyOf(large, BLOCK - 1));
+        assertRoundTrip(Arrays.copyOf(large, BLOCK - 1), large);
+    }
+
+    @Test
+    public void givesUpAboveMaxBytes() {
+        Random random = new Random(11);
+        byte[] base = randomText(random, 1000);
+        byte[] target = randomText(random, 1000);
+        assertNull(DeltaCodec.diff(base, target, 500));
+        assertNotNull(DeltaCodec.diff(base, base, 500));
+    }
+
+    @Test
+    public void rejectsCopyOutsideBase() {
+        byte[] base = new byte[20];
+        // 目标长度16，从偏移10复制16字节，超出基准末尾
+        assertRejected(base, new byte[]{16, 16 << 1, 10});
+        // 复制的偏移超过int范围之后变成负数
+        assertRejected(base, new byte[]{16, 16 << 1, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F});
+        // 复制的长度超过目标长度
+        assertRejected(base, new byte[]{4, 16 << 1, 0});
+    }
+
+    @Test
+    public void rejectsTruncatedVarints() {
+        byte[] base = new byte[64];
+        assertRejected(base, new byte[0]);
+        assertRejected(base, new byte[]{(byte) 0x80});
+        assertRejected(base, new byte[]{16, (byte) 0x80});
+        assertRejected(base, new byte[]{16, 16 << 1, (byte) 0x81});
+        // 超过5个字节的varint
+        assertRejected(base, new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x01});
+    }
+
+    @Test
+    public void rejectsEveryTruncation() {
+        Random random = new Random(13);
+        byte[] base = randomText(random, 2000);
+        byte[] target = edit(random, base, 6);
+        byte[] delta = DeltaCodec.diff(base, target, Integer.MAX_VALUE);
+        assertNotNull(delta);
+        for (int length = 0; length < delta.length; length++) {
+            assertRejected(base, Arrays.copyOf(delta, length));
+        }
+    }
+
+    @Test
+    public void randomDeltasNeverThrowOtherExceptions() {
+        Random random = new Random(17);
+        byte[] base = randomText(random, 300);
+        for (int i = 0; i < 20000; i++) {
+            byte[] delta = new byte[random.nextInt(24)];
+            random.nextBytes(delta);
+            try {
+                byte[] target = DeltaCodec.patch(base, delta, 0);
+                assertNotNull(target);
+            } catch (IllegalArgumentException e) {
+                // 格式错误
+            }
+        }
+    }
+
+    @Test
+    public void framesCarryHeader() {
+        byte[] body = "body".getBytes();
+        byte[] frame = DeltaCodec.frame(DeltaCodec.TYPE_DELTA, 0x01020304, 7, 5, body, body.length);
+        assertTrue(DeltaCodec.isFrame(frame));
+        assertEquals(DeltaCodec.TYPE_DELTA, DeltaCodec.type(frame));
+        assertEquals(0x01020304, DeltaCodec.stream(frame));
+        assertEquals(7, DeltaCodec.seq(frame));
+        assertEquals(5, DeltaCodec.baseSeq(frame));
+        assertArrayEquals(body, Arrays.copyOfRange(frame, DeltaCodec.HEADER_LENGTH, frame.length));
+        assertFalse(DeltaCodec.isFrame(body));
+        assertFalse(DeltaCodec.isFrame(new byte[DeltaCodec.HEADER_LENGTH]));
+    }
+
+    private static byte[] assertRoundTrip(byte[] base, byte[] target) {
+        byte[] delta = DeltaCodec.diff(base, target, Integer.MAX_VALUE);
+        assertNotNull(delta);
+        assertArrayEquals(target, DeltaCodec.patch(base, delta, 0));
+        // 差分放在帧内容中的情况
+        byte[] frame = DeltaCodec.frame(DeltaCodec.TYPE_DELTA, 1, 2, 1, delta, delta.length);
+        assertArrayEquals(target, DeltaCodec.patch(base, frame, DeltaCodec.HEADER_LENGTH));
+        return delta;
+    }
+
+    private static void assertRejected(byte[] base, byte[] delta) {
+        try {
+            DeltaCodec.patch(base, delta, 0);
+            fail("accepted " + Arrays.toString(delta));
+        } catch (IllegalArgumentException e) {
+            // 预期
+        }
+    }
+
+    /**
+     * 类似JSON的文本，重复的字段名让差分可以找到匹配的块
+     */
+    private static byte[] randomText(Random random, int length) {
+        StringBuilder builder = new StringBuilder(length + 32);
+        while (builder.length() < length) {
+            builder.append("\"field").append(random.nextInt(500)).append("\":").append(random.nextInt(100000))
+                    .append(',');
+        }
+        return builder.substring(0, length).getBytes();
+    }
+
+    /**
+     * 随机修改、插入、删除和移动一些片段
+     */
+    private static byte[] edit(Random random, byte[] base, int edits) {
+        byte[] data = base.clone();
+        for (int i = 0; i < edits; i++) {
+            int position = data.length == 0 ? 0 : random.nextInt(data.length);
+            int length = Math.min(random.nextInt(64), data.length - position);
+            switch (random.nextInt(4)) {
+                case 0:
+                    for (int j = 0; j < length; j++) {
+                        data[position + j] = (byte) ('a' + random.nextInt(26));
+                    }
+                    break;
+                case 1:
+                    byte[] inserted = randomText(random, 1 + random.nextInt(64));
+                    data = splice(data, position, 0, inserted);
+                    break;
+                case 2:
+                    data = splice(data, position, length, new byte[0]);
+                    break;
+                default:
+                    byte[] moved = Arrays.copyOfRange(data, position, position + length);
+                    data = splice(data, position, length, new byte[0]);
+                    data = splice(data, data.length == 0 ? 0 : random.nextInt(data.length), 0, moved);
+                    break;
+            }
+        }
+        return data;
+    }
+
+    private static byte[] splice(byte[] data, int position, int removed, byte[] inserted) {
+        byte[] result = new byte[data.length - removed + inserted.length];
+        System.arraycopy(data, 0, result, 0, position);
+        System.arraycopy(inserted, 0, result, position, inserted.length);
+        System.arraycopy(data, position + removed, result, position + inserted.length,
+                data.length - position - removed);
+        return result;
+    }
+}
@@ -0,0 +1,178 @@
+package android.aracy.support.mqtt;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link DispatchMode#WORK_STEALING}和{@link DispatchMode#THREAD_POOL}的对比
+ * <p>
+ * 两个线程池按Service中的方式创建：ForkJoinPool的线程数为CPU数，ThreadPoolExecutor为CPU数的三倍。
+ * 计算型的消息大小不均，大消息拆成子任务并行执行；阻塞型的消息每条睡眠一段时间模拟网络或磁盘读写。
+ * 耗时只输出不断言，机器负载不同时比例不稳定；断言只检查每条消息都执行了一次，计算结果与线程池相同。
+ * 阻塞型的消息占住ForkJoinPool的全部线程，耗时明显长于线程池，说明工作窃取模式只适合不阻塞的处理
+ *
+ * @author aracy
+ * @version [1.0, 2017-05-10]
+ */
+public class DispatchModeBenchmarkTest {
+
+    private static final int PROCESSORS = Runtime.getRuntime().availableProcessors();
+
+    private static final int CPU_MESSAGES = 400;
+
+    /**
+     * 每多少条计算型消息中有一条大消息
+     */
+    private static final int HEAVY_EVERY = 10;
+
+    private static final int HEAVY_PARTS = 8;
+
+    private static final int LIGHT_ITERATIONS = 20000;
+
+    private static final int IO_MESSAGES_PER_THREAD = 8;
+
+    private static final long IO_SLEEP_MILLIS = 20;
+
+    private ExecutorService mWorkStealing;
+
+    private ExecutorService mThreadPool;
+
+    @Before
+    public void setUp() {
+        LogUtil.sDebug = false;
+        mWorkStealing = ForkJoinSupport.newPool(PROCESSORS);
+        mThreadPool = new ThreadPoolExecutor(PROCESSORS * 3, PROCESSORS * 3, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+    }
+
+    @After
+    public void tearDown() {
+        mWorkStealing.shutdownNow();
+        mThreadPool.shutdownNow();
+    }
+
+    @Test
+    public void cpuBound() throws Exception {
+        AtomicLong workStealingSum = new AtomicLong();
+        AtomicLong threadPoolSum = new AtomicLong();
+        // 预热
+        runCpuBound(mWorkStealing, new AtomicLong());
+        runCpuBound(mThreadPool, new AtomicLong());
+
+        long workStealing = runCpuBound(mWorkStealing, workStealingSum);
+        long threadPool = runCpuBound(mThreadPool, threadPoolSum);
+        System.out.println("cpu-bound  processors=" + PROCESSORS + " work-stealing=" + workStealing
+                + "ms thread-pool=" + threadPool + "ms");
+        assertEquals(threadPoolSum.get(), workStealingSum.get());
+    }
+
+    @Test
+    public void ioBound() throws Exception {
+        int messages = PROCESSORS * IO_MESSAGES_PER_THREAD;
+        runIoBound(mWorkStealing, messages, new AtomicInteger());
+        runIoBound(mThreadPool, messages, new AtomicInteger());
+
+        AtomicInteger workStealingRuns = new AtomicInteger();
+        AtomicInteger threadPoolRuns = new AtomicInteger();
+        long workStealing = runIoBound(mWorkStealing, messages, workStealingRuns);
+        long threadPool = runIoBound(mThreadPool, messages, threadPoolRuns);
+        // 理论上ForkJoinPool至少要排IO_MESSAGES_PER_THREAD轮，线程池只需要三分之一
+        System.out.println("io-bound   processors=" + PROCESSORS + " work-stealing=" + workStealing
+                + "ms thread-pool=" + threadPool + "ms");
+        assertEquals(messages, workStealingRuns.get());
+        assertEquals(messages, threadPoolRuns.get());
+    }
+
+    private static long runCpuBound(ExecutorService pool, final AtomicLong sum) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(CPU_MESSAGES);
+        long start = System.nanoTime();
+        for (int i = 0; i < CPU_MESSAGES; i++) {
+            final int seed = i;
+            final boolean heavy = i % HEAVY_EVERY == 0;
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (heavy) {
+                            Runnable[] parts = new Runnable[HEAVY_PARTS];
+                            for (int p = 0; p < parts.length; p++) {
+                                final int partSeed = seed * HEAVY_PARTS + p;
+                                parts[p] = new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        sum.addAndGet(compute(partSeed, LIGHT_ITERATIONS * 4));
+                                    }
+                                };
+                            }
+                            invokeAll(parts);
+                        } else {
+                            sum.addAndGet(compute(seed, LIGHT_ITERATIONS));
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    private static long runIoBound(ExecutorService pool, int messages, final AtomicInteger runs)
+            throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(messages);
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runs.incrementAndGet();
+                        Thread.sleep(IO_SLEEP_MILLIS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    /**
+     * 与{@link BaseRunnable#invokeAll(Runnable...)}相同，本地JVM上Build.VERSION为0，直接判断当前线程
+     */
+    private static void invokeAll(Runnable[] tasks) {
+        if (ForkJoinTask.inForkJoinPool()) {
+            ForkJoinSupport.invokeAll(tasks);
+            return;
+        }
+        for (Runnable task : tasks) {
+            task.run();
+        }
+    }
+
+    private static long compute(long seed, int iterations) {
+        long x = seed;
+        for (int i = 0; i < iterations; i++) {
+            x = x * 6364136223846793005L + 1442695040888963407L;
+            x ^= x >>> 33;
+        }
+        return x;
+    }
+}
@@ -0,0 +1,194 @@
+package android.aracy.support.mqtt;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link InboundJournal}的重新分发、损坏处理和压缩，以及写入吞吐量
+ *
+ * @author aracy
+ * @version [1.0, 2017-05-04]
+ */
+public class InboundJournalTest {
+
+    private static final String FILE_NAME = "mqtt_inbox.log";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDir;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        LogUtil.sDebug = false;
+        mDir = mFolder.newFolder();
+        mFile = new File(mDir, FILE_NAME);
+    }
+
+    @Test
+    public void replaysUnfinishedMessagesInOrder() {
+        InboundJournal journal = new InboundJournal(mDir);
+        assertTrue(journal.open().isEmpty());
+        long first = journal.append(message("a/1", "one", 1, false), true);
+        long second = journal.append(message("a/2", "two", 0, false), false);
+        long third = journal.append(message("a/3", "three", 2, true), true);
+        journal.markDone(second);
+        journal.close();
+
+        InboundJournal reopened = new InboundJournal(mDir);
+        List<InboundJournal.Entry> entries = reopened.open();
+        assertEquals(2, entries.size());
+        assertEquals(first, entries.get(0).seq);
+        assertMessage(entries.get(0).message, "a/1", "one", 1, false);
+        assertEquals(third, entries.get(1).seq);
+        assertMessage(entries.get(1).message, "a/3", "three", 2, true);
+        assertTrue(entries.get(0).message.isDuplicate());
+
+        // 序号接着上次的继续，不会和上次的消息重复
+        long next = reopened.append(message("a/4", "four", 1, false), true);
+        assertTrue(next > third);
+        reopened.close();
+    }
+
+    @Test
+    public void truncatesTornTail() throws IOException {
+        InboundJournal journal = new InboundJournal(mDir);
+        journal.open();
+        journal.append(message("t/1", "one", 1, false), true);
+        journal.append(message("t/2", "two", 1, false), true);
+        journal.close();
+        long valid = mFile.length();
+
+        // 模拟写到一半被杀：长度和校验已经写入，内容只写了一部分
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.seek(valid);
+        file.writeInt(100);
+        file.writeInt(0x12345678);
+        file.write(new byte[]{1, 0, 0});
+        file.close();
+
+        InboundJournal reopened = new InboundJournal(mDir);
+        assertEquals(2, reopened.open().size());
+        assertEquals(valid, mFile.length());
+        reopened.append(message("t/3", "three", 1, false), true);
+        reopened.close();
+
+        List<InboundJournal.Entry> entries = new InboundJournal(mDir).open();
+        assertEquals(3, entries.size());
+        assertEquals("t/3", entries.get(2).message.getTopic());
+    }
+
+    @Test
+    public void rejectsRecordWithBadCrc() throws IOException {
+        InboundJournal journal = new InboundJournal(mDir);
+        journal.open();
+        journal.append(message("c/1", "one", 1, false), true);
+        long firstEnd = mFile.length();
+        journal.append(message("c/2", "two", 1, false), true);
+        journal.append(message("c/3", "six", 1, false), true);
+        journal.close();
+
+        // 后两条记录长度相同，改动第二条记录内容的最后一个字节，长度不变只有校验失败
+        long secondEnd = firstEnd + (mFile.length() - firstEnd) / 2;
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.seek(secondEnd - 1);
+        int last = file.read();
+        file.seek(secondEnd - 1);
+        file.write(last ^ 0xff);
+        file.close();
+
+        List<InboundJournal.Entry> entries = new InboundJournal(mDir).open();
+        assertEquals(1, entries.size());
+        assertEquals("c/1", entries.get(0).message.getTopic());
+        // 校验失败之后的内容全部丢弃
+        assertEquals(firstEnd, mFile.length());
+    }
+
+    @Test
+    public void compactsFinishedMessages() {
+        InboundJournal journal = new InboundJournal(mDir);
+        journal.open();
+        byte[] payload = new byte[60 * 1024];
+        long[] kept = new long[3];
+        int keptCount = 0;
+        for (int i = 0; i < 100; i++) {
+            payload[0] = (byte) i;
+            long seq = journal.append(new MQTTMessage("big/" + i, payload.clone(), 1, false, false), true);
+            if (i % 40 == 5) {
+                kept[keptCount++] = seq;
+            } else {
+                journal.markDone(seq);
+            }
+        }
+        journal.close();
+        assertEquals(3, keptCount);
+        // 100条消息约6MB，超过4MB时压缩，之后只追加了不到2MB
+        assertTrue("file length " + mFile.length(), mFile.length() < 4 * 1024 * 1024);
+        assertFalse(new File(mDir, FILE_NAME + ".tmp").exists());
+
+        List<InboundJournal.Entry> entries = new InboundJournal(mDir).open();
+        assertEquals(3, entries.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(kept[i], entries.get(i).seq);
+            assertEquals("big/" + (i * 40 + 5), entries.get(i).message.getTopic());
+            assertEquals((byte) (i * 40 + 5), entries.get(i).message.getPayload()[0]);
+        }
+    }
+
+    @Test
+    public void throughput() {
+        byte[] payload = new byte[256];
+        Arrays.fill(payload, (byte) 'x');
+        int messages = 20000;
+        long committed = runThroughput(new File(mDir, "commit"), payload, messages, true);
+        long buffered = runThroughput(new File(mDir, "buffer"), payload, messages, false);
+        System.out.println("journal 256B x " + messages + " commit-each=" + committed / 1000000 + "ms ("
+                + perSecond(messages, committed) + "/s) buffered=" + buffered / 1000000 + "ms ("
+                + perSecond(messages, buffered) + "/s)");
+    }
+
+    private static long runThroughput(File dir, byte[] payload, int messages, boolean commit) {
+        assertTrue(dir.mkdirs());
+        InboundJournal journal = new InboundJournal(dir);
+        journal.open();
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            long seq = journal.append(new MQTTMessage("bench/topic", payload, commit ? 1 : 0, false, false), commit);
+            journal.markDone(seq);
+        }
+        journal.close();
+        long elapsed = System.nanoTime() - start;
+        assertTrue(new InboundJournal(dir).open().isEmpty());
+        return elapsed;
+    }
+
+    private static long perSecond(int messages, long nanos) {
+        return messages * 1000000000L / Math.max(1, nanos);
+    }
+
+    private static MQTTMessage message(String topic, String text, int qos, boolean retained) {
+        return new MQTTMessage(topic, text.getBytes(), qos, retained, false);
+    }
+
+    private static void assertMessage(MQTTMessage message, String topic, String text, int qos, boolean retained) {
+        assertEquals(topic, message.getTopic());
+        assertArrayEquals(text.getBytes(), message.getPayload());
+        assertEquals(qos, message.getQos());
+        assertEquals(retained, message.isRetained());
+    }
+}
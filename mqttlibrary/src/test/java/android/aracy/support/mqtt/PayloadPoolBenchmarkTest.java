@@ -0,0 +1,150 @@
+package android.aracy.support.mqtt;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayDeque;
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link PayloadPool}在固定长度和可变长度内容下的命中率和分配量
+ * <p>
+ * 模拟一个发布者：每次借出一个缓冲，最多同时有{@link #IN_FLIGHT}个等待确认，最早的确认之后归还。
+ * 分配量用HotSpot的线程分配计数统计，和每次直接new byte[]对比
+ *
+ * @author aracy
+ * @version [1.0, 2017-04-29]
+ */
+public class PayloadPoolBenchmarkTest {
+
+    private static final int MESSAGES = 200000;
+
+    private static final int IN_FLIGHT = 8;
+
+    @Before
+    public void setUp() {
+        LogUtil.sDebug = false;
+    }
+
+    @Test
+    public void fixedLength() {
+        Result result = run(new Sizes() {
+            @Override
+            public int next(Random random) {
+                return 512;
+            }
+        }, "fixed 512B");
+        assertTrue(result.hitRate() > 0.99);
+        assertTrue(result.pooledBytes < result.plainBytes / 10);
+    }
+
+    @Test
+    public void fewDistinctLengths() {
+        final int[] lengths = {48, 120, 512, 1400};
+        Result result = run(new Sizes() {
+            @Override
+            public int next(Random random) {
+                return lengths[random.nextInt(lengths.length)];
+            }
+        }, "4 lengths");
+        assertTrue(result.hitRate() > 0.99);
+        assertTrue(result.pooledBytes < result.plainBytes / 10);
+    }
+
+    @Test
+    public void variableLength() {
+        Result result = run(new Sizes() {
+            @Override
+            public int next(Random random) {
+                return 200 + random.nextInt(1800);
+            }
+        }, "200-2000B");
+        // 长度完全相同才能复用，随机长度几乎不命中，这时缓冲池只多分配PayloadBuffer对象本身
+        assertTrue(result.hitRate() < 0.05);
+        assertTrue(result.pooledBytes < result.plainBytes * 11 / 10);
+    }
+
+    private static Result run(Sizes sizes, String name) {
+        // 预热
+        runPooled(sizes, new MQTTMetrics(), MESSAGES / 10);
+        runPlain(sizes, MESSAGES / 10);
+
+        MQTTMetrics metrics = new MQTTMetrics();
+        Result result = new Result();
+        long before = allocatedBytes();
+        runPooled(sizes, metrics, MESSAGES);
+        result.pooledBytes = allocatedBytes() - before;
+        before = allocatedBytes();
+        runPlain(sizes, MESSAGES);
+        result.plainBytes = allocatedBytes() - before;
+        result.hits = metrics.getPayloadPoolHits();
+        result.misses = metrics.getPayloadPoolMisses();
+        System.out.println("payload pool " + name + ": hit rate=" + Math.round(result.hitRate() * 1000) / 10.0
+                + "% allocated pooled=" + result.pooledBytes / 1024 + "KB plain=" + result.plainBytes / 1024 + "KB");
+        return result;
+    }
+
+    private static void runPooled(Sizes sizes, MQTTMetrics metrics, int messages) {
+        PayloadPool pool = new PayloadPool(metrics);
+        ArrayDeque<PayloadBuffer> inFlight = new ArrayDeque<>();
+        Random random = new Random(1);
+        for (int i = 0; i < messages; i++) {
+            PayloadBuffer buffer = pool.obtain(sizes.next(random));
+            buffer.data()[0] = (byte) i;
+            inFlight.addLast(buffer);
+            if (inFlight.size() > IN_FLIGHT) {
+                inFlight.pollFirst().recycle();
+            }
+        }
+    }
+
+    private static long runPlain(Sizes sizes, int messages) {
+        ArrayDeque<byte[]> inFlight = new ArrayDeque<>();
+        Random random = new Random(1);
+        long sum = 0;
+        for (int i = 0; i < messages; i++) {
+            byte[] data = new byte[sizes.next(random)];
+            data[0] = (byte) i;
+            inFlight.addLast(data);
+            if (inFlight.size() > IN_FLIGHT) {
+                sum += inFlight.pollFirst()[0];
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * 当前线程累计分配的字节数，不是HotSpot时返回0
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return 0;
+        }
+        return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private interface Sizes {
+
+        int next(Random random);
+    }
+
+    private static final class Result {
+
+        long hits;
+
+        long misses;
+
+        long pooledBytes;
+
+        long plainBytes;
+
+        double hitRate() {
+            return (double) hits / Math.max(1, hits + misses);
+        }
+    }
+}
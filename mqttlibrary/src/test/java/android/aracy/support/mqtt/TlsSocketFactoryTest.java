@@ -0,0 +1,359 @@
+package android.aracy.support.mqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.TrustManagerFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link TlsSocketFactory}的主机名校验，以及共用会话缓存对重新连接时间的影响
+ * <p>
+ * 证书用JDK的keytool在临时目录生成，只对localhost有效。
+ * 对比时客户端经过一个每个方向延迟{@link #DELAY_MILLIS}的代理连接服务器，模拟移动网络的往返时间
+ *
+ * @author aracy
+ * @version [1.0, 2017-05-19]
+ */
+public class TlsSocketFactoryTest {
+
+    private static final String PASSWORD = "secret";
+
+    private static final int DELAY_MILLIS = 20;
+
+    private static final int RECONNECTS = 10;
+
+    private static File sKeyStoreFile;
+
+    private static TrustManagerFactory sTrustManagers;
+
+    private static Broker sBroker;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        sKeyStoreFile = File.createTempFile("broker", ".jks");
+        sKeyStoreFile.delete();
+        String keytool = new File(System.getProperty("java.home"), "bin/keytool").getPath();
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-keystore", sKeyStoreFile.getPath(),
+                "-storetype", "JKS", "-storepass", PASSWORD, "-keypass", PASSWORD, "-alias", "broker",
+                "-keyalg", "RSA", "-keysize", "2048", "-validity", "1", "-dname", "CN=localhost",
+                "-ext", "SAN=dns:localhost").redirectErrorStream(true).start();
+        drain(process.getInputStream());
+        assertEquals(0, process.waitFor());
+
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        FileInputStream in = new FileInputStream(sKeyStoreFile);
+        try {
+            keyStore.load(in, PASSWORD.toCharArray());
+        } finally {
+            in.close();
+        }
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, PASSWORD.toCharArray());
+        sTrustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        sTrustManagers.init(keyStore);
+        SSLContext context = SSLContext.getInstance("TLSv1.2");
+        context.init(keyManagers.getKeyManagers(), null, null);
+        sBroker = new Broker(context);
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws IOException {
+        if (sBroker != null) {
+            sBroker.close();
+        }
+        if (sKeyStoreFile != null) {
+            sKeyStoreFile.delete();
+        }
+    }
+
+    @Before
+    public void setUp() {
+        LogUtil.sDebug = false;
+    }
+
+    @Test
+    public void acceptsMatchingHostname() throws Exception {
+        int before = sBroker.connects.get();
+        connect("ssl://localhost:" + sBroker.port(), newFactory(new MQTTMetrics()));
+        assertEquals(before + 1, sBroker.connects.get());
+    }
+
+    @Test
+    public void rejectsMismatchedHostnameBeforeConnect() throws Exception {
+        int before = sBroker.connects.get();
+        try {
+            // 证书只对localhost有效
+            connect("ssl://127.0.0.1:" + sBroker.port(), newFactory(new MQTTMetrics()));
+            fail("connected to 127.0.0.1");
+        } catch (MqttException e) {
+            assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof SSLPeerUnverifiedException);
+        }
+        assertEquals(before, sBroker.connects.get());
+    }
+
+    @Test
+    public void sharedFactoryResumesSessions() throws Exception {
+        DelayProxy proxy = new DelayProxy(sBroker.port());
+        try {
+            String uri = "ssl://localhost:" + proxy.port();
+            MQTTMetrics fresh = new MQTTMetrics();
+            MQTTMetrics shared = new MQTTMetrics();
+            TlsSocketFactory sharedFactory = newFactory(shared);
+            long freshNanos = 0;
+            long sharedNanos = 0;
+            for (int i = 0; i < RECONNECTS; i++) {
+                freshNanos += connect(uri, newFactory(fresh));
+                sharedNanos += connect(uri, sharedFactory);
+            }
+            // 握手完成的回调是异步的
+            Thread.sleep(200);
+            long freshMillis = freshNanos / RECONNECTS / 1000000;
+            long sharedMillis = sharedNanos / RECONNECTS / 1000000;
+            System.out.println("tls reconnect RTT " + 2 * DELAY_MILLIS + "ms: new SSLContext avg CONNACK "
+                    + freshMillis + "ms full=" + fresh.getTlsFullHandshakes().getCount() + ", shared avg CONNACK "
+                    + sharedMillis + "ms full=" + shared.getTlsFullHandshakes().getCount() + " resumed="
+                    + shared.getTlsResumedHandshakes().getCount());
+            assertEquals(0, fresh.getTlsResumedHandshakes().getCount());
+            assertEquals(RECONNECTS - 1, shared.getTlsResumedHandshakes().getCount());
+            // 恢复会话省去一个往返
+            assertTrue(sharedMillis + DELAY_MILLIS < freshMillis);
+        } finally {
+            proxy.close();
+        }
+    }
+
+    private static TlsSocketFactory newFactory(MQTTMetrics metrics) throws Exception {
+        TlsConfig config = new TlsConfig().setProtocol("TLSv1.2").setTrustManagers(sTrustManagers.getTrustManagers())
+                .setHostnameVerifier(new SubjectAltNameVerifier());
+        return new TlsSocketFactory(config.createContext(), config.isSessionTickets(), config.getHostnameVerifier(),
+                metrics);
+    }
+
+    /**
+     * @return 从发出连接到收到CONNACK的时间(纳秒)
+     */
+    private static long connect(String uri, TlsSocketFactory factory) throws MqttException {
+        MqttAsyncClient client = new MqttAsyncClient(uri, "tls-client", new MemoryPersistence());
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setSocketFactory(factory);
+        options.setMqttVersion(MqttConnectOptions.MQTT_VERSION_3_1_1);
+        try {
+            long start = System.nanoTime();
+            client.connect(options).waitForCompletion();
+            long elapsed = System.nanoTime() - start;
+            client.disconnectForcibly(0, 100);
+            return elapsed;
+        } finally {
+            client.close();
+        }
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[1024];
+        while (in.read(buffer) >= 0) {
+            // keytool的输出
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // 忽略
+        }
+    }
+
+    /**
+     * JDK中HttpsURLConnection的默认校验总是失败，测试中按证书的DNS名称比较
+     */
+    private static final class SubjectAltNameVerifier implements HostnameVerifier {
+
+        @Override
+        public boolean verify(String hostname, SSLSession session) {
+            try {
+                X509Certificate certificate = (X509Certificate) session.getPeerCertificates()[0];
+                Collection<List<?>> names = certificate.getSubjectAlternativeNames();
+                if (names == null) {
+                    return false;
+                }
+                for (List<?> name : names) {
+                    // 2为dNSName
+                    if (Integer.valueOf(2).equals(name.get(0)) && hostname.equalsIgnoreCase((String) name.get(1))) {
+                        return true;
+                    }
+                }
+                return false;
+            } catch (SSLPeerUnverifiedException e) {
+                return false;
+            } catch (CertificateParsingException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * 只处理CONNECT的TLS服务器
+     */
+    private static final class Broker extends Thread {
+
+        final AtomicInteger connects = new AtomicInteger();
+
+        private final SSLServerSocket mServer;
+
+        Broker(SSLContext context) throws IOException {
+            mServer = (SSLServerSocket) context.getServerSocketFactory().createServerSocket(0);
+            setDaemon(true);
+            start();
+        }
+
+        int port() {
+            return mServer.getLocalPort();
+        }
+
+        void close() throws IOException {
+            mServer.close();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final Socket socket = mServer.accept();
+                    Thread session = new Thread() {
+                        @Override
+                        public void run() {
+                            serve(socket);
+                        }
+                    };
+                    session.setDaemon(true);
+                    session.start();
+                }
+            } catch (IOException e) {
+                // 关闭
+            }
+        }
+
+        private void serve(Socket socket) {
+            try {
+                InputStream in = socket.getInputStream();
+                if (in.read() != 0x10) {
+                    return;
+                }
+                // CONNECT的剩余长度小于128，只有一个字节
+                int length = in.read();
+                for (int i = 0; i < length; i++) {
+                    in.read();
+                }
+                connects.incrementAndGet();
+                OutputStream out = socket.getOutputStream();
+                out.write(new byte[]{0x20, 2, 0, 0});
+                out.flush();
+                while (in.read() >= 0) {
+                    // 等客户端关闭
+                }
+            } catch (IOException e) {
+                // 握手失败或客户端关闭
+            } finally {
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    /**
+     * 每个方向的数据都延迟转发的TCP代理
+     */
+    private static final class DelayProxy extends Thread {
+
+        private final ServerSocket mServer = new ServerSocket(0);
+
+        private final int mTargetPort;
+
+        DelayProxy(int targetPort) throws IOException {
+            mTargetPort = targetPort;
+            setDaemon(true);
+            start();
+        }
+
+        int port() {
+            return mServer.getLocalPort();
+        }
+
+        void close() throws IOException {
+            mServer.close();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Socket client = mServer.accept();
+                    Socket broker = new Socket("127.0.0.1", mTargetPort);
+                    client.setTcpNoDelay(true);
+                    broker.setTcpNoDelay(true);
+                    pump(client, broker);
+                    pump(broker, client);
+                }
+            } catch (IOException e) {
+                // 关闭
+            }
+        }
+
+        private static void pump(final Socket from, final Socket to) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    byte[] buffer = new byte[16384];
+                    try {
+                        InputStream in = from.getInputStream();
+                        OutputStream out = to.getOutputStream();
+                        int read;
+                        while ((read = in.read(buffer)) >= 0) {
+                            Thread.sleep(DELAY_MILLIS);
+                            out.write(buffer, 0, read);
+                            out.flush();
+                        }
+                    } catch (IOException e) {
+                        // 一方关闭
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        closeQuietly(from);
+                        closeQuietly(to);
+                    }
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+}